@@ -0,0 +1,58 @@
+package com.kvstore.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 64 threads incrementing one key: {@code lockFree} is INCR without an
+ * append-only file, {@code locked} is INCR as logged under the key's lock,
+ * and {@code getSet} is the GET, parse and SET a client would otherwise do,
+ * which also loses updates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class CounterBenchmark {
+    private static final ByteKey KEY = ByteKey.of("counter");
+
+    private StorageEngine engine;
+
+    @Setup
+    public void setUp() {
+        engine = new StorageEngine();
+        engine.set(KEY, "0".getBytes(StandardCharsets.US_ASCII), DataType.STRING);
+    }
+
+    @Benchmark
+    public long lockFree() {
+        return engine.incrementBy(KEY, 1, null);
+    }
+
+    @Benchmark
+    public long locked() {
+        return engine.incrementBy(KEY, 1, entry -> { });
+    }
+
+    @Benchmark
+    public long getSet() {
+        byte[] value = (byte[]) engine.get(KEY).orElseThrow().getValue();
+        long next = Long.parseLong(new String(value, StandardCharsets.US_ASCII)) + 1;
+        engine.set(KEY, Long.toString(next).getBytes(StandardCharsets.US_ASCII), DataType.STRING);
+        return next;
+    }
+}
@@ -0,0 +1,62 @@
+package com.kvstore.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mixed GET/SET load on a shared {@link StorageEngine}. Run with increasing
+ * thread counts to check scaling, e.g. "-t 1", "-t 4", "-t 16"; the small key
+ * space keeps the threads on the same few entries to measure contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageEngineBenchmark {
+
+    @Param({"100000", "16"})
+    public int keySpace;
+
+    @Param({"90"})
+    public int readPercent;
+
+    private StorageEngine engine;
+    private ByteKey[] keys;
+
+    @Setup
+    public void setUp() {
+        engine = new StorageEngine();
+        keys = new ByteKey[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = ByteKey.of("key:" + i);
+            engine.set(keys[i], ("value:" + i).getBytes(StandardCharsets.US_ASCII), DataType.STRING);
+        }
+    }
+
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ByteKey key = keys[random.nextInt(keySpace)];
+        if (random.nextInt(100) < readPercent) {
+            Optional<StorageEntry> entry = engine.get(key);
+            return entry.orElse(null);
+        }
+        engine.set(key, key.bytes(), DataType.STRING);
+        return key;
+    }
+}
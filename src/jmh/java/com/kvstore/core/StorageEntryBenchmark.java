@@ -0,0 +1,62 @@
+package com.kvstore.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GET latency on keys that carry a time to live, which makes every read check
+ * the expiry. Setup also prints the retained size of an entry as measured by
+ * JOL, excluding the key and value strings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageEntryBenchmark {
+
+    @Param({"1000000"})
+    public int keySpace;
+
+    private StorageEngine engine;
+    private ByteKey[] keys;
+
+    @Setup
+    public void setUp() {
+        engine = new StorageEngine();
+        keys = new ByteKey[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = ByteKey.of("key:" + i);
+            StorageEntry entry = new StorageEntry(keys[i].bytes(), DataType.STRING);
+            entry.setExpiresAt(System.currentTimeMillis() + 3_600_000);
+            engine.put(keys[i], entry);
+        }
+        byte[] value = "value".getBytes(StandardCharsets.US_ASCII);
+        StorageEntry plain = new StorageEntry(value, DataType.STRING);
+        StorageEntry expiring = new StorageEntry(value, DataType.STRING);
+        expiring.setExpiresAt(System.currentTimeMillis() + 3_600_000);
+        long strings = GraphLayout.parseInstance(value, DataType.STRING).totalSize();
+        System.out.printf("%nentry without TTL: %d bytes, with TTL: %d bytes%n",
+                GraphLayout.parseInstance(plain, DataType.STRING).totalSize() - strings,
+                GraphLayout.parseInstance(expiring, DataType.STRING).totalSize() - strings);
+    }
+
+    @Benchmark
+    public Object get() {
+        return engine.get(keys[ThreadLocalRandom.current().nextInt(keySpace)]).orElse(null);
+    }
+}
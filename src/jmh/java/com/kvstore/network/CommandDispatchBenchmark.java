@@ -0,0 +1,81 @@
+package com.kvstore.network;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU cost of one command through the full connection pipeline,
+ * from the decoder to the reply, with no socket in between. A pipelined batch
+ * of mostly GETs with some lower-case SETs is fed to a channel built by
+ * {@link RedisChannelInitializer}, with and without wire logging, and with
+ * latency timing off, sampled or on every call.
+ *
+ * Run with {@code -prof jfr} or {@code -prof stack} to see where the time per
+ * command goes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandDispatchBenchmark {
+    private static final int PIPELINE = 100;
+
+    @Param({"false", "true"})
+    public boolean wireLogging;
+
+    @Param({"0", "16", "1"})
+    public int latencySampling;
+
+    private EmbeddedChannel channel;
+    private byte[] batch;
+
+    @Setup
+    public void setUp() {
+        Keyspace keyspace = Keyspace.shared();
+        keyspace.stats().setSamplingInterval(latencySampling);
+        channel = new EmbeddedChannel(new RedisChannelInitializer(keyspace, wireLogging));
+        drain();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < PIPELINE; i++) {
+            String key = "key:" + i;
+            if (i % 10 == 0) {
+                sb.append("*3\r\n$3\r\nset\r\n$").append(key.length()).append("\r\n").append(key)
+                        .append("\r\n$5\r\nvalue\r\n");
+            } else {
+                sb.append("*2\r\n$3\r\nGET\r\n$").append(key.length()).append("\r\n").append(key).append("\r\n");
+            }
+        }
+        batch = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void dispatch() {
+        channel.writeInbound(Unpooled.wrappedBuffer(batch));
+        drain();
+    }
+
+    private void drain() {
+        Object reply;
+        while ((reply = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(reply);
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.kvstore.network;
+
+import com.kvstore.config.ServerConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop GET/SET load in the manner of redis-benchmark: a number of
+ * connections each send a pipeline of requests, wait for all of its replies
+ * and send the next, until the requested number of requests or seconds is
+ * reached. The latency of a request runs from the write of its pipeline to
+ * its reply, as in redis-benchmark.
+ *
+ * Unless a host is given, a server is started in this JVM on a free port,
+ * configured from the usual kvstore.* system properties. Keys are
+ * "key:" followed by twelve digits; before the run every key is set once so
+ * GETs hit, then the load runs unrecorded for the warm-up period.
+ *
+ * Run through the benchmarks profile:
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec@load -Dload.args="--clients 50 --pipeline 16"
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final int KEY_DIGITS = 12;
+    private static final byte[] GET = "*2\r\n$3\r\nGET\r\n$16\r\nkey:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SET = "*3\r\n$3\r\nSET\r\n$16\r\nkey:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Options options;
+    private final byte[] value;
+
+    private LoadGenerator(Options options) {
+        this.options = options;
+        byte[] data = new byte[options.valueSize];
+        Arrays.fill(data, (byte) 'x');
+        this.value = ("$" + options.valueSize + "\r\n" + new String(data, StandardCharsets.US_ASCII) + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.println(Options.USAGE);
+            return;
+        }
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(1);
+            return;
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws Exception {
+        KVStoreServer server = null;
+        String host = options.host;
+        int port = options.port;
+        if (host == null) {
+            host = "127.0.0.1";
+            port = freePort();
+            server = startServer(port);
+        }
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup(options.threads, "load-generator");
+        try {
+            List<Client> clients = connect(group, transport, host, port);
+
+            runPhase(new Phase(true, false, options.keySpace, Long.MAX_VALUE, clients.size()), clients);
+            if (options.warmupSeconds > 0) {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+                runPhase(new Phase(false, false, Long.MAX_VALUE, deadline, clients.size()), clients);
+            }
+            long deadline = options.durationSeconds > 0
+                    ? System.nanoTime() + TimeUnit.SECONDS.toNanos(options.durationSeconds)
+                    : Long.MAX_VALUE;
+            long requests = options.durationSeconds > 0 ? Long.MAX_VALUE : options.requests;
+            Phase measured = new Phase(false, true, requests, deadline, clients.size());
+            long elapsedNanos = runPhase(measured, clients);
+            report(clients, elapsedNanos, transport);
+
+            for (Client client : clients) {
+                client.channel.close();
+            }
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            if (server != null) {
+                server.shutdown();
+            }
+        }
+    }
+
+    private List<Client> connect(EventLoopGroup group, Transport transport, String host, int port)
+            throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(options.clients);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true);
+        List<Client> clients = new ArrayList<>(options.clients);
+        for (int i = 0; i < options.clients; i++) {
+            Client client = new Client(ready);
+            bootstrap.handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ch.pipeline().addLast("decoder", new ReplyDecoder());
+                    ch.pipeline().addLast("client", client);
+                }
+            });
+            client.channel = bootstrap.connect(host, port).sync().channel();
+            clients.add(client);
+        }
+        if (!ready.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("server at " + host + ":" + port + " did not answer PING");
+        }
+        return clients;
+    }
+
+    /**
+     * Starts every client on the phase and waits until all of them ran out of
+     * requests.
+     *
+     * @return the time the phase took
+     */
+    private static long runPhase(Phase phase, List<Client> clients) throws InterruptedException {
+        long start = System.nanoTime();
+        for (Client client : clients) {
+            client.channel.eventLoop().execute(() -> client.begin(phase));
+        }
+        phase.finished.await();
+        return System.nanoTime() - start;
+    }
+
+    private void report(List<Client> clients, long elapsedNanos, Transport transport) {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        long completed = 0;
+        long errors = 0;
+        long totalNanos = 0;
+        long minNanos = Long.MAX_VALUE;
+        long maxNanos = 0;
+        for (Client client : clients) {
+            client.histogram.addTo(counts);
+            completed += client.completed;
+            errors += client.errors;
+            totalNanos += client.totalNanos;
+            minNanos = Math.min(minNanos, client.minNanos);
+            maxNanos = Math.max(maxNanos, client.maxNanos);
+        }
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "====== GET/SET, %d%% GET ======%n", options.readPercent);
+        System.out.printf(Locale.ROOT, "  %d requests completed in %.2f seconds%n", completed, seconds);
+        System.out.printf(Locale.ROOT, "  %d parallel clients, pipeline %d, %d byte values, %d keys, %s%n",
+                options.clients, options.pipeline, options.valueSize, options.keySpace,
+                transport.name().toLowerCase(Locale.ROOT));
+        System.out.printf(Locale.ROOT, "  %.2f requests per second, %d errors%n", completed / seconds, errors);
+        if (completed == 0) {
+            return;
+        }
+        System.out.printf(Locale.ROOT,
+                "  latency (msec): avg %.3f min %.3f p50 %.3f p95 %.3f p99 %.3f p99.9 %.3f max %.3f%n",
+                totalNanos / 1e6 / completed, minNanos / 1e6,
+                LatencyHistogram.valueAtPercentile(counts, 50) / 1e6,
+                LatencyHistogram.valueAtPercentile(counts, 95) / 1e6,
+                LatencyHistogram.valueAtPercentile(counts, 99) / 1e6,
+                LatencyHistogram.valueAtPercentile(counts, 99.9) / 1e6,
+                maxNanos / 1e6);
+    }
+
+    private void writeRequest(ByteBuf out, boolean read, long key) {
+        out.writeBytes(read ? GET : SET);
+        int index = out.writerIndex();
+        out.ensureWritable(KEY_DIGITS);
+        for (int i = KEY_DIGITS - 1; i >= 0; i--) {
+            out.setByte(index + i, '0' + (int) (key % 10));
+            key /= 10;
+        }
+        out.writerIndex(index + KEY_DIGITS);
+        out.writeBytes(CRLF);
+        if (!read) {
+            out.writeBytes(value);
+        }
+    }
+
+    private static KVStoreServer startServer(int port) throws InterruptedException {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        config.setPort(port);
+        KVStoreServer server = new KVStoreServer(config);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, "load-generator-server");
+        thread.setDaemon(true);
+        thread.start();
+        for (int i = 0; i < 100; i++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return server;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * One stage of the run, shared by all clients: the requests left to hand
+     * out, a deadline, and whether replies are recorded.
+     */
+    private static final class Phase {
+        // Sets every key in order instead of a random mix
+        final boolean sequential;
+        final boolean recorded;
+        final long deadlineNanos;
+        final AtomicLong remaining;
+        final AtomicLong nextKey = new AtomicLong();
+        final CountDownLatch finished;
+
+        Phase(boolean sequential, boolean recorded, long requests, long deadlineNanos, int clients) {
+            this.sequential = sequential;
+            this.recorded = recorded;
+            this.remaining = new AtomicLong(requests);
+            this.deadlineNanos = deadlineNanos;
+            this.finished = new CountDownLatch(clients);
+        }
+
+        /**
+         * Takes up to {@code max} requests for the next pipeline.
+         *
+         * @return the number taken, 0 once the phase is over
+         */
+        int claim(int max) {
+            if (deadlineNanos != Long.MAX_VALUE && System.nanoTime() >= deadlineNanos) {
+                return 0;
+            }
+            while (true) {
+                long left = remaining.get();
+                if (left <= 0) {
+                    return 0;
+                }
+                int taken = (int) Math.min(max, left);
+                if (left == Long.MAX_VALUE || remaining.compareAndSet(left, left - taken)) {
+                    return taken;
+                }
+            }
+        }
+    }
+
+    /**
+     * One connection. Everything but the final totals runs on the
+     * connection's event loop.
+     */
+    private final class Client extends ChannelInboundHandlerAdapter {
+        private final CountDownLatch ready;
+        private boolean greeted;
+        Channel channel;
+        private Phase phase;
+        private int outstanding;
+        private long batchStartNanos;
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long completed;
+        long errors;
+        long totalNanos;
+        long minNanos = Long.MAX_VALUE;
+        long maxNanos;
+
+        Client(CountDownLatch ready) {
+            this.ready = ready;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            // Servers that greet new connections answer this after the
+            // greeting, so the first PONG marks the connection as ready
+            ctx.writeAndFlush(ctx.alloc().buffer(PING.length).writeBytes(PING));
+            super.channelActive(ctx);
+        }
+
+        void begin(Phase phase) {
+            this.phase = phase;
+            sendBatch();
+        }
+
+        private void sendBatch() {
+            int count = phase.claim(options.pipeline);
+            if (count == 0) {
+                phase.finished.countDown();
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            ByteBuf out = channel.alloc().buffer(count * (SET.length + KEY_DIGITS + 2 + value.length));
+            for (int i = 0; i < count; i++) {
+                if (phase.sequential) {
+                    writeRequest(out, false, phase.nextKey.getAndIncrement());
+                } else {
+                    writeRequest(out, random.nextInt(100) < options.readPercent, random.nextLong(options.keySpace));
+                }
+            }
+            outstanding = count;
+            batchStartNanos = System.nanoTime();
+            channel.writeAndFlush(out);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!greeted) {
+                if (msg == Reply.PONG) {
+                    greeted = true;
+                    ready.countDown();
+                }
+                return;
+            }
+            if (phase.recorded) {
+                long nanos = System.nanoTime() - batchStartNanos;
+                histogram.record(nanos);
+                completed++;
+                totalNanos += nanos;
+                minNanos = Math.min(minNanos, nanos);
+                maxNanos = Math.max(maxNanos, nanos);
+                if (msg == Reply.ERROR) {
+                    errors++;
+                }
+            }
+            if (--outstanding == 0) {
+                sendBatch();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+
+    private enum Reply {
+        PONG, ERROR, OTHER
+    }
+
+    /**
+     * Splits the reply stream into whole RESP replies, only telling errors
+     * and PONG apart from the rest.
+     */
+    private static final class ReplyDecoder extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            while (in.isReadable()) {
+                int start = in.readerIndex();
+                int end = replyEnd(in, start);
+                if (end < 0) {
+                    return;
+                }
+                byte type = in.getByte(start);
+                if (type == '-') {
+                    out.add(Reply.ERROR);
+                } else if (type == '+' && end - start == 7 && in.getByte(start + 1) == 'P'
+                        && in.getByte(start + 2) == 'O') {
+                    out.add(Reply.PONG);
+                } else {
+                    out.add(Reply.OTHER);
+                }
+                in.readerIndex(end);
+            }
+        }
+
+        /**
+         * Returns the index just past the reply starting at {@code index}, or
+         * -1 if it has not fully arrived.
+         */
+        private static int replyEnd(ByteBuf in, int index) {
+            int lineEnd = in.indexOf(index, in.writerIndex(), (byte) '\n');
+            if (lineEnd < 0) {
+                return -1;
+            }
+            int next = lineEnd + 1;
+            byte type = in.getByte(index);
+            if (type != '$' && type != '*') {
+                return next;
+            }
+            long length = parseLength(in, index + 1, lineEnd - 1);
+            if (type == '$') {
+                if (length < 0) {
+                    return next;
+                }
+                long end = next + length + 2;
+                return end <= in.writerIndex() ? (int) end : -1;
+            }
+            for (long i = 0; i < length; i++) {
+                next = replyEnd(in, next);
+                if (next < 0) {
+                    return -1;
+                }
+            }
+            return next;
+        }
+
+        private static long parseLength(ByteBuf in, int from, int to) {
+            boolean negative = in.getByte(from) == '-';
+            long length = 0;
+            for (int i = negative ? from + 1 : from; i < to; i++) {
+                length = length * 10 + (in.getByte(i) - '0');
+            }
+            return negative ? -length : length;
+        }
+    }
+
+    /**
+     * Command-line options, named after redis-benchmark's where it has one.
+     */
+    private static final class Options {
+        static final String USAGE = """
+                Usage: LoadGenerator [options]
+                  -h, --host <host>         server to load; by default one is started in this JVM
+                  -p, --port <port>         server port (default 6379, with --host)
+                  -c, --clients <n>         parallel connections (default 50)
+                  -P, --pipeline <n>        requests per pipeline (default 1)
+                  -n, --requests <n>        total requests (default 1000000)
+                      --duration <seconds>  run for a time instead of a number of requests
+                      --warmup <seconds>    unrecorded load before the run (default 2)
+                  -r, --keyspace <n>        number of distinct keys (default 100000)
+                  -d, --value-size <bytes>  SET value size (default 64)
+                      --read-percent <n>    share of GETs in percent (default 90)
+                      --threads <n>         client event loops (default 1)
+                      --help                show this help""";
+
+        String host;
+        int port = 6379;
+        int clients = 50;
+        int pipeline = 1;
+        long requests = 1_000_000;
+        long durationSeconds;
+        long warmupSeconds = 2;
+        long keySpace = 100_000;
+        int valueSize = 64;
+        int readPercent = 90;
+        int threads = 1;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + name);
+                }
+                String value = args[++i];
+                try {
+                    switch (name) {
+                        case "-h", "--host" -> options.host = value;
+                        case "-p", "--port" -> options.port = Integer.parseInt(value);
+                        case "-c", "--clients" -> options.clients = positive(name, Integer.parseInt(value));
+                        case "-P", "--pipeline" -> options.pipeline = positive(name, Integer.parseInt(value));
+                        case "-n", "--requests" -> options.requests = positive(name, Long.parseLong(value));
+                        case "--duration" -> options.durationSeconds = positive(name, Long.parseLong(value));
+                        case "--warmup" -> options.warmupSeconds = Long.parseLong(value);
+                        case "-r", "--keyspace" -> options.keySpace = positive(name, Long.parseLong(value));
+                        case "-d", "--value-size" -> options.valueSize = Integer.parseInt(value);
+                        case "--read-percent" -> options.readPercent = Integer.parseInt(value);
+                        case "--threads" -> options.threads = positive(name, Integer.parseInt(value));
+                        default -> throw new IllegalArgumentException("Unknown option " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+                }
+            }
+            if (options.keySpace > 1_000_000_000_000L) {
+                throw new IllegalArgumentException("At most 10^12 keys are supported");
+            }
+            if (options.readPercent < 0 || options.readPercent > 100) {
+                throw new IllegalArgumentException("--read-percent must be between 0 and 100");
+            }
+            if (options.valueSize < 0) {
+                throw new IllegalArgumentException("--value-size must not be negative");
+            }
+            return options;
+        }
+
+        private static <N extends Number> N positive(String name, N value) {
+            if (value.longValue() <= 0) {
+                throw new IllegalArgumentException(name + " must be positive");
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.kvstore.network;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side cost of a fan-out read of many keys: one MGET against the same
+ * number of GETs sent as a single pipeline, through the full connection
+ * pipeline with no socket in between. Without pipelining the GETs would also
+ * pay a round trip each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiKeyBenchmark {
+    @Param({"10", "50"})
+    public int keys;
+
+    @Param({"64"})
+    public int valueSize;
+
+    private EmbeddedChannel channel;
+    private byte[] gets;
+    private byte[] mget;
+
+    @Setup
+    public void setUp() {
+        channel = new EmbeddedChannel(new RedisChannelInitializer(Keyspace.shared(), false));
+        drain();
+        String value = "x".repeat(valueSize);
+        StringBuilder set = new StringBuilder();
+        StringBuilder get = new StringBuilder();
+        StringBuilder multi = new StringBuilder("*" + (keys + 1) + "\r\n$4\r\nMGET\r\n");
+        for (int i = 0; i < keys; i++) {
+            String key = "key:" + i;
+            String bulkKey = "$" + key.length() + "\r\n" + key + "\r\n";
+            set.append("*3\r\n$3\r\nSET\r\n").append(bulkKey).append('$').append(valueSize).append("\r\n")
+                    .append(value).append("\r\n");
+            get.append("*2\r\n$3\r\nGET\r\n").append(bulkKey);
+            multi.append(bulkKey);
+        }
+        channel.writeInbound(Unpooled.wrappedBuffer(set.toString().getBytes(StandardCharsets.US_ASCII)));
+        drain();
+        gets = get.toString().getBytes(StandardCharsets.US_ASCII);
+        mget = multi.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public void pipelinedGets() {
+        channel.writeInbound(Unpooled.wrappedBuffer(gets));
+        drain();
+    }
+
+    @Benchmark
+    public void mget() {
+        channel.writeInbound(Unpooled.wrappedBuffer(mget));
+        drain();
+    }
+
+    private void drain() {
+        Object reply;
+        while ((reply = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(reply);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.kvstore.network;
+
+import com.kvstore.config.ServerConfig;
+import com.kvstore.persistence.AppendOnlyFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end pipelined SET throughput against an in-process server over
+ * loopback. Each operation sends one pipeline of SETs and reads all replies,
+ * so commands per second is the score multiplied by the pipeline depth.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    private static final int PORT = 16379;
+
+    @Param({"1", "16", "100"})
+    public int pipeline;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"SHARED", "SHARDED"})
+        public ServerConfig.KeyspaceMode keyspace;
+
+        // "off" or an append-only fsync policy
+        @Param({"off"})
+        public String appendfsync;
+
+        private KVStoreServer server;
+        private Path dataDir;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            ServerConfig config = new ServerConfig();
+            config.setPort(PORT);
+            config.setKeyspaceMode(keyspace);
+            if (!appendfsync.equals("off")) {
+                dataDir = Files.createTempDirectory("kvstore-bench");
+                config.setDataDir(dataDir);
+                config.setAppendOnly(true);
+                config.setAppendFsync(AppendOnlyFile.FsyncPolicy.valueOf(appendfsync.toUpperCase()));
+            }
+            server = new KVStoreServer(config);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "benchmark-server");
+            thread.setDaemon(true);
+            thread.start();
+            awaitPort();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            server.shutdown();
+            if (dataDir != null) {
+                try (Stream<Path> files = Files.walk(dataDir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+
+        private static void awaitPort() throws InterruptedException {
+            for (int i = 0; i < 100; i++) {
+                try (Socket ignored = new Socket("127.0.0.1", PORT)) {
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(100);
+                }
+            }
+            throw new IllegalStateException("server did not start on port " + PORT);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private byte[] batch;
+        private byte[] replies;
+
+        @Setup(Level.Iteration)
+        public void connect(PipelineBenchmark benchmark) throws IOException {
+            int pipeline = benchmark.pipeline;
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+            out = socket.getOutputStream();
+            in = socket.getInputStream();
+            readFully(in, new byte[5]); // +OK greeting
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < pipeline; i++) {
+                String key = "key:" + Thread.currentThread().getId() + ":" + i;
+                sb.append("*3\r\n$3\r\nSET\r\n$").append(key.length()).append("\r\n").append(key)
+                        .append("\r\n$5\r\nvalue\r\n");
+            }
+            batch = sb.toString().getBytes(StandardCharsets.US_ASCII);
+            replies = new byte[pipeline * 5]; // +OK\r\n per command
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public void pipelinedSet(Server server, Client client) throws IOException {
+        client.out.write(client.batch);
+        readFully(client.in, client.replies);
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int read = 0;
+        while (read < buf.length) {
+            int n = in.read(buf, read, buf.length - read);
+            if (n < 0) {
+                throw new IOException("connection closed");
+            }
+            read += n;
+        }
+    }
+}
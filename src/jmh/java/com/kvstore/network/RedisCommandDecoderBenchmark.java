@@ -0,0 +1,81 @@
+package com.kvstore.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures RESP request decoding for a pipelined batch of SET commands, either
+ * delivered in one read or split into fixed-size chunks to model frames that
+ * straddle TCP reads. The benchmark only relies on the decoder being a channel
+ * handler, so it can be run unchanged against older decoder revisions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisCommandDecoderBenchmark {
+
+    @Param({"1", "16", "100"})
+    public int pipeline;
+
+    @Param({"0", "61"})
+    public int chunkSize;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    private EmbeddedChannel channel;
+    private byte[] batch;
+
+    @Setup
+    public void setUp() {
+        channel = new EmbeddedChannel(new RedisCommandDecoder());
+        String value = "x".repeat(valueSize);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pipeline; i++) {
+            String key = "key:" + i;
+            sb.append("*3\r\n$3\r\nSET\r\n$").append(key.length()).append("\r\n").append(key)
+                    .append("\r\n$").append(value.length()).append("\r\n").append(value).append("\r\n");
+        }
+        batch = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) {
+        if (chunkSize == 0) {
+            channel.writeInbound(Unpooled.wrappedBuffer(batch));
+        } else {
+            for (int offset = 0; offset < batch.length; offset += chunkSize) {
+                ByteBuf chunk = Unpooled.wrappedBuffer(batch, offset, Math.min(chunkSize, batch.length - offset));
+                channel.writeInbound(chunk);
+            }
+        }
+        Object command;
+        while ((command = channel.readInbound()) != null) {
+            bh.consume(command);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.kvstore.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding GET/SET/DEL replies through {@link RespEncoder} against the
+ * previous approach of concatenating a String and copying it into a buffer.
+ * Run with "-prof gc" to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RespEncoderBenchmark {
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private String value;
+
+    @Setup
+    public void setUp() {
+        value = "x".repeat(valueSize);
+    }
+
+    @Benchmark
+    public int bulkReply() {
+        ByteBuf reply = RespEncoder.bulk(alloc, value);
+        return release(reply);
+    }
+
+    @Benchmark
+    public int bulkReplyStringConcat() {
+        ByteBuf reply = Unpooled.copiedBuffer("$" + value.length() + "\r\n" + value + "\r\n", StandardCharsets.UTF_8);
+        return release(reply);
+    }
+
+    @Benchmark
+    public int okReply() {
+        return release(RespEncoder.ok());
+    }
+
+    @Benchmark
+    public int okReplyString() {
+        return release(Unpooled.copiedBuffer("+OK\r\n", StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public int integerReply() {
+        return release(RespEncoder.integer(alloc, 42));
+    }
+
+    private static int release(ByteBuf reply) {
+        int size = reply.readableBytes();
+        reply.release();
+        return size;
+    }
+}
@@ -0,0 +1,116 @@
+package com.kvstore.persistence;
+
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.DataType;
+import com.kvstore.core.StorageEntry;
+import com.kvstore.network.Command;
+import com.kvstore.network.Keyspace;
+import io.netty.buffer.ByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to rebuild the keyspace at startup from a snapshot (with and without
+ * compression) versus replaying an append-only file holding one SET per key.
+ * For an indexed snapshot ("snapshot-mapped") it measures the time until the
+ * first request can be answered: mapping the file and serving one key from
+ * it, with the full load left to the background.
+ * The 10M key default needs a few GB of heap; pass e.g. "-p keys=1000000" for
+ * a quicker run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class StartupBenchmark {
+
+    @Param({"10000000"})
+    public int keys;
+
+    @Param({"snapshot", "snapshot-lz4", "snapshot-mapped", "aof"})
+    public String source;
+
+    private Path dataDir;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        dataDir = Files.createTempDirectory("kvstore-startup");
+        if (source.equals("aof")) {
+            file = dataDir.resolve("appendonly.aof");
+            AppendOnlyFile aof = new AppendOnlyFile(file, AppendOnlyFile.FsyncPolicy.NO, 0, 0);
+            aof.open(sink -> { });
+            for (int i = 0; i < keys; i++) {
+                aof.append(List.of("SET".getBytes(StandardCharsets.US_ASCII), key(i).bytes(), value(i)));
+            }
+            aof.close();
+        } else {
+            file = dataDir.resolve("dump.kvs");
+            SnapshotFile.Format format = switch (source) {
+                case "snapshot-lz4" -> SnapshotFile.Format.LZ4;
+                case "snapshot-mapped" -> SnapshotFile.Format.INDEXED;
+                default -> SnapshotFile.Format.PLAIN;
+            };
+            try (SnapshotFile.Writer writer = new SnapshotFile(file).newWriter(format)) {
+                for (int i = 0; i < keys; i++) {
+                    writer.write(key(i), new StorageEntry(value(i), DataType.STRING));
+                }
+                writer.commit();
+            }
+        }
+        System.out.printf("%n%s file: %d MB%n", source, Files.size(file) >> 20);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Keyspace load() throws IOException {
+        Keyspace keyspace = Keyspace.shared();
+        if (source.equals("aof")) {
+            new AppendOnlyFile(file, AppendOnlyFile.FsyncPolicy.NO, 0, 0).replay(command -> keyspace.executor(0)
+                    .execute(ByteBufAllocator.DEFAULT, Command.SET, command).release());
+        } else if (source.equals("snapshot-mapped")) {
+            keyspace.shard(0).attach(MappedSnapshot.open(file));
+            if (keyspace.shard(0).get(key(keys / 2)) == null) {
+                throw new IllegalStateException("key missing from mapped snapshot");
+            }
+        } else {
+            new SnapshotFile(file).load((key, entry) -> keyspace.shard(0).put(key, entry));
+        }
+        return keyspace;
+    }
+
+    private static ByteKey key(int i) {
+        return ByteKey.of("key:" + i);
+    }
+
+    private static byte[] value(int i) {
+        return ("value:" + i).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,8 +1,13 @@
 package com.kvstore;
 
+import com.kvstore.config.ServerConfig;
+
 public class KVStoreServer {
     public static void main(String[] args) throws Exception {
-        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6379;
-        new com.kvstore.network.KVStoreServer(port).start();
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        if (args.length > 0) {
+            config.setPort(Integer.parseInt(args[0]));
+        }
+        new com.kvstore.network.KVStoreServer(config).start();
     }
 }
\ No newline at end of file
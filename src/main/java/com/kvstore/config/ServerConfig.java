@@ -0,0 +1,409 @@
+package com.kvstore.config;
+
+import com.kvstore.core.EncodingLimits;
+import com.kvstore.core.EvictionPolicy;
+import com.kvstore.persistence.AppendOnlyFile;
+import com.kvstore.persistence.SnapshotFile;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Server settings. Values are read from "kvstore.*" system properties, which
+ * can be passed through JAVA_OPTS, and fall back to the defaults below.
+ */
+public class ServerConfig {
+
+    /**
+     * How the keyspace is laid out across worker event loops.
+     */
+    public enum KeyspaceMode {
+        /** One storage engine shared by every event loop */
+        SHARED,
+        /** One storage engine per event loop, keys routed to their owner by hash */
+        SHARDED
+    }
+
+    /**
+     * Where string values are kept.
+     */
+    public enum ValueStorage {
+        /** As byte arrays on the heap */
+        HEAP,
+        /** As bytes in slabs of direct memory, keeping the heap small */
+        OFFHEAP
+    }
+
+    private int port = 6379;
+    // "auto" picks the best native transport available, falling back to NIO
+    private String transport = "auto";
+    // 0 keeps Netty's default of two worker threads per core
+    private int workerThreads = 0;
+    // Listening sockets sharing the port through SO_REUSEPORT, each with its
+    // own accepting thread; more than one needs the epoll transport
+    private int acceptorThreads = 1;
+    private boolean reusePort = false;
+    private int backlog = 128;
+    // Per-connection socket buffer sizes in bytes; 0 leaves them to the OS
+    private int socketReceiveBuffer = 64 * 1024;
+    private int socketSendBuffer = 64 * 1024;
+    // Log every read and write on the wire, for troubleshooting only
+    private boolean wireLogging = false;
+    private KeyspaceMode keyspaceMode = KeyspaceMode.SHARED;
+    // Relative to the working directory, /app/data in the container
+    private Path dataDir = Path.of("data");
+    private boolean appendOnly = false;
+    private AppendOnlyFile.FsyncPolicy appendFsync = AppendOnlyFile.FsyncPolicy.EVERYSEC;
+    // Rewrite the log once it has grown this much over its size after the last rewrite; 0 disables
+    private int autoAofRewritePercentage = 100;
+    private long autoAofRewriteMinSize = 64L * 1024 * 1024;
+    private String snapshotFileName = "dump.kvs";
+    // Pairs of "seconds changes"; empty disables periodic snapshots
+    private String save = "";
+    private SnapshotFile.Format snapshotFormat = SnapshotFile.Format.LZ4;
+    // Bytes of estimated dataset size; 0 means no limit
+    private long maxMemory = 0;
+    private EvictionPolicy maxMemoryPolicy = EvictionPolicy.NOEVICTION;
+    private int maxMemorySamples = 5;
+    private ValueStorage valueStorage = ValueStorage.HEAP;
+    // Sizes up to which collections keep their compact encoding
+    private EncodingLimits encodingLimits = EncodingLimits.DEFAULT;
+    // Time one in this many calls of each command per event loop; 0 disables
+    private int latencySampling = 16;
+    // Microseconds from which commands go into the slow log; negative disables
+    private long slowlogLogSlowerThan = 10_000;
+    private int slowlogMaxLen = 128;
+    // Most keys KEYS may reply with; 0 for no limit
+    private int keysMaxResults = 1_000_000;
+    // "host:port" of a primary to replicate from at startup; empty starts as a primary
+    private String replicaOf = "";
+    // Bytes of recent writes a primary keeps for replicas to resume from
+    private long replBacklogSize = 1024 * 1024;
+    private boolean jmx = true;
+    // Port of the HTTP metrics endpoint; 0 disables it
+    private int metricsPort = 0;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.port = Integer.getInteger("kvstore.port", config.port);
+        config.transport = System.getProperty("kvstore.transport", config.transport);
+        config.workerThreads = Integer.getInteger("kvstore.workerThreads", config.workerThreads);
+        config.acceptorThreads = Integer.getInteger("kvstore.acceptorThreads", config.acceptorThreads);
+        config.reusePort = Boolean.parseBoolean(
+                System.getProperty("kvstore.reusePort", Boolean.toString(config.reusePort)));
+        config.backlog = Integer.getInteger("kvstore.backlog", config.backlog);
+        config.socketReceiveBuffer = Integer.getInteger("kvstore.socketReceiveBuffer", config.socketReceiveBuffer);
+        config.socketSendBuffer = Integer.getInteger("kvstore.socketSendBuffer", config.socketSendBuffer);
+        config.wireLogging = Boolean.parseBoolean(
+                System.getProperty("kvstore.wireLogging", Boolean.toString(config.wireLogging)));
+        config.keyspaceMode = KeyspaceMode.valueOf(
+                System.getProperty("kvstore.keyspace", config.keyspaceMode.name()).toUpperCase(Locale.ROOT));
+        config.dataDir = Path.of(System.getProperty("kvstore.dataDir", config.dataDir.toString()));
+        config.appendOnly = Boolean.parseBoolean(
+                System.getProperty("kvstore.appendonly", Boolean.toString(config.appendOnly)));
+        config.appendFsync = AppendOnlyFile.FsyncPolicy.valueOf(
+                System.getProperty("kvstore.appendfsync", config.appendFsync.name()).toUpperCase(Locale.ROOT));
+        config.autoAofRewritePercentage = Integer.getInteger("kvstore.autoAofRewritePercentage",
+                config.autoAofRewritePercentage);
+        config.autoAofRewriteMinSize = Long.getLong("kvstore.autoAofRewriteMinSize", config.autoAofRewriteMinSize);
+        config.snapshotFileName = System.getProperty("kvstore.dbfilename", config.snapshotFileName);
+        config.save = System.getProperty("kvstore.save", config.save);
+        config.snapshotFormat = SnapshotFile.Format.valueOf(
+                System.getProperty("kvstore.snapshotFormat", config.snapshotFormat.name()).toUpperCase(Locale.ROOT));
+        config.maxMemory = parseMemory(System.getProperty("kvstore.maxmemory", Long.toString(config.maxMemory)));
+        config.maxMemoryPolicy = EvictionPolicy.fromName(
+                System.getProperty("kvstore.maxmemoryPolicy", config.maxMemoryPolicy.configName()));
+        config.maxMemorySamples = Integer.getInteger("kvstore.maxmemorySamples", config.maxMemorySamples);
+        config.valueStorage = ValueStorage.valueOf(
+                System.getProperty("kvstore.valueStorage", config.valueStorage.name()).toUpperCase(Locale.ROOT));
+        EncodingLimits limits = config.encodingLimits;
+        config.encodingLimits = new EncodingLimits(
+                Integer.getInteger("kvstore.listMaxListpackSize", limits.listMaxListpackSize()),
+                Integer.getInteger("kvstore.hashMaxListpackEntries", limits.hashMaxListpackEntries()),
+                Integer.getInteger("kvstore.hashMaxListpackValue", limits.hashMaxListpackValue()),
+                Integer.getInteger("kvstore.setMaxIntsetEntries", limits.setMaxIntsetEntries()),
+                Integer.getInteger("kvstore.setMaxListpackEntries", limits.setMaxListpackEntries()),
+                Integer.getInteger("kvstore.setMaxListpackValue", limits.setMaxListpackValue()),
+                Integer.getInteger("kvstore.zsetMaxListpackEntries", limits.zsetMaxListpackEntries()),
+                Integer.getInteger("kvstore.zsetMaxListpackValue", limits.zsetMaxListpackValue()));
+        config.latencySampling = Integer.getInteger("kvstore.latencySampling", config.latencySampling);
+        config.slowlogLogSlowerThan = Long.getLong("kvstore.slowlogLogSlowerThan", config.slowlogLogSlowerThan);
+        config.slowlogMaxLen = Integer.getInteger("kvstore.slowlogMaxLen", config.slowlogMaxLen);
+        config.keysMaxResults = Integer.getInteger("kvstore.keysMaxResults", config.keysMaxResults);
+        config.replicaOf = System.getProperty("kvstore.replicaof", config.replicaOf).trim();
+        config.replBacklogSize = parseMemory(
+                System.getProperty("kvstore.replBacklogSize", Long.toString(config.replBacklogSize)));
+        config.jmx = Boolean.parseBoolean(System.getProperty("kvstore.jmx", Boolean.toString(config.jmx)));
+        config.metricsPort = Integer.getInteger("kvstore.metricsPort", config.metricsPort);
+        return config;
+    }
+
+    /**
+     * Parses a byte count with an optional kb, mb or gb suffix (powers of
+     * 1024), e.g. "384mb".
+     */
+    static long parseMemory(String value) {
+        String spec = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (spec.endsWith("kb")) {
+            unit = 1024;
+        } else if (spec.endsWith("mb")) {
+            unit = 1024 * 1024;
+        } else if (spec.endsWith("gb")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            spec = spec.substring(0, spec.length() - 2).trim();
+        } else if (spec.endsWith("b")) {
+            spec = spec.substring(0, spec.length() - 1).trim();
+        }
+        return Long.parseLong(spec) * unit;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    public void setAcceptorThreads(int acceptorThreads) {
+        this.acceptorThreads = acceptorThreads;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public int getSocketReceiveBuffer() {
+        return socketReceiveBuffer;
+    }
+
+    public void setSocketReceiveBuffer(int socketReceiveBuffer) {
+        this.socketReceiveBuffer = socketReceiveBuffer;
+    }
+
+    public int getSocketSendBuffer() {
+        return socketSendBuffer;
+    }
+
+    public void setSocketSendBuffer(int socketSendBuffer) {
+        this.socketSendBuffer = socketSendBuffer;
+    }
+
+    public boolean isWireLogging() {
+        return wireLogging;
+    }
+
+    public void setWireLogging(boolean wireLogging) {
+        this.wireLogging = wireLogging;
+    }
+
+    public KeyspaceMode getKeyspaceMode() {
+        return keyspaceMode;
+    }
+
+    public void setKeyspaceMode(KeyspaceMode keyspaceMode) {
+        this.keyspaceMode = keyspaceMode;
+    }
+
+    public Path getDataDir() {
+        return dataDir;
+    }
+
+    public void setDataDir(Path dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    public void setAppendOnly(boolean appendOnly) {
+        this.appendOnly = appendOnly;
+    }
+
+    public AppendOnlyFile.FsyncPolicy getAppendFsync() {
+        return appendFsync;
+    }
+
+    public void setAppendFsync(AppendOnlyFile.FsyncPolicy appendFsync) {
+        this.appendFsync = appendFsync;
+    }
+
+    public int getAutoAofRewritePercentage() {
+        return autoAofRewritePercentage;
+    }
+
+    public void setAutoAofRewritePercentage(int autoAofRewritePercentage) {
+        this.autoAofRewritePercentage = autoAofRewritePercentage;
+    }
+
+    public long getAutoAofRewriteMinSize() {
+        return autoAofRewriteMinSize;
+    }
+
+    public void setAutoAofRewriteMinSize(long autoAofRewriteMinSize) {
+        this.autoAofRewriteMinSize = autoAofRewriteMinSize;
+    }
+
+    public String getSnapshotFileName() {
+        return snapshotFileName;
+    }
+
+    public void setSnapshotFileName(String snapshotFileName) {
+        this.snapshotFileName = snapshotFileName;
+    }
+
+    public String getSave() {
+        return save;
+    }
+
+    public void setSave(String save) {
+        this.save = save;
+    }
+
+    public SnapshotFile.Format getSnapshotFormat() {
+        return snapshotFormat;
+    }
+
+    public void setSnapshotFormat(SnapshotFile.Format snapshotFormat) {
+        this.snapshotFormat = snapshotFormat;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public void setMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    public EvictionPolicy getMaxMemoryPolicy() {
+        return maxMemoryPolicy;
+    }
+
+    public void setMaxMemoryPolicy(EvictionPolicy maxMemoryPolicy) {
+        this.maxMemoryPolicy = maxMemoryPolicy;
+    }
+
+    public int getMaxMemorySamples() {
+        return maxMemorySamples;
+    }
+
+    public void setMaxMemorySamples(int maxMemorySamples) {
+        this.maxMemorySamples = maxMemorySamples;
+    }
+
+    public ValueStorage getValueStorage() {
+        return valueStorage;
+    }
+
+    public void setValueStorage(ValueStorage valueStorage) {
+        this.valueStorage = valueStorage;
+    }
+
+    public EncodingLimits getEncodingLimits() {
+        return encodingLimits;
+    }
+
+    public void setEncodingLimits(EncodingLimits encodingLimits) {
+        this.encodingLimits = encodingLimits;
+    }
+
+    public int getLatencySampling() {
+        return latencySampling;
+    }
+
+    public void setLatencySampling(int latencySampling) {
+        this.latencySampling = latencySampling;
+    }
+
+    public long getSlowlogLogSlowerThan() {
+        return slowlogLogSlowerThan;
+    }
+
+    public void setSlowlogLogSlowerThan(long slowlogLogSlowerThan) {
+        this.slowlogLogSlowerThan = slowlogLogSlowerThan;
+    }
+
+    public int getSlowlogMaxLen() {
+        return slowlogMaxLen;
+    }
+
+    public void setSlowlogMaxLen(int slowlogMaxLen) {
+        this.slowlogMaxLen = slowlogMaxLen;
+    }
+
+    public int getKeysMaxResults() {
+        return keysMaxResults;
+    }
+
+    public void setKeysMaxResults(int keysMaxResults) {
+        this.keysMaxResults = keysMaxResults;
+    }
+
+    public String getReplicaOf() {
+        return replicaOf;
+    }
+
+    public void setReplicaOf(String replicaOf) {
+        this.replicaOf = replicaOf;
+    }
+
+    public long getReplBacklogSize() {
+        return replBacklogSize;
+    }
+
+    public void setReplBacklogSize(long replBacklogSize) {
+        this.replBacklogSize = replBacklogSize;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+}
@@ -0,0 +1,14 @@
+package com.kvstore.core;
+
+/**
+ * Read-only source of entries that a {@link StorageEngine} falls back to for
+ * keys it does not hold yet, such as a snapshot that is still being loaded.
+ */
+public interface BackingStore {
+
+    /**
+     * Returns the entry stored under a key, or null if there is none or it has
+     * expired.
+     */
+    StorageEntry lookup(ByteKey key);
+}
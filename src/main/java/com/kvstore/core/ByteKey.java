@@ -0,0 +1,76 @@
+package com.kvstore.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Key of the store: the raw bytes sent by the client, compared byte by byte.
+ *
+ * The hash is computed once, when the key is created, and is the same
+ * function the indexed snapshot layout uses on disk, so a key can be looked up
+ * there without hashing it again. The wrapped array is not copied and must
+ * not be modified afterwards.
+ */
+public final class ByteKey {
+    private final byte[] bytes;
+    private final int hash;
+
+    public ByteKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = hash(bytes);
+    }
+
+    /**
+     * Returns the key for the UTF-8 encoding of a string.
+     */
+    public static ByteKey of(String key) {
+        return new ByteKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the key's bytes. The array is shared and must not be modified.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * FNV-1a over the bytes with a final avalanche step, so that the low bits
+     * are well mixed.
+     */
+    public static int hash(byte[] bytes) {
+        int h = 0x811C9DC5;
+        for (byte b : bytes) {
+            h = (h ^ b) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof ByteKey other && hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    /**
+     * Decodes the key as UTF-8, for messages and logs.
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
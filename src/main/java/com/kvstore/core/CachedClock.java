@@ -0,0 +1,33 @@
+package com.kvstore.core;
+
+/**
+ * Wall-clock time in milliseconds, refreshed once per millisecond by a daemon
+ * thread. Reading it is a volatile load, which keeps clock calls off the hot
+ * path of expiry checks; the price is up to about a millisecond of lag, well
+ * within the resolution of key expiry.
+ */
+public final class CachedClock {
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = System.currentTimeMillis();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "cached-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CachedClock() {
+    }
+
+    public static long millis() {
+        return now;
+    }
+}
@@ -0,0 +1,103 @@
+package com.kvstore.core;
+
+/**
+ * Value of a LIST, HASH, SET or SORTED_SET key. Each type has two encodings,
+ * as in Redis: small collections are packed into a single array
+ * ({@link Listpack} or {@link IntSet}), and convert to a general structure
+ * (quicklist, hash table, skiplist) once they grow past the
+ * {@link EncodingLimits}. Either way a collection is updated in place, so
+ * changing one element does not copy the rest.
+ *
+ * Collections are changed through {@link StorageEngine#update} under the
+ * map's lock for their key, and may be read from any thread; every method
+ * synchronizes on the collection.
+ *
+ * {@link #serialize} writes the same layout whatever the encoding: the
+ * element count as a varint, then the elements as a listpack.
+ *
+ * Each update bumps the collection's {@link #version()}, which WATCH compares
+ * to tell whether the collection changed since it was watched.
+ */
+public abstract class CollectionValue {
+    static final long OBJECT_HEADER = 16;
+    static final long REFERENCE = 4;
+
+    // Updates made so far; only written under the map's lock for the key
+    private volatile long version;
+
+    CollectionValue() {
+    }
+
+    final long version() {
+        return version;
+    }
+
+    final void changed() {
+        version = version + 1;
+    }
+
+    public abstract DataType type();
+
+    /**
+     * Returns the number of elements: list items, set members, hash fields or
+     * sorted set members.
+     */
+    public abstract int size();
+
+    /**
+     * Returns the name of the current encoding, as OBJECT ENCODING reports it.
+     */
+    public abstract String encoding();
+
+    /**
+     * Estimates the heap taken, assuming compressed references. Kept up to
+     * date as the collection changes, so this costs no walk.
+     */
+    abstract long footprint();
+
+    /**
+     * Returns a copy that shares no mutable state with this collection.
+     */
+    abstract CollectionValue copy();
+
+    /**
+     * Adds the elements to a listpack, in the order {@link #deserialize}
+     * reads them back.
+     */
+    abstract void writeElements(Listpack out);
+
+    public final synchronized byte[] serialize() {
+        Listpack elements = new Listpack();
+        writeElements(elements);
+        byte[] bytes = new byte[Listpack.varintSize(elements.size()) + elements.serializedSize()];
+        int offset = Listpack.writeVarint(bytes, 0, elements.size());
+        elements.writeTo(bytes, offset);
+        return bytes;
+    }
+
+    /**
+     * Rebuilds a collection written by {@link #serialize}, in the encoding its
+     * size calls for under the current limits.
+     *
+     * @throws IllegalArgumentException if the bytes are not a serialized
+     *         collection of that type
+     */
+    public static CollectionValue deserialize(DataType type, byte[] bytes) {
+        int count = Listpack.readVarint(bytes, 0);
+        Listpack elements = Listpack.wrap(bytes, Listpack.varintSize(count), count);
+        return switch (type) {
+            case LIST -> ListValue.from(elements);
+            case HASH -> HashValue.from(elements);
+            case SET -> SetValue.from(elements);
+            case SORTED_SET -> SortedSetValue.from(elements);
+            default -> throw new IllegalArgumentException("Not a collection type: " + type);
+        };
+    }
+
+    /**
+     * Estimates the heap taken by a byte array.
+     */
+    static long arraySize(int length) {
+        return (OBJECT_HEADER + length + 7) & ~7L;
+    }
+}
@@ -0,0 +1,53 @@
+package com.kvstore.core;
+
+/**
+ * Sizes up to which collections keep their compact encoding, as the
+ * {@code *-max-listpack-*} and {@code set-max-intset-entries} settings do in
+ * Redis. A collection converts to its general encoding on the first write
+ * that takes it past a limit, and does not convert back, except for lists.
+ *
+ * Element lengths are in bytes. The limits in force are process-wide, like
+ * {@link CachedClock}; collections read them on every write.
+ *
+ * @param listMaxListpackSize elements per listpack of a list; a list of more
+ *        becomes a quicklist of such listpacks
+ * @param hashMaxListpackEntries fields of a listpack-encoded hash
+ * @param hashMaxListpackValue longest field or value of a listpack-encoded hash
+ * @param setMaxIntsetEntries members of an intset-encoded set
+ * @param setMaxListpackEntries members of a listpack-encoded set
+ * @param setMaxListpackValue longest member of a listpack-encoded set
+ * @param zsetMaxListpackEntries members of a listpack-encoded sorted set
+ * @param zsetMaxListpackValue longest member of a listpack-encoded sorted set
+ */
+public record EncodingLimits(int listMaxListpackSize, int hashMaxListpackEntries, int hashMaxListpackValue,
+        int setMaxIntsetEntries, int setMaxListpackEntries, int setMaxListpackValue, int zsetMaxListpackEntries,
+        int zsetMaxListpackValue) {
+
+    /** The Redis defaults, except that list nodes are sized by count rather than bytes */
+    public static final EncodingLimits DEFAULT = new EncodingLimits(128, 128, 64, 512, 128, 64, 128, 64);
+
+    private static volatile EncodingLimits current = DEFAULT;
+
+    public EncodingLimits {
+        if (listMaxListpackSize < 1) {
+            throw new IllegalArgumentException("listMaxListpackSize must be at least 1");
+        }
+        if (hashMaxListpackEntries < 0 || hashMaxListpackValue < 0 || setMaxIntsetEntries < 0
+                || setMaxListpackEntries < 0 || setMaxListpackValue < 0 || zsetMaxListpackEntries < 0
+                || zsetMaxListpackValue < 0) {
+            throw new IllegalArgumentException("encoding limits must not be negative");
+        }
+    }
+
+    public static EncodingLimits current() {
+        return current;
+    }
+
+    /**
+     * Changes the limits collections convert at. Compact collections already
+     * past the new limits convert when an element is next added.
+     */
+    public static void setCurrent(EncodingLimits limits) {
+        current = limits;
+    }
+}
@@ -0,0 +1,122 @@
+package com.kvstore.core;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How keys are chosen for eviction once the memory limit is reached. As in
+ * Redis, candidates are picked from a small sample of keys rather than kept in
+ * a global order, so reads only update a field of the entry.
+ *
+ * The access field of an entry holds, for the LRU policies, a 32-bit clock of
+ * the last access in units of 10 ms (wrapping after about 16 months) and, for
+ * LFU, the last decrement time in minutes (16 bits) above a logarithmic access
+ * counter (8 bits).
+ */
+public enum EvictionPolicy {
+    /** Refuse writes that need memory */
+    NOEVICTION("noeviction"),
+    /** Evict the least recently used key */
+    ALLKEYS_LRU("allkeys-lru"),
+    /** Evict the least frequently used key */
+    ALLKEYS_LFU("allkeys-lfu"),
+    /** Evict the least recently used key among those with a time to live */
+    VOLATILE_LRU("volatile-lru"),
+    /** Evict the key with the nearest expiry */
+    VOLATILE_TTL("volatile-ttl");
+
+    private static final long LRU_CLOCK_RESOLUTION_MILLIS = 10;
+    private static final int LFU_INIT_VAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+
+    private final String configName;
+
+    EvictionPolicy(String configName) {
+        this.configName = configName;
+    }
+
+    public String configName() {
+        return configName;
+    }
+
+    public static EvictionPolicy fromName(String name) {
+        String normalized = name.trim().toLowerCase(Locale.ROOT);
+        for (EvictionPolicy policy : values()) {
+            if (policy.configName.equals(normalized)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown maxmemory policy: " + name);
+    }
+
+    boolean volatileOnly() {
+        return this == VOLATILE_LRU || this == VOLATILE_TTL;
+    }
+
+    boolean tracksAccess() {
+        return this == ALLKEYS_LRU || this == ALLKEYS_LFU || this == VOLATILE_LRU;
+    }
+
+    /**
+     * Returns the access field of a newly written entry.
+     */
+    int initialAccess(long nowMillis) {
+        return this == ALLKEYS_LFU ? (lfuMinutes(nowMillis) << 8) | LFU_INIT_VAL : lruClock(nowMillis);
+    }
+
+    /**
+     * Returns the access field of an entry after a read.
+     */
+    int touch(int access, long nowMillis) {
+        if (this != ALLKEYS_LFU) {
+            return lruClock(nowMillis);
+        }
+        int counter = lfuLogIncrement(lfuDecayed(access, nowMillis));
+        return (lfuMinutes(nowMillis) << 8) | counter;
+    }
+
+    /**
+     * Ranks an entry for eviction; among a sample, the entry with the highest
+     * score goes first.
+     */
+    long score(StorageEntry entry, long nowMillis) {
+        return switch (this) {
+            case ALLKEYS_LFU -> 255 - lfuDecayed(entry.access, nowMillis);
+            case VOLATILE_TTL -> -entry.getExpiresAt();
+            default -> Integer.toUnsignedLong(lruClock(nowMillis) - entry.access);
+        };
+    }
+
+    private static int lruClock(long nowMillis) {
+        return (int) (nowMillis / LRU_CLOCK_RESOLUTION_MILLIS);
+    }
+
+    private static int lfuMinutes(long nowMillis) {
+        return (int) (nowMillis / 60_000) & 0xFFFF;
+    }
+
+    /**
+     * Returns the counter of an access field, less one for every decay period
+     * since it was last decremented.
+     */
+    private static int lfuDecayed(int access, long nowMillis) {
+        int elapsed = (lfuMinutes(nowMillis) - (access >>> 8)) & 0xFFFF;
+        int counter = access & 0xFF;
+        int periods = elapsed / LFU_DECAY_MINUTES;
+        return periods >= counter ? 0 : counter - periods;
+    }
+
+    /**
+     * Morris-style increment: the higher the counter, the less likely it is
+     * to grow, so 8 bits cover millions of accesses.
+     */
+    private static int lfuLogIncrement(int counter) {
+        if (counter == 255) {
+            return counter;
+        }
+        int base = Math.max(0, counter - LFU_INIT_VAL);
+        double p = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < p ? counter + 1 : counter;
+    }
+}
@@ -0,0 +1,102 @@
+package com.kvstore.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel of keys with a time to live, used to find expired keys
+ * without scanning the keyspace.
+ *
+ * Each registration goes into the slot of the tick its deadline falls in; a
+ * deadline further away than one turn of the wheel stays in its slot until
+ * the turn it is due. Registrations are never removed when a key is
+ * overwritten, deleted or given a new expiry: the engine checks each one
+ * against the current entry when it comes up and drops it if it no longer
+ * matches.
+ *
+ * Any thread may register keys; {@link #poll} must only be called from one
+ * thread at a time.
+ */
+final class ExpiryWheel {
+    static final long TICK_MILLIS = 100;
+    static final int SLOTS = 4096;
+    private static final int MASK = SLOTS - 1;
+
+    record Registration(ByteKey key, long deadlineMillis) {
+    }
+
+    private final Object[] locks = new Object[SLOTS];
+    private final List<Registration>[] slots;
+    // Registrations taken from due slots but not yet handled
+    private final ArrayDeque<Registration> due = new ArrayDeque<>();
+    // Tick whose slot is taken next; only advanced by the polling thread
+    private volatile long cursor;
+
+    ExpiryWheel(long nowMillis) {
+        @SuppressWarnings("unchecked")
+        List<Registration>[] created = (List<Registration>[]) new List<?>[SLOTS];
+        slots = created;
+        for (int i = 0; i < SLOTS; i++) {
+            locks[i] = new Object();
+            slots[i] = new ArrayList<>();
+        }
+        cursor = nowMillis / TICK_MILLIS;
+    }
+
+    void add(ByteKey key, long deadlineMillis) {
+        // Deadlines already passed go into the next slot to be taken rather
+        // than wait for a full turn
+        int slot = (int) Math.max(deadlineMillis / TICK_MILLIS, cursor) & MASK;
+        synchronized (locks[slot]) {
+            slots[slot].add(new Registration(key, deadlineMillis));
+        }
+    }
+
+    /**
+     * Hands the due registrations of every tick that has fully elapsed to the
+     * handler, giving up once the time budget is spent; the rest is picked up
+     * by the next call.
+     *
+     * @return the number of registrations handled
+     */
+    int poll(long nowMillis, long budgetNanos, Consumer<Registration> handler) {
+        long startNanos = System.nanoTime();
+        long nowTick = nowMillis / TICK_MILLIS;
+        int handled = 0;
+        while (true) {
+            Registration registration = due.poll();
+            if (registration == null) {
+                if (cursor >= nowTick) {
+                    return handled;
+                }
+                takeSlot(cursor++);
+                continue;
+            }
+            if (registration.deadlineMillis() > nowMillis) {
+                // Belongs to a later turn of the wheel
+                add(registration.key(), registration.deadlineMillis());
+            } else {
+                handler.accept(registration);
+            }
+            // Checking the clock on every key would cost more than the check saves
+            if ((++handled & 63) == 0 && System.nanoTime() - startNanos > budgetNanos) {
+                return handled;
+            }
+        }
+    }
+
+    private void takeSlot(long tick) {
+        int slot = (int) tick & MASK;
+        List<Registration> taken;
+        synchronized (locks[slot]) {
+            taken = slots[slot];
+            if (taken.isEmpty()) {
+                return;
+            }
+            slots[slot] = new ArrayList<>();
+        }
+        due.addAll(taken);
+    }
+}
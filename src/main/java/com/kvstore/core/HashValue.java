@@ -0,0 +1,178 @@
+package com.kvstore.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Value of a HASH key: fields and values alternating in a {@link Listpack}
+ * while the hash is small, a hash table once it has more fields than
+ * {@link EncodingLimits#hashMaxListpackEntries} or a field or value longer
+ * than {@link EncodingLimits#hashMaxListpackValue}.
+ */
+public final class HashValue extends CollectionValue {
+    // A table mapping: the node, its share of the table and the key object
+    private static final long MAPPING_OVERHEAD = 32 + 8 + 24;
+
+    // Exactly one of the two is set
+    private Listpack packed;
+    private Map<ByteKey, byte[]> table;
+    // Estimated heap taken by the table's mappings
+    private long tableBytes;
+
+    public HashValue() {
+        this.packed = new Listpack();
+    }
+
+    static HashValue from(Listpack elements) {
+        if (elements.size() % 2 != 0) {
+            throw new IllegalArgumentException("hash with a field and no value");
+        }
+        HashValue hash = new HashValue();
+        for (int offset = 0; offset < elements.end(); ) {
+            byte[] field = elements.get(offset);
+            offset = elements.next(offset);
+            hash.put(field, elements.get(offset));
+            offset = elements.next(offset);
+        }
+        return hash;
+    }
+
+    @Override
+    public DataType type() {
+        return DataType.HASH;
+    }
+
+    @Override
+    public synchronized int size() {
+        return packed != null ? packed.size() / 2 : table.size();
+    }
+
+    @Override
+    public synchronized String encoding() {
+        return packed != null ? "listpack" : "hashtable";
+    }
+
+    /**
+     * Returns the value of a field, or null if it is not set.
+     */
+    public synchronized byte[] get(byte[] field) {
+        if (table != null) {
+            return table.get(new ByteKey(field));
+        }
+        int offset = packed.find(field, 2);
+        return offset < 0 ? null : packed.get(packed.next(offset));
+    }
+
+    /**
+     * Sets a field, returning true if it was not set before.
+     */
+    public synchronized boolean put(byte[] field, byte[] value) {
+        EncodingLimits limits = EncodingLimits.current();
+        if (packed != null && (field.length > limits.hashMaxListpackValue()
+                || value.length > limits.hashMaxListpackValue())) {
+            convert();
+        }
+        if (table != null) {
+            byte[] previous = table.put(new ByteKey(field), value);
+            if (previous == null) {
+                tableBytes += MAPPING_OVERHEAD + arraySize(field.length) + arraySize(value.length);
+                return true;
+            }
+            tableBytes += arraySize(value.length) - arraySize(previous.length);
+            return false;
+        }
+        int offset = packed.find(field, 2);
+        if (offset >= 0) {
+            packed.replace(packed.next(offset), value);
+            return false;
+        }
+        packed.append(field);
+        packed.append(value);
+        if (packed.size() / 2 > limits.hashMaxListpackEntries()) {
+            convert();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a field, returning false if it was not set.
+     */
+    public synchronized boolean remove(byte[] field) {
+        if (table != null) {
+            byte[] previous = table.remove(new ByteKey(field));
+            if (previous == null) {
+                return false;
+            }
+            tableBytes -= MAPPING_OVERHEAD + arraySize(field.length) + arraySize(previous.length);
+            return true;
+        }
+        int offset = packed.find(field, 2);
+        if (offset < 0) {
+            return false;
+        }
+        packed.remove(offset);
+        packed.remove(offset);
+        return true;
+    }
+
+    /**
+     * Visits every field and its value. The arrays passed must not be
+     * modified.
+     */
+    public synchronized void forEach(BiConsumer<byte[], byte[]> action) {
+        if (table != null) {
+            table.forEach((field, value) -> action.accept(field.bytes(), value));
+            return;
+        }
+        for (int offset = 0; offset < packed.end(); ) {
+            byte[] field = packed.get(offset);
+            offset = packed.next(offset);
+            action.accept(field, packed.get(offset));
+            offset = packed.next(offset);
+        }
+    }
+
+    private void convert() {
+        Listpack source = packed;
+        table = new HashMap<>();
+        packed = null;
+        for (int offset = 0; offset < source.end(); ) {
+            byte[] field = source.get(offset);
+            offset = source.next(offset);
+            byte[] value = source.get(offset);
+            offset = source.next(offset);
+            table.put(new ByteKey(field), value);
+            tableBytes += MAPPING_OVERHEAD + arraySize(field.length) + arraySize(value.length);
+        }
+    }
+
+    @Override
+    synchronized long footprint() {
+        if (packed != null) {
+            return OBJECT_HEADER + 3 * REFERENCE + packed.footprint();
+        }
+        return OBJECT_HEADER + 3 * REFERENCE + 48 + tableBytes;
+    }
+
+    @Override
+    synchronized CollectionValue copy() {
+        HashValue copy = new HashValue();
+        if (packed != null) {
+            copy.packed = packed.copy();
+        } else {
+            copy.packed = null;
+            copy.table = new HashMap<>(table);
+            copy.tableBytes = tableBytes;
+        }
+        return copy;
+    }
+
+    @Override
+    void writeElements(Listpack out) {
+        forEach((field, value) -> {
+            out.append(field);
+            out.append(value);
+        });
+    }
+}
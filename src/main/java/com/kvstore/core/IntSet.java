@@ -0,0 +1,185 @@
+package com.kvstore.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Sorted array of distinct integers, all stored in the width the largest of
+ * them needs (2, 4 or 8 bytes), in the manner of Redis' intset. This is the
+ * compact encoding of sets whose members are all integers; lookups are a
+ * binary search and inserts shift the tail.
+ *
+ * Not thread-safe; the set owning it synchronizes access.
+ */
+final class IntSet {
+    private static final VarHandle SHORTS = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    // Digits of Long.MIN_VALUE, the longest canonical integer
+    private static final int MAX_DIGITS = 20;
+
+    private byte[] data = new byte[0];
+    private int width = Short.BYTES;
+    private int count;
+
+    int size() {
+        return count;
+    }
+
+    long get(int index) {
+        return switch (width) {
+            case Short.BYTES -> (short) SHORTS.get(data, index * Short.BYTES);
+            case Integer.BYTES -> (int) INTS.get(data, index * Integer.BYTES);
+            default -> (long) LONGS.get(data, index * Long.BYTES);
+        };
+    }
+
+    private void set(int index, long value) {
+        switch (width) {
+            case Short.BYTES -> SHORTS.set(data, index * Short.BYTES, (short) value);
+            case Integer.BYTES -> INTS.set(data, index * Integer.BYTES, (int) value);
+            default -> LONGS.set(data, index * Long.BYTES, value);
+        }
+    }
+
+    boolean contains(long value) {
+        return widthOf(value) <= width && search(value) >= 0;
+    }
+
+    /**
+     * Adds a value, returning false if it was already present.
+     */
+    boolean add(long value) {
+        int needed = widthOf(value);
+        if (needed > width) {
+            upgrade(needed);
+        }
+        int index = search(value);
+        if (index >= 0) {
+            return false;
+        }
+        int at = -index - 1;
+        ensureCapacity(count + 1);
+        System.arraycopy(data, at * width, data, (at + 1) * width, (count - at) * width);
+        set(at, value);
+        count++;
+        return true;
+    }
+
+    boolean remove(long value) {
+        if (widthOf(value) > width) {
+            return false;
+        }
+        int index = search(value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(data, (index + 1) * width, data, index * width, (count - index - 1) * width);
+        count--;
+        return true;
+    }
+
+    IntSet copy() {
+        IntSet copy = new IntSet();
+        copy.data = Arrays.copyOf(data, count * width);
+        copy.width = width;
+        copy.count = count;
+        return copy;
+    }
+
+    /**
+     * Estimates the heap taken, assuming compressed references.
+     */
+    long footprint() {
+        return 24 + ((16 + data.length + 7) & ~7L);
+    }
+
+    private int search(long value) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long found = get(mid);
+            if (found < value) {
+                low = mid + 1;
+            } else if (found > value) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Rewrites every value in a wider encoding, from the last so the array
+     * can be widened in place.
+     */
+    private void upgrade(int newWidth) {
+        int oldWidth = width;
+        byte[] widened = Arrays.copyOf(data, Math.max(count * newWidth, data.length));
+        data = widened;
+        for (int i = count - 1; i >= 0; i--) {
+            width = oldWidth;
+            long value = get(i);
+            width = newWidth;
+            set(i, value);
+        }
+        width = newWidth;
+    }
+
+    private void ensureCapacity(int elements) {
+        int needed = elements * width;
+        if (needed > data.length) {
+            data = Arrays.copyOf(data, Math.max(needed, data.length + (data.length >> 1)));
+        }
+    }
+
+    private static int widthOf(long value) {
+        if (value == (short) value) {
+            return Short.BYTES;
+        }
+        return value == (int) value ? Integer.BYTES : Long.BYTES;
+    }
+
+    /**
+     * Returns whether a member is the canonical decimal form of a 64-bit
+     * integer: no sign but a leading minus, no leading zeros, no "-0". Only
+     * such members can be stored as integers and read back unchanged.
+     */
+    static boolean isCanonical(byte[] member) {
+        int length = member.length;
+        if (length == 0 || length > MAX_DIGITS) {
+            return false;
+        }
+        boolean negative = member[0] == '-';
+        int start = negative ? 1 : 0;
+        if (start == length || (member[start] == '0' && (length > start + 1 || negative))) {
+            return false;
+        }
+        // Accumulated as a negative number, whose range includes MIN_VALUE
+        long value = 0;
+        for (int i = start; i < length; i++) {
+            int digit = member[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                return false;
+            }
+            value = value * 10 - digit;
+        }
+        return negative || value != Long.MIN_VALUE;
+    }
+
+    /**
+     * Parses a member {@link #isCanonical} accepts.
+     */
+    static long parse(byte[] member) {
+        boolean negative = member[0] == '-';
+        long value = 0;
+        for (int i = negative ? 1 : 0; i < member.length; i++) {
+            value = value * 10 - (member[i] - '0');
+        }
+        return negative ? value : -value;
+    }
+}
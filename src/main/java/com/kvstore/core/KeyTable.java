@@ -0,0 +1,190 @@
+package com.kvstore.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The map behind a {@link StorageEngine}: a fixed number of
+ * {@link ConcurrentHashMap} segments, each holding the keys whose hash has
+ * given top bits. Single-key operations go to the key's segment and behave
+ * as on one map; each segment resizes on its own, in smaller steps than one
+ * table of every key would.
+ *
+ * Since segments cover consecutive ranges of hash values, {@link #scan}
+ * walks the table by hash, with a cursor that is the next hash value to
+ * visit. This is the order the reverse-binary cursors of Redis follow over
+ * its low hash bits, and gives the same guarantee: a key present from the
+ * first call to the last is visited, however its segment grows meanwhile.
+ */
+final class KeyTable {
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SHIFT = Integer.SIZE - SEGMENT_BITS;
+    // Number of hash values, the cursor past the last one
+    private static final long HASH_SPACE = 1L << Integer.SIZE;
+    // Segments a call to scan may find nothing in, per key wanted, as Redis
+    // bounds the empty buckets it visits
+    private static final int EMPTY_VISITS_PER_KEY = 10;
+
+    private final ConcurrentHashMap<ByteKey, StorageEntry>[] segments;
+
+    KeyTable() {
+        @SuppressWarnings("unchecked")
+        ConcurrentHashMap<ByteKey, StorageEntry>[] created =
+                (ConcurrentHashMap<ByteKey, StorageEntry>[]) new ConcurrentHashMap<?, ?>[1 << SEGMENT_BITS];
+        segments = created;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    private ConcurrentHashMap<ByteKey, StorageEntry> segment(ByteKey key) {
+        return segments[key.hashCode() >>> SEGMENT_SHIFT];
+    }
+
+    StorageEntry get(ByteKey key) {
+        return segment(key).get(key);
+    }
+
+    StorageEntry put(ByteKey key, StorageEntry entry) {
+        return segment(key).put(key, entry);
+    }
+
+    StorageEntry putIfAbsent(ByteKey key, StorageEntry entry) {
+        return segment(key).putIfAbsent(key, entry);
+    }
+
+    StorageEntry remove(ByteKey key) {
+        return segment(key).remove(key);
+    }
+
+    boolean remove(ByteKey key, StorageEntry entry) {
+        return segment(key).remove(key, entry);
+    }
+
+    boolean replace(ByteKey key, StorageEntry expected, StorageEntry entry) {
+        return segment(key).replace(key, expected, entry);
+    }
+
+    StorageEntry compute(ByteKey key,
+            BiFunction<? super ByteKey, ? super StorageEntry, ? extends StorageEntry> remapping) {
+        return segment(key).compute(key, remapping);
+    }
+
+    StorageEntry computeIfAbsent(ByteKey key, Function<? super ByteKey, ? extends StorageEntry> mapping) {
+        return segment(key).computeIfAbsent(key, mapping);
+    }
+
+    StorageEntry computeIfPresent(ByteKey key,
+            BiFunction<? super ByteKey, ? super StorageEntry, ? extends StorageEntry> remapping) {
+        return segment(key).computeIfPresent(key, remapping);
+    }
+
+    /**
+     * Returns the number of mappings, summing the counters the segments keep,
+     * so in time independent of the number of keys.
+     */
+    long size() {
+        long size = 0;
+        for (ConcurrentHashMap<ByteKey, StorageEntry> segment : segments) {
+            size += segment.mappingCount();
+        }
+        return size;
+    }
+
+    void forEach(BiConsumer<ByteKey, StorageEntry> action) {
+        for (ConcurrentHashMap<ByteKey, StorageEntry> segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    void removeValuesIf(Predicate<StorageEntry> filter) {
+        for (ConcurrentHashMap<ByteKey, StorageEntry> segment : segments) {
+            segment.values().removeIf(filter);
+        }
+    }
+
+    void clear() {
+        for (ConcurrentHashMap<ByteKey, StorageEntry> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Iterates over every mapping, segment by segment, with the weak
+     * consistency of the segments' own iterators.
+     */
+    Iterator<Map.Entry<ByteKey, StorageEntry>> iterator() {
+        return new Iterator<>() {
+            private int next;
+            private Iterator<Map.Entry<ByteKey, StorageEntry>> current = segments[0].entrySet().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && ++next < segments.length) {
+                    current = segments[next].entrySet().iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<ByteKey, StorageEntry> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Visits the mappings whose hash, taken as unsigned, is at least
+     * {@code cursor}, in ranges sized to pass about {@code count} mappings to
+     * the action, and returns the cursor to continue from, or 0 once the
+     * whole table has been visited.
+     *
+     * Each range is found by walking its segment, so a call costs about one
+     * walk of a segment, or more while segments are empty.
+     */
+    long scan(long cursor, int count, BiConsumer<ByteKey, StorageEntry> action) {
+        long segmentWidth = HASH_SPACE >>> SEGMENT_BITS;
+        int visited = 0;
+        int maxEmptyVisits = Math.max(1, count) * EMPTY_VISITS_PER_KEY;
+        int emptyVisits = 0;
+        while (cursor < HASH_SPACE && visited < count && emptyVisits < maxEmptyVisits) {
+            ConcurrentHashMap<ByteKey, StorageEntry> segment = segments[(int) (cursor / segmentWidth)];
+            long segmentEnd = (cursor / segmentWidth + 1) * segmentWidth;
+            long size = segment.mappingCount();
+            if (size == 0) {
+                emptyVisits++;
+                cursor = segmentEnd;
+                continue;
+            }
+            // The share of the segment's range expected to hold what is left
+            // of count, as a power of two so that ranges stay aligned
+            long wanted = Math.max(1, (count - visited) * segmentWidth / size);
+            long width = Long.highestOneBit(Math.min(wanted, segmentWidth));
+            long from = cursor;
+            long to = Math.min(segmentEnd, (cursor / width + 1) * width);
+            int[] found = new int[1];
+            segment.forEach((key, entry) -> {
+                long hash = Integer.toUnsignedLong(key.hashCode());
+                if (hash >= from && hash < to) {
+                    found[0]++;
+                    action.accept(key, entry);
+                }
+            });
+            visited += found[0];
+            if (found[0] == 0) {
+                emptyVisits++;
+            }
+            cursor = to;
+        }
+        return cursor < HASH_SPACE ? cursor : 0;
+    }
+}
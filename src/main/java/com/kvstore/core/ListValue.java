@@ -0,0 +1,195 @@
+package com.kvstore.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Value of a LIST key. A short list is a single {@link Listpack}; one longer
+ * than {@link EncodingLimits#listMaxListpackSize} becomes a quicklist, a
+ * deque of listpacks of at most that many elements each, so pushes and pops
+ * at either end only touch the node there. A quicklist that shrinks to at
+ * most half the limit becomes a single listpack again.
+ */
+public final class ListValue extends CollectionValue {
+    // Set while the list is a single listpack, and nodes otherwise
+    private Listpack packed;
+    private ArrayDeque<Listpack> nodes;
+    private int count;
+    // Estimated heap taken by the nodes of a quicklist
+    private long nodeBytes;
+
+    public ListValue() {
+        this.packed = new Listpack();
+    }
+
+    static ListValue from(Listpack elements) {
+        ListValue list = new ListValue();
+        for (int offset = 0; offset < elements.end(); offset = elements.next(offset)) {
+            list.push(elements.get(offset), false);
+        }
+        return list;
+    }
+
+    @Override
+    public DataType type() {
+        return DataType.LIST;
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized String encoding() {
+        return packed != null ? "listpack" : "quicklist";
+    }
+
+    /**
+     * Adds a value at the head of the list, or at its tail.
+     */
+    public synchronized void push(byte[] value, boolean head) {
+        int limit = EncodingLimits.current().listMaxListpackSize();
+        if (packed != null && count >= limit) {
+            nodes = new ArrayDeque<>();
+            nodes.add(packed);
+            nodeBytes = packed.footprint();
+            packed = null;
+        }
+        if (packed != null) {
+            packed.insert(head ? 0 : packed.end(), value);
+            count++;
+            return;
+        }
+        Listpack node = head ? nodes.peekFirst() : nodes.peekLast();
+        if (node.size() >= limit) {
+            node = new Listpack();
+            nodeBytes += node.footprint();
+            if (head) {
+                nodes.addFirst(node);
+            } else {
+                nodes.addLast(node);
+            }
+        }
+        long before = node.footprint();
+        node.insert(head ? 0 : node.end(), value);
+        nodeBytes += node.footprint() - before;
+        count++;
+    }
+
+    /**
+     * Removes and returns the value at the head of the list, or at its tail,
+     * or returns null if the list is empty.
+     */
+    public synchronized byte[] pop(boolean head) {
+        if (count == 0) {
+            return null;
+        }
+        Listpack node = packed != null ? packed : head ? nodes.peekFirst() : nodes.peekLast();
+        long before = node.footprint();
+        int offset = head ? 0 : node.offsetOf(node.size() - 1);
+        byte[] value = node.get(offset);
+        node.remove(offset);
+        count--;
+        if (packed != null) {
+            return value;
+        }
+        nodeBytes += node.footprint() - before;
+        if (node.size() == 0) {
+            nodeBytes -= node.footprint();
+            if (head) {
+                nodes.pollFirst();
+            } else {
+                nodes.pollLast();
+            }
+        }
+        if (count <= EncodingLimits.current().listMaxListpackSize() / 2) {
+            packed = nodes.isEmpty() ? new Listpack() : nodes.poll();
+            for (Listpack rest : nodes) {
+                for (int at = 0; at < rest.end(); at = rest.next(at)) {
+                    packed.append(rest.get(at));
+                }
+            }
+            nodes = null;
+            nodeBytes = 0;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the values from index {@code start} to {@code stop}, both
+     * included and counted from 0; negative indexes count from the tail.
+     */
+    public synchronized List<byte[]> range(long start, long stop) {
+        if (start < 0) {
+            start = Math.max(0, start + count);
+        }
+        if (stop < 0) {
+            stop += count;
+        }
+        stop = Math.min(stop, count - 1);
+        List<byte[]> range = new ArrayList<>();
+        if (start > stop) {
+            return range;
+        }
+        long skip = start;
+        int wanted = (int) (stop - start + 1);
+        for (Listpack node : packed != null ? List.of(packed) : nodes) {
+            if (skip >= node.size()) {
+                skip -= node.size();
+                continue;
+            }
+            for (int offset = node.offsetOf((int) skip); offset < node.end() && range.size() < wanted;
+                    offset = node.next(offset)) {
+                range.add(node.get(offset));
+            }
+            skip = 0;
+            if (range.size() == wanted) {
+                break;
+            }
+        }
+        return range;
+    }
+
+    private void forEach(Consumer<byte[]> action) {
+        for (Listpack node : packed != null ? List.of(packed) : nodes) {
+            for (int offset = 0; offset < node.end(); offset = node.next(offset)) {
+                action.accept(node.get(offset));
+            }
+        }
+    }
+
+    @Override
+    synchronized long footprint() {
+        long base = OBJECT_HEADER + 2 * REFERENCE + 4 + 8;
+        if (packed != null) {
+            return base + packed.footprint();
+        }
+        // The deque and its array, assumed half full
+        return base + 24 + arraySize(nodes.size() * 2 * (int) REFERENCE) + nodeBytes;
+    }
+
+    @Override
+    synchronized CollectionValue copy() {
+        ListValue copy = new ListValue();
+        if (packed != null) {
+            copy.packed = packed.copy();
+        } else {
+            copy.packed = null;
+            copy.nodes = new ArrayDeque<>();
+            for (Listpack node : nodes) {
+                copy.nodes.add(node.copy());
+            }
+            copy.nodeBytes = nodeBytes;
+        }
+        copy.count = count;
+        return copy;
+    }
+
+    @Override
+    void writeElements(Listpack out) {
+        forEach(out::append);
+    }
+}
@@ -0,0 +1,257 @@
+package com.kvstore.core;
+
+import java.util.Arrays;
+
+/**
+ * Byte strings packed back to back into a single array, each preceded by its
+ * length as a varint, in the manner of Redis' listpack. This is the compact
+ * encoding of small collections: a handful of elements cost one array instead
+ * of an object, a header and an array each.
+ *
+ * Elements are addressed by their byte offset; {@link #next} steps to the
+ * following one, and {@link #end()} is the offset past the last. Lookups,
+ * inserts and removals are linear, which is why collections move to another
+ * encoding once they grow past their limits.
+ *
+ * Not thread-safe; the collection owning it synchronizes access.
+ */
+final class Listpack {
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] data;
+    private int used;
+    private int count;
+
+    Listpack() {
+        this.data = EMPTY;
+    }
+
+    private Listpack(byte[] data, int used, int count) {
+        this.data = data;
+        this.used = used;
+        this.count = count;
+    }
+
+    /**
+     * Wraps elements in the layout {@link #writeTo} produces, starting at
+     * {@code offset} and running to the end of the array.
+     *
+     * @throws IllegalArgumentException if the elements are malformed
+     */
+    static Listpack wrap(byte[] bytes, int offset, int count) {
+        byte[] data = Arrays.copyOfRange(bytes, offset, bytes.length);
+        Listpack packed = new Listpack(data, data.length, count);
+        int at = 0;
+        for (int i = 0; i < count; i++) {
+            if (at >= data.length) {
+                throw new IllegalArgumentException("truncated listpack");
+            }
+            at = packed.next(at);
+        }
+        if (at != data.length) {
+            throw new IllegalArgumentException("listpack length mismatch");
+        }
+        return packed;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the offset past the last element.
+     */
+    int end() {
+        return used;
+    }
+
+    int next(int offset) {
+        int length = length(offset);
+        return offset + varintSize(length) + length;
+    }
+
+    /**
+     * Returns the offset of the element at an index, counting from 0.
+     */
+    int offsetOf(int index) {
+        int offset = 0;
+        for (int i = 0; i < index; i++) {
+            offset = next(offset);
+        }
+        return offset;
+    }
+
+    int length(int offset) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[offset++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return length;
+            }
+        }
+    }
+
+    byte[] get(int offset) {
+        int length = length(offset);
+        int start = offset + varintSize(length);
+        return Arrays.copyOfRange(data, start, start + length);
+    }
+
+    boolean matches(int offset, byte[] value) {
+        int length = length(offset);
+        int start = offset + varintSize(length);
+        return length == value.length && Arrays.equals(data, start, start + length, value, 0, length);
+    }
+
+    /**
+     * Compares the element at an offset with a value, as unsigned bytes.
+     */
+    int compare(int offset, byte[] value) {
+        int length = length(offset);
+        int start = offset + varintSize(length);
+        return Arrays.compareUnsigned(data, start, start + length, value, 0, value.length);
+    }
+
+    /**
+     * Reads an element of eight bytes as a big-endian double.
+     */
+    double getDouble(int offset) {
+        long bits = 0;
+        int start = offset + 1;
+        for (int i = 0; i < 8; i++) {
+            bits = bits << 8 | (data[start + i] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Returns the offset of the first element equal to the value among those
+     * at index 0, {@code stride}, 2 * {@code stride} and so on, or -1.
+     */
+    int find(byte[] value, int stride) {
+        int offset = 0;
+        for (int i = 0; i < count; i += stride) {
+            if (matches(offset, value)) {
+                return offset;
+            }
+            for (int j = 0; j < stride; j++) {
+                offset = next(offset);
+            }
+        }
+        return -1;
+    }
+
+    void append(byte[] value) {
+        insert(used, value);
+    }
+
+    /**
+     * Inserts a value before the element at an offset, or at the end if the
+     * offset is {@link #end()}.
+     */
+    void insert(int offset, byte[] value) {
+        int size = varintSize(value.length) + value.length;
+        ensureCapacity(used + size);
+        System.arraycopy(data, offset, data, offset + size, used - offset);
+        int at = writeVarint(data, offset, value.length);
+        System.arraycopy(value, 0, data, at, value.length);
+        used += size;
+        count++;
+    }
+
+    void remove(int offset) {
+        int next = next(offset);
+        System.arraycopy(data, next, data, offset, used - next);
+        used -= next - offset;
+        count--;
+        if (data.length > 64 && used < data.length / 4) {
+            data = Arrays.copyOf(data, used * 2);
+        }
+    }
+
+    void replace(int offset, byte[] value) {
+        int length = length(offset);
+        if (length == value.length) {
+            System.arraycopy(value, 0, data, offset + varintSize(length), length);
+            return;
+        }
+        remove(offset);
+        insert(offset, value);
+    }
+
+    /**
+     * Removes the elements from an offset to another and returns them as a
+     * new listpack.
+     */
+    Listpack split(int from, int to, int elements) {
+        Listpack tail = new Listpack(Arrays.copyOfRange(data, from, to), to - from, elements);
+        System.arraycopy(data, to, data, from, used - to);
+        used -= to - from;
+        count -= elements;
+        return tail;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo} writes.
+     */
+    int serializedSize() {
+        return used;
+    }
+
+    void writeTo(byte[] dest, int offset) {
+        System.arraycopy(data, 0, dest, offset, used);
+    }
+
+    Listpack copy() {
+        return new Listpack(Arrays.copyOf(data, used), used, count);
+    }
+
+    /**
+     * Estimates the heap taken, assuming compressed references.
+     */
+    long footprint() {
+        return 24 + ((16 + data.length + 7) & ~7L);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length + (data.length >> 1)));
+        }
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a non-negative value as a varint and returns the offset past it.
+     */
+    static int writeVarint(byte[] dest, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            dest[offset++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads a varint written by {@link #writeVarint}.
+     */
+    static int readVarint(byte[] src, int offset) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = src[offset++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
@@ -0,0 +1,87 @@
+package com.kvstore.core;
+
+import io.netty.buffer.ByteBuf;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A string entry whose bytes live in a {@link SlabAllocator} slot rather than
+ * on the heap.
+ *
+ * The engine frees the slot once the entry has been replaced or removed, while
+ * readers that fetched the entry just before may still be copying from it.
+ * Readers therefore copy first and then check {@link #released}; if the entry
+ * was released in the meantime the copy may be torn and is thrown away, like
+ * an optimistic read of a StampedLock.
+ */
+public final class OffHeapEntry extends StorageEntry {
+    private final SlabAllocator slabs;
+    private final long handle;
+    private final int length;
+    private volatile boolean released;
+
+    OffHeapEntry(SlabAllocator slabs, long handle, int length) {
+        super(null, DataType.STRING);
+        this.slabs = slabs;
+        this.handle = handle;
+        this.length = length;
+    }
+
+    /**
+     * Copies the value onto the heap, or returns null if the entry was
+     * released while being read.
+     */
+    @Override
+    public Object getValue() {
+        byte[] bytes = new byte[length];
+        slabs.read(handle, bytes, length);
+        return valid() ? bytes : null;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Appends the value to a buffer.
+     *
+     * @return false, with the buffer left as it was, if the entry was released
+     *         while being copied
+     */
+    public boolean copyTo(ByteBuf out) {
+        int writerIndex = out.writerIndex();
+        slabs.copyTo(handle, length, out);
+        if (!valid()) {
+            out.writerIndex(writerIndex);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean valid() {
+        // Keeps the copy from being reordered after the check
+        VarHandle.acquireFence();
+        return !released;
+    }
+
+    int slotSize() {
+        return slabs.slotSize(handle);
+    }
+
+    /**
+     * Frees the slot. Called by the engine once no snapshot can refer to the
+     * entry any more.
+     */
+    void release() {
+        released = true;
+        slabs.free(handle);
+    }
+
+    @Override
+    StorageEntry copy() {
+        // Shares the slot; copies only serve as snapshot preimages, which
+        // keep the original's slot from being freed until the snapshot ends
+        OffHeapEntry copy = new OffHeapEntry(slabs, handle, length);
+        copy.setExpiresAt(getExpiresAt());
+        return copy;
+    }
+}
@@ -0,0 +1,187 @@
+package com.kvstore.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Value of a SET key: an {@link IntSet} while every member is an integer, a
+ * {@link Listpack} while the set is small, and a hash table otherwise, as
+ * the {@link EncodingLimits} for sets decide.
+ */
+public final class SetValue extends CollectionValue {
+    // A table mapping: the node, its share of the table and the key object
+    private static final long MAPPING_OVERHEAD = 32 + 8 + 24;
+
+    // Exactly one of the three is set
+    private IntSet ints;
+    private Listpack packed;
+    private Set<ByteKey> table;
+    // Estimated heap taken by the table's mappings
+    private long tableBytes;
+
+    public SetValue() {
+        this.ints = new IntSet();
+    }
+
+    static SetValue from(Listpack elements) {
+        SetValue set = new SetValue();
+        for (int offset = 0; offset < elements.end(); offset = elements.next(offset)) {
+            set.add(elements.get(offset));
+        }
+        return set;
+    }
+
+    @Override
+    public DataType type() {
+        return DataType.SET;
+    }
+
+    @Override
+    public synchronized int size() {
+        if (ints != null) {
+            return ints.size();
+        }
+        return packed != null ? packed.size() : table.size();
+    }
+
+    @Override
+    public synchronized String encoding() {
+        if (ints != null) {
+            return "intset";
+        }
+        return packed != null ? "listpack" : "hashtable";
+    }
+
+    public synchronized boolean contains(byte[] member) {
+        if (ints != null) {
+            return IntSet.isCanonical(member) && ints.contains(IntSet.parse(member));
+        }
+        return packed != null ? packed.find(member, 1) >= 0 : table.contains(new ByteKey(member));
+    }
+
+    /**
+     * Adds a member, returning false if it was already present.
+     */
+    public synchronized boolean add(byte[] member) {
+        EncodingLimits limits = EncodingLimits.current();
+        if (ints != null) {
+            if (IntSet.isCanonical(member)) {
+                if (!ints.add(IntSet.parse(member))) {
+                    return false;
+                }
+                if (ints.size() > limits.setMaxIntsetEntries()) {
+                    convertToTable();
+                }
+                return true;
+            }
+            if (ints.size() < limits.setMaxListpackEntries() && member.length <= limits.setMaxListpackValue()) {
+                convertToListpack();
+            } else {
+                convertToTable();
+            }
+        }
+        if (packed != null) {
+            if (packed.find(member, 1) >= 0) {
+                return false;
+            }
+            if (member.length > limits.setMaxListpackValue()) {
+                convertToTable();
+            } else {
+                packed.append(member);
+                if (packed.size() > limits.setMaxListpackEntries()) {
+                    convertToTable();
+                }
+                return true;
+            }
+        }
+        if (!table.add(new ByteKey(member))) {
+            return false;
+        }
+        tableBytes += MAPPING_OVERHEAD + arraySize(member.length);
+        return true;
+    }
+
+    /**
+     * Removes a member, returning false if it was not present.
+     */
+    public synchronized boolean remove(byte[] member) {
+        if (ints != null) {
+            return IntSet.isCanonical(member) && ints.remove(IntSet.parse(member));
+        }
+        if (packed != null) {
+            int offset = packed.find(member, 1);
+            if (offset < 0) {
+                return false;
+            }
+            packed.remove(offset);
+            return true;
+        }
+        if (!table.remove(new ByteKey(member))) {
+            return false;
+        }
+        tableBytes -= MAPPING_OVERHEAD + arraySize(member.length);
+        return true;
+    }
+
+    /**
+     * Visits every member. The arrays passed must not be modified.
+     */
+    public synchronized void forEach(Consumer<byte[]> action) {
+        if (ints != null) {
+            for (int i = 0; i < ints.size(); i++) {
+                action.accept(Long.toString(ints.get(i)).getBytes(StandardCharsets.US_ASCII));
+            }
+        } else if (packed != null) {
+            for (int offset = 0; offset < packed.end(); offset = packed.next(offset)) {
+                action.accept(packed.get(offset));
+            }
+        } else {
+            table.forEach(member -> action.accept(member.bytes()));
+        }
+    }
+
+    private void convertToListpack() {
+        Listpack converted = new Listpack();
+        forEach(converted::append);
+        ints = null;
+        packed = converted;
+    }
+
+    private void convertToTable() {
+        Set<ByteKey> converted = new HashSet<>();
+        forEach(member -> {
+            converted.add(new ByteKey(member));
+            tableBytes += MAPPING_OVERHEAD + arraySize(member.length);
+        });
+        ints = null;
+        packed = null;
+        table = converted;
+    }
+
+    @Override
+    synchronized long footprint() {
+        long base = OBJECT_HEADER + 4 * REFERENCE;
+        if (ints != null) {
+            return base + ints.footprint();
+        }
+        // The table comes wrapped in a HashSet
+        return base + (packed != null ? packed.footprint() : 16 + 48 + tableBytes);
+    }
+
+    @Override
+    synchronized CollectionValue copy() {
+        SetValue copy = new SetValue();
+        copy.ints = ints != null ? ints.copy() : null;
+        copy.packed = packed != null ? packed.copy() : null;
+        copy.table = table != null ? new HashSet<>(table) : null;
+        copy.tableBytes = tableBytes;
+        return copy;
+    }
+
+    @Override
+    void writeElements(Listpack out) {
+        forEach(out::append);
+    }
+}
@@ -0,0 +1,199 @@
+package com.kvstore.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Members ordered by score, then by their bytes, in the manner of Redis'
+ * zskiplist. Every link records how many nodes it skips, so the rank of a
+ * node and the node at a rank are found in logarithmic time, which is what
+ * ZRANGE needs. Large sorted sets pair it with a hash table from member to
+ * node for score lookups.
+ *
+ * Not thread-safe; the sorted set owning it synchronizes access.
+ */
+final class SkipList {
+    static final int MAX_LEVEL = 32;
+    // Chance of a node reaching each further level
+    private static final double P = 0.25;
+
+    private final Node head = new Node(null, 0, MAX_LEVEL);
+    private int level = 1;
+    private int length;
+
+    static final class Node {
+        final byte[] member;
+        double score;
+        Node backward;
+        final Node[] forward;
+        // Nodes skipped by each forward link, counting the one it leads to
+        final int[] span;
+
+        Node(byte[] member, double score, int levels) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[levels];
+            this.span = new int[levels];
+        }
+
+        Node next() {
+            return forward[0];
+        }
+
+        boolean before(double score, byte[] member) {
+            return this.score < score
+                    || (this.score == score && Arrays.compareUnsigned(this.member, member) < 0);
+        }
+    }
+
+    int size() {
+        return length;
+    }
+
+    Node first() {
+        return head.forward[0];
+    }
+
+    /**
+     * Inserts a member that is not in the list yet.
+     */
+    Node insert(double score, byte[] member) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && x.forward[i].before(score, member)) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int levels = randomLevel();
+        if (levels > level) {
+            for (int i = level; i < levels; i++) {
+                rank[i] = 0;
+                update[i] = head;
+                update[i].span[i] = length;
+            }
+            level = levels;
+        }
+        Node node = new Node(member, score, levels);
+        for (int i = 0; i < levels; i++) {
+            node.forward[i] = update[i].forward[i];
+            update[i].forward[i] = node;
+            node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        for (int i = levels; i < level; i++) {
+            update[i].span[i]++;
+        }
+        node.backward = update[0] == head ? null : update[0];
+        if (node.forward[0] != null) {
+            node.forward[0].backward = node;
+        }
+        length++;
+        return node;
+    }
+
+    /**
+     * Removes the node holding a member with the given score, returning
+     * false if there is none.
+     */
+    boolean delete(double score, byte[] member) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && x.forward[i].before(score, member)) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        x = x.forward[0];
+        if (x == null || x.score != score || !Arrays.equals(x.member, member)) {
+            return false;
+        }
+        unlink(x, update);
+        return true;
+    }
+
+    /**
+     * Changes the score of a node, moving it if its position changes, and
+     * returns the node now holding the member.
+     */
+    Node updateScore(Node node, double score) {
+        Node previous = node.backward;
+        Node next = node.forward[0];
+        if ((previous == null || previous.before(score, node.member))
+                && (next == null || !next.before(score, node.member))) {
+            node.score = score;
+            return node;
+        }
+        delete(node.score, node.member);
+        return insert(score, node.member);
+    }
+
+    /**
+     * Returns the node at a rank, counting from 0, or null if there is none.
+     */
+    Node nodeAt(long rank) {
+        if (rank < 0 || rank >= length) {
+            return null;
+        }
+        long target = rank + 1;
+        long traversed = 0;
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= target) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == target) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first node whose score is at least {@code min}, or above it
+     * if {@code exclusive}, or null if there is none.
+     */
+    Node firstFrom(double min, boolean exclusive) {
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null
+                    && (exclusive ? x.forward[i].score <= min : x.forward[i].score < min)) {
+                x = x.forward[i];
+            }
+        }
+        return x.forward[0];
+    }
+
+    private void unlink(Node x, Node[] update) {
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == x) {
+                update[i].span[i] += x.span[i] - 1;
+                update[i].forward[i] = x.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x.backward;
+        }
+        while (level > 1 && head.forward[level - 1] == null) {
+            level--;
+        }
+        length--;
+    }
+
+    private static int randomLevel() {
+        int levels = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (levels < MAX_LEVEL && random.nextDouble() < P) {
+            levels++;
+        }
+        return levels;
+    }
+}
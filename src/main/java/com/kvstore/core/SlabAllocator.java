@@ -0,0 +1,171 @@
+package com.kvstore.core;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size slots carved out of 1MB direct buffers, in size classes growing
+ * by a factor of 1.25 as in memcached. A value takes one slot of the smallest
+ * class it fits in; freed slots go back to their class and memory is never
+ * returned to the system.
+ *
+ * Slots are addressed by a handle holding the class in the high 32 bits and
+ * the slot number within the class in the low 32 bits. Allocation and freeing
+ * lock the size class; reads and writes of slot contents take no lock, so
+ * callers must make sure a slot is not freed while it is being read (see
+ * {@link OffHeapEntry}).
+ */
+public final class SlabAllocator {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_SLOT_SIZE = 16;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final SizeClass[] classes;
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public SlabAllocator() {
+        List<SizeClass> sizes = new ArrayList<>();
+        for (double size = MIN_SLOT_SIZE; size < SLAB_SIZE; size *= GROWTH_FACTOR) {
+            int slotSize = ((int) size + 7) & ~7;
+            if (sizes.isEmpty() || sizes.get(sizes.size() - 1).slotSize < slotSize) {
+                sizes.add(new SizeClass(slotSize));
+            }
+        }
+        sizes.add(new SizeClass(SLAB_SIZE));
+        classes = sizes.toArray(new SizeClass[0]);
+    }
+
+    /**
+     * Returns the largest value that fits in a slot.
+     */
+    public int maxValueSize() {
+        return SLAB_SIZE;
+    }
+
+    /**
+     * Takes a slot for a value of the given length.
+     *
+     * @return the slot's handle, or -1 if the value is larger than a slab
+     */
+    public long allocate(int length) {
+        if (length > SLAB_SIZE) {
+            return -1;
+        }
+        int index = classFor(length);
+        long handle = ((long) index << 32) | classes[index].take(this);
+        usedBytes.addAndGet(classes[index].slotSize);
+        return handle;
+    }
+
+    public void free(long handle) {
+        SizeClass sizeClass = classes[(int) (handle >>> 32)];
+        sizeClass.release((int) handle);
+        usedBytes.addAndGet(-sizeClass.slotSize);
+    }
+
+    /**
+     * Returns the memory a slot takes, which is at least the length of its
+     * value.
+     */
+    public int slotSize(long handle) {
+        return classes[(int) (handle >>> 32)].slotSize;
+    }
+
+    public void write(long handle, byte[] src) {
+        SizeClass sizeClass = classes[(int) (handle >>> 32)];
+        int slot = (int) handle;
+        sizeClass.slabs[slot / sizeClass.slotsPerSlab].put((slot % sizeClass.slotsPerSlab) * sizeClass.slotSize, src);
+    }
+
+    public void read(long handle, byte[] dst, int length) {
+        SizeClass sizeClass = classes[(int) (handle >>> 32)];
+        int slot = (int) handle;
+        sizeClass.slabs[slot / sizeClass.slotsPerSlab]
+                .get((slot % sizeClass.slotsPerSlab) * sizeClass.slotSize, dst, 0, length);
+    }
+
+    /**
+     * Appends the first {@code length} bytes of a slot to a buffer, copying
+     * from the slab directly.
+     */
+    public void copyTo(long handle, int length, ByteBuf out) {
+        SizeClass sizeClass = classes[(int) (handle >>> 32)];
+        int slot = (int) handle;
+        ByteBuffer slab = sizeClass.slabs[slot / sizeClass.slotsPerSlab];
+        out.writeBytes(slab.slice((slot % sizeClass.slotsPerSlab) * sizeClass.slotSize, length));
+    }
+
+    /**
+     * Returns the direct memory held in slabs, used or not.
+     */
+    public long slabBytes() {
+        return slabBytes.get();
+    }
+
+    /**
+     * Returns the memory taken by allocated slots.
+     */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    private int classFor(int length) {
+        int low = 0;
+        int high = classes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].slotSize < length) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class SizeClass {
+        final int slotSize;
+        final int slotsPerSlab;
+        // Replaced rather than grown in place, so readers need no lock
+        volatile ByteBuffer[] slabs = new ByteBuffer[0];
+        // Slots freed and not yet reused, as a stack
+        private int[] free = new int[16];
+        private int freeCount;
+        // Slots handed out from the newest slab so far
+        private int carved;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerSlab = SLAB_SIZE / slotSize;
+        }
+
+        synchronized int take(SlabAllocator allocator) {
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            ByteBuffer[] current = slabs;
+            if (current.length == 0 || carved == slotsPerSlab) {
+                ByteBuffer[] grown = new ByteBuffer[current.length + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                grown[current.length] = ByteBuffer.allocateDirect(SLAB_SIZE);
+                slabs = grown;
+                carved = 0;
+                allocator.slabBytes.addAndGet(SLAB_SIZE);
+            }
+            return (slabs.length - 1) * slotsPerSlab + carved++;
+        }
+
+        synchronized void release(int slot) {
+            if (freeCount == free.length) {
+                int[] grown = new int[free.length * 2];
+                System.arraycopy(free, 0, grown, 0, freeCount);
+                free = grown;
+            }
+            free[freeCount++] = slot;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.kvstore.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Value of a SORTED_SET key. While small, members and their scores alternate
+ * in a {@link Listpack}, kept in order, each score as an 8-byte double. Past
+ * the {@link EncodingLimits} for sorted sets it becomes a {@link SkipList}
+ * for ordered access plus a hash table from member to skiplist node for
+ * score lookups, which share the member arrays.
+ *
+ * Members are ordered by score, then by their bytes.
+ */
+public final class SortedSetValue extends CollectionValue {
+    /** Only add new members */
+    public static final int NX = 1;
+    /** Only update existing members */
+    public static final int XX = 2;
+    /** Only update a score to a greater one */
+    public static final int GT = 4;
+    /** Only update a score to a lesser one */
+    public static final int LT = 8;
+
+    /** Outcome of {@link #add}: the member was added */
+    public static final int ADDED = 1;
+    /** Outcome of {@link #add}: the score of the member was changed */
+    public static final int UPDATED = 2;
+    /** Outcome of {@link #add}: nothing changed */
+    public static final int UNCHANGED = 0;
+
+    // A table mapping: the node, its share of the table and the key object
+    private static final long MAPPING_OVERHEAD = 32 + 8 + 24;
+
+    // Either packed is set, or list and table are
+    private Listpack packed;
+    private SkipList list;
+    private Map<ByteKey, SkipList.Node> table;
+    // Estimated heap taken by the skiplist nodes and table mappings
+    private long tableBytes;
+
+    /**
+     * A member and its score. The member array may be shared with the set
+     * and must not be modified.
+     */
+    public record ScoredMember(byte[] member, double score) {
+    }
+
+    public SortedSetValue() {
+        this.packed = new Listpack();
+    }
+
+    static SortedSetValue from(Listpack elements) {
+        if (elements.size() % 2 != 0) {
+            throw new IllegalArgumentException("sorted set member without a score");
+        }
+        SortedSetValue zset = new SortedSetValue();
+        for (int offset = 0; offset < elements.end(); ) {
+            byte[] member = elements.get(offset);
+            offset = elements.next(offset);
+            if (elements.length(offset) != Double.BYTES) {
+                throw new IllegalArgumentException("malformed score");
+            }
+            zset.add(member, elements.getDouble(offset), 0);
+            offset = elements.next(offset);
+        }
+        return zset;
+    }
+
+    @Override
+    public DataType type() {
+        return DataType.SORTED_SET;
+    }
+
+    @Override
+    public synchronized int size() {
+        return packed != null ? packed.size() / 2 : list.size();
+    }
+
+    @Override
+    public synchronized String encoding() {
+        return packed != null ? "listpack" : "skiplist";
+    }
+
+    /**
+     * Returns the score of a member, or null if it is not present.
+     */
+    public synchronized Double score(byte[] member) {
+        if (table != null) {
+            SkipList.Node node = table.get(new ByteKey(member));
+            return node != null ? node.score : null;
+        }
+        int offset = packed.find(member, 2);
+        return offset < 0 ? null : packed.getDouble(packed.next(offset));
+    }
+
+    /**
+     * Adds a member or changes its score, as allowed by the flags.
+     *
+     * @param flags any of {@link #NX}, {@link #XX}, {@link #GT} and {@link #LT}
+     * @return {@link #ADDED}, {@link #UPDATED} or {@link #UNCHANGED}
+     */
+    public synchronized int add(byte[] member, double score, int flags) {
+        Double current = score(member);
+        if (current == null) {
+            if ((flags & XX) != 0) {
+                return UNCHANGED;
+            }
+            insert(member, score);
+            return ADDED;
+        }
+        if ((flags & NX) != 0 || ((flags & GT) != 0 && score <= current)
+                || ((flags & LT) != 0 && score >= current) || score == current) {
+            return UNCHANGED;
+        }
+        if (table != null) {
+            ByteKey key = new ByteKey(member);
+            SkipList.Node node = table.get(key);
+            SkipList.Node moved = list.updateScore(node, score);
+            if (moved != node) {
+                table.put(key, moved);
+                tableBytes += entrySize(moved) - entrySize(node);
+            }
+        } else {
+            int offset = packed.find(member, 2);
+            packed.remove(offset);
+            packed.remove(offset);
+            insert(member, score);
+        }
+        return UPDATED;
+    }
+
+    /**
+     * Removes a member, returning false if it was not present.
+     */
+    public synchronized boolean remove(byte[] member) {
+        if (table != null) {
+            SkipList.Node node = table.remove(new ByteKey(member));
+            if (node == null) {
+                return false;
+            }
+            list.delete(node.score, node.member);
+            tableBytes -= entrySize(node);
+            return true;
+        }
+        int offset = packed.find(member, 2);
+        if (offset < 0) {
+            return false;
+        }
+        packed.remove(offset);
+        packed.remove(offset);
+        return true;
+    }
+
+    /**
+     * Returns the members ranked from {@code start} to {@code stop}, both
+     * included and counted from 0; negative ranks count from the last member.
+     */
+    public synchronized List<ScoredMember> rangeByRank(long start, long stop) {
+        int size = size();
+        if (start < 0) {
+            start = Math.max(0, start + size);
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        stop = Math.min(stop, size - 1);
+        List<ScoredMember> range = new ArrayList<>();
+        if (start > stop) {
+            return range;
+        }
+        int count = (int) (stop - start + 1);
+        if (table != null) {
+            for (SkipList.Node node = list.nodeAt(start); range.size() < count; node = node.next()) {
+                range.add(new ScoredMember(node.member, node.score));
+            }
+            return range;
+        }
+        for (int offset = packed.offsetOf((int) start * 2); range.size() < count; ) {
+            byte[] member = packed.get(offset);
+            offset = packed.next(offset);
+            range.add(new ScoredMember(member, packed.getDouble(offset)));
+            offset = packed.next(offset);
+        }
+        return range;
+    }
+
+    /**
+     * Returns the members scored between {@code min} and {@code max}, in
+     * order, skipping the first {@code offset} of them and returning at most
+     * {@code limit}, or all if it is negative.
+     *
+     * @param minExclusive whether members scored {@code min} are left out
+     * @param maxExclusive whether members scored {@code max} are left out
+     */
+    public synchronized List<ScoredMember> rangeByScore(double min, boolean minExclusive, double max,
+            boolean maxExclusive, long offset, long limit) {
+        List<ScoredMember> range = new ArrayList<>();
+        long skip = offset;
+        if (table != null) {
+            for (SkipList.Node node = list.firstFrom(min, minExclusive);
+                    node != null && below(node.score, max, maxExclusive) && range.size() != limit;
+                    node = node.next()) {
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    range.add(new ScoredMember(node.member, node.score));
+                }
+            }
+            return range;
+        }
+        for (int at = 0; at < packed.end() && range.size() != limit; ) {
+            int scoreAt = packed.next(at);
+            double score = packed.getDouble(scoreAt);
+            if (!below(score, max, maxExclusive)) {
+                break;
+            }
+            if (minExclusive ? score > min : score >= min) {
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    range.add(new ScoredMember(packed.get(at), score));
+                }
+            }
+            at = packed.next(scoreAt);
+        }
+        return range;
+    }
+
+    private static boolean below(double score, double max, boolean exclusive) {
+        return exclusive ? score < max : score <= max;
+    }
+
+    private void insert(byte[] member, double score) {
+        EncodingLimits limits = EncodingLimits.current();
+        if (packed != null && (member.length > limits.zsetMaxListpackValue()
+                || packed.size() / 2 + 1 > limits.zsetMaxListpackEntries())) {
+            convert();
+        }
+        if (table != null) {
+            SkipList.Node node = list.insert(score, member);
+            table.put(new ByteKey(member), node);
+            tableBytes += entrySize(node);
+            return;
+        }
+        int offset = 0;
+        while (offset < packed.end()) {
+            int scoreAt = packed.next(offset);
+            double found = packed.getDouble(scoreAt);
+            if (found > score || (found == score && packed.compare(offset, member) > 0)) {
+                break;
+            }
+            offset = packed.next(scoreAt);
+        }
+        packed.insert(offset, member);
+        packed.insert(packed.next(offset), scoreBytes(score));
+    }
+
+    private void convert() {
+        Listpack source = packed;
+        packed = null;
+        list = new SkipList();
+        table = new HashMap<>();
+        for (int offset = 0; offset < source.end(); ) {
+            byte[] member = source.get(offset);
+            offset = source.next(offset);
+            SkipList.Node node = list.insert(source.getDouble(offset), member);
+            table.put(new ByteKey(member), node);
+            tableBytes += entrySize(node);
+            offset = source.next(offset);
+        }
+    }
+
+    private static long entrySize(SkipList.Node node) {
+        // The node, its link and span arrays, and the member they share
+        long links = arraySize(node.forward.length * (int) REFERENCE);
+        return MAPPING_OVERHEAD + 40 + 2 * links + arraySize(node.member.length);
+    }
+
+    static byte[] scoreBytes(double score) {
+        long bits = Double.doubleToLongBits(score);
+        byte[] bytes = new byte[Double.BYTES];
+        for (int i = Double.BYTES - 1; i >= 0; i--) {
+            bytes[i] = (byte) bits;
+            bits >>>= 8;
+        }
+        return bytes;
+    }
+
+    @Override
+    synchronized long footprint() {
+        long base = OBJECT_HEADER + 4 * REFERENCE;
+        if (packed != null) {
+            return base + packed.footprint();
+        }
+        // The skiplist object with its head node, and the table
+        return base + 24 + 40 + 2 * arraySize(SkipList.MAX_LEVEL * 4) + 48 + tableBytes;
+    }
+
+    @Override
+    synchronized CollectionValue copy() {
+        SortedSetValue copy = new SortedSetValue();
+        if (packed != null) {
+            copy.packed = packed.copy();
+            return copy;
+        }
+        copy.packed = null;
+        copy.list = new SkipList();
+        copy.table = new HashMap<>();
+        for (SkipList.Node node = list.first(); node != null; node = node.next()) {
+            SkipList.Node inserted = copy.list.insert(node.score, node.member);
+            copy.table.put(new ByteKey(node.member), inserted);
+            copy.tableBytes += entrySize(inserted);
+        }
+        return copy;
+    }
+
+    @Override
+    void writeElements(Listpack out) {
+        if (packed != null) {
+            for (int offset = 0; offset < packed.end(); offset = packed.next(offset)) {
+                out.append(packed.get(offset));
+            }
+            return;
+        }
+        for (SkipList.Node node = list.first(); node != null; node = node.next()) {
+            out.append(node.member);
+            out.append(scoreBytes(node.score));
+        }
+    }
+}
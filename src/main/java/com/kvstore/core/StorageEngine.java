@@ -1,79 +1,1197 @@
 package com.kvstore.core;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Core storage engine that handles data persistence and retrieval
+ * Core storage engine that handles data persistence and retrieval.
+ *
+ * Single-key operations go straight to the {@link ConcurrentHashMap} segment
+ * of the underlying {@link KeyTable} that holds the key, and take no
+ * engine-level lock. Operations that must be atomic across several
+ * keys run under {@link #atomically}, which locks only the stripes covering
+ * those keys; {@link #clear()} locks every stripe. Single-key writes, and
+ * reads of a single key, wait while another thread holds the stripe of their
+ * key, so nothing sees or interleaves with a multi-key operation halfway
+ * through; otherwise a write costs two atomic updates of a counter of the
+ * stripe. Multi-key reads run under {@link #readAtomically}.
+ *
+ * {@link #openSnapshot()} gives a point-in-time view of the store without
+ * stopping writers. While it runs, every write first saves the entry it is
+ * about to replace (copy-on-write), and the snapshot uses those saved entries
+ * in place of anything changed since it started.
+ *
+ * Keys with a time to live are removed when a read finds them expired, and
+ * otherwise by {@link #expireDue}, which is meant to be called periodically
+ * and finds expired keys through an {@link ExpiryWheel} rather than a scan.
+ *
+ * The engine keeps an estimate of the memory its entries take and, under an
+ * {@link EvictionPolicy} other than noeviction, {@link #evict} removes keys
+ * picked from samples of the map. As in Redis, the best candidates seen are
+ * kept in a small pool across calls, so each eviction weighs more keys than
+ * one sample holds.
+ *
+ * Given a {@link SlabAllocator}, the engine keeps string values off the heap
+ * as {@link OffHeapEntry}s, leaving the collector only the map, the keys and
+ * small entry objects to trace. A slot is freed when its entry leaves the
+ * map, or once the snapshot running at that time is closed.
+ *
+ * Strings that are integers are stored as {@link CounterEntry}s, which
+ * {@link #incrementBy} changes in place without taking the map's lock.
+ *
+ * While a {@link BackingStore} is attached, keys missing from the map are
+ * looked up there and copied into the map on first access. Deleting such a
+ * key leaves a tombstone in the map so that it is not read back from the
+ * backing store.
+ *
+ * Collections ({@link CollectionValue}) are changed in place by
+ * {@link #update}, under the map's lock for their key, rather than replaced;
+ * a snapshot running at the time gets a copy of the collection as it was.
+ *
+ * {@link #stamp} records the state of a key as the entry it maps to, that
+ * entry's {@link StorageEntry#version() version} and its expiry; a write
+ * either replaces the entry or changes one of the other two. WATCH compares
+ * stamps, so checking a key costs a lookup, and a write pays no more than
+ * bumping the version of a collection or counter it changes.
  */
 public class StorageEngine {
     private static final Logger logger = LoggerFactory.getLogger(StorageEngine.class);
+    private static final int LOCK_STRIPES = 64;
+    // Keys looked at per eviction when sampling for volatile keys finds few
+    private static final int MAX_EVICTION_SCAN = 1000;
+    private static final int EVICTION_POOL_SIZE = 16;
+    // Approximate heap cost of a mapping besides its key and value: the map
+    // node, its share of the table and the entry itself
+    private static final int ENTRY_OVERHEAD = 32 + 8 + 40;
+    // Extra heap taken by an off-heap entry over a heap one
+    private static final int OFF_HEAP_ENTRY_OVERHEAD = 16;
+    // Marks keys deleted while a backing store is attached
+    private static final StorageEntry TOMBSTONE = new StorageEntry(null, DataType.STRING);
 
-    private final Map<String, StorageEntry> store;
-    private final ReadWriteLock lock;
+    private final KeyTable store;
+    // Where string values are kept; null to keep them on the heap
+    private final SlabAllocator slabs;
+    private final StripedLock keyLocks;
+    private final AtomicReference<SnapshotCapture> capture = new AtomicReference<>();
+    private volatile BackingStore backing;
+    // Set once loading the backing store has failed: it stays attached for
+    // lookups, but the load will never complete
+    private volatile boolean loadFailed;
+    private final LongAdder promoted = new LongAdder();
+    private final ExpiryWheel wheel = new ExpiryWheel(CachedClock.millis());
+    private final LongAdder expired = new LongAdder();
+    // Entries in the map that have an expiry set
+    private final LongAdder volatileKeys = new LongAdder();
+    private final LongAdder usedMemory = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+    private volatile int evictionSamples = 5;
+    // Where sampling for eviction resumes, and the best candidates sampled so
+    // far; guarded by the engine's monitor
+    private Iterator<Map.Entry<ByteKey, StorageEntry>> evictionCursor;
+    private final ByteKey[] poolKeys = new ByteKey[EVICTION_POOL_SIZE];
+    private final StorageEntry[] poolEntries = new StorageEntry[EVICTION_POOL_SIZE];
+    private int poolSize;
 
     public StorageEngine() {
-        this.store = new ConcurrentHashMap<>();
-        this.lock = new ReentrantReadWriteLock();
+        this(null);
     }
 
-    public void set(String key, Object value, DataType type) {
-        lock.writeLock().lock();
+    /**
+     * Creates an engine that keeps string values in the given slabs, or on the
+     * heap if null.
+     */
+    public StorageEngine(SlabAllocator slabs) {
+        this.store = new KeyTable();
+        this.keyLocks = new StripedLock(LOCK_STRIPES);
+        this.slabs = slabs;
+    }
+
+    public void set(ByteKey key, Object value, DataType type) {
+        put(key, new StorageEntry(value, type));
+        logger.debug("Set key: {} with type: {}", key, type);
+    }
+
+    public void put(ByteKey key, StorageEntry entry) {
+        put(key, entry, null);
+    }
+
+    /**
+     * Stores an entry. {@code onChange}, if given, is called with the stored
+     * entry under the map's lock for the key, before the lock is released, so
+     * that it sees changes to the key in order.
+     */
+    public void put(ByteKey key, StorageEntry entry, Consumer<StorageEntry> onChange) {
+        StorageEntry stored = encode(entry);
+        admit(key, stored);
+        int token = keyLocks.enterShared(key);
         try {
-            store.put(key, new StorageEntry(value, type));
-            logger.debug("Set key: {} with type: {}", key, type);
+            if (onChange == null) {
+                beforeWrite(key);
+                replaced(key, store.put(key, stored), stored);
+                return;
+            }
+            store.compute(key, (k, previous) -> {
+                beforeWrite(k);
+                replaced(k, previous, stored);
+                onChange.accept(stored);
+                return stored;
+            });
         } finally {
-            lock.writeLock().unlock();
+            keyLocks.exitShared(token);
+        }
+    }
+
+    public Optional<StorageEntry> get(ByteKey key) {
+        keyLocks.awaitUnlocked(key);
+        return Optional.ofNullable(lookup(key));
+    }
+
+    private StorageEntry lookup(ByteKey key) {
+        StorageEntry entry = store.get(key);
+        if (entry == null && backing != null) {
+            entry = store.computeIfAbsent(key, this::promoteFromBacking);
+        }
+        if (entry == null || entry == TOMBSTONE) {
+            return null;
         }
+        long now = CachedClock.millis();
+        if (entry.isExpired(now)) {
+            removeExpired(key, entry);
+            return null;
+        }
+        EvictionPolicy policy = evictionPolicy;
+        if (policy.tracksAccess()) {
+            entry.access = policy.touch(entry.access, now);
+        }
+        return entry;
+    }
+
+    private StorageEntry promoteFromBacking(ByteKey key) {
+        BackingStore source = backing;
+        StorageEntry entry = source != null ? source.lookup(key) : null;
+        if (entry != null) {
+            entry = encode(entry);
+            promoted.increment();
+            admit(key, entry);
+            replaced(key, null, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the collection stored at a key, or null if the key does not
+     * exist.
+     *
+     * @throws WrongTypeException if the key holds another type of value
+     */
+    public <C extends CollectionValue> C getCollection(ByteKey key, DataType type) {
+        keyLocks.awaitUnlocked(key);
+        StorageEntry entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.getType() != type) {
+            throw new WrongTypeException(type, entry.getType());
+        }
+        @SuppressWarnings("unchecked")
+        C collection = (C) entry.getValue();
+        return collection;
     }
 
-    public Optional<StorageEntry> get(String key) {
-        lock.readLock().lock();
+    /**
+     * Passes the entry stored at a key to an action under the map's lock for
+     * the key, so that it sees the entry between two of its writes. Nothing
+     * is changed, and the action is not called if the key does not exist.
+     */
+    public void inspect(ByteKey key, Consumer<StorageEntry> action) {
+        store.computeIfPresent(key, (k, entry) -> {
+            if (entry != TOMBSTONE && !entry.isExpired()) {
+                action.accept(entry);
+            }
+            return entry;
+        });
+    }
+
+    /**
+     * Runs an operation on the collection stored at a key, under the map's
+     * lock for the key. The collection is created first if the key does not
+     * exist and {@code create} is not null, and the key is removed if the
+     * operation leaves the collection empty.
+     *
+     * @return what the operation returned, or null if the key does not exist
+     *         and {@code create} is null
+     * @throws WrongTypeException if the key holds another type of value
+     */
+    public <C extends CollectionValue, R> R update(ByteKey key, DataType type, Supplier<C> create,
+            Function<C, R> operation) {
+        int token = keyLocks.enterShared(key);
         try {
-            return Optional.ofNullable(store.get(key));
+            if (backing != null) {
+                // Brings the key into the map if it is only in the backing store
+                lookup(key);
+            }
+            Object[] result = new Object[1];
+            store.compute(key, (k, entry) -> {
+                entry = live(k, entry);
+                boolean created = entry == null || entry == TOMBSTONE;
+                if (created && create == null) {
+                    return entry;
+                }
+                if (!created && entry.getType() != type) {
+                    throw new WrongTypeException(type, entry.getType());
+                }
+                saveForSnapshot(k, created ? null : entry);
+                StorageEntry updated = created ? new StorageEntry(create.get(), type) : entry;
+                @SuppressWarnings("unchecked")
+                C collection = (C) updated.getValue();
+                long before = created ? 0 : collection.footprint();
+                result[0] = operation.apply(collection);
+                collection.changed();
+                if (collection.size() == 0) {
+                    if (created) {
+                        return entry;
+                    }
+                    replaced(k, entry, null);
+                    return backing != null ? TOMBSTONE : null;
+                }
+                if (created) {
+                    admit(k, updated);
+                    replaced(k, null, updated);
+                } else {
+                    usedMemory.add(collection.footprint() - before);
+                }
+                return updated;
+            });
+            @SuppressWarnings("unchecked")
+            R value = (R) result[0];
+            return value;
         } finally {
-            lock.readLock().unlock();
+            keyLocks.exitShared(token);
         }
     }
 
-    public boolean delete(String key) {
-        lock.writeLock().lock();
+    /**
+     * Adds to the integer stored at a key, starting from 0 if the key does not
+     * exist, and returns the result. The time to live of the key is kept.
+     *
+     * Unless {@code onChange} is given or a snapshot is running, an existing
+     * counter is changed with a compare-and-set and no lock, and a snapshot
+     * opened meanwhile waits for the change. Otherwise the
+     * change is made under the map's lock for the key, and {@code onChange}
+     * is called with the changed entry before the lock is released, so that
+     * it sees changes to the key in order.
+     *
+     * @throws NumberFormatException if the key holds a string that is not an
+     *         integer
+     * @throws ArithmeticException if the result would overflow
+     * @throws WrongTypeException if the key holds another type of value
+     */
+    public long incrementBy(ByteKey key, long delta, Consumer<StorageEntry> onChange) {
+        int token = keyLocks.enterShared(key);
         try {
-            return store.remove(key) != null;
+            StorageEntry found = lookup(key);
+            // A snapshot opened after this check waits for the change
+            if (found instanceof CounterEntry counter && onChange == null && capture.get() == null) {
+                return counter.addAndGet(delta);
+            }
+            long[] result = new long[1];
+            store.compute(key, (k, entry) -> {
+                entry = live(k, entry);
+                if (entry == null || entry == TOMBSTONE) {
+                    CounterEntry created = new CounterEntry(delta);
+                    saveForSnapshot(k, null);
+                    admit(k, created);
+                    replaced(k, null, created);
+                    entry = created;
+                    result[0] = delta;
+                } else if (entry instanceof CounterEntry counter) {
+                    saveForSnapshot(k, entry);
+                    result[0] = counter.addAndGet(delta);
+                } else if (entry.getType() != DataType.STRING) {
+                    throw new WrongTypeException(DataType.STRING, entry.getType());
+                } else {
+                    // Integer strings are always stored as counters
+                    throw new NumberFormatException();
+                }
+                if (onChange != null) {
+                    onChange.accept(entry);
+                }
+                return entry;
+            });
+            return result[0];
         } finally {
-            lock.writeLock().unlock();
+            keyLocks.exitShared(token);
         }
     }
 
-    public boolean exists(String key) {
-        lock.readLock().lock();
+    /**
+     * Replaces the string stored at a key with what an operation makes of it,
+     * under the map's lock for the key. The operation is given the current
+     * value, or null if the key does not exist, and returns the new value, or
+     * null to delete the key. {@code onChange} is called with the new entry,
+     * or null if the key was deleted, before the lock is released.
+     *
+     * @param keepExpiry whether the new value keeps the time to live of the
+     *        old one
+     * @return the value before the operation, or null if there was none
+     * @throws WrongTypeException if the key holds another type of value
+     */
+    public byte[] updateString(ByteKey key, UnaryOperator<byte[]> operation, boolean keepExpiry,
+            Consumer<StorageEntry> onChange) {
+        int token = keyLocks.enterShared(key);
         try {
-            return store.containsKey(key);
+            if (backing != null) {
+                lookup(key);
+            }
+            byte[][] previous = new byte[1][];
+            store.compute(key, (k, entry) -> {
+                entry = live(k, entry);
+                boolean exists = entry != null && entry != TOMBSTONE;
+                if (exists && entry.getType() != DataType.STRING) {
+                    throw new WrongTypeException(DataType.STRING, entry.getType());
+                }
+                // Read before the old entry is released below
+                byte[] value = exists ? (byte[]) entry.getValue() : null;
+                byte[] next = operation.apply(value);
+                if (next == null && !exists) {
+                    return entry;
+                }
+                previous[0] = value;
+                saveForSnapshot(k, exists ? entry : null);
+                StorageEntry updated = null;
+                if (next != null) {
+                    updated = encode(new StorageEntry(next, DataType.STRING));
+                    if (keepExpiry && exists) {
+                        updated.setExpiresAt(entry.getExpiresAt());
+                    }
+                    admit(k, updated);
+                }
+                replaced(k, exists ? entry : null, updated);
+                if (onChange != null) {
+                    onChange.accept(updated);
+                }
+                if (updated == null) {
+                    return backing != null ? TOMBSTONE : null;
+                }
+                return updated;
+            });
+            return previous[0];
         } finally {
-            lock.readLock().unlock();
+            keyLocks.exitShared(token);
         }
     }
 
+    /**
+     * Drops an expired entry found under the map's lock for its key,
+     * returning what stands in its place.
+     */
+    private StorageEntry live(ByteKey key, StorageEntry entry) {
+        if (entry == null || entry == TOMBSTONE || !entry.isExpired()) {
+            return entry;
+        }
+        expired.increment();
+        replaced(key, entry, null);
+        saveForSnapshot(key, entry);
+        return backing != null ? TOMBSTONE : null;
+    }
+
+    /**
+     * Saves a copy of an entry about to be changed in place, or replaced, for
+     * the running snapshot if it has none yet; null records that the key did
+     * not exist. Call under the map's lock for the key.
+     */
+    private void saveForSnapshot(ByteKey key, StorageEntry entry) {
+        SnapshotCapture active = capture.get();
+        if (active != null && !active.preimages.containsKey(key)) {
+            active.preimages.put(key, entry != null ? entry.copy() : SnapshotCapture.ABSENT);
+        }
+    }
+
+    public boolean delete(ByteKey key) {
+        return delete(key, null);
+    }
+
+    /**
+     * Deletes a key and returns whether it existed. {@code onDelete}, if
+     * given, is called if it did, under the map's lock for the key, before
+     * the lock is released.
+     */
+    public boolean delete(ByteKey key, Runnable onDelete) {
+        int token = keyLocks.enterShared(key);
+        try {
+            BackingStore source = backing;
+            if (onDelete != null) {
+                boolean[] deleted = new boolean[1];
+                store.compute(key, (k, previous) -> {
+                    beforeWrite(k);
+                    deleted[0] = previous != null ? removed(k, previous) : source != null && source.lookup(k) != null;
+                    if (deleted[0]) {
+                        onDelete.run();
+                    }
+                    return backing != null ? TOMBSTONE : null;
+                });
+                return deleted[0];
+            }
+            beforeWrite(key);
+            if (source == null) {
+                return removed(key, store.remove(key));
+            }
+            StorageEntry previous = store.put(key, TOMBSTONE);
+            if (backing == null) {
+                // Detached meanwhile, possibly after the tombstones were purged
+                store.remove(key, TOMBSTONE);
+            }
+            return previous != null ? removed(key, previous) : source.lookup(key) != null;
+        } finally {
+            keyLocks.exitShared(token);
+        }
+    }
+
+    /**
+     * Accounts for an entry taken out of the map and returns whether it was a
+     * live key.
+     */
+    private boolean removed(ByteKey key, StorageEntry previous) {
+        if (previous == null || previous == TOMBSTONE) {
+            return false;
+        }
+        replaced(key, previous, null);
+        if (previous.isExpired()) {
+            expired.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the expiry of an existing entry, in epoch milliseconds. Returns false
+     * if the key does not exist. {@code onChange}, if given, is called with the
+     * entry once its expiry is set, before the map's lock for the key is
+     * released.
+     */
+    public boolean expire(ByteKey key, long expiresAt, Consumer<StorageEntry> onChange) {
+        int token = keyLocks.enterShared(key);
+        try {
+            if (lookup(key) == null) {
+                return false;
+            }
+            boolean[] updated = new boolean[1];
+            // Under the map's lock for the key, so that the entry cannot be
+            // replaced or expired halfway through
+            store.computeIfPresent(key, (k, entry) -> {
+                if (entry == TOMBSTONE || entry.isExpired()) {
+                    return entry;
+                }
+                SnapshotCapture active = capture.get();
+                if (active != null) {
+                    // The entry is changed in place, so the snapshot needs a copy
+                    active.preimages.putIfAbsent(k, entry.copy());
+                }
+                if (!entry.hasExpiry()) {
+                    volatileKeys.increment();
+                }
+                entry.setExpiresAt(expiresAt);
+                schedule(k, entry);
+                updated[0] = true;
+                if (onChange != null) {
+                    onChange.accept(entry);
+                }
+                return entry;
+            });
+            return updated[0];
+        } finally {
+            keyLocks.exitShared(token);
+        }
+    }
+
+    /**
+     * Removes keys whose time to live has run out, spending at most about
+     * the given time. Keys left over are handled by the next call.
+     */
+    public void expireDue(long budgetNanos) {
+        wheel.poll(CachedClock.millis(), budgetNanos, this::expireRegistration);
+    }
+
+    private void expireRegistration(ExpiryWheel.Registration registration) {
+        ByteKey key = registration.key();
+        StorageEntry entry = store.get(key);
+        // Anything else means the entry was replaced or registered again
+        // under an earlier deadline since this registration was made
+        if (entry == null || entry.scheduledExpiry != registration.deadlineMillis()) {
+            return;
+        }
+        if (entry.isExpired()) {
+            removeExpired(key, entry);
+            return;
+        }
+        // The expiry was pushed back; follow it
+        store.computeIfPresent(key, (k, current) -> {
+            if (current == entry && current.scheduledExpiry == registration.deadlineMillis()) {
+                current.scheduledExpiry = Long.MAX_VALUE;
+                schedule(k, current);
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Registers an entry in the expiry wheel unless it is already registered
+     * under an earlier deadline, which will reschedule it when it comes up.
+     */
+    private void schedule(ByteKey key, StorageEntry entry) {
+        long deadline = entry.getExpiresAt();
+        if (entry.hasExpiry() && deadline < entry.scheduledExpiry) {
+            entry.scheduledExpiry = deadline;
+            wheel.add(key, deadline);
+        }
+    }
+
+    /**
+     * Removes an expired entry unless it has been replaced in the meantime.
+     */
+    private void removeExpired(ByteKey key, StorageEntry entry) {
+        if (removeIfSame(key, entry, null)) {
+            expired.increment();
+            replaced(key, entry, null);
+        }
+    }
+
+    /**
+     * Removes the mapping for a key if it still holds the given entry.
+     * {@code onRemove}, if given, is called with the key if it was removed,
+     * under the map's lock for the key.
+     */
+    private boolean removeIfSame(ByteKey key, StorageEntry entry, Consumer<ByteKey> onRemove) {
+        if (onRemove != null) {
+            boolean[] removed = new boolean[1];
+            store.computeIfPresent(key, (k, current) -> {
+                if (current != entry) {
+                    return current;
+                }
+                beforeWrite(k);
+                removed[0] = true;
+                onRemove.accept(k);
+                return backing != null ? TOMBSTONE : null;
+            });
+            return removed[0];
+        }
+        beforeWrite(key);
+        if (backing == null) {
+            return store.remove(key, entry);
+        }
+        boolean removed = store.replace(key, entry, TOMBSTONE);
+        if (removed && backing == null) {
+            store.remove(key, TOMBSTONE);
+        }
+        return removed;
+    }
+
+    /**
+     * Prepares an entry about to be added to the map.
+     */
+    private void admit(ByteKey key, StorageEntry entry) {
+        entry.access = evictionPolicy.initialAccess(CachedClock.millis());
+        schedule(key, entry);
+    }
+
+    /**
+     * Keeps the counters in step with the map after the entry for a key
+     * changed. Either side may be null or a tombstone.
+     */
+    private void replaced(ByteKey key, StorageEntry previous, StorageEntry next) {
+        volatileKeys.add((isVolatile(next) ? 1 : 0) - (isVolatile(previous) ? 1 : 0));
+        usedMemory.add(footprint(key, next) - footprint(key, previous));
+        if (previous instanceof OffHeapEntry offHeap && previous != next) {
+            release(offHeap);
+        }
+    }
+
+    /**
+     * Returns the entry to store for one about to be added to the map: a
+     * {@link CounterEntry} for an integer string, or one whose value has been
+     * moved into a slab slot. Entries too large for a slot stay on the heap.
+     */
+    private StorageEntry encode(StorageEntry entry) {
+        if (entry instanceof OffHeapEntry || entry instanceof CounterEntry || entry.getType() != DataType.STRING
+                || !(entry.getValue() instanceof byte[] bytes)) {
+            return entry;
+        }
+        CounterEntry counter = CounterEntry.of(bytes);
+        if (counter != null) {
+            counter.setExpiresAt(entry.getExpiresAt());
+            return counter;
+        }
+        if (slabs == null) {
+            return entry;
+        }
+        long handle = slabs.allocate(bytes.length);
+        if (handle < 0) {
+            return entry;
+        }
+        slabs.write(handle, bytes);
+        OffHeapEntry offHeap = new OffHeapEntry(slabs, handle, bytes.length);
+        offHeap.setExpiresAt(entry.getExpiresAt());
+        return offHeap;
+    }
+
+    /**
+     * Frees the slot of an entry that has left the map, or, while a snapshot
+     * runs, once the snapshot is closed since it may still read the entry.
+     */
+    private void release(OffHeapEntry entry) {
+        SnapshotCapture active = capture.get();
+        if (active == null) {
+            entry.release();
+            return;
+        }
+        active.deferred.add(entry);
+        if (capture.get() != active) {
+            // Closed meanwhile, perhaps before seeing this entry
+            active.releaseDeferred();
+        }
+    }
+
+    private static boolean isVolatile(StorageEntry entry) {
+        return entry != null && entry != TOMBSTONE && entry.hasExpiry();
+    }
+
+    /**
+     * Estimates the heap taken by a mapping, assuming compressed references.
+     */
+    private static long footprint(ByteKey key, StorageEntry entry) {
+        if (entry == null || entry == TOMBSTONE) {
+            return 0;
+        }
+        if (entry instanceof OffHeapEntry offHeap) {
+            return ENTRY_OVERHEAD + OFF_HEAP_ENTRY_OVERHEAD + keySize(key) + offHeap.slotSize();
+        }
+        if (entry instanceof CounterEntry) {
+            return ENTRY_OVERHEAD + Long.BYTES + keySize(key);
+        }
+        long value = entry.getValue() instanceof CollectionValue collection
+                ? collection.footprint()
+                : arraySize(((byte[]) entry.getValue()).length);
+        return ENTRY_OVERHEAD + keySize(key) + value;
+    }
+
+    private static long keySize(ByteKey key) {
+        // The key object plus its array
+        return 24 + arraySize(key.length());
+    }
+
+    private static long arraySize(int length) {
+        // Header and length, padded to 8 bytes
+        return (16 + length + 7) & ~7L;
+    }
+
+    /**
+     * Sets how {@link #evict} picks keys and how many keys it samples for
+     * each eviction.
+     */
+    public void setEvictionPolicy(EvictionPolicy policy, int samples) {
+        this.evictionPolicy = policy;
+        this.evictionSamples = Math.max(1, samples);
+    }
+
+    /**
+     * Removes the best candidate for eviction among a sample of keys, or
+     * returns null if there is none (under noeviction, or a volatile policy
+     * with no keys that have a time to live). {@code onEvict}, if given, is
+     * called with the key under the map's lock for it.
+     *
+     * @return the evicted key
+     */
+    public synchronized ByteKey evict(Consumer<ByteKey> onEvict) {
+        EvictionPolicy policy = evictionPolicy;
+        if (policy == EvictionPolicy.NOEVICTION) {
+            return null;
+        }
+        long now = CachedClock.millis();
+        fillPool(policy, now);
+        while (poolSize > 0) {
+            // Scores are recomputed since pooled keys may have been read
+            int best = 0;
+            long bestScore = policy.score(poolEntries[0], now);
+            for (int i = 1; i < poolSize; i++) {
+                long score = policy.score(poolEntries[i], now);
+                if (score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            ByteKey key = poolKeys[best];
+            StorageEntry entry = poolEntries[best];
+            removeFromPool(best);
+            // Skipped if the key is in the middle of a multi-key operation
+            // on another thread; waiting here could deadlock with it
+            int token = keyLocks.tryEnterShared(keyLocks.stripeOf(key));
+            if (token < 0) {
+                continue;
+            }
+            try {
+                // Skipped if the key was written or removed since it was sampled
+                if (removeIfSame(key, entry, onEvict)) {
+                    evicted.increment();
+                    replaced(key, entry, null);
+                    return key;
+                }
+            } finally {
+                keyLocks.exitShared(token);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the next few eligible mappings to the eviction pool, resuming where
+     * the previous sample stopped and wrapping around at the end. A full pool
+     * keeps the highest scoring entries.
+     */
+    private void fillPool(EvictionPolicy policy, long now) {
+        int sampled = 0;
+        for (int scanned = 0; sampled < evictionSamples && scanned < MAX_EVICTION_SCAN; scanned++) {
+            if (evictionCursor == null || !evictionCursor.hasNext()) {
+                evictionCursor = store.iterator();
+                if (!evictionCursor.hasNext()) {
+                    return;
+                }
+            }
+            Map.Entry<ByteKey, StorageEntry> candidate = evictionCursor.next();
+            StorageEntry entry = candidate.getValue();
+            if (entry == TOMBSTONE || (policy.volatileOnly() && !entry.hasExpiry())) {
+                continue;
+            }
+            sampled++;
+            addToPool(candidate.getKey(), entry, policy, now);
+        }
+    }
+
+    private void addToPool(ByteKey key, StorageEntry entry, EvictionPolicy policy, long now) {
+        int worst = -1;
+        long worstScore = Long.MAX_VALUE;
+        for (int i = 0; i < poolSize; i++) {
+            if (poolEntries[i] == entry) {
+                return;
+            }
+            long score = policy.score(poolEntries[i], now);
+            if (score < worstScore) {
+                worst = i;
+                worstScore = score;
+            }
+        }
+        if (poolSize < EVICTION_POOL_SIZE) {
+            poolKeys[poolSize] = key;
+            poolEntries[poolSize++] = entry;
+        } else if (policy.score(entry, now) > worstScore) {
+            poolKeys[worst] = key;
+            poolEntries[worst] = entry;
+        }
+    }
+
+    private void removeFromPool(int index) {
+        poolSize--;
+        poolKeys[index] = poolKeys[poolSize];
+        poolEntries[index] = poolEntries[poolSize];
+        poolKeys[poolSize] = null;
+        poolEntries[poolSize] = null;
+    }
+
+    public boolean exists(ByteKey key) {
+        keyLocks.awaitUnlocked(key);
+        return lookup(key) != null;
+    }
+
+    /**
+     * Records the current state of a key, for {@link #isUnchanged} to compare
+     * with later.
+     */
+    public Stamp stamp(ByteKey key) {
+        keyLocks.awaitUnlocked(key);
+        StorageEntry entry = lookup(key);
+        return entry == null ? Stamp.ABSENT : new Stamp(entry, entry.version(), entry.getExpiresAt());
+    }
+
+    /**
+     * Returns whether a key is in the state a stamp of it recorded: still
+     * missing, or still mapped to the same entry, unchanged. Meant to be
+     * called under {@link #atomically}, with the key's stripe held.
+     */
+    public boolean isUnchanged(ByteKey key, Stamp stamp) {
+        StorageEntry entry = lookup(key);
+        return entry == stamp.entry
+                && (entry == null || entry.version() == stamp.version && entry.getExpiresAt() == stamp.expiresAt);
+    }
+
+    /**
+     * Looks up several keys in one pass, setting {@code entries[i]} to the
+     * entry of {@code keys[i]}, or null if it has none. Run it under
+     * {@link #readAtomically} to see either none or all of the writes of a
+     * multi-key operation.
+     *
+     * @return the number of keys found
+     */
+    public int getAll(ByteKey[] keys, StorageEntry[] entries) {
+        int found = 0;
+        for (int i = 0; i < keys.length; i++) {
+            StorageEntry entry = lookup(keys[i]);
+            entries[i] = entry;
+            if (entry != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns how many of the keys exist, counting a key given twice twice.
+     * Run it under {@link #readAtomically} or {@link #atomically} to see
+     * either none or all of the writes of a multi-key operation.
+     */
+    public int countExisting(ByteKey[] keys) {
+        int found = 0;
+        for (ByteKey key : keys) {
+            if (lookup(key) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Deletes several keys in one pass, calling {@code onDelete}, if given,
+     * with each one that existed as {@link #delete(ByteKey, Runnable)} does.
+     *
+     * @return the number of keys that existed
+     */
+    public int deleteAll(ByteKey[] keys, Consumer<ByteKey> onDelete) {
+        int deleted = 0;
+        for (ByteKey key : keys) {
+            if (delete(key, onDelete == null ? null : () -> onDelete.accept(key))) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Stores several entries in one pass, in order, so the last of a key given
+     * twice wins. Run it under {@link #atomically} for other operations to
+     * see either none or all of the entries.
+     */
+    public void putAll(ByteKey[] keys, StorageEntry[] entries) {
+        for (int i = 0; i < keys.length; i++) {
+            put(keys[i], entries[i]);
+        }
+    }
+
+    /**
+     * Serves keys missing from the map from a backing store until
+     * {@link #detach()} is called. Snapshots and full scans are refused in the
+     * meantime, since they would only see the keys promoted so far.
+     */
+    public void attach(BackingStore source) {
+        backing = source;
+    }
+
+    /**
+     * Copies an entry from the backing store into the map unless the key has
+     * been written or deleted since it was attached.
+     */
+    public void promote(ByteKey key, StorageEntry entry) {
+        if (backing == null) {
+            return;
+        }
+        StorageEntry stored = encode(entry);
+        if (store.putIfAbsent(key, stored) == null) {
+            promoted.increment();
+            admit(key, stored);
+            replaced(key, null, stored);
+        } else if (stored instanceof OffHeapEntry offHeap) {
+            // Never visible to anyone
+            offHeap.release();
+        }
+    }
+
+    /**
+     * Stops consulting the backing store. Call once every entry of it has
+     * been promoted.
+     */
+    public void detach() {
+        backing = null;
+        loadFailed = false;
+        store.removeValuesIf(entry -> entry == TOMBSTONE);
+    }
+
+    /**
+     * Records that the attached backing store will never be fully promoted.
+     * It keeps serving lookups, while snapshots and full scans stay refused.
+     */
+    public void failLoading() {
+        loadFailed = true;
+    }
+
+    public boolean isLoading() {
+        return backing != null && !loadFailed;
+    }
+
+    public boolean loadFailed() {
+        return backing != null && loadFailed;
+    }
+
+    /**
+     * Returns how many entries have been copied from backing stores.
+     */
+    public long promotedCount() {
+        return promoted.sum();
+    }
+
+    /**
+     * Returns how many keys have been removed because their time to live ran
+     * out.
+     */
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Returns the number of entries held in memory that have an expiry set.
+     */
+    public long volatileCount() {
+        return volatileKeys.sum();
+    }
+
+    /**
+     * Returns how many keys {@link #evict} has removed.
+     */
+    public long evictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Returns the estimated heap taken by the entries held in memory.
+     */
+    public long usedMemory() {
+        return usedMemory.sum();
+    }
+
+    /**
+     * Returns the slabs string values are kept in, or null if they are kept
+     * on the heap.
+     */
+    public SlabAllocator slabs() {
+        return slabs;
+    }
+
+    /**
+     * Returns the number of entries held in memory. Keys only present in an
+     * attached backing store are not counted.
+     */
     public long size() {
-        lock.readLock().lock();
+        return store.size();
+    }
+
+    /**
+     * Visits part of the store, continuing a walk started with cursor 0, and
+     * returns the cursor to pass next, or 0 once the walk is complete. Each
+     * call passes about {@code count} keys to the action, skipping expired
+     * ones; a key present for the whole walk is passed at least once, and
+     * keys added or removed meanwhile may or may not be.
+     */
+    public long scan(long cursor, int count, BiConsumer<ByteKey, StorageEntry> action) {
+        checkLoaded();
+        long now = CachedClock.millis();
+        return store.scan(cursor, count, (key, entry) -> {
+            if (entry != TOMBSTONE && !entry.isExpired(now)) {
+                action.accept(key, entry);
+            }
+        });
+    }
+
+    /**
+     * Visits every entry without blocking writers. Entries changed during the
+     * walk may or may not be seen, but each one is seen at most once.
+     */
+    public void forEach(BiConsumer<ByteKey, StorageEntry> action) {
+        checkLoaded();
+        store.forEach(action);
+    }
+
+    /**
+     * Runs an operation spanning several keys while holding the locks of their
+     * stripes. Once the locks are taken, operations on other keys of those
+     * stripes already running are waited for, and new ones wait until the
+     * operation is done, so it is atomic with respect to every other
+     * operation on its keys. The operation must not touch keys of stripes it
+     * does not hold.
+     */
+    public <T> T atomically(Collection<ByteKey> keys, Supplier<T> operation) {
+        int[] locked = keyLocks.lock(keys);
         try {
-            return store.size();
+            return operation.get();
         } finally {
-            lock.readLock().unlock();
+            keyLocks.unlock(locked);
+        }
+    }
+
+    /**
+     * Runs a read spanning several keys so that it sees either none or all of
+     * the writes of any operation run under {@link #atomically}. Reads and
+     * single-key writes run alongside it; only holders of the keys' stripes
+     * are kept out, and waited for.
+     */
+    public <T> T readAtomically(Collection<ByteKey> keys, Supplier<T> operation) {
+        int[] entered = keyLocks.enterShared(keys);
+        try {
+            return operation.get();
+        } finally {
+            keyLocks.exitShared(entered);
+        }
+    }
+
+    /**
+     * Starts a point-in-time view of the store. Writers keep running; the view
+     * reflects the store as it was when this method returned until it is
+     * closed. Only one snapshot of an engine can be open at a time.
+     */
+    public Snapshot openSnapshot() {
+        checkLoaded();
+        SnapshotCapture active = new SnapshotCapture();
+        if (!capture.compareAndSet(null, active)) {
+            throw new IllegalStateException("snapshot already in progress");
+        }
+        // A counter changed without the map's lock may have been found with
+        // no snapshot running just before; such changes are let through
+        // before the view starts, and later ones see it
+        keyLocks.awaitShared();
+        return new Snapshot(active);
+    }
+
+    private void checkLoaded() {
+        if (backing != null) {
+            throw new IllegalStateException(loadFailed ? "loading the snapshot failed"
+                    : "the snapshot is still being loaded");
+        }
+    }
+
+    private void beforeWrite(ByteKey key) {
+        SnapshotCapture active = capture.get();
+        if (active != null && !active.preimages.containsKey(key)) {
+            StorageEntry previous = store.get(key);
+            active.preimages.putIfAbsent(key, previous != null ? previous : SnapshotCapture.ABSENT);
         }
     }
 
     public void clear() {
-        lock.writeLock().lock();
+        keyLocks.lockAll();
         try {
+            backing = null;
+            loadFailed = false;
+            SnapshotCapture active = capture.get();
+            if (active != null) {
+                store.forEach((key, entry) -> active.preimages.putIfAbsent(key, entry));
+            }
+            if (slabs != null) {
+                store.forEach((key, entry) -> {
+                    if (entry instanceof OffHeapEntry offHeap) {
+                        release(offHeap);
+                    }
+                });
+            }
             store.clear();
+            volatileKeys.reset();
+            usedMemory.reset();
         } finally {
-            lock.writeLock().unlock();
+            keyLocks.unlockAll();
+        }
+    }
+
+    /**
+     * Entries replaced while a snapshot runs, as they were when it started.
+     * {@link #ABSENT} marks keys that did not exist then.
+     */
+    private static final class SnapshotCapture {
+        static final StorageEntry ABSENT = new StorageEntry(null, DataType.STRING);
+
+        final Map<ByteKey, StorageEntry> preimages = new ConcurrentHashMap<>();
+        // Off-heap entries that left the map while the snapshot ran
+        final Queue<OffHeapEntry> deferred = new ConcurrentLinkedQueue<>();
+
+        void releaseDeferred() {
+            OffHeapEntry entry;
+            while ((entry = deferred.poll()) != null) {
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * State of a key as {@link #stamp} recorded it. Holding the entry keeps it
+     * from being collected, so a different entry can never be mistaken for
+     * it.
+     */
+    public static final class Stamp {
+        static final Stamp ABSENT = new Stamp(null, 0, 0);
+
+        private final StorageEntry entry;
+        private final long version;
+        private final long expiresAt;
+
+        private Stamp(StorageEntry entry, long version, long expiresAt) {
+            this.entry = entry;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Point-in-time view opened by {@link #openSnapshot()}.
+     */
+    public final class Snapshot implements AutoCloseable {
+        private final SnapshotCapture active;
+
+        private Snapshot(SnapshotCapture active) {
+            this.active = active;
+        }
+
+        /**
+         * Visits every entry of the view. A key may be visited twice if it
+         * changes during the walk, in which case the later visit carries the
+         * value it had when the snapshot was opened.
+         */
+        public void forEach(BiConsumer<ByteKey, StorageEntry> action) {
+            // A writer saves the old entry before replacing it, so an entry
+            // without a saved copy here has not changed since the start
+            store.forEach((key, entry) -> {
+                if (!active.preimages.containsKey(key)) {
+                    action.accept(key, entry);
+                }
+            });
+            active.preimages.forEach((key, entry) -> {
+                if (entry != SnapshotCapture.ABSENT) {
+                    action.accept(key, entry);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            capture.compareAndSet(active, null);
+            active.releaseDeferred();
         }
     }
-}
\ No newline at end of file
+}
@@ -1,43 +1,81 @@
 package com.kvstore.core;
 
-import java.time.Instant;
-
 /**
- * Represents a value stored in the key-value store
+ * Represents a value stored in the key-value store. String values are the
+ * byte arrays sent by clients, stored as is; the other types are
+ * {@link CollectionValue}s, changed in place.
+ *
+ * The expiry is kept as epoch milliseconds in a primitive field rather than an
+ * object, and checked against {@link CachedClock}, so an entry costs no
+ * allocation beyond itself and a read makes no clock call.
  */
 public class StorageEntry {
+    /** Value of {@link #getExpiresAt()} for entries without a time to live */
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
     private final Object value;
     private final DataType type;
-    private final Instant createdAt;
-    private Instant expiresAt;
+    private long expiresAt = NO_EXPIRY;
+    // Deadline this entry is registered under in the engine's expiry wheel,
+    // or Long.MAX_VALUE if it is not registered
+    long scheduledExpiry = Long.MAX_VALUE;
+    // Recency or frequency of use, as kept by the engine's EvictionPolicy
+    int access;
 
     public StorageEntry(Object value, DataType type) {
         this.value = value;
         this.type = type;
-        this.createdAt = Instant.now();
+    }
+
+    private StorageEntry(StorageEntry other) {
+        // A collection may change after the copy is taken, a string never
+        this.value = other.value instanceof CollectionValue collection ? collection.copy() : other.value;
+        this.type = other.type;
+        this.expiresAt = other.expiresAt;
+    }
+
+    StorageEntry copy() {
+        return new StorageEntry(this);
     }
 
     public Object getValue() {
         return value;
     }
 
-    public DataType getType() {
-        return type;
+    /**
+     * Returns a number that changes whenever the value is changed in place;
+     * values that are only ever replaced, such as plain strings, always
+     * return 0. Together with the identity of the
+     * entry and its expiry, this tells WATCH whether a key changed.
+     */
+    long version() {
+        return value instanceof CollectionValue collection ? collection.version() : 0;
     }
 
-    public Instant getCreatedAt() {
-        return createdAt;
+    public DataType getType() {
+        return type;
     }
 
-    public Instant getExpiresAt() {
+    /**
+     * Returns the expiry time in epoch milliseconds, or {@link #NO_EXPIRY}.
+     */
+    public long getExpiresAt() {
         return expiresAt;
     }
 
-    public void setExpiresAt(Instant expiresAt) {
+    public void setExpiresAt(long expiresAt) {
         this.expiresAt = expiresAt;
     }
 
+    public boolean hasExpiry() {
+        return expiresAt != NO_EXPIRY;
+    }
+
     public boolean isExpired() {
-        return expiresAt != null && Instant.now().isAfter(expiresAt);
+        return isExpired(CachedClock.millis());
+    }
+
+    public boolean isExpired(long nowMillis) {
+        return nowMillis > expiresAt;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+package com.kvstore.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks indexed by key hash. Operations that must be atomic across
+ * several keys lock the stripes of those keys in ascending index order, so two
+ * such operations never deadlock and operations on unrelated key ranges never
+ * contend.
+ *
+ * Single-key operations do not take the locks, but enter their key's stripe
+ * in shared mode: they count themselves in, and wait while another thread
+ * holds the stripe. Locking a stripe raises a flag on it and then waits for
+ * the operations already in to leave, so a holder has its keys to itself. The
+ * flag and the count are each written before the other is read, so a locker
+ * and an operation coming in at the same time cannot both miss each other.
+ * Entering is one atomic update of a counter of the stripe when nobody holds
+ * it. An operation never waits while it is in shared mode, except on the
+ * map's locks, so the operations a locker waits for always finish.
+ *
+ * Operations are counted in one of two counters per stripe, picked by an
+ * epoch. {@link #awaitShared()} moves to the other epoch and waits for the
+ * counters of the old one to drain, without holding anyone up, so that
+ * whatever it set before is seen by every operation in shared mode after it.
+ */
+final class StripedLock {
+    // Slots between two of the per-stripe flags and counters, so that each
+    // sits on a cache line of its own
+    private static final int PADDING = 16;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    // For stripe i, slot 3 * i is set while a thread holds it, and slots
+    // 3 * i + 1 and 3 * i + 2 count the operations in it in shared mode that
+    // entered in epoch 0 and 1; each slot is PADDING ints apart
+    private final AtomicIntegerArray state;
+    private volatile int epoch;
+
+    StripedLock(int concurrency) {
+        int size = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        this.mask = size - 1;
+        this.state = new AtomicIntegerArray(3 * size * PADDING);
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    int stripeOf(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Locks the stripes covering the given keys and returns their indices, which
+     * must be passed to {@link #unlock(int[])}.
+     */
+    int[] lock(Collection<?> keys) {
+        int[] locked = stripesOf(keys);
+        for (int index : locked) {
+            lock(index);
+        }
+        return locked;
+    }
+
+    void unlock(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            unlock(locked[i]);
+        }
+    }
+
+    void lockAll() {
+        for (int i = 0; i < stripes.length; i++) {
+            lock(i);
+        }
+    }
+
+    void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            unlock(i);
+        }
+    }
+
+    private void lock(int stripe) {
+        ReentrantLock lock = stripes[stripe];
+        lock.lock();
+        if (lock.getHoldCount() > 1) {
+            return;
+        }
+        state.set(flag(stripe), 1);
+        // Operations in shared mode are short and do not wait on stripes, so
+        // they leave soon
+        while (state.get(count(stripe, 0)) != 0 || state.get(count(stripe, 1)) != 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void unlock(int stripe) {
+        ReentrantLock lock = stripes[stripe];
+        if (lock.getHoldCount() == 1) {
+            state.set(flag(stripe), 0);
+        }
+        lock.unlock();
+    }
+
+    /**
+     * Enters the stripe of a key in shared mode, waiting while another thread
+     * holds it, and returns a token to pass to {@link #exitShared(int)}.
+     */
+    int enterShared(Object key) {
+        int stripe = stripeOf(key);
+        int token;
+        while ((token = tryEnterShared(stripe)) < 0) {
+            awaitHolder(stripe);
+        }
+        return token;
+    }
+
+    /**
+     * Enters the stripes covering the given keys in shared mode, and returns
+     * tokens to pass to {@link #exitShared(int[])}. If a stripe is held, the
+     * ones entered so far are left while waiting for it, so that the holder
+     * never waits on this thread.
+     */
+    int[] enterShared(Collection<?> keys) {
+        int[] stripes = stripesOf(keys);
+        int[] tokens = new int[stripes.length];
+        int entered = 0;
+        while (entered < stripes.length) {
+            int token = tryEnterShared(stripes[entered]);
+            if (token >= 0) {
+                tokens[entered++] = token;
+                continue;
+            }
+            exitShared(Arrays.copyOf(tokens, entered));
+            awaitHolder(stripes[entered]);
+            entered = 0;
+        }
+        return tokens;
+    }
+
+    /**
+     * Enters a stripe in shared mode unless another thread holds it, and
+     * returns a token to pass to {@link #exitShared(int)}, or -1 if it is
+     * held.
+     */
+    int tryEnterShared(int stripe) {
+        while (true) {
+            if (isHeldByOther(stripe)) {
+                return -1;
+            }
+            int current = epoch;
+            state.incrementAndGet(count(stripe, current));
+            if (isHeldByOther(stripe)) {
+                state.decrementAndGet(count(stripe, current));
+                return -1;
+            }
+            if (epoch == current) {
+                return stripe << 1 | current;
+            }
+            // Counted in an epoch that is draining; count again in the new one
+            state.decrementAndGet(count(stripe, current));
+        }
+    }
+
+    void exitShared(int token) {
+        state.decrementAndGet(count(token >>> 1, token & 1));
+    }
+
+    void exitShared(int[] tokens) {
+        for (int i = tokens.length - 1; i >= 0; i--) {
+            exitShared(tokens[i]);
+        }
+    }
+
+    /**
+     * Waits for every operation in shared mode that entered before the call
+     * to leave. Operations entering meanwhile are not waited for.
+     */
+    synchronized void awaitShared() {
+        int previous = epoch;
+        epoch = previous ^ 1;
+        for (int i = 0; i < stripes.length; i++) {
+            while (state.get(count(i, previous)) != 0) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Waits until no other thread holds the stripe of a key, for a read that
+     * must not see a multi-key operation halfway through. Must not be called
+     * in shared mode.
+     */
+    void awaitUnlocked(Object key) {
+        int stripe = stripeOf(key);
+        if (isHeldByOther(stripe)) {
+            awaitHolder(stripe);
+        }
+    }
+
+    private void awaitHolder(int stripe) {
+        stripes[stripe].lock();
+        stripes[stripe].unlock();
+    }
+
+    private boolean isHeldByOther(int stripe) {
+        return state.get(flag(stripe)) != 0 && !stripes[stripe].isHeldByCurrentThread();
+    }
+
+    /**
+     * Returns the distinct stripes covering the given keys, in ascending
+     * order.
+     */
+    private int[] stripesOf(Collection<?> keys) {
+        int[] indices = new int[keys.size()];
+        int n = 0;
+        for (Object key : keys) {
+            indices[n++] = stripeOf(key);
+        }
+        Arrays.sort(indices);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || indices[distinct - 1] != indices[i]) {
+                indices[distinct++] = indices[i];
+            }
+        }
+        return Arrays.copyOf(indices, distinct);
+    }
+
+    private static int flag(int stripe) {
+        return 3 * stripe * PADDING;
+    }
+
+    private static int count(int stripe, int epoch) {
+        return (3 * stripe + 1 + epoch) * PADDING;
+    }
+}
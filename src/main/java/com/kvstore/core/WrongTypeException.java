@@ -0,0 +1,13 @@
+package com.kvstore.core;
+
+/**
+ * Thrown by {@link StorageEngine} when a command expects a key to hold a
+ * different type of value than it does.
+ */
+public class WrongTypeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public WrongTypeException(DataType expected, DataType actual) {
+        super("expected " + expected + " but the key holds " + actual);
+    }
+}
@@ -0,0 +1,101 @@
+package com.kvstore.metrics;
+
+import com.codahale.metrics.Snapshot;
+import com.kvstore.network.LatencyHistogram;
+import com.kvstore.network.ServerStats;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A command's latency distribution in microseconds, read from the bucket
+ * counts of {@link ServerStats}.
+ *
+ * Values are known only to the bucket they fall in, so each is reported as
+ * the highest latency of its bucket. {@link #getValues} returns one value per
+ * non-empty bucket rather than one per call, which keeps it small whatever
+ * the number of calls.
+ */
+final class LatencySnapshot extends Snapshot {
+    private final long[] counts;
+    private final long total;
+    private final double mean;
+
+    LatencySnapshot(ServerStats.CommandStats stats) {
+        this.counts = stats.latencies();
+        this.total = Arrays.stream(counts).sum();
+        this.mean = stats.microsPerCall();
+    }
+
+    @Override
+    public double getValue(double quantile) {
+        return LatencyHistogram.valueAtPercentile(counts, quantile * 100) / 1000.0;
+    }
+
+    @Override
+    public long[] getValues() {
+        return IntStream.range(0, counts.length)
+                .filter(i -> counts[i] > 0)
+                .mapToLong(LatencySnapshot::micros)
+                .toArray();
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] > 0) {
+                return micros(i);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public double getMean() {
+        return mean;
+    }
+
+    @Override
+    public long getMin() {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                return micros(i);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public double getStdDev() {
+        if (total < 2) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            double deviation = LatencyHistogram.highestInBucket(i) / 1000.0 - mean;
+            sum += counts[i] * deviation * deviation;
+        }
+        return Math.sqrt(sum / (total - 1));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+            for (long value : getValues()) {
+                out.printf("%d%n", value);
+            }
+        }
+    }
+
+    private static long micros(int bucket) {
+        return LatencyHistogram.highestInBucket(bucket) / 1000;
+    }
+}
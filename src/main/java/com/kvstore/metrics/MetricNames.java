@@ -0,0 +1,50 @@
+package com.kvstore.metrics;
+
+import com.codahale.metrics.jmx.ObjectNameFactory;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Maps the dotted names of {@link ServerMetrics} to JMX object names and
+ * Prometheus metric names. The command of a per-command metric becomes a key
+ * of the object name or a label rather than part of the name, so that one
+ * metric covers all commands.
+ */
+final class MetricNames implements ObjectNameFactory {
+    static final String COMMANDS = "commands";
+
+    /**
+     * A dotted name split into its parts; command is null for metrics that are
+     * not per command.
+     */
+    record Parts(String group, String command, String metric) {
+        static Parts of(String name) {
+            int first = name.indexOf('.');
+            String group = name.substring(0, first);
+            if (group.equals(COMMANDS)) {
+                int second = name.indexOf('.', first + 1);
+                return new Parts(group, name.substring(first + 1, second), name.substring(second + 1));
+            }
+            return new Parts(group, null, name.substring(first + 1));
+        }
+
+        String prometheusName() {
+            return "kvstore_" + group + "_" + metric;
+        }
+    }
+
+    @Override
+    public ObjectName createName(String type, String domain, String name) {
+        Parts parts = Parts.of(name);
+        StringBuilder objectName = new StringBuilder(domain).append(":type=").append(parts.group());
+        if (parts.command() != null) {
+            objectName.append(",command=").append(parts.command());
+        }
+        objectName.append(",name=").append(parts.metric());
+        try {
+            return new ObjectName(objectName.toString());
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid metric name: " + name, e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.kvstore.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves {@code GET /metrics} in the Prometheus text format on its own port,
+ * so scrapes never queue behind client commands or touch the RESP pipeline.
+ * It runs on the server's event loops; a scrape only reads counters.
+ */
+public final class MetricsHttpServer {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+    private static final int MAX_REQUEST_BYTES = 8192;
+
+    private MetricsHttpServer() {
+    }
+
+    /**
+     * Binds the endpoint and returns its listening channel.
+     */
+    public static Channel bind(EventLoopGroup boss, EventLoopGroup workers,
+                               Class<? extends ServerChannel> channelClass, int port, MetricRegistry registry)
+            throws InterruptedException {
+        Channel channel = new ServerBootstrap()
+                .group(boss, workers)
+                .channel(channelClass)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline()
+                                .addLast("codec", new HttpServerCodec())
+                                .addLast("aggregator", new HttpObjectAggregator(MAX_REQUEST_BYTES))
+                                .addLast("handler", new MetricsHandler(registry));
+                    }
+                })
+                .bind(port).sync().channel();
+        logger.info("Serving metrics on http://0.0.0.0:{}/metrics", port);
+        return channel;
+    }
+
+    private static final class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final MetricRegistry registry;
+
+        MetricsHandler(MetricRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            String path = new QueryStringDecoder(request.uri()).path();
+            FullHttpResponse response;
+            if (!path.equals("/metrics")) {
+                response = response(ctx, request, HttpResponseStatus.NOT_FOUND, "Not found\n");
+            } else if (!request.method().equals(HttpMethod.GET) && !request.method().equals(HttpMethod.HEAD)) {
+                response = response(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, "Method not allowed\n");
+            } else {
+                response = response(ctx, request, HttpResponseStatus.OK, PrometheusFormat.write(registry));
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, PrometheusFormat.CONTENT_TYPE);
+                if (request.method().equals(HttpMethod.HEAD)) {
+                    response.content().clear();
+                }
+            }
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            if (keepAlive) {
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private static FullHttpResponse response(ChannelHandlerContext ctx, FullHttpRequest request,
+                                                 HttpResponseStatus status, String body) {
+            ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), body);
+            FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), status, content);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=utf-8");
+            HttpUtil.setContentLength(response, content.readableBytes());
+            return response;
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Metrics request failed", cause);
+            ctx.close();
+        }
+    }
+}
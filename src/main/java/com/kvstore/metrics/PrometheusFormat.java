@@ -0,0 +1,83 @@
+package com.kvstore.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a registry in the Prometheus text exposition format (version 0.0.4).
+ * Gauges become gauges and histograms become summaries with the 0.5, 0.99 and
+ * 0.999 quantiles; per-command metrics get a {@code command} label.
+ */
+final class PrometheusFormat {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private PrometheusFormat() {
+    }
+
+    static String write(MetricRegistry registry) {
+        // Samples of one metric must be written together, under one TYPE line
+        Map<String, Family> families = new LinkedHashMap<>();
+        // The registry hands gauges out as a raw type
+        for (Map.Entry<String, ?> entry : registry.getGauges().entrySet()) {
+            MetricNames.Parts parts = MetricNames.Parts.of(entry.getKey());
+            Object value = ((Gauge<?>) entry.getValue()).getValue();
+            if (value instanceof Number number) {
+                family(families, parts, "gauge").sample(parts.prometheusName(), label(parts, null), number);
+            }
+        }
+        for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+            MetricNames.Parts parts = MetricNames.Parts.of(entry.getKey());
+            Histogram histogram = entry.getValue();
+            Snapshot snapshot = histogram.getSnapshot();
+            Family family = family(families, parts, "summary");
+            String name = parts.prometheusName();
+            for (double quantile : QUANTILES) {
+                family.sample(name, label(parts, quantile), snapshot.getValue(quantile));
+            }
+            family.sample(name + "_sum", label(parts, null), snapshot.getMean() * histogram.getCount());
+            family.sample(name + "_count", label(parts, null), histogram.getCount());
+        }
+
+        StringBuilder out = new StringBuilder();
+        families.forEach((name, family) -> {
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.samples.forEach(sample -> out.append(sample).append('\n'));
+        });
+        return out.toString();
+    }
+
+    private static Family family(Map<String, Family> families, MetricNames.Parts parts, String type) {
+        return families.computeIfAbsent(parts.prometheusName(), name -> new Family(type));
+    }
+
+    private static String label(MetricNames.Parts parts, Double quantile) {
+        List<String> labels = new ArrayList<>(2);
+        if (parts.command() != null) {
+            labels.add("command=\"" + parts.command() + "\"");
+        }
+        if (quantile != null) {
+            labels.add("quantile=\"" + quantile + "\"");
+        }
+        return labels.isEmpty() ? "" : "{" + String.join(",", labels) + "}";
+    }
+
+    private static final class Family {
+        final String type;
+        final List<String> samples = new ArrayList<>();
+
+        Family(String type) {
+            this.type = type;
+        }
+
+        void sample(String name, String labels, Number value) {
+            samples.add(name + labels + " " + value);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.kvstore.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.jmx.JmxReporter;
+import com.kvstore.network.Command;
+import com.kvstore.network.Keyspace;
+import com.kvstore.network.ServerStats;
+import java.util.Locale;
+
+/**
+ * The server's statistics as a metrics-core registry, for the JMX and HTTP
+ * exporters. Every metric reads {@link ServerStats} or the keyspace when it is
+ * read, so exporting adds nothing to the command path.
+ *
+ * Names are dotted: a group, then for per-command metrics the command, then
+ * the metric, e.g. {@code stats.keyspace_hits} or
+ * {@code commands.get.latency_usec}. See {@link MetricNames}.
+ */
+public final class ServerMetrics {
+    private ServerMetrics() {
+    }
+
+    public static MetricRegistry registry(Keyspace keyspace) {
+        ServerStats stats = keyspace.stats();
+        MetricRegistry registry = new MetricRegistry();
+        gauge(registry, "clients.connected", stats::connectedClients);
+        gauge(registry, "stats.connections_received", stats::connectionsReceived);
+        gauge(registry, "stats.commands_processed", stats::totalCommands);
+        gauge(registry, "stats.ops_per_sec", stats::instantaneousOpsPerSecond);
+        gauge(registry, "stats.keyspace_hits", stats::keyspaceHits);
+        gauge(registry, "stats.keyspace_misses", stats::keyspaceMisses);
+        gauge(registry, "stats.expired_keys", keyspace::expiredKeys);
+        gauge(registry, "stats.evicted_keys", keyspace::evictedKeys);
+        gauge(registry, "keyspace.keys", keyspace::size);
+        gauge(registry, "keyspace.expires", keyspace::volatileKeys);
+        gauge(registry, "memory.dataset_bytes", keyspace::usedMemory);
+        gauge(registry, "memory.maxmemory_bytes", keyspace::maxMemory);
+        gauge(registry, "slowlog.length", () -> (long) keyspace.slowLog().length());
+        for (Command command : Command.values()) {
+            String prefix = MetricNames.COMMANDS + "." + command.name().toLowerCase(Locale.ROOT) + ".";
+            gauge(registry, prefix + "calls", () -> stats.commandStats(command).calls());
+            gauge(registry, prefix + "failed_calls", () -> stats.commandStats(command).failedCalls());
+            registry.register(prefix + "latency_usec", new CommandLatency(stats, command));
+        }
+        return registry;
+    }
+
+    /**
+     * Returns a reporter that registers the metrics as MBeans in the
+     * {@code kvstore} domain once started.
+     */
+    public static JmxReporter jmxReporter(MetricRegistry registry) {
+        return JmxReporter.forRegistry(registry).inDomain("kvstore").createsObjectNamesWith(new MetricNames()).build();
+    }
+
+    private static void gauge(MetricRegistry registry, String name, Gauge<Long> gauge) {
+        registry.register(name, gauge);
+    }
+
+    /**
+     * A histogram whose counts are kept by {@link ServerStats}; it is never
+     * updated directly.
+     */
+    private static final class CommandLatency extends Histogram {
+        private final ServerStats stats;
+        private final Command command;
+
+        CommandLatency(ServerStats stats, Command command) {
+            super(new SlidingWindowReservoir(1));
+            this.stats = stats;
+            this.command = command;
+        }
+
+        @Override
+        public long getCount() {
+            return stats.commandStats(command).timedCalls();
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return new LatencySnapshot(stats.commandStats(command));
+        }
+    }
+}
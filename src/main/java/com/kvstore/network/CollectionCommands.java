@@ -0,0 +1,538 @@
+package com.kvstore.network;
+
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.CollectionValue;
+import com.kvstore.core.DataType;
+import com.kvstore.core.HashValue;
+import com.kvstore.core.ListValue;
+import com.kvstore.core.SetValue;
+import com.kvstore.core.SortedSetValue;
+import com.kvstore.core.StorageEngine;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Commands on LIST, HASH, SET and SORTED_SET keys, run by a
+ * {@link RedisCommandExecutor} against its engine.
+ *
+ * Writes go through {@link StorageEngine#update} and are logged from inside
+ * it, under the map's lock for the key, so the log has the writes to a key in
+ * the order they were applied. Every write logged is idempotent except list
+ * pushes and pops, which {@link Keyspace#rewriteCommands} handles apart.
+ */
+class CollectionCommands {
+    static final byte[] RPUSH = RedisCommandExecutor.ascii("RPUSH");
+    static final byte[] HSET = RedisCommandExecutor.ascii("HSET");
+    static final byte[] SADD = RedisCommandExecutor.ascii("SADD");
+    static final byte[] ZADD = RedisCommandExecutor.ascii("ZADD");
+    private static final String SYNTAX_ERROR = "ERR syntax error";
+    private static final String NOT_AN_INTEGER = "ERR value is not an integer or out of range";
+    private static final String NOT_A_FLOAT = "ERR value is not a valid float";
+
+    private final StorageEngine storageEngine;
+    private final RedisCommandExecutor executor;
+    private final Keyspace keyspace;
+
+    CollectionCommands(StorageEngine storageEngine, RedisCommandExecutor executor, Keyspace keyspace) {
+        this.storageEngine = storageEngine;
+        this.executor = executor;
+        this.keyspace = keyspace;
+    }
+
+    ByteBuf push(ByteBufAllocator alloc, Command cmd, List<byte[]> command, boolean head) {
+        if (command.size() < 3) {
+            return wrongArity(alloc, cmd);
+        }
+        if (!executor.reserveMemory()) {
+            return RespEncoder.error(alloc, RedisCommandExecutor.OOM_ERROR);
+        }
+        int length = storageEngine.update(new ByteKey(command.get(1)), DataType.LIST, ListValue::new, list -> {
+            for (int i = 2; i < command.size(); i++) {
+                list.push(command.get(i), head);
+            }
+            executor.propagate(command);
+            return list.size();
+        });
+        return RespEncoder.integer(alloc, length);
+    }
+
+    ByteBuf pop(ByteBufAllocator alloc, Command cmd, List<byte[]> command, boolean head) {
+        if (command.size() != 2 && command.size() != 3) {
+            return wrongArity(alloc, cmd);
+        }
+        boolean withCount = command.size() == 3;
+        long count = 1;
+        if (withCount) {
+            try {
+                count = RedisCommandExecutor.parseLong(command.get(2));
+            } catch (NumberFormatException e) {
+                return RespEncoder.error(alloc, NOT_AN_INTEGER);
+            }
+            if (count < 0) {
+                return RespEncoder.error(alloc, "ERR value is out of range, must be positive");
+            }
+        }
+        long wanted = count;
+        List<byte[]> popped = storageEngine.update(new ByteKey(command.get(1)), DataType.LIST, null,
+                (ListValue list) -> {
+                    List<byte[]> values = new ArrayList<>();
+                    while (values.size() < wanted && list.size() > 0) {
+                        values.add(list.pop(head));
+                    }
+                    if (!values.isEmpty()) {
+                        executor.propagate(command);
+                    }
+                    return values;
+                });
+        if (!withCount) {
+            return popped == null ? RespEncoder.nullBulk() : RespEncoder.bulk(alloc, popped.get(0));
+        }
+        return popped == null ? RespEncoder.nullArray() : bulks(alloc, popped);
+    }
+
+    ByteBuf llen(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 2) {
+            return wrongArity(alloc, cmd);
+        }
+        ListValue list = storageEngine.getCollection(new ByteKey(command.get(1)), DataType.LIST);
+        return RespEncoder.integer(alloc, list == null ? 0 : list.size());
+    }
+
+    ByteBuf lrange(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 4) {
+            return wrongArity(alloc, cmd);
+        }
+        long start;
+        long stop;
+        try {
+            start = RedisCommandExecutor.parseLong(command.get(2));
+            stop = RedisCommandExecutor.parseLong(command.get(3));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, NOT_AN_INTEGER);
+        }
+        ListValue list = read(new ByteKey(command.get(1)), DataType.LIST);
+        return list == null ? RespEncoder.emptyArray() : bulks(alloc, list.range(start, stop));
+    }
+
+    ByteBuf hset(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() < 4 || command.size() % 2 != 0) {
+            return wrongArity(alloc, cmd);
+        }
+        if (!executor.reserveMemory()) {
+            return RespEncoder.error(alloc, RedisCommandExecutor.OOM_ERROR);
+        }
+        int added = storageEngine.update(new ByteKey(command.get(1)), DataType.HASH, HashValue::new, hash -> {
+            int fields = 0;
+            for (int i = 2; i < command.size(); i += 2) {
+                if (hash.put(command.get(i), command.get(i + 1))) {
+                    fields++;
+                }
+            }
+            executor.propagate(command);
+            return fields;
+        });
+        return RespEncoder.integer(alloc, added);
+    }
+
+    ByteBuf hget(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 3) {
+            return wrongArity(alloc, cmd);
+        }
+        HashValue hash = read(new ByteKey(command.get(1)), DataType.HASH);
+        byte[] value = hash == null ? null : hash.get(command.get(2));
+        return value == null ? RespEncoder.nullBulk() : RespEncoder.bulk(alloc, value);
+    }
+
+    ByteBuf hgetall(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 2) {
+            return wrongArity(alloc, cmd);
+        }
+        HashValue hash = read(new ByteKey(command.get(1)), DataType.HASH);
+        if (hash == null) {
+            return RespEncoder.emptyArray();
+        }
+        ByteBuf out = alloc.ioBuffer();
+        // Held so that the header matches what the walk writes
+        synchronized (hash) {
+            RespEncoder.writeArrayHeader(out, hash.size() * 2);
+            hash.forEach((field, value) -> {
+                RespEncoder.writeBulk(out, field);
+                RespEncoder.writeBulk(out, value);
+            });
+        }
+        return out;
+    }
+
+    ByteBuf hdel(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() < 3) {
+            return wrongArity(alloc, cmd);
+        }
+        Integer removed = storageEngine.update(new ByteKey(command.get(1)), DataType.HASH, null,
+                (HashValue hash) -> {
+                    int fields = 0;
+                    for (int i = 2; i < command.size(); i++) {
+                        if (hash.remove(command.get(i))) {
+                            fields++;
+                        }
+                    }
+                    if (fields > 0) {
+                        executor.propagate(command);
+                    }
+                    return fields;
+                });
+        return RespEncoder.integer(alloc, removed == null ? 0 : removed);
+    }
+
+    ByteBuf hlen(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 2) {
+            return wrongArity(alloc, cmd);
+        }
+        return RespEncoder.integer(alloc, size(new ByteKey(command.get(1)), DataType.HASH));
+    }
+
+    ByteBuf sadd(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() < 3) {
+            return wrongArity(alloc, cmd);
+        }
+        if (!executor.reserveMemory()) {
+            return RespEncoder.error(alloc, RedisCommandExecutor.OOM_ERROR);
+        }
+        int added = storageEngine.update(new ByteKey(command.get(1)), DataType.SET, SetValue::new, set -> {
+            int members = 0;
+            for (int i = 2; i < command.size(); i++) {
+                if (set.add(command.get(i))) {
+                    members++;
+                }
+            }
+            if (members > 0) {
+                executor.propagate(command);
+            }
+            return members;
+        });
+        return RespEncoder.integer(alloc, added);
+    }
+
+    ByteBuf srem(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() < 3) {
+            return wrongArity(alloc, cmd);
+        }
+        Integer removed = storageEngine.update(new ByteKey(command.get(1)), DataType.SET, null, (SetValue set) -> {
+            int members = 0;
+            for (int i = 2; i < command.size(); i++) {
+                if (set.remove(command.get(i))) {
+                    members++;
+                }
+            }
+            if (members > 0) {
+                executor.propagate(command);
+            }
+            return members;
+        });
+        return RespEncoder.integer(alloc, removed == null ? 0 : removed);
+    }
+
+    ByteBuf sismember(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 3) {
+            return wrongArity(alloc, cmd);
+        }
+        SetValue set = read(new ByteKey(command.get(1)), DataType.SET);
+        return RespEncoder.integer(alloc, set != null && set.contains(command.get(2)) ? 1 : 0);
+    }
+
+    ByteBuf smembers(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 2) {
+            return wrongArity(alloc, cmd);
+        }
+        SetValue set = read(new ByteKey(command.get(1)), DataType.SET);
+        if (set == null) {
+            return RespEncoder.emptyArray();
+        }
+        ByteBuf out = alloc.ioBuffer();
+        // Held so that the header matches what the walk writes
+        synchronized (set) {
+            RespEncoder.writeArrayHeader(out, set.size());
+            set.forEach(member -> RespEncoder.writeBulk(out, member));
+        }
+        return out;
+    }
+
+    ByteBuf scard(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 2) {
+            return wrongArity(alloc, cmd);
+        }
+        return RespEncoder.integer(alloc, size(new ByteKey(command.get(1)), DataType.SET));
+    }
+
+    ByteBuf zadd(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() < 4) {
+            return wrongArity(alloc, cmd);
+        }
+        int flags = 0;
+        boolean changed = false;
+        int first = 2;
+        options:
+        for (; first < command.size(); first++) {
+            switch (RedisCommandExecutor.upperCase(command.get(first))) {
+                case "NX" -> flags |= SortedSetValue.NX;
+                case "XX" -> flags |= SortedSetValue.XX;
+                case "GT" -> flags |= SortedSetValue.GT;
+                case "LT" -> flags |= SortedSetValue.LT;
+                case "CH" -> changed = true;
+                default -> {
+                    break options;
+                }
+            }
+        }
+        if ((flags & SortedSetValue.NX) != 0 && (flags & SortedSetValue.XX) != 0) {
+            return RespEncoder.error(alloc, "ERR XX and NX options at the same time are not compatible");
+        }
+        if (Integer.bitCount(flags & (SortedSetValue.NX | SortedSetValue.GT | SortedSetValue.LT)) > 1) {
+            return RespEncoder.error(alloc, "ERR GT, LT, and/or NX options at the same time are not compatible");
+        }
+        int pairs = (command.size() - first) / 2;
+        if (pairs == 0 || (command.size() - first) % 2 != 0) {
+            return RespEncoder.error(alloc, SYNTAX_ERROR);
+        }
+        double[] scores = new double[pairs];
+        for (int i = 0; i < pairs; i++) {
+            try {
+                scores[i] = parseScore(command.get(first + 2 * i));
+            } catch (NumberFormatException e) {
+                return RespEncoder.error(alloc, NOT_A_FLOAT);
+            }
+        }
+        if (!executor.reserveMemory()) {
+            return RespEncoder.error(alloc, RedisCommandExecutor.OOM_ERROR);
+        }
+        int zaddFlags = flags;
+        int scoreArg = first;
+        boolean countChanged = changed;
+        Integer counted = storageEngine.update(new ByteKey(command.get(1)), DataType.SORTED_SET,
+                SortedSetValue::new, zset -> {
+                    int added = 0;
+                    int updated = 0;
+                    // Logged as a plain ZADD of what changed, which gives the
+                    // same result whatever the set holds when it is replayed
+                    List<byte[]> logged = new ArrayList<>();
+                    logged.add(ZADD);
+                    logged.add(command.get(1));
+                    for (int i = 0; i < pairs; i++) {
+                        byte[] member = command.get(scoreArg + 2 * i + 1);
+                        int outcome = zset.add(member, scores[i], zaddFlags);
+                        if (outcome == SortedSetValue.UNCHANGED) {
+                            continue;
+                        }
+                        if (outcome == SortedSetValue.ADDED) {
+                            added++;
+                        } else {
+                            updated++;
+                        }
+                        logged.add(command.get(scoreArg + 2 * i));
+                        logged.add(member);
+                    }
+                    if (logged.size() > 2) {
+                        executor.propagate(logged);
+                    }
+                    return countChanged ? added + updated : added;
+                });
+        return RespEncoder.integer(alloc, counted == null ? 0 : counted);
+    }
+
+    ByteBuf zrem(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() < 3) {
+            return wrongArity(alloc, cmd);
+        }
+        Integer removed = storageEngine.update(new ByteKey(command.get(1)), DataType.SORTED_SET, null,
+                (SortedSetValue zset) -> {
+                    int members = 0;
+                    for (int i = 2; i < command.size(); i++) {
+                        if (zset.remove(command.get(i))) {
+                            members++;
+                        }
+                    }
+                    if (members > 0) {
+                        executor.propagate(command);
+                    }
+                    return members;
+                });
+        return RespEncoder.integer(alloc, removed == null ? 0 : removed);
+    }
+
+    ByteBuf zscore(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 3) {
+            return wrongArity(alloc, cmd);
+        }
+        SortedSetValue zset = read(new ByteKey(command.get(1)), DataType.SORTED_SET);
+        Double score = zset == null ? null : zset.score(command.get(2));
+        return score == null ? RespEncoder.nullBulk() : RespEncoder.bulk(alloc, formatScore(score));
+    }
+
+    ByteBuf zcard(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 2) {
+            return wrongArity(alloc, cmd);
+        }
+        return RespEncoder.integer(alloc, size(new ByteKey(command.get(1)), DataType.SORTED_SET));
+    }
+
+    ByteBuf zrange(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() != 4 && command.size() != 5) {
+            return wrongArity(alloc, cmd);
+        }
+        boolean withScores = command.size() == 5;
+        if (withScores && !"WITHSCORES".equals(RedisCommandExecutor.upperCase(command.get(4)))) {
+            return RespEncoder.error(alloc, SYNTAX_ERROR);
+        }
+        long start;
+        long stop;
+        try {
+            start = RedisCommandExecutor.parseLong(command.get(2));
+            stop = RedisCommandExecutor.parseLong(command.get(3));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, NOT_AN_INTEGER);
+        }
+        SortedSetValue zset = read(new ByteKey(command.get(1)), DataType.SORTED_SET);
+        return zset == null ? RespEncoder.emptyArray() : scored(alloc, zset.rangeByRank(start, stop), withScores);
+    }
+
+    ByteBuf zrangebyscore(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (command.size() < 4) {
+            return wrongArity(alloc, cmd);
+        }
+        boolean withScores = false;
+        long offset = 0;
+        long limit = -1;
+        for (int i = 4; i < command.size(); i++) {
+            String option = RedisCommandExecutor.upperCase(command.get(i));
+            if (option.equals("WITHSCORES")) {
+                withScores = true;
+            } else if (option.equals("LIMIT") && i + 2 < command.size()) {
+                try {
+                    offset = RedisCommandExecutor.parseLong(command.get(i + 1));
+                    limit = RedisCommandExecutor.parseLong(command.get(i + 2));
+                } catch (NumberFormatException e) {
+                    return RespEncoder.error(alloc, NOT_AN_INTEGER);
+                }
+                i += 2;
+            } else {
+                return RespEncoder.error(alloc, SYNTAX_ERROR);
+            }
+        }
+        byte[] min = command.get(2);
+        byte[] max = command.get(3);
+        boolean minExclusive = min.length > 0 && min[0] == '(';
+        boolean maxExclusive = max.length > 0 && max[0] == '(';
+        double minScore;
+        double maxScore;
+        try {
+            minScore = parseScore(minExclusive ? Arrays.copyOfRange(min, 1, min.length) : min);
+            maxScore = parseScore(maxExclusive ? Arrays.copyOfRange(max, 1, max.length) : max);
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR min or max is not a float");
+        }
+        SortedSetValue zset = read(new ByteKey(command.get(1)), DataType.SORTED_SET);
+        if (zset == null || offset < 0) {
+            return RespEncoder.emptyArray();
+        }
+        return scored(alloc, zset.rangeByScore(minScore, minExclusive, maxScore, maxExclusive, offset, limit),
+                withScores);
+    }
+
+    /**
+     * Looks up a collection for a read command, counting the lookup as a
+     * keyspace hit or miss.
+     */
+    private <C extends CollectionValue> C read(ByteKey key, DataType type) {
+        C collection = storageEngine.getCollection(key, type);
+        if (collection == null) {
+            keyspace.stats().stripe().miss();
+        } else {
+            keyspace.stats().stripe().hit();
+        }
+        return collection;
+    }
+
+    private int size(ByteKey key, DataType type) {
+        CollectionValue collection = storageEngine.getCollection(key, type);
+        return collection == null ? 0 : collection.size();
+    }
+
+    private static ByteBuf bulks(ByteBufAllocator alloc, List<byte[]> values) {
+        int size = 16;
+        for (byte[] value : values) {
+            size += value.length + 16;
+        }
+        ByteBuf out = alloc.ioBuffer(size);
+        RespEncoder.writeArrayHeader(out, values.size());
+        for (byte[] value : values) {
+            RespEncoder.writeBulk(out, value);
+        }
+        return out;
+    }
+
+    private static ByteBuf scored(ByteBufAllocator alloc, List<SortedSetValue.ScoredMember> range,
+            boolean withScores) {
+        ByteBuf out = alloc.ioBuffer();
+        RespEncoder.writeArrayHeader(out, withScores ? range.size() * 2 : range.size());
+        for (SortedSetValue.ScoredMember entry : range) {
+            RespEncoder.writeBulk(out, entry.member());
+            if (withScores) {
+                RespEncoder.writeBulk(out, formatScore(entry.score()));
+            }
+        }
+        return out;
+    }
+
+    private static ByteBuf wrongArity(ByteBufAllocator alloc, Command cmd) {
+        return RespEncoder.error(alloc, "ERR wrong number of arguments for '"
+                + cmd.name().toLowerCase(Locale.ROOT) + "' command");
+    }
+
+    /**
+     * Parses a score: a decimal or exponent notation number, or inf, +inf or
+     * -inf in any case.
+     *
+     * @throws NumberFormatException if it is none of these, or not a number
+     */
+    static double parseScore(byte[] arg) {
+        String text = new String(arg, StandardCharsets.US_ASCII);
+        switch (text.toLowerCase(Locale.ROOT)) {
+            case "inf", "+inf" -> {
+                return Double.POSITIVE_INFINITY;
+            }
+            case "-inf" -> {
+                return Double.NEGATIVE_INFINITY;
+            }
+            default -> {
+            }
+        }
+        // Double.parseDouble also takes hex, type suffixes and padding
+        for (byte b : arg) {
+            if ((b < '0' || b > '9') && b != '.' && b != 'e' && b != 'E' && b != '-' && b != '+') {
+                throw new NumberFormatException();
+            }
+        }
+        double score = Double.parseDouble(text);
+        if (Double.isNaN(score)) {
+            throw new NumberFormatException();
+        }
+        return score;
+    }
+
+    /**
+     * Formats a score the shortest way that parses back to the same value.
+     */
+    static String formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "inf" : "-inf";
+        }
+        if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+            return Long.toString((long) score);
+        }
+        return Double.toString(score);
+    }
+}
@@ -0,0 +1,226 @@
+package com.kvstore.network;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Commands the server understands, with what the handler needs to know to
+ * route them before they run.
+ *
+ * Incoming names are resolved by {@link #lookup}, which compares the raw bytes
+ * case-insensitively against a table built once, so dispatch neither decodes
+ * nor upper-cases the name.
+ */
+public enum Command {
+    PING(Flags.NONE),
+    GET(Flags.KEYED),
+    SET(Flags.KEYED | Flags.WRITE),
+    INCR(Flags.KEYED | Flags.WRITE),
+    DECR(Flags.KEYED | Flags.WRITE),
+    INCRBY(Flags.KEYED | Flags.WRITE),
+    DECRBY(Flags.KEYED | Flags.WRITE),
+    INCRBYFLOAT(Flags.KEYED | Flags.WRITE),
+    GETSET(Flags.KEYED | Flags.WRITE),
+    GETDEL(Flags.KEYED | Flags.WRITE),
+    DEL(Flags.KEYED | Flags.KEYS | Flags.WRITE),
+    // Same as DEL: values are freed by the collector in either case
+    UNLINK(Flags.KEYED | Flags.KEYS | Flags.WRITE),
+    EXISTS(Flags.KEYED | Flags.KEYS),
+    MGET(Flags.KEYED | Flags.KEYS),
+    MSET(Flags.KEYED | Flags.PAIRS | Flags.WRITE),
+    MSETNX(Flags.KEYED | Flags.PAIRS | Flags.WRITE),
+    EXPIRE(Flags.KEYED | Flags.WRITE),
+    PEXPIREAT(Flags.KEYED | Flags.WRITE),
+    TYPE(Flags.KEYED),
+    // The key follows the subcommand; looked up in its shard directly
+    OBJECT(Flags.NONE),
+    LPUSH(Flags.KEYED | Flags.WRITE),
+    RPUSH(Flags.KEYED | Flags.WRITE),
+    LPOP(Flags.KEYED | Flags.WRITE),
+    RPOP(Flags.KEYED | Flags.WRITE),
+    LLEN(Flags.KEYED),
+    LRANGE(Flags.KEYED),
+    HSET(Flags.KEYED | Flags.WRITE),
+    HGET(Flags.KEYED),
+    HGETALL(Flags.KEYED),
+    HDEL(Flags.KEYED | Flags.WRITE),
+    HLEN(Flags.KEYED),
+    SADD(Flags.KEYED | Flags.WRITE),
+    SREM(Flags.KEYED | Flags.WRITE),
+    SISMEMBER(Flags.KEYED),
+    SMEMBERS(Flags.KEYED),
+    SCARD(Flags.KEYED),
+    ZADD(Flags.KEYED | Flags.WRITE),
+    ZREM(Flags.KEYED | Flags.WRITE),
+    ZSCORE(Flags.KEYED),
+    ZCARD(Flags.KEYED),
+    ZRANGE(Flags.KEYED),
+    ZRANGEBYSCORE(Flags.KEYED),
+    // SCAN and DBSIZE read every shard from the loop that received them
+    SCAN(Flags.NONE),
+    DBSIZE(Flags.NONE),
+    KEYS(Flags.SLOW),
+    // Handled by the connection, which holds the transaction
+    MULTI(Flags.TRANSACTION),
+    EXEC(Flags.TRANSACTION | Flags.WRITE),
+    DISCARD(Flags.TRANSACTION),
+    WATCH(Flags.TRANSACTION),
+    UNWATCH(Flags.TRANSACTION),
+    REPLICAOF(Flags.NONE),
+    // Sent by replicas, and handled by the connection, which they take over
+    PSYNC(Flags.REPLICATION),
+    REPLCONF(Flags.REPLICATION),
+    BGREWRITEAOF(Flags.NONE),
+    SAVE(Flags.NONE),
+    BGSAVE(Flags.NONE),
+    LASTSAVE(Flags.NONE),
+    INFO(Flags.NONE),
+    COMMAND(Flags.NONE),
+    CLIENT(Flags.NONE),
+    CONFIG(Flags.NONE),
+    HELLO(Flags.NONE),
+    AUTH(Flags.NONE),
+    SELECT(Flags.NONE),
+    SLOWLOG(Flags.NONE);
+
+    private static final int MAX_NAME_LENGTH = 16;
+    // Commands by name length and first letter, case folded
+    private static final Command[][] TABLE = new Command[(MAX_NAME_LENGTH + 1) * 32][];
+
+    static {
+        for (Command command : values()) {
+            byte[] name = command.name;
+            if (name.length > MAX_NAME_LENGTH) {
+                throw new IllegalStateException("Command name too long: " + command);
+            }
+            for (byte b : name) {
+                // The case folding in matches() is only valid for letters
+                if (b < 'A' || b > 'Z') {
+                    throw new IllegalStateException("Command name must be letters only: " + command);
+                }
+            }
+            int slot = slot(name.length, name[0]);
+            Command[] bucket = TABLE[slot];
+            Command[] grown = bucket == null ? new Command[1] : Arrays.copyOf(bucket, bucket.length + 1);
+            grown[grown.length - 1] = command;
+            TABLE[slot] = grown;
+        }
+    }
+
+    private final byte[] name;
+    private final int flags;
+
+    Command(int flags) {
+        this.name = name().getBytes(StandardCharsets.US_ASCII);
+        this.flags = flags;
+    }
+
+    /**
+     * Returns the command with the given name in any case, or null if there
+     * is none.
+     */
+    public static Command lookup(byte[] name) {
+        if (name.length == 0 || name.length > MAX_NAME_LENGTH) {
+            return null;
+        }
+        Command[] bucket = TABLE[slot(name.length, name[0])];
+        if (bucket == null) {
+            return null;
+        }
+        for (Command command : bucket) {
+            if (command.matches(name)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private static int slot(int length, byte first) {
+        return length << 5 | (first & 0x1F);
+    }
+
+    private boolean matches(byte[] candidate) {
+        for (int i = 0; i < name.length; i++) {
+            // Clearing bit 5 upper-cases an ASCII letter, and maps no other
+            // byte onto one
+            if ((candidate[i] & 0xDF) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the upper-case name as bytes; the array must not be modified.
+     */
+    public byte[] nameBytes() {
+        return name;
+    }
+
+    /**
+     * Returns whether the command takes keys, starting at the first argument;
+     * they decide the shard the command runs on.
+     */
+    public boolean isKeyed() {
+        return (flags & Flags.KEYED) != 0;
+    }
+
+    /**
+     * Returns the distance between the keys of a command that takes several,
+     * the keys starting at the first argument: 1 if every argument is a key,
+     * 2 for key-value pairs. Returns 0 for commands with at most one key.
+     */
+    public int keyStep() {
+        if ((flags & Flags.KEYS) != 0) {
+            return 1;
+        }
+        return (flags & Flags.PAIRS) != 0 ? 2 : 0;
+    }
+
+    /**
+     * Returns whether the command may modify the dataset.
+     */
+    public boolean isWrite() {
+        return (flags & Flags.WRITE) != 0;
+    }
+
+    /**
+     * Returns whether the command walks the whole keyspace, and so runs off
+     * the event loops.
+     */
+    public boolean isSlow() {
+        return (flags & Flags.SLOW) != 0;
+    }
+
+    /**
+     * Returns whether the command starts, ends or watches for a transaction,
+     * and so is handled by the connection rather than queued or executed.
+     */
+    public boolean isTransaction() {
+        return (flags & Flags.TRANSACTION) != 0;
+    }
+
+    /**
+     * Returns whether the command is part of a replica's handshake with its
+     * primary, and so is handled by the connection.
+     */
+    public boolean isReplication() {
+        return (flags & Flags.REPLICATION) != 0;
+    }
+
+    private static final class Flags {
+        static final int NONE = 0;
+        static final int KEYED = 1;
+        static final int WRITE = 2;
+        // Every argument is a key
+        static final int KEYS = 4;
+        // Arguments are key-value pairs
+        static final int PAIRS = 8;
+        // Walks the whole keyspace
+        static final int SLOW = 16;
+        // MULTI, EXEC and the like
+        static final int TRANSACTION = 32;
+        // PSYNC and REPLCONF
+        static final int REPLICATION = 64;
+    }
+}
@@ -0,0 +1,164 @@
+package com.kvstore.network;
+
+import java.util.Arrays;
+
+/**
+ * A glob-style pattern as KEYS and SCAN MATCH take it: {@code *} matches any
+ * run of bytes, {@code ?} any one byte, {@code [abc]}, {@code [a-z]} and
+ * {@code [^a]} a byte in or out of a set, and {@code \} makes the next byte
+ * literal.
+ *
+ * The pattern is compiled once into one byte set per position, and matched
+ * with a single backtracking point for the last {@code *} seen, so a match
+ * takes time linear in the key for most patterns rather than the exponential
+ * worst case of a recursive matcher. Patterns that are a literal, a literal
+ * followed by {@code *}, or just {@code *}, are matched without the loop.
+ */
+final class GlobPattern {
+    private static final GlobPattern ANY = new GlobPattern(null, null, 0, true);
+
+    // The byte set of each position, or null where the pattern has a star
+    private final boolean[][] sets;
+    // The leading literal, compared directly
+    private final byte[] prefix;
+    // Positions after the prefix that must match exactly one byte
+    private final int singles;
+    private final boolean trailingStarOnly;
+
+    private GlobPattern(boolean[][] sets, byte[] prefix, int singles, boolean trailingStarOnly) {
+        this.sets = sets;
+        this.prefix = prefix;
+        this.singles = singles;
+        this.trailingStarOnly = trailingStarOnly;
+    }
+
+    static GlobPattern compile(byte[] pattern) {
+        boolean[][] sets = new boolean[pattern.length][];
+        int count = 0;
+        int literals = 0;
+        boolean literalPrefix = true;
+        for (int i = 0; i < pattern.length; i++) {
+            byte b = pattern[i];
+            if (b == '*') {
+                if (count == 0 || sets[count - 1] != null) {
+                    sets[count++] = null;
+                }
+                literalPrefix = false;
+                continue;
+            }
+            boolean[] set = new boolean[256];
+            if (b == '?') {
+                Arrays.fill(set, true);
+                literalPrefix = false;
+            } else if (b == '[') {
+                i = parseClass(pattern, i + 1, set);
+                literalPrefix = false;
+            } else {
+                if (b == '\\' && i + 1 < pattern.length) {
+                    b = pattern[++i];
+                }
+                set[b & 0xFF] = true;
+                if (literalPrefix) {
+                    literals++;
+                }
+            }
+            sets[count++] = set;
+        }
+        sets = Arrays.copyOf(sets, count);
+        if (count == 1 && sets[0] == null) {
+            return ANY;
+        }
+        byte[] prefix = new byte[literals];
+        for (int i = 0; i < literals; i++) {
+            prefix[i] = (byte) literalByte(sets[i]);
+        }
+        boolean trailingStarOnly = literals == count - 1 && sets[count - 1] == null;
+        int singles = 0;
+        for (boolean[] set : sets) {
+            if (set != null) {
+                singles++;
+            }
+        }
+        return new GlobPattern(sets, prefix, singles - literals, trailingStarOnly);
+    }
+
+    /**
+     * Fills in the set of a bracket expression starting after its {@code [},
+     * and returns the index of its closing {@code ]}, or of the last byte of
+     * the pattern if it is not closed.
+     */
+    private static int parseClass(byte[] pattern, int i, boolean[] set) {
+        boolean negate = i < pattern.length && pattern[i] == '^';
+        if (negate) {
+            i++;
+        }
+        for (; i < pattern.length && pattern[i] != ']'; i++) {
+            int b = pattern[i] & 0xFF;
+            if (b == '\\' && i + 1 < pattern.length) {
+                set[pattern[++i] & 0xFF] = true;
+            } else if (i + 2 < pattern.length && pattern[i + 1] == '-') {
+                int end = pattern[i + 2] & 0xFF;
+                for (int c = Math.min(b, end); c <= Math.max(b, end); c++) {
+                    set[c] = true;
+                }
+                i += 2;
+            } else {
+                set[b] = true;
+            }
+        }
+        if (negate) {
+            for (int c = 0; c < set.length; c++) {
+                set[c] = !set[c];
+            }
+        }
+        return Math.min(i, pattern.length - 1);
+    }
+
+    private static int literalByte(boolean[] set) {
+        for (int c = 0; ; c++) {
+            if (set[c]) {
+                return c;
+            }
+        }
+    }
+
+    boolean matches(byte[] key) {
+        if (this == ANY) {
+            return true;
+        }
+        int length = key.length;
+        if (length < prefix.length + singles || !Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length)) {
+            return false;
+        }
+        if (trailingStarOnly) {
+            return true;
+        }
+        if (prefix.length == sets.length) {
+            return length == prefix.length;
+        }
+        int p = prefix.length;
+        int k = prefix.length;
+        // Where to resume after the last star: its position and the key
+        // byte it has consumed up to
+        int starP = -1;
+        int starK = 0;
+        while (k < length) {
+            if (p < sets.length && sets[p] == null) {
+                starP = ++p;
+                starK = k;
+            } else if (p < sets.length && sets[p][key[k] & 0xFF]) {
+                p++;
+                k++;
+            } else if (starP >= 0) {
+                p = starP;
+                k = ++starK;
+            } else {
+                return false;
+            }
+        }
+        while (p < sets.length && sets[p] == null) {
+            p++;
+        }
+        return p == sets.length;
+    }
+}
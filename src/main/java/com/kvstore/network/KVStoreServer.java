@@ -1,65 +1,139 @@
 package com.kvstore.network;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.jmx.JmxReporter;
+import com.kvstore.core.EncodingLimits;
+import com.kvstore.metrics.MetricsHttpServer;
+import com.kvstore.metrics.ServerMetrics;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.kvstore.core.StorageEngine;
+import com.kvstore.config.ServerConfig;
+import com.kvstore.persistence.AppendOnlyFile;
+import com.kvstore.persistence.MappedSnapshot;
+import com.kvstore.persistence.SnapshotFile;
+import com.kvstore.persistence.SnapshotManager;
+import com.kvstore.replication.ReplicationManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class KVStoreServer {
     private static final Logger logger = LoggerFactory.getLogger(KVStoreServer.class);
+    private static final String APPEND_ONLY_FILE_NAME = "appendonly.aof";
+    private final ServerConfig config;
     private final int port;
-    private final StorageEngine storageEngine;
+    private Keyspace keyspace;
+    private AppendOnlyFile appendOnlyFile;
+    private SnapshotManager snapshots;
+    private ReplicationManager replication;
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    // Runs commands that walk the whole keyspace
+    private EventExecutor walker;
+    private JmxReporter jmxReporter;
+    private Channel metricsChannel;
 
     public KVStoreServer(int port) {
-        this.port = port;
-        this.storageEngine = new StorageEngine();
+        this(configForPort(port));
+    }
+
+    public KVStoreServer(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
     }
 
     public void start() throws Exception {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        Transport transport = Transport.fromName(config.getTransport());
+        int acceptors = Math.max(1, config.getAcceptorThreads());
+        boolean reusePort = config.isReusePort() || acceptors > 1;
+        if (reusePort && !transport.supportsReusePort()) {
+            logger.warn("SO_REUSEPORT needs the epoll transport; listening on one socket with {}", transport);
+            reusePort = false;
+            acceptors = 1;
+        }
+        bossGroup = transport.newEventLoopGroup(acceptors, "kvstore-acceptor");
+        workerGroup = transport.newEventLoopGroup(config.getWorkerThreads(), "kvstore-worker");
+        logger.info("Using {} transport with {} acceptor(s)", transport, acceptors);
+        // Before loading, so that loaded collections are encoded by them
+        EncodingLimits.setCurrent(config.getEncodingLimits());
+        boolean offHeapValues = config.getValueStorage() == ServerConfig.ValueStorage.OFFHEAP;
+        keyspace = config.getKeyspaceMode() == ServerConfig.KeyspaceMode.SHARDED
+                ? Keyspace.sharded(workerGroup, offHeapValues)
+                : Keyspace.shared(offHeapValues);
+        logger.info("Using {} keyspace with {} shard(s)", config.getKeyspaceMode(), keyspace.shardCount());
 
         try {
+            snapshots = new SnapshotManager(new SnapshotFile(config.getDataDir().resolve(config.getSnapshotFileName())),
+                    config.getSnapshotFormat(), SnapshotManager.parseRules(config.getSave()), keyspace.shards(),
+                    keyspace::changes);
+            // The append-only file is the more complete record when both exist
+            if (config.isAppendOnly()) {
+                loadAppendOnlyFile();
+            } else {
+                MappedSnapshot mapped = snapshots.openMapped();
+                if (mapped != null) {
+                    keyspace.warmUp(mapped);
+                } else {
+                    snapshots.load((key, entry) -> keyspace.shard(keyspace.shardOf(key)).put(key, entry));
+                }
+            }
+            snapshots.start();
+            keyspace.setSnapshots(snapshots);
+            keyspace.setMaxMemory(config.getMaxMemory(), config.getMaxMemoryPolicy(), config.getMaxMemorySamples());
+            keyspace.startActiveExpiry(workerGroup);
+            keyspace.stats().setSamplingInterval(config.getLatencySampling());
+            keyspace.stats().start(workerGroup);
+            keyspace.setSlowLog(new SlowLog(config.getSlowlogLogSlowerThan(), config.getSlowlogMaxLen()));
+            walker = new DefaultEventExecutor(new DefaultThreadFactory("kvstore-walker", true));
+            keyspace.setWalker(walker);
+            keyspace.setKeysMaxResults(config.getKeysMaxResults());
+            startMetrics(transport);
+            startReplication(transport);
+
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) {
-                            logger.info("Initializing channel for client: {}", ch.remoteAddress());
-                            ch.pipeline()
-                                    .addLast("logging", new LoggingHandler(LogLevel.DEBUG))
-                                    .addLast("idleStateHandler", new IdleStateHandler(60, 0, 0, TimeUnit.SECONDS))
-                                    .addLast("connectionHandler", new RedisConnectionHandler())
-                                    .addLast("decoder", new RedisCommandDecoder())
-                                    .addLast("handler", new RedisCommandHandler(storageEngine));
-                            logger.info("Channel pipeline configured for client: {}", ch.remoteAddress());
-                        }
-                    })
-                    .option(ChannelOption.SO_BACKLOG, 128)
+                    .channel(transport.serverChannelClass())
+                    .childHandler(new RedisChannelInitializer(keyspace, config.isWireLogging()))
+                    .option(ChannelOption.SO_BACKLOG, config.getBacklog())
                     .option(ChannelOption.SO_REUSEADDR, true)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
                     .childOption(ChannelOption.TCP_NODELAY, true)
-                    .childOption(ChannelOption.SO_RCVBUF, 65536)
-                    .childOption(ChannelOption.SO_SNDBUF, 65536)
                     .childOption(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000);
+            if (config.getSocketReceiveBuffer() > 0) {
+                b.childOption(ChannelOption.SO_RCVBUF, config.getSocketReceiveBuffer());
+            }
+            if (config.getSocketSendBuffer() > 0) {
+                b.childOption(ChannelOption.SO_SNDBUF, config.getSocketSendBuffer());
+            }
+            if (reusePort) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            if (config.isWireLogging()) {
+                b.handler(new LoggingHandler(LogLevel.INFO));
+            }
 
             logger.info("Starting Redis-like KV Store server on port {}", port);
-            ChannelFuture f = b.bind(port).sync();
+            // With SO_REUSEPORT each bind opens another listening socket on
+            // the port, registered on the next acceptor thread; the kernel
+            // spreads incoming connections across them
+            List<ChannelFuture> listeners = new ArrayList<>();
+            for (int i = 0; i < acceptors; i++) {
+                listeners.add(b.bind(port).sync());
+            }
             logger.info("KVStore server started successfully on port {}", port);
 
             // Add shutdown hook
@@ -69,7 +143,9 @@ public class KVStoreServer {
                 logger.info("Server shutdown complete");
             }));
 
-            f.channel().closeFuture().sync();
+            for (ChannelFuture listener : listeners) {
+                listener.channel().closeFuture().sync();
+            }
         } catch (Exception e) {
             logger.error("Failed to start server: ", e);
             throw e;
@@ -78,19 +154,104 @@ public class KVStoreServer {
         }
     }
 
+    /**
+     * Replays the append-only file into the keyspace, then starts logging new
+     * mutations to it.
+     */
+    private void loadAppendOnlyFile() throws IOException {
+        AppendOnlyFile aof = new AppendOnlyFile(config.getDataDir().resolve(APPEND_ONLY_FILE_NAME),
+                config.getAppendFsync(), config.getAutoAofRewritePercentage(), config.getAutoAofRewriteMinSize());
+        long startNanos = System.nanoTime();
+        long loaded = aof.replay(command -> {
+            Command cmd = Command.lookup(command.get(0));
+            int shard = command.size() > 1 ? keyspace.shardOf(command.get(1)) : 0;
+            keyspace.executor(shard).execute(ByteBufAllocator.DEFAULT, cmd, command).release();
+        });
+        logger.info("Replayed {} commands from append-only file in {} ms", loaded,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        aof.open(keyspace::rewriteCommands);
+        appendOnlyFile = aof;
+        keyspace.setAppendOnlyFile(aof);
+    }
+
+    /**
+     * Gets ready to feed replicas, and starts following a primary if one is
+     * configured.
+     */
+    private void startReplication(Transport transport) {
+        replication = new ReplicationManager(keyspace, workerGroup, transport, port, config.getReplBacklogSize());
+        keyspace.setReplication(replication);
+        replication.start();
+        String primary = config.getReplicaOf();
+        if (!primary.isEmpty()) {
+            int colon = primary.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("kvstore.replicaof must be host:port, got " + primary);
+            }
+            replication.replicaOf(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+        }
+    }
+
+    /**
+     * Exposes the server's metrics through JMX and on the HTTP metrics port,
+     * as configured.
+     */
+    private void startMetrics(Transport transport) throws InterruptedException {
+        MetricRegistry metrics = ServerMetrics.registry(keyspace);
+        if (config.isJmx()) {
+            jmxReporter = ServerMetrics.jmxReporter(metrics);
+            jmxReporter.start();
+        }
+        if (config.getMetricsPort() > 0) {
+            metricsChannel = MetricsHttpServer.bind(bossGroup, workerGroup, transport.serverChannelClass(),
+                    config.getMetricsPort(), metrics);
+        }
+    }
+
     public void shutdown() {
         logger.info("Shutting down KVStore server...");
+        if (jmxReporter != null) {
+            jmxReporter.stop();
+        }
+        if (metricsChannel != null) {
+            metricsChannel.close();
+        }
+        if (replication != null) {
+            replication.close();
+        }
         if (bossGroup != null) {
             bossGroup.shutdownGracefully();
         }
+        if (walker != null) {
+            walker.shutdownGracefully();
+        }
         if (workerGroup != null) {
-            workerGroup.shutdownGracefully();
+            Future<?> terminated = workerGroup.shutdownGracefully();
+            if (appendOnlyFile != null || snapshots != null) {
+                // Let in-flight commands reach the log and the store first
+                terminated.awaitUninterruptibly();
+            }
+            if (snapshots != null) {
+                snapshots.close();
+            }
+            if (appendOnlyFile != null) {
+                appendOnlyFile.close();
+            }
         }
         logger.info("KVStore server shutdown complete");
     }
 
+    private static ServerConfig configForPort(int port) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        return config;
+    }
+
     public static void main(String[] args) throws Exception {
-        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6379;
-        new KVStoreServer(port).start();
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        if (args.length > 0) {
+            config.setPort(Integer.parseInt(args[0]));
+        }
+        new KVStoreServer(config).start();
     }
 }
\ No newline at end of file
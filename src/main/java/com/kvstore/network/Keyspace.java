@@ -0,0 +1,661 @@
+package com.kvstore.network;
+
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.EvictionPolicy;
+import com.kvstore.core.HashValue;
+import com.kvstore.core.ListValue;
+import com.kvstore.core.SetValue;
+import com.kvstore.core.SlabAllocator;
+import com.kvstore.core.SortedSetValue;
+import com.kvstore.core.StorageEngine;
+import com.kvstore.core.StorageEntry;
+import com.kvstore.persistence.AppendOnlyFile;
+import com.kvstore.persistence.MappedSnapshot;
+import com.kvstore.persistence.SnapshotManager;
+import com.kvstore.replication.ReplicationManager;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Maps keys to the storage shard that owns them.
+ *
+ * In shared mode there is a single {@link StorageEngine} that every event loop
+ * uses directly. In sharded mode the keyspace is split by key hash into one
+ * engine per worker event loop, and single-key commands for keys owned by
+ * another loop are handed to that loop's executor, so most of a shard's
+ * traffic comes from its owning loop. Not all of it does, though: a command
+ * whose keys belong to several shards runs on the loop that received it and
+ * uses the other shards directly; a write that needs memory evicts from the
+ * other shards once its own has nothing left to evict; a replica applies the
+ * stream from its primary to any shard on the loop of the link; and KEYS
+ * walks every shard from the walker thread, as snapshots, rewrites and full
+ * syncs do from threads of their own. The engines are thread-safe for this
+ * reason, and owning loops only spare the common case the contention.
+ *
+ * With off-heap values, each shard keeps its string values in its own
+ * {@link SlabAllocator}.
+ */
+public class Keyspace {
+    private static final Logger logger = LoggerFactory.getLogger(Keyspace.class);
+    private static final long EXPIRE_CYCLE_MILLIS = 100;
+    // Time an expire cycle may take, a tenth of the interval between cycles
+    private static final long EXPIRE_CYCLE_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(EXPIRE_CYCLE_MILLIS) / 10;
+    // Elements per command when a collection is written out for a rewrite
+    private static final int REWRITE_BATCH = 64;
+    private static final int DEFAULT_KEYS_MAX_RESULTS = 1_000_000;
+
+    private final StorageEngine[] shards;
+    private final RedisCommandExecutor[] executors;
+    // Owning event loop per shard; null in shared mode
+    private final EventExecutor[] owners;
+    private volatile AppendOnlyFile appendOnlyFile;
+    private volatile SnapshotManager snapshots;
+    // Feeds replicas and follows a primary; null if the keyspace is not
+    // served by a server
+    private volatile ReplicationManager replication;
+    // Writes applied since startup, for the snapshot save rules
+    private final LongAdder changes = new LongAdder();
+    private final ServerStats stats = new ServerStats();
+    private volatile SlowLog slowLog = new SlowLog(SlowLog.DEFAULT_SLOWER_THAN_MICROS, SlowLog.DEFAULT_MAX_LEN);
+    // Estimated dataset size above which writes evict or fail; 0 for no limit
+    private volatile long maxMemory;
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+    // Snapshot still being promoted into the shards; null once loaded
+    private volatile MappedSnapshot warmingUp;
+    // Set if promoting the snapshot failed; it then stays attached for good
+    private volatile boolean loadFailed;
+    // Runs commands that walk the whole keyspace; null to run them inline
+    private volatile EventExecutor walker;
+    // Most keys KEYS may reply with; 0 for no limit
+    private volatile int keysMaxResults = DEFAULT_KEYS_MAX_RESULTS;
+
+    private Keyspace(int shardCount, EventExecutor[] owners, boolean offHeapValues) {
+        this.shards = new StorageEngine[shardCount];
+        this.executors = new RedisCommandExecutor[shardCount];
+        this.owners = owners;
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new StorageEngine(offHeapValues ? new SlabAllocator() : null);
+            executors[i] = new RedisCommandExecutor(shards[i], this);
+        }
+    }
+
+    public static Keyspace shared() {
+        return shared(false);
+    }
+
+    public static Keyspace shared(boolean offHeapValues) {
+        return new Keyspace(1, null, offHeapValues);
+    }
+
+    public static Keyspace sharded(EventExecutorGroup workers) {
+        return sharded(workers, false);
+    }
+
+    public static Keyspace sharded(EventExecutorGroup workers, boolean offHeapValues) {
+        List<EventExecutor> loops = new ArrayList<>();
+        workers.forEach(loops::add);
+        return new Keyspace(loops.size(), loops.toArray(new EventExecutor[0]), offHeapValues);
+    }
+
+    public boolean isSharded() {
+        return owners != null;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public int shardOf(ByteKey key) {
+        return shards.length == 1 ? 0 : shardOfHash(key.hashCode());
+    }
+
+    /**
+     * Returns the shard of a key given as raw bytes, without wrapping it.
+     */
+    public int shardOf(byte[] key) {
+        return shards.length == 1 ? 0 : shardOfHash(ByteKey.hash(key));
+    }
+
+    /**
+     * Returns the shard that owns every key of a keyed command, or -1 if its
+     * keys belong to several shards.
+     */
+    public int shardOf(Command cmd, List<byte[]> command) {
+        int shard = shardOf(command.get(1));
+        int step = cmd.keyStep();
+        if (step == 0 || shards.length == 1) {
+            return shard;
+        }
+        for (int i = 1 + step; i < command.size(); i += step) {
+            if (shardOf(command.get(i)) != shard) {
+                return -1;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Returns the shard that owns every one of the keys, or -1 if they belong
+     * to several shards or there are none.
+     */
+    public int shardOf(ByteKey[] keys) {
+        if (keys.length == 0) {
+            return -1;
+        }
+        int shard = shardOf(keys[0]);
+        for (int i = 1; i < keys.length; i++) {
+            if (shardOf(keys[i]) != shard) {
+                return -1;
+            }
+        }
+        return shard;
+    }
+
+    private int shardOfHash(int hash) {
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    public StorageEngine shard(int index) {
+        return shards[index];
+    }
+
+    public RedisCommandExecutor executor(int index) {
+        return executors[index];
+    }
+
+    /**
+     * Returns the event loop that owns a shard, or null if any thread may
+     * access it.
+     */
+    public EventExecutor owner(int index) {
+        return owners == null ? null : owners[index];
+    }
+
+    /**
+     * Returns the log that mutations are recorded in, or null if persistence is
+     * off (or the log is still being replayed).
+     */
+    public AppendOnlyFile appendOnlyFile() {
+        return appendOnlyFile;
+    }
+
+    public void setAppendOnlyFile(AppendOnlyFile appendOnlyFile) {
+        this.appendOnlyFile = appendOnlyFile;
+    }
+
+    /**
+     * Returns the snapshot manager, or null if the keyspace is not served by a
+     * server.
+     */
+    public SnapshotManager snapshots() {
+        return snapshots;
+    }
+
+    public void setSnapshots(SnapshotManager snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Returns the replication state of the server, or null if the keyspace is
+     * not served by a server.
+     */
+    public ReplicationManager replication() {
+        return replication;
+    }
+
+    public void setReplication(ReplicationManager replication) {
+        this.replication = replication;
+    }
+
+    /**
+     * Returns whether the keyspace follows a primary, and so only takes writes
+     * from its replication stream.
+     */
+    public boolean isReadOnly() {
+        ReplicationManager manager = replication;
+        return manager != null && manager.isReplica();
+    }
+
+    /**
+     * Records a mutation that has been applied to the store in the append-only
+     * file and in the stream sent to replicas, where either is on.
+     */
+    public void log(List<byte[]> command) {
+        AppendOnlyFile aof = appendOnlyFile;
+        if (aof != null) {
+            aof.append(command);
+        }
+        ReplicationManager manager = replication;
+        if (manager != null) {
+            manager.log(command);
+        }
+    }
+
+    /**
+     * Returns whether mutations are being recorded, in the append-only file
+     * or for replicas. Writers that find they are not may skip building the
+     * command they would log.
+     */
+    public boolean logsWrites() {
+        ReplicationManager manager = replication;
+        return appendOnlyFile != null || manager != null && manager.isStreaming();
+    }
+
+    public ServerStats stats() {
+        return stats;
+    }
+
+    /**
+     * Returns the thread that commands walking the whole keyspace, such as
+     * KEYS, run on, or null if they run on the loop that received them.
+     */
+    public EventExecutor walker() {
+        return walker;
+    }
+
+    public void setWalker(EventExecutor walker) {
+        this.walker = walker;
+    }
+
+    public int keysMaxResults() {
+        return keysMaxResults;
+    }
+
+    public void setKeysMaxResults(int keysMaxResults) {
+        this.keysMaxResults = keysMaxResults;
+    }
+
+    /**
+     * Continues a SCAN of every shard in turn. The cursor holds the index of
+     * the shard being walked in its upper half and that shard's own cursor in
+     * the lower half; 0 starts a walk, and is returned once it is complete.
+     */
+    public long scan(long cursor, int count, BiConsumer<ByteKey, StorageEntry> action) {
+        int shard = (int) (cursor >>> 32);
+        if (shard >= shards.length) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        long next = shards[shard].scan(cursor & 0xFFFFFFFFL, count, action);
+        if (next != 0) {
+            return (long) shard << 32 | next;
+        }
+        return shard + 1 < shards.length ? (long) (shard + 1) << 32 : 0;
+    }
+
+    public SlowLog slowLog() {
+        return slowLog;
+    }
+
+    public void setSlowLog(SlowLog slowLog) {
+        this.slowLog = slowLog;
+    }
+
+    /**
+     * Runs an operation spanning several keys while holding their stripe
+     * locks in every shard they belong to, as
+     * {@link StorageEngine#atomically} does within one shard. Shards are
+     * locked in index order, so such operations never deadlock.
+     */
+    public <T> T atomically(ByteKey[] keys, Supplier<T> operation) {
+        if (shards.length == 1) {
+            return shards[0].atomically(Arrays.asList(keys), operation);
+        }
+        return atomically(byShard(keys), 0, operation);
+    }
+
+    private <T> T atomically(List<List<ByteKey>> byShard, int from, Supplier<T> operation) {
+        for (int i = from; i < byShard.size(); i++) {
+            if (!byShard.get(i).isEmpty()) {
+                int next = i + 1;
+                return shards[i].atomically(byShard.get(i), () -> atomically(byShard, next, operation));
+            }
+        }
+        return operation.get();
+    }
+
+    /**
+     * Runs a read spanning several keys so that it sees either none or all of
+     * the writes of any operation run under {@link #atomically}, as
+     * {@link StorageEngine#readAtomically} does within one shard. Shards are
+     * entered in index order, as {@link #atomically} locks them.
+     */
+    public <T> T readAtomically(ByteKey[] keys, Supplier<T> operation) {
+        if (shards.length == 1) {
+            return shards[0].readAtomically(Arrays.asList(keys), operation);
+        }
+        return readAtomically(byShard(keys), 0, operation);
+    }
+
+    private <T> T readAtomically(List<List<ByteKey>> byShard, int from, Supplier<T> operation) {
+        for (int i = from; i < byShard.size(); i++) {
+            if (!byShard.get(i).isEmpty()) {
+                int next = i + 1;
+                return shards[i].readAtomically(byShard.get(i), () -> readAtomically(byShard, next, operation));
+            }
+        }
+        return operation.get();
+    }
+
+    private List<List<ByteKey>> byShard(ByteKey[] keys) {
+        List<List<ByteKey>> byShard = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (ByteKey key : keys) {
+            byShard.get(shardOf(key)).add(key);
+        }
+        return byShard;
+    }
+
+    public List<StorageEngine> shards() {
+        return List.of(shards);
+    }
+
+    public void recordChange() {
+        changes.increment();
+    }
+
+    public long changes() {
+        return changes.sum();
+    }
+
+    /**
+     * Emits the commands that rebuild the current dataset, for compacting the
+     * append-only file and for the full sync of a replica. Shards are walked
+     * without stopping writers; the log records idempotent commands, so
+     * replaying whatever was appended during the walk on top of this output
+     * yields the final state.
+     *
+     * List pushes and pops are not idempotent, so lists are not part of the
+     * output. Each is instead passed to {@code inOrder} as it stands, as a
+     * DEL and RPUSHes, under the lock its writers take; the caller places
+     * these among the commands logged during the walk, in order with the
+     * list's other writes. Nothing is logged for anyone else.
+     */
+    public void rewriteCommands(Consumer<List<byte[]>> sink, Consumer<List<byte[]>> inOrder) {
+        for (StorageEngine shard : shards) {
+            shard.forEach((key, entry) -> {
+                if (entry.isExpired()) {
+                    return;
+                }
+                Object value = entry.getValue();
+                if (value == null) {
+                    // An off-heap entry replaced during the walk; the log
+                    // has the command that replaced it
+                    return;
+                }
+                switch (entry.getType()) {
+                    case STRING -> sink.accept(List.of(RedisCommandExecutor.SET, key.bytes(), (byte[]) value));
+                    case HASH -> {
+                        List<byte[]> fields = new ArrayList<>();
+                        ((HashValue) value).forEach((field, fieldValue) -> {
+                            fields.add(field);
+                            fields.add(fieldValue);
+                        });
+                        emitBatched(sink, CollectionCommands.HSET, key, fields, 2);
+                    }
+                    case SET -> {
+                        List<byte[]> members = new ArrayList<>();
+                        ((SetValue) value).forEach(members::add);
+                        emitBatched(sink, CollectionCommands.SADD, key, members, 1);
+                    }
+                    case SORTED_SET -> {
+                        List<byte[]> scored = new ArrayList<>();
+                        for (SortedSetValue.ScoredMember member : ((SortedSetValue) value).rangeByRank(0, -1)) {
+                            scored.add(RedisCommandExecutor.ascii(CollectionCommands.formatScore(member.score())));
+                            scored.add(member.member());
+                        }
+                        emitBatched(sink, CollectionCommands.ZADD, key, scored, 2);
+                    }
+                    case LIST -> {
+                        rewriteList(shard, key, entry, inOrder);
+                        return;
+                    }
+                    default -> {
+                        return;
+                    }
+                }
+                if (entry.hasExpiry()) {
+                    sink.accept(expireCommand(key, entry));
+                }
+            });
+        }
+    }
+
+    private static void emitBatched(Consumer<List<byte[]>> sink, byte[] name, ByteKey key, List<byte[]> args,
+            int argsPerElement) {
+        int batch = REWRITE_BATCH * argsPerElement;
+        for (int from = 0; from < args.size(); from += batch) {
+            List<byte[]> command = new ArrayList<>(2 + batch);
+            command.add(name);
+            command.add(key.bytes());
+            command.addAll(args.subList(from, Math.min(args.size(), from + batch)));
+            sink.accept(command);
+        }
+    }
+
+    /**
+     * Emits the commands that rebuild a list, unless it has been replaced
+     * since the rewrite walk reached it, in which case the log already has
+     * what replaced it.
+     */
+    private static void rewriteList(StorageEngine shard, ByteKey key, StorageEntry entry,
+            Consumer<List<byte[]>> inOrder) {
+        shard.inspect(key, current -> {
+            if (current.getValue() != entry.getValue()) {
+                return;
+            }
+            inOrder.accept(List.of(RedisCommandExecutor.DEL, key.bytes()));
+            emitBatched(inOrder, CollectionCommands.RPUSH, key, ((ListValue) current.getValue()).range(0, -1), 1);
+            if (current.hasExpiry()) {
+                inOrder.accept(expireCommand(key, current));
+            }
+        });
+    }
+
+    private static List<byte[]> expireCommand(ByteKey key, StorageEntry entry) {
+        return List.of(RedisCommandExecutor.PEXPIREAT, key.bytes(),
+                RedisCommandExecutor.ascii(Long.toString(entry.getExpiresAt())));
+    }
+
+    /**
+     * Limits the estimated size of the dataset. Writes that need memory past
+     * the limit first evict keys from the shard they go to, then from the
+     * others, chosen by the policy from samples of the given size.
+     *
+     * @param maxMemory limit in bytes, or 0 for none
+     */
+    public void setMaxMemory(long maxMemory, EvictionPolicy policy, int samples) {
+        for (StorageEngine shard : shards) {
+            shard.setEvictionPolicy(policy, samples);
+        }
+        this.evictionPolicy = policy;
+        this.maxMemory = maxMemory;
+    }
+
+    public long maxMemory() {
+        return maxMemory;
+    }
+
+    public EvictionPolicy evictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Returns the estimated heap taken by the dataset.
+     */
+    public long usedMemory() {
+        long used = 0;
+        for (StorageEngine shard : shards) {
+            used += shard.usedMemory();
+        }
+        return used;
+    }
+
+    /**
+     * Returns the direct memory held by the shards' value slabs, used or not;
+     * 0 if values are kept on the heap.
+     */
+    public long offHeapSlabBytes() {
+        long bytes = 0;
+        for (StorageEngine shard : shards) {
+            SlabAllocator slabs = shard.slabs();
+            bytes += slabs != null ? slabs.slabBytes() : 0;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the part of the slab memory taken by values.
+     */
+    public long offHeapUsedBytes() {
+        long bytes = 0;
+        for (StorageEngine shard : shards) {
+            SlabAllocator slabs = shard.slabs();
+            bytes += slabs != null ? slabs.usedBytes() : 0;
+        }
+        return bytes;
+    }
+
+    public long evictedKeys() {
+        long evicted = 0;
+        for (StorageEngine shard : shards) {
+            evicted += shard.evictedCount();
+        }
+        return evicted;
+    }
+
+    /**
+     * Starts removing expired keys in the background. Each shard is swept on
+     * its owning event loop, or in shared mode on one of the given loops.
+     */
+    public void startActiveExpiry(EventExecutorGroup loops) {
+        for (int i = 0; i < shards.length; i++) {
+            StorageEngine shard = shards[i];
+            EventExecutor loop = owners != null ? owners[i] : loops.next();
+            loop.scheduleAtFixedRate(() -> shard.expireDue(EXPIRE_CYCLE_BUDGET_NANOS),
+                    EXPIRE_CYCLE_MILLIS, EXPIRE_CYCLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public long expiredKeys() {
+        long expired = 0;
+        for (StorageEngine shard : shards) {
+            expired += shard.expiredCount();
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of keys with an expiry set. Keys still only in a
+     * loading snapshot are not counted.
+     */
+    public long volatileKeys() {
+        long count = 0;
+        for (StorageEngine shard : shards) {
+            count += shard.volatileCount();
+        }
+        return count;
+    }
+
+    /**
+     * Serves a mapped snapshot right away and loads it into the shards on a
+     * background thread. Until the load completes, keys are read through from
+     * the snapshot on first access; writes go to the shards and take
+     * precedence over the snapshot.
+     */
+    public void warmUp(MappedSnapshot snapshot) {
+        for (StorageEngine shard : shards) {
+            shard.attach(snapshot);
+        }
+        warmingUp = snapshot;
+        Thread loader = new Thread(() -> {
+            long startNanos = System.nanoTime();
+            try {
+                long loaded = snapshot.forEach((key, entry) -> shards[shardOf(key)].promote(key, entry));
+                snapshot.verify();
+                for (StorageEngine shard : shards) {
+                    shard.detach();
+                }
+                warmingUp = null;
+                logger.info("Loaded {} entries from snapshot {} in {} ms", loaded, snapshot.path(),
+                        (System.nanoTime() - startNanos) / 1_000_000);
+            } catch (IOException | RuntimeException e) {
+                // Stay attached: lookups keep working for intact records, and
+                // saving stays disabled so the damaged file is not replaced.
+                // Nothing waits for the load any longer.
+                for (StorageEngine shard : shards) {
+                    shard.failLoading();
+                }
+                loadFailed = true;
+                logger.error("Loading snapshot {} failed", snapshot.path(), e);
+            }
+        }, "snapshot-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Returns whether a mapped snapshot is still being loaded. False once
+     * the load has completed or failed.
+     */
+    public boolean isLoading() {
+        return warmingUp != null && !loadFailed;
+    }
+
+    /**
+     * Returns whether loading a mapped snapshot failed. Keys are still read
+     * through from it, but the keyspace cannot be walked, saved or sent to
+     * a replica until {@link #abandonLoad()} is called.
+     */
+    public boolean loadFailed() {
+        return warmingUp != null && loadFailed;
+    }
+
+    /**
+     * Stops reading through from a snapshot whose load failed, keeping only
+     * the keys promoted or written so far. For a replica about to replace
+     * its dataset anyway.
+     */
+    public void abandonLoad() {
+        if (!loadFailed()) {
+            return;
+        }
+        for (StorageEngine shard : shards) {
+            shard.detach();
+        }
+        warmingUp = null;
+        loadFailed = false;
+    }
+
+    /**
+     * Returns the number of keys. While a mapped snapshot is loading this is
+     * an estimate: keys deleted or expired before being loaded are still
+     * counted.
+     */
+    public long size() {
+        long size = 0;
+        for (StorageEngine shard : shards) {
+            size += shard.size();
+        }
+        MappedSnapshot snapshot = warmingUp;
+        if (snapshot != null) {
+            for (StorageEngine shard : shards) {
+                size -= shard.promotedCount();
+            }
+            size += snapshot.size();
+        }
+        return size;
+    }
+}
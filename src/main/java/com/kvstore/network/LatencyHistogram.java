@@ -0,0 +1,92 @@
+package com.kvstore.network;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in nanoseconds, bucketed the way HdrHistogram does it:
+ * linearly up to 16 ns, then 16 buckets per power of two, so every bucket is
+ * at most 1/16 of its lower bound wide. Latencies above about 18 minutes fall
+ * into the last bucket.
+ *
+ * A histogram has a single writer; readers may see counts a little behind
+ * but never torn.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    LatencyHistogram() {
+    }
+
+    void record(long nanos) {
+        int bucket = bucketOf(nanos);
+        counts.setOpaque(bucket, counts.getPlain(bucket) + 1);
+    }
+
+    void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.setOpaque(i, 0);
+        }
+    }
+
+    /**
+     * Adds this histogram's counts to the given array, which has
+     * {@link #BUCKETS} entries.
+     */
+    void addTo(long[] merged) {
+        for (int i = 0; i < BUCKETS; i++) {
+            merged[i] += counts.getOpaque(i);
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest latency that falls into a bucket.
+     */
+    public static long highestInBucket(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Returns the latency at or below which the given percentage of the
+     * counted latencies fall, or 0 if there are none.
+     */
+    public static long valueAtPercentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestInBucket(i);
+            }
+        }
+        return highestInBucket(counts.length - 1);
+    }
+}
@@ -0,0 +1,37 @@
+package com.kvstore.network;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.logging.LogLevel;
+import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the pipeline of a client connection. Every handler in it is on the
+ * path of every command, so it holds only what serving needs; wire logging,
+ * which formats each read and write, is added only when asked for.
+ */
+public class RedisChannelInitializer extends ChannelInitializer<Channel> {
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+    private final Keyspace keyspace;
+    private final boolean wireLogging;
+
+    public RedisChannelInitializer(Keyspace keyspace, boolean wireLogging) {
+        this.keyspace = keyspace;
+        this.wireLogging = wireLogging;
+    }
+
+    @Override
+    protected void initChannel(Channel ch) {
+        if (wireLogging) {
+            ch.pipeline().addLast("logging", new LoggingHandler(LogLevel.DEBUG));
+        }
+        ch.pipeline()
+                .addLast("idleStateHandler", new IdleStateHandler(IDLE_TIMEOUT_SECONDS, 0, 0, TimeUnit.SECONDS))
+                .addLast("connectionHandler", new RedisConnectionHandler(keyspace.stats()))
+                .addLast("decoder", new RedisCommandDecoder())
+                .addLast("handler", new RedisCommandHandler(keyspace));
+    }
+}
@@ -1,147 +1,215 @@
 package com.kvstore.network;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ByteProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.List;
 import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Resumable RESP request decoder.
+ *
+ * The decoder keeps the command it is currently assembling between calls to
+ * {@link #decode}, so a frame split across several TCP reads is completed once
+ * the remaining bytes arrive, and a single read holding many pipelined frames
+ * yields all of them at once. Each command is emitted as a list of raw argument
+ * byte arrays; lengths are parsed directly from the buffer.
+ */
 public class RedisCommandDecoder extends ByteToMessageDecoder {
     private static final Logger logger = LoggerFactory.getLogger(RedisCommandDecoder.class);
-    private static final char CR = '\r';
-    private static final char LF = '\n';
-    private static final char ARRAY_PREFIX = '*';
-    private static final char BULK_STRING_PREFIX = '$';
-    private static final char INTEGER_PREFIX = ':';
-    private static final char SIMPLE_STRING_PREFIX = '+';
-    private static final char ERROR_PREFIX = '-';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte ARRAY_PREFIX = '*';
+    private static final byte BULK_STRING_PREFIX = '$';
+
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+    private static final int MAX_ARRAY_LENGTH = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final long INCOMPLETE = -2;
+
+    // Command being assembled; null while waiting for the next array header
+    private List<byte[]> args;
+    private int argsRemaining;
+    // Length of the bulk string being read, or -1 while waiting for its header
+    private int bulkLength = -1;
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
         try {
-            Object decoded = decodeRedisMessage(in);
-            if (decoded != null) {
-                out.add(decoded);
+            while (in.isReadable()) {
+                if (args == null && !readCommandHeader(in, out)) {
+                    return;
+                }
+                if (args == null) {
+                    continue; // Inline command, empty array or null array
+                }
+                if (!readArguments(in)) {
+                    return;
+                }
+                out.add(args);
+                args = null;
             }
-        } catch (Exception e) {
-            logger.error("Error decoding Redis message", e);
-            // Send error response instead of closing connection
-            ctx.writeAndFlush("-ERR Protocol error: " + e.getMessage() + "\r\n");
+        } catch (ProtocolException e) {
+            logger.warn("Protocol error from {}: {}", ctx.channel().remoteAddress(), e.getMessage());
+            in.skipBytes(in.readableBytes());
+            reset();
+            ctx.writeAndFlush(RespEncoder.error(ctx.alloc(), "ERR Protocol error: " + e.getMessage()))
+                    .addListener(ChannelFutureListener.CLOSE);
         }
     }
 
-    private Object decodeRedisMessage(ByteBuf in) {
-        if (!in.isReadable()) {
-            return null;
+    /**
+     * Reads a multibulk header or a whole inline command. Returns false if more
+     * bytes are needed.
+     */
+    private boolean readCommandHeader(ByteBuf in, List<Object> out) {
+        if (in.getByte(in.readerIndex()) != ARRAY_PREFIX) {
+            return decodeInline(in, out);
         }
 
-        char firstByte = (char) in.getByte(in.readerIndex());
-        try {
-            return switch (firstByte) {
-                case ARRAY_PREFIX -> decodeArray(in);
-                case BULK_STRING_PREFIX -> decodeBulkString(in);
-                case INTEGER_PREFIX -> decodeInteger(in);
-                case SIMPLE_STRING_PREFIX -> decodeSimpleString(in);
-                case ERROR_PREFIX -> decodeError(in);
-                default -> {
-                    logger.warn("Unsupported Redis message type: {}", firstByte);
-                    yield null;
-                }
-            };
-        } catch (Exception e) {
-            logger.error("Failed to decode message type {}: {}", firstByte, e.getMessage());
-            throw e;
+        long length = readLength(in, "multibulk");
+        if (length == INCOMPLETE) {
+            return false;
         }
-    }
-
-    private List<String> decodeArray(ByteBuf in) {
-        in.skipBytes(1); // Skip *
-        int length = readInteger(in);
-
-        if (length == -1) {
-            return null; // Null array
+        if (length > MAX_ARRAY_LENGTH) {
+            throw new ProtocolException("invalid multibulk length");
         }
-
-        if (length < 0) {
-            throw new IllegalArgumentException("Invalid array length: " + length);
+        if (length > 0) {
+            args = new ArrayList<>((int) length);
+            argsRemaining = (int) length;
         }
+        return true;
+    }
+
+    /**
+     * Reads as many bulk string arguments of the current command as are fully
+     * buffered. Returns false if more bytes are needed.
+     */
+    private boolean readArguments(ByteBuf in) {
+        while (argsRemaining > 0) {
+            if (bulkLength < 0) {
+                if (!in.isReadable()) {
+                    return false;
+                }
+                if (in.getByte(in.readerIndex()) != BULK_STRING_PREFIX) {
+                    throw new ProtocolException("expected '$', got '" + (char) in.getByte(in.readerIndex()) + "'");
+                }
+                long length = readLength(in, "bulk");
+                if (length == INCOMPLETE) {
+                    return false;
+                }
+                if (length < 0 || length > MAX_BULK_LENGTH) {
+                    throw new ProtocolException("invalid bulk length");
+                }
+                bulkLength = (int) length;
+            }
 
-        List<String> array = new ArrayList<>(length);
-        for (int i = 0; i < length; i++) {
-            String element = decodeBulkString(in);
-            if (element != null) {
-                array.add(element);
+            if (in.readableBytes() < bulkLength + 2) { // +2 for CRLF
+                return false;
             }
+            byte[] arg = new byte[bulkLength];
+            in.readBytes(arg);
+            if (in.readByte() != CR || in.readByte() != LF) {
+                throw new ProtocolException("missing CRLF after bulk string");
+            }
+            args.add(arg);
+            argsRemaining--;
+            bulkLength = -1;
         }
-        return array;
+        return true;
     }
 
-    private String decodeBulkString(ByteBuf in) {
-        in.skipBytes(1); // Skip $
-        int length = readInteger(in);
-
-        if (length == -1) {
-            return null; // Null string
+    /**
+     * Parses a "{prefix}{digits}\r\n" header in place. Consumes the line and
+     * returns its value, or returns {@link #INCOMPLETE} without consuming
+     * anything if the line has not fully arrived.
+     */
+    private long readLength(ByteBuf in, String what) {
+        int start = in.readerIndex();
+        int lf = in.forEachByte(start, in.readableBytes(), ByteProcessor.FIND_LF);
+        if (lf < 0) {
+            if (in.readableBytes() > MAX_INLINE_LENGTH) {
+                throw new ProtocolException("too big " + what + " count string");
+            }
+            return INCOMPLETE;
         }
-
-        if (length < 0) {
-            throw new IllegalArgumentException("Invalid bulk string length: " + length);
+        int end = lf - 1;
+        if (end <= start || in.getByte(end) != CR) {
+            throw new ProtocolException("invalid " + what + " length");
         }
 
-        if (in.readableBytes() < length + 2) { // +2 for CRLF
-            throw new IllegalStateException("Not enough data for bulk string of length " + length);
+        int i = start + 1;
+        boolean negative = in.getByte(i) == '-';
+        if (negative) {
+            i++;
         }
-
-        byte[] bytes = new byte[length];
-        in.readBytes(bytes);
-
-        // Verify CRLF
-        if (in.readByte() != CR || in.readByte() != LF) {
-            throw new IllegalStateException("Missing CRLF terminator");
+        if (i == end) {
+            throw new ProtocolException("invalid " + what + " length");
         }
-
-        return new String(bytes);
-    }
-
-    private Long decodeInteger(ByteBuf in) {
-        in.skipBytes(1); // Skip :
-        String num = readLine(in);
-        return Long.parseLong(num);
+        long value = 0;
+        for (; i < end; i++) {
+            byte b = in.getByte(i);
+            if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+                throw new ProtocolException("invalid " + what + " length");
+            }
+            value = value * 10 + (b - '0');
+        }
+        in.readerIndex(lf + 1);
+        return negative ? -value : value;
     }
 
-    private String decodeSimpleString(ByteBuf in) {
-        in.skipBytes(1); // Skip +
-        return readLine(in);
-    }
+    /**
+     * Decodes a space separated inline command such as the "PING\r\n" sent by
+     * telnet sessions and the HAProxy health check.
+     */
+    private boolean decodeInline(ByteBuf in, List<Object> out) {
+        int start = in.readerIndex();
+        int lf = in.forEachByte(start, in.readableBytes(), ByteProcessor.FIND_LF);
+        if (lf < 0) {
+            if (in.readableBytes() > MAX_INLINE_LENGTH) {
+                throw new ProtocolException("too big inline request");
+            }
+            return false;
+        }
+        int end = lf > start && in.getByte(lf - 1) == CR ? lf - 1 : lf;
+
+        List<byte[]> inline = new ArrayList<>();
+        int i = start;
+        while (i < end) {
+            int tokenEnd = in.forEachByte(i, end - i, ByteProcessor.FIND_LINEAR_WHITESPACE);
+            if (tokenEnd < 0) {
+                tokenEnd = end;
+            }
+            if (tokenEnd > i) {
+                byte[] arg = new byte[tokenEnd - i];
+                in.getBytes(i, arg);
+                inline.add(arg);
+            }
+            i = tokenEnd + 1;
+        }
+        in.readerIndex(lf + 1);
 
-    private String decodeError(ByteBuf in) {
-        in.skipBytes(1); // Skip -
-        return readLine(in);
+        if (!inline.isEmpty()) {
+            out.add(inline);
+        }
+        return true;
     }
 
-    private int readInteger(ByteBuf in) {
-        return Integer.parseInt(readLine(in));
+    private void reset() {
+        args = null;
+        argsRemaining = 0;
+        bulkLength = -1;
     }
 
-    private String readLine(ByteBuf in) {
-        StringBuilder sb = new StringBuilder();
-        char c;
+    private static final class ProtocolException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-        while (in.isReadable()) {
-            c = (char) in.readByte();
-            if (c == CR) {
-                if (!in.isReadable()) {
-                    throw new IllegalStateException("Missing LF in CRLF");
-                }
-                if (in.readByte() == LF) {
-                    return sb.toString();
-                }
-                throw new IllegalStateException("Expected LF after CR");
-            }
-            sb.append(c);
+        ProtocolException(String message) {
+            super(message, null, false, false);
         }
-        throw new IllegalStateException("Incomplete line");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1206 @@
+package com.kvstore.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.CachedClock;
+import com.kvstore.core.CollectionValue;
+import com.kvstore.core.CounterEntry;
+import com.kvstore.core.StorageEngine;
+import com.kvstore.core.DataType;
+import com.kvstore.core.OffHeapEntry;
+import com.kvstore.core.StorageEntry;
+import com.kvstore.core.WrongTypeException;
+import com.kvstore.persistence.AppendOnlyFile;
+import com.kvstore.persistence.SnapshotManager;
+import com.kvstore.replication.ReplicationManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.lang.ProcessHandle;
+
+/**
+ * Executes decoded commands against one {@link StorageEngine} and returns the
+ * encoded reply. It holds no per-connection state, so a command can be run on
+ * whichever event loop owns the engine.
+ */
+public class RedisCommandExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(RedisCommandExecutor.class);
+    private static final String[] SUPPORTED_COMMANDS = {"PING", "GET", "SET", "INCR", "DECR", "INCRBY", "DECRBY",
+            "INCRBYFLOAT", "GETSET", "GETDEL", "DEL", "UNLINK", "EXISTS", "MGET", "MSET", "MSETNX", "EXPIRE",
+            "PEXPIREAT", "TYPE", "OBJECT", "LPUSH", "RPUSH", "LPOP", "RPOP", "LLEN", "LRANGE", "HSET", "HGET",
+            "HGETALL", "HDEL", "HLEN", "SADD", "SREM", "SISMEMBER", "SMEMBERS", "SCARD", "ZADD", "ZREM", "ZSCORE",
+            "ZCARD", "ZRANGE", "ZRANGEBYSCORE", "SCAN", "DBSIZE", "KEYS", "MULTI", "EXEC", "DISCARD", "WATCH",
+            "UNWATCH", "REPLICAOF", "PSYNC", "REPLCONF", "BGREWRITEAOF", "SAVE", "BGSAVE", "LASTSAVE"};
+    private static final String CLIENT_LIST_ENTRY = "id=1 addr=127.0.0.1:6379 fd=6 name= age=0 idle=0 flags=N db=0 "
+            + "sub=0 psub=0 multi=-1 qbuf=0 qbuf-free=32768 obl=0 oll=0 omem=0 events=r cmd=client";
+    static final String OOM_ERROR = "OOM command not allowed when used memory > 'maxmemory'.";
+    private static final String WRONGTYPE_ERROR = "WRONGTYPE Operation against a key holding the wrong kind of value";
+    // Precision of INCRBYFLOAT results, that of the long double Redis uses
+    private static final MathContext FLOAT_PRECISION = new MathContext(17, RoundingMode.HALF_EVEN);
+    // Names of the commands written to the append-only file
+    static final byte[] SET = ascii("SET");
+    static final byte[] DEL = ascii("DEL");
+    static final byte[] MSET = ascii("MSET");
+    static final byte[] PEXPIREAT = ascii("PEXPIREAT");
+    static final byte[] PXAT = ascii("PXAT");
+
+    private final StorageEngine storageEngine;
+    private final Keyspace keyspace;
+    private final CollectionCommands collections;
+
+    public RedisCommandExecutor(StorageEngine storageEngine, Keyspace keyspace) {
+        this.storageEngine = storageEngine;
+        this.keyspace = keyspace;
+        this.collections = new CollectionCommands(storageEngine, this, keyspace);
+    }
+
+    /**
+     * Runs a command looked up with {@link Command#lookup}; a null command is
+     * answered as unknown. Failures are reported to the client as error
+     * replies.
+     */
+    public ByteBuf execute(ByteBufAllocator alloc, Command cmd, List<byte[]> command) {
+        if (cmd == null) {
+            return RespEncoder.error(alloc,
+                    "ERR unknown command '" + new String(command.get(0), StandardCharsets.UTF_8) + "'");
+        }
+        try {
+            return switch (cmd) {
+                case PING -> handlePing();
+                case SET -> handleSet(alloc, command);
+                case GET -> handleGet(alloc, command);
+                case INCR -> handleIncrBy(alloc, command, false, false, "incr");
+                case DECR -> handleIncrBy(alloc, command, false, true, "decr");
+                case INCRBY -> handleIncrBy(alloc, command, true, false, "incrby");
+                case DECRBY -> handleIncrBy(alloc, command, true, true, "decrby");
+                case INCRBYFLOAT -> handleIncrByFloat(alloc, command);
+                case GETSET -> handleGetSet(alloc, command);
+                case GETDEL -> handleGetDel(alloc, command);
+                case DEL -> handleDel(alloc, command, "del");
+                case UNLINK -> handleDel(alloc, command, "unlink");
+                case EXISTS -> handleExists(alloc, command);
+                case MGET -> handleMget(alloc, command);
+                case MSET -> handleMset(alloc, command, false);
+                case MSETNX -> handleMset(alloc, command, true);
+                case EXPIRE -> handleExpire(alloc, command);
+                case PEXPIREAT -> handlePexpireAt(alloc, command);
+                case TYPE -> handleType(alloc, command);
+                case OBJECT -> handleObject(alloc, command);
+                case LPUSH -> collections.push(alloc, cmd, command, true);
+                case RPUSH -> collections.push(alloc, cmd, command, false);
+                case LPOP -> collections.pop(alloc, cmd, command, true);
+                case RPOP -> collections.pop(alloc, cmd, command, false);
+                case LLEN -> collections.llen(alloc, cmd, command);
+                case LRANGE -> collections.lrange(alloc, cmd, command);
+                case HSET -> collections.hset(alloc, cmd, command);
+                case HGET -> collections.hget(alloc, cmd, command);
+                case HGETALL -> collections.hgetall(alloc, cmd, command);
+                case HDEL -> collections.hdel(alloc, cmd, command);
+                case HLEN -> collections.hlen(alloc, cmd, command);
+                case SADD -> collections.sadd(alloc, cmd, command);
+                case SREM -> collections.srem(alloc, cmd, command);
+                case SISMEMBER -> collections.sismember(alloc, cmd, command);
+                case SMEMBERS -> collections.smembers(alloc, cmd, command);
+                case SCARD -> collections.scard(alloc, cmd, command);
+                case ZADD -> collections.zadd(alloc, cmd, command);
+                case ZREM -> collections.zrem(alloc, cmd, command);
+                case ZSCORE -> collections.zscore(alloc, cmd, command);
+                case ZCARD -> collections.zcard(alloc, cmd, command);
+                case ZRANGE -> collections.zrange(alloc, cmd, command);
+                case ZRANGEBYSCORE -> collections.zrangebyscore(alloc, cmd, command);
+                case SCAN -> handleScan(alloc, command);
+                case DBSIZE -> RespEncoder.integer(alloc, keyspace.size());
+                case KEYS -> handleKeys(alloc, command);
+                // Queued in a transaction, whose watches EXEC has checked by now
+                case UNWATCH -> RespEncoder.ok();
+                // Otherwise handled by the connection, which holds the
+                // transaction or becomes the replica's link
+                case MULTI, EXEC, DISCARD, WATCH, PSYNC, REPLCONF -> RespEncoder.error(alloc,
+                        "ERR " + cmd.name() + " is only valid from a client connection");
+                case REPLICAOF -> handleReplicaOf(alloc, command);
+                case BGREWRITEAOF -> handleBgRewriteAof(alloc);
+                case SAVE -> handleSave(alloc);
+                case BGSAVE -> handleBgSave(alloc);
+                case LASTSAVE -> handleLastSave(alloc);
+                case INFO -> handleInfo(alloc, command);
+                case COMMAND -> handleCommand(alloc);
+                case CLIENT -> handleClient(alloc, command);
+                case CONFIG -> handleConfig(alloc, command);
+                case HELLO -> handleHello(alloc, command);
+                case AUTH -> handleAuth(command);
+                case SELECT -> handleSelect(command);
+                case SLOWLOG -> handleSlowlog(alloc, command);
+            };
+        } catch (WrongTypeException e) {
+            return RespEncoder.error(alloc, WRONGTYPE_ERROR);
+        } catch (Exception e) {
+            logger.error("Error processing command: {}", cmd, e);
+            return RespEncoder.error(alloc, "ERR " + e.getMessage());
+        }
+    }
+
+    private ByteBuf handleAuth(List<byte[]> command) {
+        // In development mode, accept any auth attempt
+        return RespEncoder.ok();
+    }
+
+    private ByteBuf handleSelect(List<byte[]> command) {
+        // Accept any database selection in development mode
+        return RespEncoder.ok();
+    }
+
+    private ByteBuf handleInfo(ByteBufAllocator alloc, List<byte[]> command) {
+        Set<String> sections = new HashSet<>();
+        for (int i = 1; i < command.size(); i++) {
+            sections.add(new String(command.get(i), StandardCharsets.UTF_8).toLowerCase(Locale.ROOT));
+        }
+        boolean all = sections.contains("all") || sections.contains("everything");
+        boolean defaults = all || sections.isEmpty() || sections.contains("default");
+        ServerStats stats = keyspace.stats();
+        ReplicationManager replication = keyspace.replication();
+        StringBuilder info = new StringBuilder();
+
+        if (defaults || sections.contains("server")) {
+            long uptimeSeconds = stats.uptimeMillis() / 1000;
+            info.append("# Server\r\n");
+            info.append("redis_version:1.0.0\r\n");
+            info.append("redis_mode:standalone\r\n");
+            info.append("os:").append(System.getProperty("os.name")).append(" ");
+            info.append(System.getProperty("os.version")).append(" ");
+            info.append(System.getProperty("os.arch")).append("\r\n");
+            info.append("process_id:").append(ProcessHandle.current().pid()).append("\r\n");
+            info.append("tcp_port:").append(6379).append("\r\n");
+            info.append("uptime_in_seconds:").append(uptimeSeconds).append("\r\n");
+            info.append("uptime_in_days:").append(uptimeSeconds / (60 * 60 * 24)).append("\r\n");
+            info.append("\r\n");
+        }
+
+        if (defaults || sections.contains("clients")) {
+            info.append("# Clients\r\n");
+            info.append("connected_clients:").append(stats.connectedClients()).append("\r\n");
+            info.append("client_recent_max_input_buffer:0\r\n");
+            info.append("client_recent_max_output_buffer:0\r\n");
+            info.append("blocked_clients:0\r\n");
+            info.append("\r\n");
+        }
+
+        if (defaults || sections.contains("memory")) {
+            info.append("# Memory\r\n");
+            info.append("used_memory:").append(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())
+                    .append("\r\n");
+            info.append("used_memory_human:")
+                    .append((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1024 / 1024)
+                    .append("M\r\n");
+            info.append("used_memory_peak:").append(Runtime.getRuntime().maxMemory()).append("\r\n");
+            info.append("used_memory_peak_human:").append(Runtime.getRuntime().maxMemory() / 1024 / 1024)
+                    .append("M\r\n");
+            info.append("used_memory_dataset:").append(keyspace.usedMemory()).append("\r\n");
+            info.append("used_memory_offheap_slabs:").append(keyspace.offHeapSlabBytes()).append("\r\n");
+            info.append("used_memory_offheap_values:").append(keyspace.offHeapUsedBytes()).append("\r\n");
+            info.append("maxmemory:").append(keyspace.maxMemory()).append("\r\n");
+            info.append("maxmemory_policy:").append(keyspace.evictionPolicy().configName()).append("\r\n");
+            info.append("mem_fragmentation_ratio:1.0\r\n");
+            info.append("\r\n");
+        }
+
+        if (defaults || sections.contains("persistence")) {
+            AppendOnlyFile aof = keyspace.appendOnlyFile();
+            SnapshotManager snapshots = keyspace.snapshots();
+            info.append("# Persistence\r\n");
+            info.append("loading:").append(keyspace.isLoading() ? 1 : 0).append("\r\n");
+            if (snapshots != null) {
+                info.append("rdb_changes_since_last_save:").append(snapshots.changesSinceLastSave()).append("\r\n");
+                info.append("rdb_bgsave_in_progress:").append(snapshots.isSaveInProgress() ? 1 : 0).append("\r\n");
+                info.append("rdb_last_save_time:").append(snapshots.lastSaveMillis() / 1000).append("\r\n");
+                info.append("rdb_last_bgsave_status:").append(snapshots.lastSaveOk() ? "ok" : "err").append("\r\n");
+            }
+            info.append("aof_enabled:").append(aof != null ? 1 : 0).append("\r\n");
+            info.append("aof_rewrite_in_progress:").append(aof != null && aof.isRewriteInProgress() ? 1 : 0)
+                    .append("\r\n");
+            if (aof != null) {
+                info.append("aof_current_size:").append(aof.currentSize()).append("\r\n");
+                info.append("aof_base_size:").append(aof.baseSize()).append("\r\n");
+            }
+            info.append("\r\n");
+        }
+
+        if (defaults || sections.contains("stats")) {
+            info.append("# Stats\r\n");
+            info.append("total_connections_received:").append(stats.connectionsReceived()).append("\r\n");
+            info.append("total_commands_processed:").append(stats.totalCommands()).append("\r\n");
+            info.append("instantaneous_ops_per_sec:").append(stats.instantaneousOpsPerSecond()).append("\r\n");
+            info.append("rejected_connections:0\r\n");
+            info.append("expired_keys:").append(keyspace.expiredKeys()).append("\r\n");
+            info.append("evicted_keys:").append(keyspace.evictedKeys()).append("\r\n");
+            info.append("keyspace_hits:").append(stats.keyspaceHits()).append("\r\n");
+            info.append("keyspace_misses:").append(stats.keyspaceMisses()).append("\r\n");
+            info.append("sync_full:").append(replication != null ? replication.fullSyncs() : 0).append("\r\n");
+            info.append("sync_partial_ok:").append(replication != null ? replication.partialSyncs() : 0)
+                    .append("\r\n");
+            info.append("sync_partial_err:").append(replication != null ? replication.partialSyncErrors() : 0)
+                    .append("\r\n");
+            info.append("\r\n");
+        }
+
+        if (defaults || sections.contains("replication")) {
+            info.append("# Replication\r\n");
+            if (replication != null) {
+                replication.describe(info);
+            } else {
+                info.append("role:master\r\n");
+                info.append("connected_slaves:0\r\n");
+            }
+            info.append("\r\n");
+        }
+
+        if (all || sections.contains("commandstats")) {
+            info.append("# Commandstats\r\n");
+            for (Command cmd : Command.values()) {
+                ServerStats.CommandStats totals = stats.commandStats(cmd);
+                if (totals.calls() > 0) {
+                    info.append("cmdstat_").append(cmd.name().toLowerCase(Locale.ROOT))
+                            .append(":calls=").append(totals.calls())
+                            .append(",usec=").append(totals.micros())
+                            .append(",usec_per_call=")
+                            .append(String.format(Locale.ROOT, "%.2f", totals.microsPerCall()))
+                            .append(",failed_calls=").append(totals.failedCalls()).append("\r\n");
+                }
+            }
+            info.append("\r\n");
+        }
+
+        if (all || sections.contains("latencystats")) {
+            info.append("# Latencystats\r\n");
+            for (Command cmd : Command.values()) {
+                ServerStats.CommandStats totals = stats.commandStats(cmd);
+                if (totals.timedCalls() > 0) {
+                    info.append("latency_percentiles_usec_").append(cmd.name().toLowerCase(Locale.ROOT))
+                            .append(String.format(Locale.ROOT, ":p50=%.3f,p99=%.3f,p99.9=%.3f",
+                                    totals.percentileMicros(50), totals.percentileMicros(99),
+                                    totals.percentileMicros(99.9)))
+                            .append("\r\n");
+                }
+            }
+            info.append("\r\n");
+        }
+
+        if (defaults || sections.contains("keyspace")) {
+            info.append("# Keyspace\r\n");
+            long size = keyspace.size();
+            if (size > 0) {
+                info.append("db0:keys=").append(size).append(",expires=").append(keyspace.volatileKeys())
+                        .append(",avg_ttl=0\r\n");
+            }
+        }
+
+        return RespEncoder.bulk(alloc, info);
+    }
+
+    private ByteBuf handleCommand(ByteBufAllocator alloc) {
+        ByteBuf response = alloc.ioBuffer(128);
+        // Supported commands
+        RespEncoder.writeArrayHeader(response, SUPPORTED_COMMANDS.length);
+        for (String name : SUPPORTED_COMMANDS) {
+            RespEncoder.writeBulk(response, name);
+        }
+        return response;
+    }
+
+    private ByteBuf handleClient(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'client' command");
+        }
+
+        String subCommand = upperCase(command.get(1));
+        return switch (subCommand) {
+            case "LIST" -> {
+                ByteBuf response = alloc.ioBuffer(CLIENT_LIST_ENTRY.length() + 16);
+                RespEncoder.writeArrayHeader(response, 1);
+                RespEncoder.writeBulk(response, CLIENT_LIST_ENTRY);
+                yield response;
+            }
+            case "SETNAME" -> RespEncoder.ok();
+            case "GETNAME" -> RespEncoder.nullBulk();
+            default -> RespEncoder.error(alloc, "ERR unknown subcommand '" + subCommand + "'");
+        };
+    }
+
+    private ByteBuf handleConfig(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'config' command");
+        }
+
+        String subCommand = upperCase(command.get(1));
+        return switch (subCommand) {
+            case "GET" -> {
+                if (command.size() < 3) {
+                    yield RespEncoder.error(alloc, "ERR wrong number of arguments for 'config get' command");
+                }
+                // Return empty array for unknown config
+                yield RespEncoder.emptyArray();
+            }
+            case "SET" -> RespEncoder.ok();
+            case "RESETSTAT" -> {
+                keyspace.stats().reset();
+                yield RespEncoder.ok();
+            }
+            default -> RespEncoder.error(alloc, "ERR unknown subcommand '" + subCommand + "'");
+        };
+    }
+
+    private ByteBuf handleSlowlog(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'slowlog' command");
+        }
+
+        SlowLog slowLog = keyspace.slowLog();
+        String subCommand = upperCase(command.get(1));
+        return switch (subCommand) {
+            case "GET" -> {
+                int count = 10;
+                if (command.size() > 2) {
+                    try {
+                        count = (int) Math.max(-1, Math.min(Integer.MAX_VALUE, parseLong(command.get(2))));
+                    } catch (NumberFormatException e) {
+                        yield RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+                    }
+                }
+                List<SlowLog.Entry> entries = slowLog.latest(count);
+                ByteBuf response = alloc.ioBuffer(64 * entries.size() + 16);
+                RespEncoder.writeArrayHeader(response, entries.size());
+                for (SlowLog.Entry entry : entries) {
+                    RespEncoder.writeArrayHeader(response, 6);
+                    RespEncoder.writeInteger(response, entry.id());
+                    RespEncoder.writeInteger(response, entry.timestampSeconds());
+                    RespEncoder.writeInteger(response, entry.durationMicros());
+                    RespEncoder.writeArrayHeader(response, entry.args().size());
+                    for (byte[] arg : entry.args()) {
+                        RespEncoder.writeBulk(response, arg);
+                    }
+                    RespEncoder.writeBulk(response, entry.client());
+                    RespEncoder.writeBulk(response, "");
+                }
+                yield response;
+            }
+            case "LEN" -> RespEncoder.integer(alloc, slowLog.length());
+            case "RESET" -> {
+                slowLog.reset();
+                yield RespEncoder.ok();
+            }
+            default -> RespEncoder.error(alloc, "ERR unknown subcommand '" + subCommand + "'");
+        };
+    }
+
+    private ByteBuf handlePing() {
+        return RespEncoder.pong();
+    }
+
+    private ByteBuf handleSet(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'set' command");
+        }
+
+        if (!reserveMemory()) {
+            return RespEncoder.error(alloc, OOM_ERROR);
+        }
+        ByteKey key = new ByteKey(command.get(1));
+        byte[] value = command.get(2);
+
+        // Handle optional EX/PX/EXAT/PXAT argument
+        if (command.size() >= 5) {
+            String expireType = upperCase(command.get(3));
+            try {
+                long expireValue = parseLong(command.get(4));
+                long expireAt = switch (expireType) {
+                    case "EX" -> Math.addExact(CachedClock.millis(), Math.multiplyExact(expireValue, 1000));
+                    case "PX" -> Math.addExact(CachedClock.millis(), expireValue);
+                    case "EXAT" -> Math.multiplyExact(expireValue, 1000);
+                    case "PXAT" -> expireValue;
+                    default -> throw new IllegalArgumentException("Invalid expire type: " + expireType);
+                };
+
+                StorageEntry entry = new StorageEntry(value, DataType.STRING);
+                entry.setExpiresAt(expireAt);
+                // Logged with an absolute time, as one command, under the
+                // key's lock
+                storageEngine.put(key, entry, stored -> logString(key, value, expireAt));
+            } catch (NumberFormatException e) {
+                return RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+            } catch (ArithmeticException e) {
+                return RespEncoder.error(alloc, "ERR invalid expire time in 'set' command");
+            }
+        } else {
+            storageEngine.put(key, new StorageEntry(value, DataType.STRING), stored -> propagate(command));
+        }
+
+        return RespEncoder.ok();
+    }
+
+    private ByteBuf handleGet(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'get' command");
+        }
+
+        ByteKey key = new ByteKey(command.get(1));
+        Optional<StorageEntry> entry = storageEngine.get(key);
+
+        if (entry.isEmpty()) {
+            keyspace.stats().stripe().miss();
+            return RespEncoder.nullBulk();
+        }
+
+        keyspace.stats().stripe().hit();
+        if (entry.get().getType() != DataType.STRING) {
+            return RespEncoder.error(alloc, WRONGTYPE_ERROR);
+        }
+        ByteBuf out = alloc.ioBuffer(valueLength(entry.get()) + 16);
+        writeValue(out, storageEngine, key, entry.get());
+        return out;
+    }
+
+    /**
+     * INCR, DECR, INCRBY and DECRBY, which step by one or by their second
+     * argument, down if {@code decrement} is set.
+     *
+     * While writes are not logged, an existing counter is changed without a
+     * lock. Otherwise the change is made under the key's lock and logged
+     * there, as a SET of the result, so that concurrent increments reach the
+     * log in the order they were applied and replaying it, or a rewrite that
+     * saw the result already, gives the same value.
+     */
+    private ByteBuf handleIncrBy(ByteBufAllocator alloc, List<byte[]> command, boolean byArgument,
+            boolean decrement, String name) {
+        if (command.size() != (byArgument ? 3 : 2)) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for '" + name + "' command");
+        }
+
+        if (!reserveMemory()) {
+            return RespEncoder.error(alloc, OOM_ERROR);
+        }
+        ByteKey key = new ByteKey(command.get(1));
+        try {
+            long delta = byArgument ? parseLong(command.get(2)) : 1;
+            if (decrement) {
+                delta = Math.negateExact(delta);
+            }
+            if (!keyspace.logsWrites()) {
+                long value = storageEngine.incrementBy(key, delta, null);
+                keyspace.recordChange();
+                return RespEncoder.integer(alloc, value);
+            }
+            return RespEncoder.integer(alloc, storageEngine.incrementBy(key, delta, entry -> logString(key, entry)));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+        } catch (ArithmeticException e) {
+            return RespEncoder.error(alloc, "ERR increment or decrement would overflow");
+        }
+    }
+
+    private ByteBuf handleIncrByFloat(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'incrbyfloat' command");
+        }
+
+        if (!reserveMemory()) {
+            return RespEncoder.error(alloc, OOM_ERROR);
+        }
+        ByteKey key = new ByteKey(command.get(1));
+        byte[][] result = new byte[1][];
+        try {
+            BigDecimal increment = parseFloat(command.get(2));
+            storageEngine.updateString(key, value -> {
+                BigDecimal sum = (value != null ? parseFloat(value) : BigDecimal.ZERO).add(increment, FLOAT_PRECISION);
+                if (sum.abs().compareTo(BigDecimal.valueOf(Double.MAX_VALUE)) > 0) {
+                    throw new ArithmeticException();
+                }
+                result[0] = ascii(sum.stripTrailingZeros().toPlainString());
+                return result[0];
+            }, true, entry -> logString(key, entry));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR value is not a valid float");
+        } catch (ArithmeticException e) {
+            return RespEncoder.error(alloc, "ERR increment would produce NaN or Infinity");
+        }
+        return RespEncoder.bulk(alloc, result[0]);
+    }
+
+    /**
+     * Parses a decimal number as INCRBYFLOAT takes it.
+     *
+     * @throws NumberFormatException if it is not one
+     */
+    private static BigDecimal parseFloat(byte[] arg) {
+        // BigDecimal takes no padding, hex or infinities, as Redis does not
+        return new BigDecimal(new String(arg, StandardCharsets.US_ASCII));
+    }
+
+    private ByteBuf handleGetSet(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'getset' command");
+        }
+
+        if (!reserveMemory()) {
+            return RespEncoder.error(alloc, OOM_ERROR);
+        }
+        ByteKey key = new ByteKey(command.get(1));
+        byte[] value = command.get(2);
+        byte[] previous = storageEngine.updateString(key, current -> value, false, entry -> logString(key, entry));
+        return previous != null ? RespEncoder.bulk(alloc, previous) : RespEncoder.nullBulk();
+    }
+
+    private ByteBuf handleGetDel(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'getdel' command");
+        }
+
+        ByteKey key = new ByteKey(command.get(1));
+        byte[] previous = storageEngine.updateString(key, current -> null, false,
+                entry -> propagate(List.of(DEL, key.bytes())));
+        if (previous == null) {
+            keyspace.stats().stripe().miss();
+            return RespEncoder.nullBulk();
+        }
+        keyspace.stats().stripe().hit();
+        return RespEncoder.bulk(alloc, previous);
+    }
+
+    /**
+     * Logs the string a key was just set to, with its time to live.
+     */
+    private void logString(ByteKey key, StorageEntry entry) {
+        logString(key, (byte[]) entry.getValue(), entry.hasExpiry() ? entry.getExpiresAt() : 0);
+    }
+
+    /**
+     * Logs a string set with the given expiry, in epoch milliseconds, or 0
+     * for none.
+     */
+    private void logString(ByteKey key, byte[] value, long expiresAt) {
+        if (expiresAt == 0) {
+            propagate(List.of(SET, key.bytes(), value));
+        } else {
+            propagate(List.of(SET, key.bytes(), value, PXAT, ascii(Long.toString(expiresAt))));
+        }
+    }
+
+    private ByteBuf handleMget(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'mget' command");
+        }
+
+        ByteKey[] keys = keys(command, 1);
+        StorageEntry[] entries = new StorageEntry[keys.length];
+        int found = keyspace.readAtomically(keys, () -> forEachShard(keys, (shard, batch, positions) -> {
+            if (positions == null) {
+                return shard.getAll(batch, entries);
+            }
+            StorageEntry[] batchEntries = new StorageEntry[batch.length];
+            int batchFound = shard.getAll(batch, batchEntries);
+            for (int i = 0; i < batch.length; i++) {
+                entries[positions[i]] = batchEntries[i];
+            }
+            return batchFound;
+        }));
+        keyspace.stats().stripe().lookups(found, keys.length - found);
+
+        // One buffer sized for the whole reply
+        int size = 16;
+        for (StorageEntry entry : entries) {
+            size += valueLength(entry) + 16;
+        }
+        ByteBuf out = alloc.ioBuffer(size);
+        RespEncoder.writeArrayHeader(out, keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            writeValue(out, shardOf(keys[i]), keys[i], entries[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Appends the value of an entry as a bulk string, or a null bulk string if
+     * there is no string entry. Off-heap values are copied from the slab into
+     * the reply without a heap copy.
+     */
+    private static void writeValue(ByteBuf out, StorageEngine shard, ByteKey key, StorageEntry entry) {
+        while (entry instanceof OffHeapEntry offHeap) {
+            int start = out.writerIndex();
+            RespEncoder.writeBulkHeader(out, offHeap.length());
+            if (offHeap.copyTo(out)) {
+                RespEncoder.writeCrlf(out);
+                return;
+            }
+            // Replaced while being copied; read the new value
+            out.writerIndex(start);
+            entry = shard.get(key).orElse(null);
+        }
+        if (entry == null || entry.getType() != DataType.STRING) {
+            RespEncoder.writeNullBulk(out);
+            return;
+        }
+        RespEncoder.writeBulk(out, (byte[]) entry.getValue());
+    }
+
+    private static int valueLength(StorageEntry entry) {
+        if (entry instanceof OffHeapEntry offHeap) {
+            return offHeap.length();
+        }
+        if (entry instanceof CounterEntry) {
+            // The longest a long can print
+            return 20;
+        }
+        return entry != null && entry.getValue() instanceof byte[] bytes ? bytes.length : 0;
+    }
+
+    private ByteBuf handleMset(ByteBufAllocator alloc, List<byte[]> command, boolean onlyIfNoneExist) {
+        if (command.size() < 3 || command.size() % 2 == 0) {
+            return RespEncoder.error(alloc,
+                    "ERR wrong number of arguments for '" + (onlyIfNoneExist ? "msetnx" : "mset") + "' command");
+        }
+
+        if (!reserveMemory()) {
+            return RespEncoder.error(alloc, OOM_ERROR);
+        }
+        ByteKey[] keys = keys(command, 2);
+        StorageEntry[] entries = new StorageEntry[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            entries[i] = new StorageEntry(command.get(2 + 2 * i), DataType.STRING);
+        }
+        // Logged under the locks, which writes to the same keys wait for, so
+        // that the log has the writes in the order they were applied
+        boolean applied = keyspace.atomically(keys, () -> {
+            if (onlyIfNoneExist && forEachShard(keys, (shard, batch, positions) -> shard.countExisting(batch)) > 0) {
+                return false;
+            }
+            forEachShard(keys, (shard, batch, positions) -> {
+                shard.putAll(batch, positions == null ? entries : select(entries, positions));
+                return batch.length;
+            });
+            if (onlyIfNoneExist) {
+                // Replayed as MSET, whose outcome does not depend on what
+                // exists at the time
+                List<byte[]> logged = new ArrayList<>(command);
+                logged.set(0, MSET);
+                propagate(logged);
+            } else {
+                propagate(command);
+            }
+            return true;
+        });
+        if (onlyIfNoneExist) {
+            return RespEncoder.integer(alloc, applied ? 1 : 0);
+        }
+        return RespEncoder.ok();
+    }
+
+    private ByteBuf handleDel(ByteBufAllocator alloc, List<byte[]> command, String name) {
+        if (command.size() < 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for '" + name + "' command");
+        }
+
+        // Each key is logged under its lock as it is deleted, so that the log
+        // has its writes in the order they were applied
+        int deleted = forEachShard(keys(command, 1),
+                (shard, batch, positions) -> shard.deleteAll(batch, key -> propagate(List.of(DEL, key.bytes()))));
+        return RespEncoder.integer(alloc, deleted);
+    }
+
+    private ByteBuf handleExists(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'exists' command");
+        }
+
+        ByteKey[] keys = keys(command, 1);
+        int found = keyspace.readAtomically(keys,
+                () -> forEachShard(keys, (shard, batch, positions) -> shard.countExisting(batch)));
+        keyspace.stats().stripe().lookups(found, keys.length - found);
+        return RespEncoder.integer(alloc, found);
+    }
+
+    /**
+     * Wraps the keys of a multi-key command, which start at the first argument
+     * and are {@code step} arguments apart.
+     */
+    private static ByteKey[] keys(List<byte[]> command, int step) {
+        ByteKey[] keys = new ByteKey[(command.size() - 1 + step - 1) / step];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new ByteKey(command.get(1 + i * step));
+        }
+        return keys;
+    }
+
+    private StorageEngine shardOf(ByteKey key) {
+        return keyspace.shardCount() == 1 ? storageEngine : keyspace.shard(keyspace.shardOf(key));
+    }
+
+    /**
+     * Hands keys to the shards that own them, one batch per shard. Each batch
+     * comes with the positions of its keys in {@code keys}, or null if one
+     * shard owns every key and the batch is {@code keys} itself.
+     *
+     * @return the sum of what the batches returned
+     */
+    private int forEachShard(ByteKey[] keys, ShardBatch batch) {
+        int shardCount = keyspace.shardCount();
+        if (shardCount == 1) {
+            return batch.run(storageEngine, keys, null);
+        }
+        int[] shardOf = new int[keys.length];
+        int[] counts = new int[shardCount];
+        for (int i = 0; i < keys.length; i++) {
+            shardOf[i] = keyspace.shardOf(keys[i]);
+            counts[shardOf[i]]++;
+        }
+        if (counts[shardOf[0]] == keys.length) {
+            return batch.run(keyspace.shard(shardOf[0]), keys, null);
+        }
+        int total = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (counts[shard] == 0) {
+                continue;
+            }
+            ByteKey[] shardKeys = new ByteKey[counts[shard]];
+            int[] positions = new int[counts[shard]];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (shardOf[i] == shard) {
+                    shardKeys[n] = keys[i];
+                    positions[n++] = i;
+                }
+            }
+            total += batch.run(keyspace.shard(shard), shardKeys, positions);
+        }
+        return total;
+    }
+
+    private static StorageEntry[] select(StorageEntry[] entries, int[] positions) {
+        StorageEntry[] selected = new StorageEntry[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            selected[i] = entries[positions[i]];
+        }
+        return selected;
+    }
+
+    /**
+     * Part of a multi-key command run against the keys one shard owns.
+     */
+    @FunctionalInterface
+    private interface ShardBatch {
+        int run(StorageEngine shard, ByteKey[] keys, int[] positions);
+    }
+
+    private ByteBuf handleExpire(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'expire' command");
+        }
+
+        try {
+            long seconds = parseLong(command.get(2));
+            return expireAt(alloc, new ByteKey(command.get(1)),
+                    Math.addExact(CachedClock.millis(), Math.multiplyExact(seconds, 1000)));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+        } catch (ArithmeticException e) {
+            return RespEncoder.error(alloc, "ERR invalid expire time in 'expire' command");
+        }
+    }
+
+    private ByteBuf handlePexpireAt(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'pexpireat' command");
+        }
+
+        try {
+            long millis = parseLong(command.get(2));
+            return expireAt(alloc, new ByteKey(command.get(1)), millis);
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+        }
+    }
+
+    private ByteBuf expireAt(ByteBufAllocator alloc, ByteKey key, long expiresAt) {
+        // Logged with an absolute time so that replaying it later is exact
+        boolean set = storageEngine.expire(key, expiresAt,
+                entry -> propagate(List.of(PEXPIREAT, key.bytes(), ascii(Long.toString(expiresAt)))));
+        return RespEncoder.integer(alloc, set ? 1 : 0);
+    }
+
+    private ByteBuf handleType(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'type' command");
+        }
+
+        Optional<StorageEntry> entry = storageEngine.get(new ByteKey(command.get(1)));
+        return RespEncoder.simple(alloc, entry.map(e -> typeName(e.getType())).orElse("none"));
+    }
+
+    private static String typeName(DataType type) {
+        return switch (type) {
+            case STRING -> "string";
+            case LIST -> "list";
+            case SET -> "set";
+            case HASH -> "hash";
+            case SORTED_SET -> "zset";
+            case STREAM -> "stream";
+        };
+    }
+
+    /**
+     * OBJECT ENCODING, the only subcommand supported. The key comes after the
+     * subcommand, so the command is not routed by it and reads the owning
+     * shard from whichever loop received it.
+     */
+    private ByteBuf handleObject(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'object' command");
+        }
+
+        String subCommand = upperCase(command.get(1));
+        if (!subCommand.equals("ENCODING")) {
+            return RespEncoder.error(alloc, "ERR unknown subcommand '" + subCommand + "'");
+        }
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'object|encoding' command");
+        }
+        ByteKey key = new ByteKey(command.get(2));
+        Optional<StorageEntry> entry = shardOf(key).get(key);
+        if (entry.isEmpty()) {
+            return RespEncoder.nullBulk();
+        }
+        Object value = entry.get().getValue();
+        if (value instanceof CollectionValue collection) {
+            return RespEncoder.bulk(alloc, collection.encoding());
+        }
+        return RespEncoder.bulk(alloc, entry.get() instanceof CounterEntry ? "int" : "raw");
+    }
+
+    /**
+     * SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]. The pattern is
+     * compiled once per call, and keys are filtered after being collected, so
+     * a call may return fewer keys than COUNT, or none, before the walk ends.
+     */
+    private ByteBuf handleScan(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() < 2 || command.size() % 2 != 0) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'scan' command");
+        }
+
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(new String(command.get(1), StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR invalid cursor");
+        }
+        GlobPattern pattern = null;
+        int count = 10;
+        DataType type = null;
+        boolean unknownType = false;
+        for (int i = 2; i < command.size(); i += 2) {
+            String option = upperCase(command.get(i));
+            byte[] value = command.get(i + 1);
+            switch (option) {
+                case "MATCH" -> pattern = GlobPattern.compile(value);
+                case "COUNT" -> {
+                    try {
+                        long parsed = parseLong(value);
+                        if (parsed < 1) {
+                            return RespEncoder.error(alloc, "ERR syntax error");
+                        }
+                        count = (int) Math.min(parsed, Integer.MAX_VALUE);
+                    } catch (NumberFormatException e) {
+                        return RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+                    }
+                }
+                case "TYPE" -> {
+                    type = dataType(upperCase(value));
+                    // An unknown type matches no key, as in Redis
+                    unknownType = type == null;
+                }
+                default -> {
+                    return RespEncoder.error(alloc, "ERR syntax error");
+                }
+            }
+        }
+
+        List<byte[]> keys = new ArrayList<>();
+        GlobPattern match = pattern;
+        DataType wanted = type;
+        boolean skipAll = unknownType;
+        long next;
+        try {
+            next = keyspace.scan(cursor, count, (key, entry) -> {
+                if ((match == null || match.matches(key.bytes())) && !skipAll
+                        && (wanted == null || entry.getType() == wanted)) {
+                    keys.add(key.bytes());
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            return RespEncoder.error(alloc, "ERR invalid cursor");
+        } catch (IllegalStateException e) {
+            return RespEncoder.error(alloc, "ERR " + e.getMessage());
+        }
+        int size = 32;
+        for (byte[] key : keys) {
+            size += key.length + 16;
+        }
+        ByteBuf out = alloc.ioBuffer(size);
+        RespEncoder.writeArrayHeader(out, 2);
+        RespEncoder.writeBulk(out, Long.toUnsignedString(next));
+        RespEncoder.writeArrayHeader(out, keys.size());
+        for (byte[] key : keys) {
+            RespEncoder.writeBulk(out, key);
+        }
+        return out;
+    }
+
+    private static DataType dataType(String name) {
+        return switch (name) {
+            case "STRING" -> DataType.STRING;
+            case "LIST" -> DataType.LIST;
+            case "SET" -> DataType.SET;
+            case "HASH" -> DataType.HASH;
+            case "ZSET" -> DataType.SORTED_SET;
+            case "STREAM" -> DataType.STREAM;
+            default -> null;
+        };
+    }
+
+    /**
+     * KEYS pattern. It walks every shard in one go, so the server runs it on
+     * the keyspace's walker rather than an event loop, and refuses to reply
+     * with more keys than the configured limit.
+     */
+    private ByteBuf handleKeys(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 2) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'keys' command");
+        }
+
+        GlobPattern pattern = GlobPattern.compile(command.get(1));
+        int limit = keyspace.keysMaxResults();
+        List<byte[]> keys = new ArrayList<>();
+        try {
+            long cursor = 0;
+            do {
+                cursor = keyspace.scan(cursor, 1000, (key, entry) -> {
+                    if (pattern.matches(key.bytes())) {
+                        keys.add(key.bytes());
+                    }
+                });
+                if (limit > 0 && keys.size() > limit) {
+                    return RespEncoder.error(alloc,
+                            "ERR KEYS would return more than " + limit + " keys, use SCAN instead");
+                }
+            } while (cursor != 0);
+        } catch (IllegalStateException e) {
+            return RespEncoder.error(alloc, "ERR " + e.getMessage());
+        }
+        int size = 16;
+        for (byte[] key : keys) {
+            size += key.length + 16;
+        }
+        ByteBuf out = alloc.ioBuffer(size);
+        RespEncoder.writeArrayHeader(out, keys.size());
+        for (byte[] key : keys) {
+            RespEncoder.writeBulk(out, key);
+        }
+        return out;
+    }
+
+    /**
+     * REPLICAOF host port starts following another server, dropping this
+     * one's data once connected; REPLICAOF NO ONE stops following it and
+     * keeps the data.
+     */
+    private ByteBuf handleReplicaOf(ByteBufAllocator alloc, List<byte[]> command) {
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'replicaof' command");
+        }
+        ReplicationManager replication = keyspace.replication();
+        if (replication == null) {
+            return RespEncoder.error(alloc, "ERR replication is not available");
+        }
+        String host = new String(command.get(1), StandardCharsets.UTF_8);
+        if (host.equalsIgnoreCase("NO") && upperCase(command.get(2)).equals("ONE")) {
+            replication.promote();
+            return RespEncoder.ok();
+        }
+        long port;
+        try {
+            port = parseLong(command.get(2));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR Invalid master port");
+        }
+        if (port <= 0 || port > 65535) {
+            return RespEncoder.error(alloc, "ERR Invalid master port");
+        }
+        replication.replicaOf(host, (int) port);
+        return RespEncoder.ok();
+    }
+
+    private ByteBuf handleBgRewriteAof(ByteBufAllocator alloc) {
+        AppendOnlyFile aof = keyspace.appendOnlyFile();
+        if (aof == null) {
+            return RespEncoder.error(alloc, "ERR append only file is disabled");
+        }
+        if (!aof.rewriteInBackground()) {
+            return RespEncoder.error(alloc, "ERR Background append only file rewriting already in progress");
+        }
+        return RespEncoder.simple(alloc, "Background append only file rewriting started");
+    }
+
+    private ByteBuf handleSave(ByteBufAllocator alloc) throws IOException {
+        SnapshotManager snapshots = keyspace.snapshots();
+        if (snapshots == null) {
+            return RespEncoder.error(alloc, "ERR snapshots are not available");
+        }
+        try {
+            snapshots.save();
+        } catch (IllegalStateException e) {
+            return RespEncoder.error(alloc, "ERR " + e.getMessage());
+        }
+        return RespEncoder.ok();
+    }
+
+    private ByteBuf handleBgSave(ByteBufAllocator alloc) {
+        SnapshotManager snapshots = keyspace.snapshots();
+        if (snapshots == null) {
+            return RespEncoder.error(alloc, "ERR snapshots are not available");
+        }
+        try {
+            if (!snapshots.saveInBackground()) {
+                return RespEncoder.error(alloc, "ERR Background save already in progress");
+            }
+        } catch (IllegalStateException e) {
+            return RespEncoder.error(alloc, "ERR " + e.getMessage());
+        }
+        return RespEncoder.simple(alloc, "Background saving started");
+    }
+
+    private ByteBuf handleLastSave(ByteBufAllocator alloc) {
+        SnapshotManager snapshots = keyspace.snapshots();
+        if (snapshots == null) {
+            return RespEncoder.error(alloc, "ERR snapshots are not available");
+        }
+        return RespEncoder.integer(alloc, snapshots.lastSaveMillis() / 1000);
+    }
+
+    /**
+     * Evicts keys while the dataset is over the memory limit, from this
+     * executor's shard first and, once it has nothing left to evict, from the
+     * others. Called before commands that may grow the dataset.
+     *
+     * @return false if the dataset is over the limit and nothing can be
+     *         evicted, in which case the command must be refused
+     */
+    boolean reserveMemory() {
+        long limit = keyspace.maxMemory();
+        // A replica holds what its primary holds, which evicts for it
+        if (limit == 0 || keyspace.isReadOnly()) {
+            return true;
+        }
+        while (keyspace.usedMemory() > limit) {
+            if (evictFrom(storageEngine)) {
+                continue;
+            }
+            boolean evicted = false;
+            for (StorageEngine shard : keyspace.shards()) {
+                if (shard != storageEngine && evictFrom(shard)) {
+                    evicted = true;
+                    break;
+                }
+            }
+            if (!evicted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean evictFrom(StorageEngine shard) {
+        // Logged so that a replay does not bring the key back
+        return shard.evict(key -> propagate(List.of(DEL, key.bytes()))) != null;
+    }
+
+    /**
+     * Records a mutation that has been applied to the store in the append-only
+     * file and the replication stream, where they are on, and counts it
+     * towards the snapshot save rules.
+     */
+    void propagate(List<byte[]> command) {
+        keyspace.recordChange();
+        keyspace.log(command);
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Upper-cases a command or option name.
+     */
+    static String upperCase(byte[] arg) {
+        return new String(arg, StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Parses a decimal integer argument without decoding it to a String first.
+     *
+     * @throws NumberFormatException if it is not a 64-bit integer
+     */
+    static long parseLong(byte[] arg) {
+        int length = arg.length;
+        if (length == 0 || length > 20) {
+            throw new NumberFormatException();
+        }
+        boolean negative = arg[0] == '-';
+        int i = negative ? 1 : 0;
+        if (i == length) {
+            throw new NumberFormatException();
+        }
+        // Accumulated as a negative number, whose range is one larger
+        long value = 0;
+        for (; i < length; i++) {
+            int digit = arg[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException();
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw new NumberFormatException();
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    private ByteBuf handleHello(ByteBufAllocator alloc, List<byte[]> command) {
+        ByteBuf response = alloc.ioBuffer(160);
+        RespEncoder.writeArrayHeader(response, 14);
+        RespEncoder.writeBulk(response, "server");
+        RespEncoder.writeBulk(response, "redis-like-kv-store");
+        RespEncoder.writeBulk(response, "version");
+        RespEncoder.writeBulk(response, "1.0.0");
+        RespEncoder.writeBulk(response, "proto");
+        RespEncoder.writeBulk(response, "2");
+        RespEncoder.writeBulk(response, "id");
+        RespEncoder.writeBulk(response, "1");
+        RespEncoder.writeBulk(response, "mode");
+        RespEncoder.writeBulk(response, "standalone");
+        RespEncoder.writeBulk(response, "role");
+        RespEncoder.writeBulk(response, keyspace.isReadOnly() ? "replica" : "master");
+        RespEncoder.writeBulk(response, "modules");
+        RespEncoder.writeArrayHeader(response, 0);
+        return response;
+    }
+}
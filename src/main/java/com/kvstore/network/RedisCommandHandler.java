@@ -1,303 +1,315 @@
 package com.kvstore.network;
 
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.CachedClock;
+import com.kvstore.persistence.AppendOnlyFile;
+import com.kvstore.replication.ReplicationManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import com.kvstore.core.StorageEngine;
-import com.kvstore.core.DataType;
-import com.kvstore.core.StorageEntry;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.util.ArrayDeque;
 import java.util.List;
-import java.util.Optional;
-import java.time.Duration;
-import java.time.Instant;
-import java.lang.ProcessHandle;
+import java.util.function.Supplier;
 
-public class RedisCommandHandler extends SimpleChannelInboundHandler<List<String>> {
+public class RedisCommandHandler extends SimpleChannelInboundHandler<List<byte[]>> {
     private static final Logger logger = LoggerFactory.getLogger(RedisCommandHandler.class);
-    private final StorageEngine storageEngine;
-
-    public RedisCommandHandler(StorageEngine storageEngine) {
-        this.storageEngine = storageEngine;
+    private static final String READONLY_ERROR = "READONLY You can't write against a read only replica.";
+    private final Keyspace keyspace;
+
+    // Replies queued behind a command that is still running on another event
+    // loop, kept in command order. Only touched from this channel's event loop.
+    private final ArrayDeque<PendingReply> pending = new ArrayDeque<>();
+    private boolean reading;
+    // Keys watched and commands queued; null while there are neither
+    private Transaction transaction;
+
+    public RedisCommandHandler(Keyspace keyspace) {
+        this.keyspace = keyspace;
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, List<String> command) {
+    protected void channelRead0(ChannelHandlerContext ctx, List<byte[]> command) {
+        reading = true;
         if (command == null || command.isEmpty()) {
-            sendError(ctx, "ERR empty command");
+            reply(ctx, RespEncoder.error(ctx.alloc(), "ERR empty command"));
             return;
         }
 
-        String cmd = command.get(0).toUpperCase();
-        logger.debug("Received command: {} from {}", cmd, ctx.channel().remoteAddress());
-
-        try {
-            switch (cmd) {
-                case "PING" -> handlePing(ctx);
-                case "SET" -> handleSet(ctx, command);
-                case "GET" -> handleGet(ctx, command);
-                case "DEL" -> handleDel(ctx, command);
-                case "EXISTS" -> handleExists(ctx, command);
-                case "EXPIRE" -> handleExpire(ctx, command);
-                case "INFO" -> handleInfo(ctx);
-                case "COMMAND" -> handleCommand(ctx);
-                case "CLIENT" -> handleClient(ctx, command);
-                case "CONFIG" -> handleConfig(ctx, command);
-                case "HELLO" -> handleHello(ctx, command);
-                case "AUTH" -> handleAuth(ctx, command);
-                case "SELECT" -> handleSelect(ctx, command);
-                default -> sendError(ctx, "ERR unknown command '" + cmd + "'");
-            }
-            logger.debug("Command {} processed successfully for {}", cmd, ctx.channel().remoteAddress());
-        } catch (Exception e) {
-            logger.error("Error processing command: {} from {}", cmd, ctx.channel().remoteAddress(), e);
-            sendError(ctx, "ERR " + e.getMessage());
+        // Arguments stay raw bytes all the way to the store; the name is only
+        // matched against the command table
+        Command cmd = Command.lookup(command.get(0));
+        if (cmd != null && cmd.isTransaction()) {
+            transaction(ctx, cmd, command);
+            return;
         }
-    }
-
-    private void handleAuth(ChannelHandlerContext ctx, List<String> command) {
-        // In development mode, accept any auth attempt
-        ctx.writeAndFlush("+OK\r\n");
-    }
-
-    private void handleSelect(ChannelHandlerContext ctx, List<String> command) {
-        // Accept any database selection in development mode
-        ctx.writeAndFlush("+OK\r\n");
-    }
-
-    private void handleInfo(ChannelHandlerContext ctx) {
-        StringBuilder info = new StringBuilder();
-        info.append("# Server\r\n");
-        info.append("redis_version:1.0.0\r\n");
-        info.append("redis_mode:standalone\r\n");
-        info.append("os:").append(System.getProperty("os.name")).append(" ");
-        info.append(System.getProperty("os.version")).append(" ");
-        info.append(System.getProperty("os.arch")).append("\r\n");
-        info.append("process_id:").append(ProcessHandle.current().pid()).append("\r\n");
-        info.append("tcp_port:").append(6379).append("\r\n");
-        info.append("uptime_in_seconds:").append(System.currentTimeMillis() / 1000).append("\r\n");
-        info.append("uptime_in_days:").append(System.currentTimeMillis() / (1000 * 60 * 60 * 24)).append("\r\n");
-        info.append("\r\n");
-
-        info.append("# Clients\r\n");
-        info.append("connected_clients:1\r\n");
-        info.append("client_recent_max_input_buffer:0\r\n");
-        info.append("client_recent_max_output_buffer:0\r\n");
-        info.append("blocked_clients:0\r\n");
-        info.append("\r\n");
-
-        info.append("# Memory\r\n");
-        info.append("used_memory:").append(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())
-                .append("\r\n");
-        info.append("used_memory_human:")
-                .append((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1024 / 1024)
-                .append("M\r\n");
-        info.append("used_memory_peak:").append(Runtime.getRuntime().maxMemory()).append("\r\n");
-        info.append("used_memory_peak_human:").append(Runtime.getRuntime().maxMemory() / 1024 / 1024).append("M\r\n");
-        info.append("mem_fragmentation_ratio:1.0\r\n");
-        info.append("\r\n");
-
-        info.append("# Stats\r\n");
-        info.append("total_connections_received:1\r\n");
-        info.append("total_commands_processed:0\r\n");
-        info.append("instantaneous_ops_per_sec:0\r\n");
-        info.append("rejected_connections:0\r\n");
-        info.append("sync_full:0\r\n");
-        info.append("sync_partial_ok:0\r\n");
-        info.append("sync_partial_err:0\r\n");
-        info.append("\r\n");
-
-        info.append("# Keyspace\r\n");
-        long size = storageEngine.size();
-        if (size > 0) {
-            info.append("db0:keys=").append(size).append(",expires=0,avg_ttl=0\r\n");
+        if (cmd != null && cmd.isReplication()) {
+            replication(ctx, cmd, command);
+            return;
         }
-
-        String response = "$" + info.length() + "\r\n" + info.toString() + "\r\n";
-        ctx.writeAndFlush(response);
-    }
-
-    private void handleCommand(ChannelHandlerContext ctx) {
-        StringBuilder response = new StringBuilder();
-        response.append("*5\r\n");
-        // Command count
-        response.append(":6\r\n");
-        // Supported commands
-        response.append("*6\r\n");
-        response.append("$4\r\nPING\r\n");
-        response.append("$3\r\nGET\r\n");
-        response.append("$3\r\nSET\r\n");
-        response.append("$3\r\nDEL\r\n");
-        response.append("$6\r\nEXISTS\r\n");
-        response.append("$6\r\nEXPIRE\r\n");
-        ctx.writeAndFlush(response.toString());
-    }
-
-    private void handleClient(ChannelHandlerContext ctx, List<String> command) {
-        if (command.size() < 2) {
-            sendError(ctx, "ERR wrong number of arguments for 'client' command");
+        if (cmd != null && cmd.isWrite() && keyspace.isReadOnly()) {
+            if (transaction != null && transaction.isQueuing()) {
+                transaction.fail();
+            }
+            reply(ctx, RespEncoder.error(ctx.alloc(), READONLY_ERROR));
             return;
         }
-
-        String subCommand = command.get(1).toUpperCase();
-        switch (subCommand) {
-            case "LIST" -> {
-                String response = "*1\r\n$"
-                        + "id=1 addr=127.0.0.1:6379 fd=6 name= age=0 idle=0 flags=N db=0 sub=0 psub=0 multi=-1 qbuf=0 qbuf-free=32768 obl=0 oll=0 omem=0 events=r cmd=client"
-                                .length()
-                        + "\r\nid=1 addr=127.0.0.1:6379 fd=6 name= age=0 idle=0 flags=N db=0 sub=0 psub=0 multi=-1 qbuf=0 qbuf-free=32768 obl=0 oll=0 omem=0 events=r cmd=client\r\n";
-                ctx.writeAndFlush(response);
+        if (transaction != null && transaction.isQueuing()) {
+            if (cmd == null) {
+                // Refused now, and fails the EXEC
+                transaction.fail();
+                reply(ctx, keyspace.executor(0).execute(ctx.alloc(), null, command));
+            } else {
+                transaction.queue(cmd, command);
+                reply(ctx, RespEncoder.queued());
             }
-            case "SETNAME" -> ctx.writeAndFlush("+OK\r\n");
-            case "GETNAME" -> ctx.writeAndFlush("$-1\r\n");
-            default -> sendError(ctx, "ERR unknown subcommand '" + subCommand + "'");
+            return;
         }
-    }
-
-    private void handleConfig(ChannelHandlerContext ctx, List<String> command) {
-        if (command.size() < 2) {
-            sendError(ctx, "ERR wrong number of arguments for 'config' command");
+        boolean keyed = cmd != null && cmd.isKeyed() && command.size() > 1;
+
+        // Keys spread over several shards are served from this loop
+        int shard = keyed ? keyspace.shardOf(cmd, command) : 0;
+        EventExecutor owner = shard >= 0 ? keyspace.owner(shard) : null;
+        RedisCommandExecutor executor = keyspace.executor(Math.max(shard, 0));
+        if (cmd != null && cmd.isSlow() && keyspace.walker() != null) {
+            dispatch(ctx, keyspace.walker(), cmd, () -> execute(ctx, executor, cmd, command));
+            return;
+        }
+        if (owner != null && keyed && !owner.inEventLoop()) {
+            dispatch(ctx, owner, cmd, () -> execute(ctx, executor, cmd, command));
             return;
         }
 
-        String subCommand = command.get(1).toUpperCase();
-        switch (subCommand) {
-            case "GET" -> {
-                if (command.size() < 3) {
-                    sendError(ctx, "ERR wrong number of arguments for 'config get' command");
+        replyWhenLogged(ctx, cmd, execute(ctx, executor, cmd, command));
+    }
+
+    /**
+     * Handles MULTI, EXEC, DISCARD, WATCH and UNWATCH, which act on this
+     * connection's transaction.
+     */
+    private void transaction(ChannelHandlerContext ctx, Command cmd, List<byte[]> command) {
+        ByteBufAllocator alloc = ctx.alloc();
+        boolean queuing = transaction != null && transaction.isQueuing();
+        switch (cmd) {
+            case MULTI -> {
+                if (queuing) {
+                    reply(ctx, RespEncoder.error(alloc, "ERR MULTI calls can not be nested"));
                     return;
                 }
-                // Return empty array for unknown config
-                ctx.writeAndFlush("*0\r\n");
+                if (transaction == null) {
+                    transaction = new Transaction(keyspace);
+                }
+                transaction.begin();
+                reply(ctx, RespEncoder.ok());
+            }
+            case WATCH -> {
+                if (command.size() < 2) {
+                    reply(ctx, RespEncoder.error(alloc, "ERR wrong number of arguments for 'watch' command"));
+                } else if (queuing) {
+                    reply(ctx, RespEncoder.error(alloc, "ERR WATCH inside MULTI is not allowed"));
+                } else {
+                    if (transaction == null) {
+                        transaction = new Transaction(keyspace);
+                    }
+                    transaction.watch(command);
+                    reply(ctx, RespEncoder.ok());
+                }
+            }
+            case UNWATCH -> {
+                if (queuing) {
+                    transaction.queue(cmd, command);
+                    reply(ctx, RespEncoder.queued());
+                } else {
+                    transaction = null;
+                    reply(ctx, RespEncoder.ok());
+                }
             }
-            case "SET" -> ctx.writeAndFlush("+OK\r\n");
-            default -> sendError(ctx, "ERR unknown subcommand '" + subCommand + "'");
+            case DISCARD -> {
+                if (!queuing) {
+                    reply(ctx, RespEncoder.error(alloc, "ERR DISCARD without MULTI"));
+                    return;
+                }
+                transaction = null;
+                reply(ctx, RespEncoder.ok());
+            }
+            case EXEC -> {
+                if (!queuing) {
+                    reply(ctx, RespEncoder.error(alloc, "ERR EXEC without MULTI"));
+                    return;
+                }
+                Transaction running = transaction;
+                transaction = null;
+                if (running.hasFailed()) {
+                    reply(ctx, RespEncoder.error(alloc,
+                            "EXECABORT Transaction discarded because of previous errors."));
+                    return;
+                }
+                // Run where the shard of every key it names lives, if there
+                // is one such shard
+                ByteKey[] keys = running.keys();
+                int shard = keyspace.shardOf(keys);
+                EventExecutor owner = shard >= 0 ? keyspace.owner(shard) : null;
+                if (owner != null && !owner.inEventLoop()) {
+                    dispatch(ctx, owner, cmd, () -> exec(ctx, running, keys, command));
+                } else {
+                    replyWhenLogged(ctx, cmd, exec(ctx, running, keys, command));
+                }
+            }
+            default -> throw new IllegalArgumentException("Not a transaction command: " + cmd);
         }
     }
 
-    private void handlePing(ChannelHandlerContext ctx) {
-        ctx.writeAndFlush("+PONG\r\n");
-    }
-
-    private void handleSet(ChannelHandlerContext ctx, List<String> command) {
-        if (command.size() < 3) {
-            sendError(ctx, "ERR wrong number of arguments for 'set' command");
+    /**
+     * Handles PSYNC and REPLCONF from a replica. After PSYNC the connection
+     * carries the replication stream, and its only other traffic is the
+     * replica's acknowledgements, which get no reply.
+     */
+    private void replication(ChannelHandlerContext ctx, Command cmd, List<byte[]> command) {
+        ReplicationManager replication = keyspace.replication();
+        if (replication == null) {
+            reply(ctx, RespEncoder.error(ctx.alloc(), "ERR replication is not available"));
             return;
         }
-
-        String key = command.get(1);
-        String value = command.get(2);
-
-        // Handle optional EX/PX argument
-        if (command.size() >= 5) {
-            String expireType = command.get(3).toUpperCase();
-            try {
-                long expireValue = Long.parseLong(command.get(4));
-                Instant expireAt = switch (expireType) {
-                    case "EX" -> Instant.now().plusSeconds(expireValue);
-                    case "PX" -> Instant.now().plusMillis(expireValue);
-                    default -> throw new IllegalArgumentException("Invalid expire type: " + expireType);
-                };
-
-                StorageEntry entry = new StorageEntry(value, DataType.STRING);
-                entry.setExpiresAt(expireAt);
-                storageEngine.set(key, entry, DataType.STRING);
-            } catch (NumberFormatException e) {
-                sendError(ctx, "ERR value is not an integer or out of range");
-                return;
-            }
-        } else {
-            storageEngine.set(key, value, DataType.STRING);
+        ByteBuf reply = cmd == Command.PSYNC
+                ? replication.psync(ctx.channel(), command)
+                : replication.replconf(ctx.channel(), command);
+        if (reply != null) {
+            reply(ctx, reply);
         }
+    }
 
-        ctx.writeAndFlush("+OK\r\n");
+    /**
+     * Replies are only written while a read batch is being processed and are
+     * flushed here once the batch is drained, so a pipeline of N commands costs
+     * one flush instead of N.
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        reading = false;
+        ctx.flush();
     }
 
-    private void handleGet(ChannelHandlerContext ctx, List<String> command) {
-        if (command.size() != 2) {
-            sendError(ctx, "ERR wrong number of arguments for 'get' command");
-            return;
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (PendingReply slot : pending) {
+            ReferenceCountUtil.release(slot.reply);
         }
+        pending.clear();
+        super.channelInactive(ctx);
+    }
 
-        String key = command.get(1);
-        Optional<StorageEntry> entry = storageEngine.get(key);
+    /**
+     * Runs a command on the event loop owning its shard, or the keyspace's
+     * walker, and hands the reply back to this channel's loop, where it is
+     * written in command order.
+     */
+    private void dispatch(ChannelHandlerContext ctx, EventExecutor owner, Command cmd, Supplier<ByteBuf> work) {
+        PendingReply slot = new PendingReply();
+        pending.add(slot);
+        owner.execute(() -> {
+            ByteBuf reply = work.get();
+            Runnable completion = () -> ctx.executor().execute(() -> complete(ctx, slot, reply));
+            AppendOnlyFile aof = syncedLog(cmd);
+            if (aof != null) {
+                aof.whenDurable(aof.appendedSeq(), completion);
+            } else {
+                completion.run();
+            }
+        });
+    }
 
-        if (entry.isEmpty() || entry.get().isExpired()) {
-            ctx.writeAndFlush("$-1\r\n");
-            return;
+    /**
+     * Runs a command on the calling thread, counts it in that thread's stats
+     * and logs it if it was slow.
+     */
+    private ByteBuf execute(ChannelHandlerContext ctx, RedisCommandExecutor executor, Command cmd,
+                            List<byte[]> command) {
+        if (cmd == null) {
+            return executor.execute(ctx.alloc(), null, command);
         }
+        SlowLog slowLog = keyspace.slowLog();
+        ServerStats.Stripe stats = keyspace.stats().stripe();
+        long startMillis = CachedClock.millis();
+        long startNanos = stats.start(cmd, slowLog.needsPreciseTiming());
+        ByteBuf reply = executor.execute(ctx.alloc(), cmd, command);
+        long micros = stats.finish(cmd, startNanos, RespEncoder.isError(reply));
+        slowLog.record(command, micros >= 0 ? micros : (CachedClock.millis() - startMillis) * 1000, ctx.channel());
+        return reply;
+    }
 
-        String value = (String) entry.get().getValue();
-        ctx.writeAndFlush("$" + value.length() + "\r\n" + value + "\r\n");
+    /**
+     * Runs a transaction on the calling thread, counted and logged if slow as
+     * one EXEC call; each of its commands is counted on its own as well.
+     */
+    private ByteBuf exec(ChannelHandlerContext ctx, Transaction running, ByteKey[] keys, List<byte[]> command) {
+        SlowLog slowLog = keyspace.slowLog();
+        ServerStats.Stripe stats = keyspace.stats().stripe();
+        long startMillis = CachedClock.millis();
+        long startNanos = stats.start(Command.EXEC, slowLog.needsPreciseTiming());
+        ByteBuf reply = running.exec(ctx.alloc(), keys, (cmd, args) -> {
+            int shard = cmd.isKeyed() && args.size() > 1 ? keyspace.shardOf(cmd, args) : 0;
+            return execute(ctx, keyspace.executor(Math.max(shard, 0)), cmd, args);
+        });
+        long micros = stats.finish(Command.EXEC, startNanos, RespEncoder.isError(reply));
+        slowLog.record(command, micros >= 0 ? micros : (CachedClock.millis() - startMillis) * 1000, ctx.channel());
+        return reply;
     }
 
-    private void handleDel(ChannelHandlerContext ctx, List<String> command) {
-        if (command.size() != 2) {
-            sendError(ctx, "ERR wrong number of arguments for 'del' command");
-            return;
+    /**
+     * Sends the reply to a command run on this channel's loop, once the
+     * command is durable if the append-only file requires it.
+     */
+    private void replyWhenLogged(ChannelHandlerContext ctx, Command cmd, ByteBuf reply) {
+        AppendOnlyFile aof = syncedLog(cmd);
+        if (aof != null) {
+            PendingReply slot = new PendingReply();
+            pending.add(slot);
+            aof.whenDurable(aof.appendedSeq(), () -> ctx.executor().execute(() -> complete(ctx, slot, reply)));
+        } else {
+            reply(ctx, reply);
         }
-
-        String key = command.get(1);
-        boolean deleted = storageEngine.delete(key);
-        ctx.writeAndFlush(":" + (deleted ? 1 : 0) + "\r\n");
     }
 
-    private void handleExists(ChannelHandlerContext ctx, List<String> command) {
-        if (command.size() != 2) {
-            sendError(ctx, "ERR wrong number of arguments for 'exists' command");
-            return;
+    /**
+     * Returns the append-only file if the reply to this command must wait until
+     * the command has been fsynced, or null if it can be sent right away. The
+     * current end of the log is used as the wait target, which covers the
+     * command's own entry.
+     */
+    private AppendOnlyFile syncedLog(Command cmd) {
+        AppendOnlyFile aof = keyspace.appendOnlyFile();
+        if (aof == null || aof.fsyncPolicy() != AppendOnlyFile.FsyncPolicy.ALWAYS || cmd == null || !cmd.isWrite()) {
+            return null;
         }
-
-        String key = command.get(1);
-        boolean exists = storageEngine.exists(key);
-        ctx.writeAndFlush(":" + (exists ? 1 : 0) + "\r\n");
+        return aof;
     }
 
-    private void handleExpire(ChannelHandlerContext ctx, List<String> command) {
-        if (command.size() != 3) {
-            sendError(ctx, "ERR wrong number of arguments for 'expire' command");
+    private void complete(ChannelHandlerContext ctx, PendingReply slot, ByteBuf reply) {
+        if (!ctx.channel().isActive()) {
+            reply.release();
             return;
         }
-
-        String key = command.get(1);
-        try {
-            long seconds = Long.parseLong(command.get(2));
-            Optional<StorageEntry> entry = storageEngine.get(key);
-
-            if (entry.isEmpty()) {
-                ctx.writeAndFlush(":0\r\n");
-                return;
-            }
-
-            entry.get().setExpiresAt(Instant.now().plusSeconds(seconds));
-            ctx.writeAndFlush(":1\r\n");
-        } catch (NumberFormatException e) {
-            sendError(ctx, "ERR value is not an integer or out of range");
+        slot.reply = reply;
+        while (!pending.isEmpty() && pending.peek().reply != null) {
+            ctx.write(pending.poll().reply);
+        }
+        if (!reading) {
+            ctx.flush();
         }
     }
 
-    private void handleHello(ChannelHandlerContext ctx, List<String> command) {
-        StringBuilder response = new StringBuilder();
-        response.append("*14\r\n");
-        response.append("$6\r\nserver\r\n");
-        response.append("$19\r\nredis-like-kv-store\r\n");
-        response.append("$7\r\nversion\r\n");
-        response.append("$5\r\n1.0.0\r\n");
-        response.append("$5\r\nproto\r\n");
-        response.append("$1\r\n2\r\n");
-        response.append("$2\r\nid\r\n");
-        response.append("$1\r\n1\r\n");
-        response.append("$4\r\nmode\r\n");
-        response.append("$10\r\nstandalone\r\n");
-        response.append("$4\r\nrole\r\n");
-        response.append("$6\r\nmaster\r\n");
-        response.append("$6\r\nmodules\r\n");
-        response.append("*0\r\n");
-        ctx.writeAndFlush(response.toString());
-    }
-
-    private void sendError(ChannelHandlerContext ctx, String message) {
-        ctx.writeAndFlush("-" + message + "\r\n");
+    private void reply(ChannelHandlerContext ctx, ByteBuf reply) {
+        if (pending.isEmpty()) {
+            ctx.write(reply);
+            return;
+        }
+        PendingReply slot = new PendingReply();
+        slot.reply = reply;
+        pending.add(slot);
     }
 
     @Override
@@ -305,4 +317,8 @@ public class RedisCommandHandler extends SimpleChannelInboundHandler<List<String
         logger.error("Channel exception", cause);
         ctx.close();
     }
-}
\ No newline at end of file
+
+    private static final class PendingReply {
+        private ByteBuf reply;
+    }
+}
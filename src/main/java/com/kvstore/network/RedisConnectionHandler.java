@@ -1,39 +1,35 @@
 package com.kvstore.network;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.nio.charset.StandardCharsets;
 
 public class RedisConnectionHandler extends ChannelDuplexHandler {
     private static final Logger logger = LoggerFactory.getLogger(RedisConnectionHandler.class);
+    private final ServerStats stats;
+
+    public RedisConnectionHandler(ServerStats stats) {
+        this.stats = stats;
+    }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        logger.info("New connection from {}", ctx.channel().remoteAddress());
-        // Send Redis OK response instead of requiring auth
-        String greeting = "+OK\r\n";
-        ByteBuf response = Unpooled.copiedBuffer(greeting, StandardCharsets.UTF_8);
-        ctx.writeAndFlush(response).addListener(future -> {
-            if (future.isSuccess()) {
-                logger.info("Sent greeting to {}", ctx.channel().remoteAddress());
-            } else {
-                logger.error("Failed to send greeting to {}: {}",
-                        ctx.channel().remoteAddress(),
-                        future.cause().getMessage());
-            }
-        });
+        logger.debug("New connection from {}", ctx.channel().remoteAddress());
+        stats.connectionOpened();
+        // Send Redis OK response instead of requiring auth; a failed write is
+        // reported through exceptionCaught
+        ctx.writeAndFlush(RespEncoder.ok()).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
         super.channelActive(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        logger.info("Connection closed from {}", ctx.channel().remoteAddress());
+        logger.debug("Connection closed from {}", ctx.channel().remoteAddress());
+        stats.connectionClosed();
         super.channelInactive(ctx);
     }
 
@@ -0,0 +1,190 @@
+package com.kvstore.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes RESP replies directly into {@link ByteBuf}s.
+ *
+ * Constant replies are shared read-only direct buffers that are handed out as
+ * duplicates, small integers come from a table of pre-encoded replies, and
+ * everything else is written into buffers from the channel's (pooled) allocator
+ * without building intermediate Strings.
+ */
+public final class RespEncoder {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int INTEGER_CACHE_SIZE = 1024;
+
+    private static final ByteBuf OK = constant("+OK\r\n");
+    private static final ByteBuf PONG = constant("+PONG\r\n");
+    private static final ByteBuf QUEUED = constant("+QUEUED\r\n");
+    private static final ByteBuf NULL_BULK = constant("$-1\r\n");
+    private static final ByteBuf NULL_ARRAY = constant("*-1\r\n");
+    private static final ByteBuf EMPTY_ARRAY = constant("*0\r\n");
+    private static final ByteBuf ZERO = constant(":0\r\n");
+    private static final ByteBuf ONE = constant(":1\r\n");
+
+    // ":n\r\n" and "$n\r\n" for 0 <= n < INTEGER_CACHE_SIZE
+    private static final byte[][] INTEGER_REPLIES = new byte[INTEGER_CACHE_SIZE][];
+    private static final byte[][] BULK_HEADERS = new byte[INTEGER_CACHE_SIZE][];
+
+    static {
+        for (int i = 0; i < INTEGER_CACHE_SIZE; i++) {
+            INTEGER_REPLIES[i] = (":" + i + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            BULK_HEADERS[i] = ("$" + i + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private RespEncoder() {
+    }
+
+    public static ByteBuf ok() {
+        return OK.duplicate();
+    }
+
+    public static ByteBuf pong() {
+        return PONG.duplicate();
+    }
+
+    public static ByteBuf queued() {
+        return QUEUED.duplicate();
+    }
+
+    public static ByteBuf nullBulk() {
+        return NULL_BULK.duplicate();
+    }
+
+    public static ByteBuf nullArray() {
+        return NULL_ARRAY.duplicate();
+    }
+
+    public static ByteBuf emptyArray() {
+        return EMPTY_ARRAY.duplicate();
+    }
+
+    public static ByteBuf integer(ByteBufAllocator alloc, long value) {
+        if (value == 0) {
+            return ZERO.duplicate();
+        }
+        if (value == 1) {
+            return ONE.duplicate();
+        }
+        ByteBuf out = alloc.ioBuffer(24);
+        writeInteger(out, value);
+        return out;
+    }
+
+    public static ByteBuf bulk(ByteBufAllocator alloc, byte[] value) {
+        ByteBuf out = alloc.ioBuffer(value.length + 16);
+        writeBulk(out, value);
+        return out;
+    }
+
+    public static ByteBuf bulk(ByteBufAllocator alloc, CharSequence value) {
+        ByteBuf out = alloc.ioBuffer(ByteBufUtil.utf8MaxBytes(value) + 16);
+        writeBulk(out, value);
+        return out;
+    }
+
+    public static ByteBuf simple(ByteBufAllocator alloc, CharSequence value) {
+        ByteBuf out = alloc.ioBuffer(value.length() + 3);
+        out.writeByte('+');
+        ByteBufUtil.writeUtf8(out, value);
+        out.writeBytes(CRLF);
+        return out;
+    }
+
+    public static ByteBuf error(ByteBufAllocator alloc, CharSequence message) {
+        ByteBuf out = alloc.ioBuffer(message.length() + 3);
+        out.writeByte('-');
+        ByteBufUtil.writeUtf8(out, message);
+        out.writeBytes(CRLF);
+        return out;
+    }
+
+    /**
+     * Returns whether a reply is an error reply.
+     */
+    public static boolean isError(ByteBuf reply) {
+        return reply.isReadable() && reply.getByte(reply.readerIndex()) == '-';
+    }
+
+    public static void writeInteger(ByteBuf out, long value) {
+        if (value >= 0 && value < INTEGER_CACHE_SIZE) {
+            out.writeBytes(INTEGER_REPLIES[(int) value]);
+            return;
+        }
+        out.writeByte(':');
+        writeDecimal(out, value);
+        out.writeBytes(CRLF);
+    }
+
+    public static void writeArrayHeader(ByteBuf out, int length) {
+        out.writeByte('*');
+        writeDecimal(out, length);
+        out.writeBytes(CRLF);
+    }
+
+    public static void writeNullBulk(ByteBuf out) {
+        out.writeBytes(NULL_BULK, NULL_BULK.readerIndex(), NULL_BULK.readableBytes());
+    }
+
+    public static void writeBulk(ByteBuf out, byte[] value) {
+        writeBulkHeader(out, value.length);
+        out.writeBytes(value);
+        out.writeBytes(CRLF);
+    }
+
+    public static void writeBulk(ByteBuf out, CharSequence value) {
+        writeBulkHeader(out, ByteBufUtil.utf8Bytes(value));
+        ByteBufUtil.writeUtf8(out, value);
+        out.writeBytes(CRLF);
+    }
+
+    public static void writeBulkHeader(ByteBuf out, int length) {
+        if (length < INTEGER_CACHE_SIZE) {
+            out.writeBytes(BULK_HEADERS[length]);
+            return;
+        }
+        out.writeByte('$');
+        writeDecimal(out, length);
+        out.writeBytes(CRLF);
+    }
+
+    public static void writeCrlf(ByteBuf out) {
+        out.writeBytes(CRLF);
+    }
+
+    /**
+     * Writes the ASCII decimal form of a value without going through a String.
+     */
+    private static void writeDecimal(ByteBuf out, long value) {
+        if (value == Long.MIN_VALUE) {
+            out.writeCharSequence("-9223372036854775808", StandardCharsets.US_ASCII);
+            return;
+        }
+        if (value < 0) {
+            out.writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int start = out.writerIndex();
+        out.ensureWritable(digits);
+        for (int i = start + digits - 1; i >= start; i--) {
+            out.setByte(i, (int) ('0' + value % 10));
+            value /= 10;
+        }
+        out.writerIndex(start + digits);
+    }
+
+    private static ByteBuf constant(String reply) {
+        byte[] bytes = reply.getBytes(StandardCharsets.US_ASCII);
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer(bytes.length).writeBytes(bytes)).asReadOnly();
+    }
+}
@@ -0,0 +1,310 @@
+package com.kvstore.network;
+
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.FastThreadLocal;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters behind INFO: calls, time and latency distribution per command,
+ * keyspace hits and misses, connections and the recent command rate.
+ *
+ * Per-command counters are striped by thread: every event loop records into
+ * its own {@link Stripe} with plain stores, and readers add the stripes up.
+ * This is the idea of {@link LongAdder} without its compare-and-swap, which
+ * costs more than the command itself for a GET. Connection counters change
+ * once per connection and use LongAdder directly.
+ *
+ * Timing a call takes two clock reads, so only one in
+ * {@link #setSamplingInterval every so many} calls of a command is timed on
+ * each thread. Call counts are exact; time totals are estimated from the
+ * timed calls and percentiles are taken over them.
+ */
+public class ServerStats {
+    static final long NOT_TIMED = Long.MIN_VALUE;
+    private static final long OPS_SAMPLE_MILLIS = 100;
+    // Samples averaged for instantaneous_ops_per_sec, as in Redis
+    private static final int OPS_SAMPLES = 16;
+    private static final int COMMANDS = Command.values().length;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<Stripe> stripe = new FastThreadLocal<>() {
+        @Override
+        protected Stripe initialValue() {
+            Stripe created = new Stripe(generation);
+            stripes.add(created);
+            return created;
+        }
+    };
+    // Bumped by reset(); a stripe recorded under an older generation counts as
+    // empty until its thread clears it
+    private volatile long generation;
+    private volatile int samplingInterval = 16;
+
+    private final LongAdder connectedClients = new LongAdder();
+    private final LongAdder connectionsReceived = new LongAdder();
+
+    // Only touched by the sampling task
+    private final long[] opsSamples = new long[OPS_SAMPLES];
+    private int opsSampleIndex;
+    private long lastSampleCommands;
+    private long lastSampleNanos = System.nanoTime();
+    private volatile long instantaneousOps;
+
+    /**
+     * Times one in this many calls of each command per thread; 1 times every
+     * call and 0 none.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        this.samplingInterval = samplingInterval;
+    }
+
+    /**
+     * Starts sampling the command rate on one of the given loops.
+     */
+    public void start(EventExecutorGroup loops) {
+        loops.next().scheduleAtFixedRate(this::sampleOps, OPS_SAMPLE_MILLIS, OPS_SAMPLE_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the calling thread's stripe.
+     */
+    Stripe stripe() {
+        Stripe current = stripe.get();
+        long generation = this.generation;
+        if (current.generation != generation) {
+            current.clear(generation);
+        }
+        return current;
+    }
+
+    /**
+     * Zeroes the command, keyspace and connection totals, as CONFIG RESETSTAT
+     * does. The number of open connections is kept.
+     */
+    public void reset() {
+        generation++;
+        connectionsReceived.reset();
+    }
+
+    public void connectionOpened() {
+        connectedClients.increment();
+        connectionsReceived.increment();
+    }
+
+    public void connectionClosed() {
+        connectedClients.decrement();
+    }
+
+    public long uptimeMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+    public long connectedClients() {
+        return connectedClients.sum();
+    }
+
+    public long connectionsReceived() {
+        return connectionsReceived.sum();
+    }
+
+    public long instantaneousOpsPerSecond() {
+        return instantaneousOps;
+    }
+
+    public long totalCommands() {
+        long total = 0;
+        for (Stripe s : live()) {
+            for (int i = 0; i < COMMANDS; i++) {
+                total += s.calls.getOpaque(i);
+            }
+        }
+        return total;
+    }
+
+    public long keyspaceHits() {
+        long hits = 0;
+        for (Stripe s : live()) {
+            hits += s.keyspace.getOpaque(Stripe.HITS);
+        }
+        return hits;
+    }
+
+    public long keyspaceMisses() {
+        long misses = 0;
+        for (Stripe s : live()) {
+            misses += s.keyspace.getOpaque(Stripe.MISSES);
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the totals of one command across all threads.
+     */
+    public CommandStats commandStats(Command command) {
+        int i = command.ordinal();
+        long calls = 0;
+        long failed = 0;
+        long timedCalls = 0;
+        long timedNanos = 0;
+        long[] latencies = new long[LatencyHistogram.BUCKETS];
+        for (Stripe s : live()) {
+            calls += s.calls.getOpaque(i);
+            failed += s.failed.getOpaque(i);
+            timedCalls += s.timedCalls.getOpaque(i);
+            timedNanos += s.timedNanos.getOpaque(i);
+            LatencyHistogram histogram = s.histograms[i];
+            if (histogram != null) {
+                histogram.addTo(latencies);
+            }
+        }
+        return new CommandStats(calls, failed, timedCalls, timedNanos, latencies);
+    }
+
+    private List<Stripe> live() {
+        long generation = this.generation;
+        return stripes.stream().filter(s -> s.generation == generation).toList();
+    }
+
+    private void sampleOps() {
+        long now = System.nanoTime();
+        long commands = totalCommands();
+        // A reset makes the total go back
+        long delta = Math.max(0, commands - lastSampleCommands);
+        long elapsed = Math.max(1, now - lastSampleNanos);
+        opsSamples[opsSampleIndex++ % OPS_SAMPLES] = delta * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        lastSampleCommands = commands;
+        lastSampleNanos = now;
+        long sum = 0;
+        for (long sample : opsSamples) {
+            sum += sample;
+        }
+        instantaneousOps = sum / OPS_SAMPLES;
+    }
+
+    /**
+     * Totals of one command. Time is estimated from the timed calls.
+     */
+    public record CommandStats(long calls, long failedCalls, long timedCalls, long timedNanos, long[] latencies) {
+        public double microsPerCall() {
+            return timedCalls == 0 ? 0 : timedNanos / 1000.0 / timedCalls;
+        }
+
+        public long micros() {
+            return Math.round(microsPerCall() * calls);
+        }
+
+        public double percentileMicros(double percentile) {
+            return LatencyHistogram.valueAtPercentile(latencies, percentile) / 1000.0;
+        }
+    }
+
+    /**
+     * One thread's counters. Only that thread writes them, with opaque stores
+     * that compile to plain moves; other threads read them with opaque loads.
+     */
+    final class Stripe {
+        static final int HITS = 0;
+        static final int MISSES = 1;
+
+        final AtomicLongArray calls = new AtomicLongArray(COMMANDS);
+        final AtomicLongArray failed = new AtomicLongArray(COMMANDS);
+        final AtomicLongArray timedCalls = new AtomicLongArray(COMMANDS);
+        final AtomicLongArray timedNanos = new AtomicLongArray(COMMANDS);
+        final AtomicLongArray keyspace = new AtomicLongArray(2);
+        // Created on the first timed call of each command
+        final LatencyHistogram[] histograms = new LatencyHistogram[COMMANDS];
+        private final int[] untilTimed = new int[COMMANDS];
+        volatile long generation;
+
+        Stripe(long generation) {
+            this.generation = generation;
+        }
+
+        /**
+         * Returns the start time of a call if it is to be timed, or
+         * {@link #NOT_TIMED}.
+         *
+         * @param always whether to time the call even if it is not sampled
+         */
+        long start(Command command, boolean always) {
+            int i = command.ordinal();
+            int interval = samplingInterval;
+            if (!always && (interval <= 0 || --untilTimed[i] > 0)) {
+                return NOT_TIMED;
+            }
+            untilTimed[i] = interval;
+            return System.nanoTime();
+        }
+
+        /**
+         * Counts a finished call.
+         *
+         * @return how long the call took in microseconds, or -1 if it was not
+         *         timed
+         */
+        long finish(Command command, long startNanos, boolean failedCall) {
+            int i = command.ordinal();
+            increment(calls, i, 1);
+            if (failedCall) {
+                increment(failed, i, 1);
+            }
+            if (startNanos == NOT_TIMED) {
+                return -1;
+            }
+            long nanos = System.nanoTime() - startNanos;
+            recordTime(i, nanos);
+            return nanos / 1000;
+        }
+
+        private void recordTime(int i, long nanos) {
+            increment(timedCalls, i, 1);
+            increment(timedNanos, i, nanos);
+            LatencyHistogram histogram = histograms[i];
+            if (histogram == null) {
+                histogram = histograms[i] = new LatencyHistogram();
+            }
+            histogram.record(nanos);
+        }
+
+        void hit() {
+            increment(keyspace, HITS, 1);
+        }
+
+        void miss() {
+            increment(keyspace, MISSES, 1);
+        }
+
+        /**
+         * Counts the outcome of a command that looked up several keys.
+         */
+        void lookups(long hits, long misses) {
+            increment(keyspace, HITS, hits);
+            increment(keyspace, MISSES, misses);
+        }
+
+        private void clear(long generation) {
+            for (int i = 0; i < COMMANDS; i++) {
+                calls.setOpaque(i, 0);
+                failed.setOpaque(i, 0);
+                timedCalls.setOpaque(i, 0);
+                timedNanos.setOpaque(i, 0);
+                if (histograms[i] != null) {
+                    histograms[i].clear();
+                }
+            }
+            keyspace.setOpaque(HITS, 0);
+            keyspace.setOpaque(MISSES, 0);
+            this.generation = generation;
+        }
+
+        private static void increment(AtomicLongArray counters, int i, long delta) {
+            counters.setOpaque(i, counters.getPlain(i) + delta);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.kvstore.network;
+
+import io.netty.channel.Channel;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent commands that took longer than a threshold, as reported by
+ * SLOWLOG GET.
+ *
+ * Entries go into a ring of fixed size without locking: a writer takes the
+ * next id and stores its entry in the slot for that id, overwriting the
+ * oldest. Readers walk back from the newest id and skip slots that hold an
+ * older or newer entry than the id they expect, so a reader racing a writer
+ * can miss an entry but never sees a torn one.
+ *
+ * Calls that are not sampled for latency are measured with the millisecond
+ * {@link com.kvstore.core.CachedClock}, which is precise enough for the usual
+ * thresholds of several milliseconds. Lower thresholds have every call timed
+ * with {@link System#nanoTime}.
+ */
+public class SlowLog {
+    public static final long DEFAULT_SLOWER_THAN_MICROS = 10_000;
+    public static final int DEFAULT_MAX_LEN = 128;
+    // Thresholds below this are too close to the resolution of the cached clock
+    private static final long COARSE_LIMIT_MICROS = 2_000;
+    // Longer commands and arguments are cut short, as in Redis
+    private static final int MAX_ARGS = 32;
+    private static final int MAX_ARG_LENGTH = 128;
+
+    /**
+     * One slow command. Arguments beyond the limits are replaced by a note of
+     * how much was left out.
+     */
+    public record Entry(long id, long timestampSeconds, long durationMicros, List<byte[]> args, String client) {
+    }
+
+    private final long slowerThanMicros;
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong nextId = new AtomicLong();
+    // Entries with lower ids have been reset
+    private volatile long firstId;
+
+    /**
+     * @param slowerThanMicros duration from which commands are logged; 0 logs
+     *                         every command and a negative value none
+     * @param maxLen           number of entries kept
+     */
+    public SlowLog(long slowerThanMicros, int maxLen) {
+        this.slowerThanMicros = slowerThanMicros;
+        this.ring = new AtomicReferenceArray<>(Math.max(0, maxLen));
+    }
+
+    /**
+     * Returns whether calls must be timed precisely to be checked against the
+     * threshold.
+     */
+    boolean needsPreciseTiming() {
+        return slowerThanMicros >= 0 && slowerThanMicros < COARSE_LIMIT_MICROS;
+    }
+
+    /**
+     * Logs a command if it took at least the threshold.
+     */
+    void record(List<byte[]> command, long durationMicros, Channel channel) {
+        if (slowerThanMicros < 0 || durationMicros < slowerThanMicros || ring.length() == 0) {
+            return;
+        }
+        long id = nextId.getAndIncrement();
+        ring.set((int) (id % ring.length()), new Entry(id, System.currentTimeMillis() / 1000, durationMicros,
+                truncate(command), address(channel.remoteAddress())));
+    }
+
+    /**
+     * Returns up to {@code count} entries, newest first; a negative count
+     * returns all of them.
+     */
+    public List<Entry> latest(int count) {
+        List<Entry> entries = new ArrayList<>();
+        long end = nextId.get();
+        long start = Math.max(firstId, end - ring.length());
+        for (long id = end - 1; id >= start && (count < 0 || entries.size() < count); id--) {
+            Entry entry = ring.get((int) (id % ring.length()));
+            if (entry != null && entry.id() == id) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public int length() {
+        return latest(-1).size();
+    }
+
+    public void reset() {
+        firstId = nextId.get();
+    }
+
+    private static List<byte[]> truncate(List<byte[]> command) {
+        int kept = command.size() > MAX_ARGS ? MAX_ARGS - 1 : command.size();
+        List<byte[]> args = new ArrayList<>(kept + 1);
+        for (int i = 0; i < kept; i++) {
+            byte[] arg = command.get(i);
+            if (arg.length <= MAX_ARG_LENGTH) {
+                args.add(arg);
+            } else {
+                String more = "... (" + (arg.length - MAX_ARG_LENGTH) + " more bytes)";
+                byte[] cut = Arrays.copyOf(arg, MAX_ARG_LENGTH + more.length());
+                System.arraycopy(more.getBytes(StandardCharsets.US_ASCII), 0, cut, MAX_ARG_LENGTH, more.length());
+                args.add(cut);
+            }
+        }
+        if (kept < command.size()) {
+            args.add(("... (" + (command.size() - kept) + " more arguments)").getBytes(StandardCharsets.US_ASCII));
+        }
+        return args;
+    }
+
+    private static String address(SocketAddress address) {
+        if (address instanceof InetSocketAddress inet && inet.getAddress() != null) {
+            return inet.getAddress().getHostAddress() + ":" + inet.getPort();
+        }
+        return address == null ? "" : address.toString();
+    }
+}
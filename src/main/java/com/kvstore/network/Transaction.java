@@ -0,0 +1,121 @@
+package com.kvstore.network;
+
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.StorageEngine;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * The MULTI/EXEC state of one connection: the keys it watches, each with a
+ * {@link StorageEngine.Stamp} of its state when WATCH was called, and the
+ * commands queued since MULTI. Only touched from the connection's event
+ * loop until EXEC hands it off.
+ *
+ * EXEC runs the queued commands while holding the stripe locks of every key
+ * they and the watches name, through {@link Keyspace#atomically}. Commands
+ * on those keys from other connections, single-key ones included, wait until
+ * the transaction is done, and the ones already running are waited for
+ * before it starts, so a transaction is atomic as MSET is. Watching a key
+ * turns a change to it before EXEC into an abort, found by comparing stamps
+ * under the locks, which costs a lookup per key; nothing can change the key
+ * between that check and the queued commands.
+ *
+ * The commands are logged one by one as they run, so a crash in the middle of
+ * an EXEC may leave only part of it in the append-only file.
+ */
+final class Transaction {
+    private final Keyspace keyspace;
+    private final List<ByteKey> watchedKeys = new ArrayList<>();
+    private final List<StorageEngine.Stamp> stamps = new ArrayList<>();
+    // Commands queued since MULTI, or null outside MULTI
+    private List<Queued> queued;
+    // Set when a command was refused while queuing, which makes EXEC fail
+    private boolean failed;
+
+    Transaction(Keyspace keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    boolean isQueuing() {
+        return queued != null;
+    }
+
+    void begin() {
+        queued = new ArrayList<>();
+    }
+
+    void queue(Command cmd, List<byte[]> command) {
+        queued.add(new Queued(cmd, command));
+    }
+
+    void fail() {
+        failed = true;
+    }
+
+    boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Watches the keys of a WATCH command, from their state now.
+     */
+    void watch(List<byte[]> command) {
+        for (int i = 1; i < command.size(); i++) {
+            ByteKey key = new ByteKey(command.get(i));
+            watchedKeys.add(key);
+            stamps.add(keyspace.shard(keyspace.shardOf(key)).stamp(key));
+        }
+    }
+
+    /**
+     * Returns the watched keys and the keys of the queued commands, which
+     * EXEC locks.
+     */
+    ByteKey[] keys() {
+        List<ByteKey> keys = new ArrayList<>(watchedKeys);
+        for (Queued command : queued) {
+            Command cmd = command.cmd();
+            List<byte[]> args = command.args();
+            if (!cmd.isKeyed() || args.size() < 2) {
+                continue;
+            }
+            int end = cmd.keyStep() == 0 ? 2 : args.size();
+            for (int i = 1; i < end; i += Math.max(1, cmd.keyStep())) {
+                keys.add(new ByteKey(args.get(i)));
+            }
+        }
+        return keys.toArray(new ByteKey[0]);
+    }
+
+    /**
+     * Runs the queued commands with {@code runner} unless a watched key has
+     * changed, and returns the reply to EXEC: the replies of the commands, or
+     * a null array if none ran.
+     *
+     * @param keys the keys returned by {@link #keys()}
+     */
+    ByteBuf exec(ByteBufAllocator alloc, ByteKey[] keys, BiFunction<Command, List<byte[]>, ByteBuf> runner) {
+        return keyspace.atomically(keys, () -> {
+            for (int i = 0; i < watchedKeys.size(); i++) {
+                ByteKey key = watchedKeys.get(i);
+                if (!keyspace.shard(keyspace.shardOf(key)).isUnchanged(key, stamps.get(i))) {
+                    return RespEncoder.nullArray();
+                }
+            }
+            ByteBuf out = alloc.ioBuffer();
+            RespEncoder.writeArrayHeader(out, queued.size());
+            for (Queued command : queued) {
+                ByteBuf reply = runner.apply(command.cmd(), command.args());
+                out.writeBytes(reply);
+                reply.release();
+            }
+            return out;
+        });
+    }
+
+    private record Queued(Command cmd, List<byte[]> args) {
+    }
+}
@@ -0,0 +1,115 @@
+package com.kvstore.network;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.kqueue.KQueue;
+import io.netty.channel.kqueue.KQueueEventLoopGroup;
+import io.netty.channel.kqueue.KQueueServerSocketChannel;
+import io.netty.channel.kqueue.KQueueSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.Locale;
+
+/**
+ * Netty transport the server runs on. The native transports call epoll or
+ * kqueue directly instead of going through the JDK selector, which saves
+ * allocations and system calls per event and, with epoll, allows several
+ * listening sockets to share a port through SO_REUSEPORT.
+ */
+public enum Transport {
+    /** Linux epoll, through Netty's JNI library */
+    EPOLL,
+    /** BSD and macOS kqueue, through Netty's JNI library */
+    KQUEUE,
+    /** The JDK selector; available everywhere */
+    NIO;
+
+    /**
+     * Returns whether the transport's native library loaded on this machine.
+     */
+    public boolean isAvailable() {
+        return switch (this) {
+            case EPOLL -> Epoll.isAvailable();
+            case KQUEUE -> KQueue.isAvailable();
+            case NIO -> true;
+        };
+    }
+
+    /**
+     * Returns whether several server sockets of this transport can listen on
+     * the same port, with the kernel spreading connections among them.
+     */
+    public boolean supportsReusePort() {
+        return this == EPOLL;
+    }
+
+    /**
+     * @param threads number of event loops, or 0 for Netty's default of two
+     *                per core
+     */
+    public EventLoopGroup newEventLoopGroup(int threads, String name) {
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(name);
+        return switch (this) {
+            case EPOLL -> new EpollEventLoopGroup(threads, threadFactory);
+            case KQUEUE -> new KQueueEventLoopGroup(threads, threadFactory);
+            case NIO -> new NioEventLoopGroup(threads, threadFactory);
+        };
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return switch (this) {
+            case EPOLL -> EpollServerSocketChannel.class;
+            case KQUEUE -> KQueueServerSocketChannel.class;
+            case NIO -> NioServerSocketChannel.class;
+        };
+    }
+
+    /**
+     * Returns the class of outgoing connections, for clients such as the
+     * load generator.
+     */
+    public Class<? extends SocketChannel> socketChannelClass() {
+        return switch (this) {
+            case EPOLL -> EpollSocketChannel.class;
+            case KQUEUE -> KQueueSocketChannel.class;
+            case NIO -> NioSocketChannel.class;
+        };
+    }
+
+    /**
+     * Returns the best transport available on this machine.
+     */
+    public static Transport best() {
+        for (Transport transport : values()) {
+            if (transport.isAvailable()) {
+                return transport;
+            }
+        }
+        return NIO;
+    }
+
+    /**
+     * Resolves a configured transport name; "auto" picks {@link #best()}.
+     *
+     * @throws IllegalArgumentException if the name is unknown or the transport
+     *                                  cannot be loaded here
+     */
+    public static Transport fromName(String name) {
+        String normalized = name.trim().toUpperCase(Locale.ROOT);
+        if (normalized.equals("AUTO")) {
+            return best();
+        }
+        Transport transport = valueOf(normalized);
+        if (!transport.isAvailable()) {
+            throw new IllegalArgumentException("Transport " + name + " is not available on this machine");
+        }
+        return transport;
+    }
+}
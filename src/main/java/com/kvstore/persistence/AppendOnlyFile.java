@@ -0,0 +1,683 @@
+package com.kvstore.persistence;
+
+import com.kvstore.network.RespEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of mutating commands in RESP form.
+ *
+ * Event loops only encode commands into an in-memory buffer; a dedicated writer
+ * thread moves everything buffered since its last pass to the file in one
+ * write and, depending on the fsync policy, one fsync. Concurrent writers
+ * therefore share a single fsync (group commit) and only block on disk when
+ * the writer falls too far behind.
+ *
+ * The log can be compacted in the background: a rewrite thread writes the
+ * commands that rebuild the current dataset to a temporary file while new
+ * commands keep being appended to the old file and are also collected in a
+ * rewrite buffer. The buffer is then appended to the new file, which replaces
+ * the old one with an atomic rename.
+ */
+public class AppendOnlyFile implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AppendOnlyFile.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+    // Bytes waiting for the writer above which appends block until it drains
+    // them, so a slow disk holds writers back rather than filling the heap
+    private static final int MAX_PENDING = 64 * 1024 * 1024;
+    private static final long EVERYSEC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * When appended data is forced to disk.
+     */
+    public enum FsyncPolicy {
+        /** After every write batch; replies to writes wait for the fsync */
+        ALWAYS,
+        /** At most once per second */
+        EVERYSEC,
+        /** Left to the operating system */
+        NO
+    }
+
+    /**
+     * Produces the commands that rebuild the current dataset. Commands that
+     * only rebuild a key correctly in order with the writes appended around
+     * them go to {@code inOrder}, which places them after everything appended
+     * so far.
+     */
+    @FunctionalInterface
+    public interface RewriteSource {
+        void forEachCommand(Consumer<List<byte[]>> sink, Consumer<List<byte[]>> inOrder);
+    }
+
+    private final Path path;
+    private final Path rewritePath;
+    private final FsyncPolicy policy;
+    private final int autoRewritePercentage;
+    private final long autoRewriteMinSize;
+    private volatile RewriteSource rewriteSource;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Condition pendingDrained = lock.newCondition();
+    // Guarded by lock
+    private ByteBuf pending = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+    private long appendedSeq;
+    private final List<Waiter> waiters = new ArrayList<>();
+    // Copy of everything appended while a rewrite runs; null otherwise
+    private ByteBuf rewriteBuffer;
+    // Bumped whenever a rewrite swaps in a new file
+    private long fileEpoch;
+    private FileChannel retiredChannel;
+    private volatile FileChannel channel;
+    private volatile long durableSeq;
+    private volatile boolean running;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // Swapped with pending under the lock, otherwise only touched by the writer thread
+    private ByteBuf writing = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+    private Thread writer;
+
+    private final AtomicBoolean rewriteInProgress = new AtomicBoolean();
+    private volatile long currentSize;
+    private volatile long baseSize;
+
+    /**
+     * @param autoRewritePercentage growth over the size after the last rewrite
+     *                              that triggers a new one, or 0 to disable
+     * @param autoRewriteMinSize    size below which no automatic rewrite runs
+     */
+    public AppendOnlyFile(Path path, FsyncPolicy policy, int autoRewritePercentage, long autoRewriteMinSize) {
+        this.path = path;
+        this.rewritePath = path.resolveSibling(path.getFileName() + ".rewrite");
+        this.policy = policy;
+        this.autoRewritePercentage = autoRewritePercentage;
+        this.autoRewriteMinSize = autoRewriteMinSize;
+    }
+
+    public FsyncPolicy fsyncPolicy() {
+        return policy;
+    }
+
+    public boolean isRewriteInProgress() {
+        return rewriteInProgress.get();
+    }
+
+    public long currentSize() {
+        return currentSize;
+    }
+
+    public long baseSize() {
+        return baseSize;
+    }
+
+    /**
+     * Streams the commands in the log to a consumer. A command cut short by a
+     * crash at the end of the file is dropped and the file truncated to the last
+     * complete command. Must be called before {@link #open}.
+     *
+     * @return the number of commands replayed
+     */
+    public long replay(Consumer<List<byte[]>> sink) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long commands = 0;
+        long validLength = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            CountingInputStream in = new CountingInputStream(
+                    new BufferedInputStream(Channels.newInputStream(file), READ_BUFFER_SIZE));
+            while (true) {
+                List<byte[]> command;
+                try {
+                    command = readCommand(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (command == null) {
+                    break;
+                }
+                sink.accept(command);
+                commands++;
+                validLength = in.position;
+            }
+        }
+
+        long fileLength = Files.size(path);
+        if (validLength < fileLength) {
+            logger.warn("Append-only file {} ends with {} bytes of an incomplete command, truncating",
+                    path, fileLength - validLength);
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(validLength);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Opens the log for appending and starts the writer thread. The source is
+     * used for rewrites.
+     */
+    public void open(RewriteSource source) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.deleteIfExists(rewritePath);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        currentSize = channel.size();
+        baseSize = currentSize;
+        rewriteSource = source;
+        running = true;
+        writer = new Thread(this::writeLoop, "aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("Append-only file {} opened with fsync policy {}", path, policy);
+    }
+
+    /**
+     * Queues a command for the log and returns its sequence number. Blocks
+     * while the writer is too far behind.
+     *
+     * @throws IllegalStateException if the log is not open
+     */
+    public long append(List<byte[]> command) {
+        lock.lock();
+        try {
+            while (running && pending.readableBytes() >= MAX_PENDING) {
+                pendingDrained.awaitUninterruptibly();
+            }
+            if (!running) {
+                throw new IllegalStateException("append-only file " + path + " is not open");
+            }
+            int start = pending.writerIndex();
+            RespEncoder.writeArrayHeader(pending, command.size());
+            for (byte[] arg : command) {
+                RespEncoder.writeBulk(pending, arg);
+            }
+            if (rewriteBuffer != null) {
+                rewriteBuffer.writeBytes(pending, start, pending.writerIndex() - start);
+            }
+            long seq = ++appendedSeq;
+            dataAvailable.signal();
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long appendedSeq() {
+        lock.lock();
+        try {
+            return appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs an action once every command up to the given sequence number has
+     * been fsynced. The action runs on the writer thread, or immediately if the
+     * data is already durable.
+     */
+    public void whenDurable(long seq, Runnable action) {
+        lock.lock();
+        try {
+            if (durableSeq < seq) {
+                waiters.add(new Waiter(seq, action));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    private void writeLoop() {
+        long lastFsync = System.nanoTime();
+        long writtenSeq = 0;
+        // Written data is only forced to disk up to here; under everysec the
+        // rest is forced once the interval has passed, even if nothing more
+        // is appended
+        long fsyncedSeq = 0;
+        long writingEpoch = 0;
+        // Sequence number of the last command in the writing buffer
+        long batchSeq = 0;
+        boolean stopping = false;
+        while (!stopping) {
+            FileChannel target;
+            FileChannel retired;
+            boolean sameFile;
+            lock.lock();
+            try {
+                if (!pending.isReadable() && running) {
+                    long timeout = EVERYSEC_INTERVAL_NANOS;
+                    if (policy == FsyncPolicy.EVERYSEC && writtenSeq > fsyncedSeq) {
+                        timeout = Math.max(0, lastFsync + EVERYSEC_INTERVAL_NANOS - System.nanoTime());
+                    }
+                    dataAvailable.awaitNanos(timeout);
+                }
+                if (writingEpoch != fileEpoch) {
+                    // Left over from a failed write to a file a rewrite has
+                    // since replaced; the new file already contains it
+                    writing.clear();
+                    writingEpoch = fileEpoch;
+                }
+                // A failed write left data behind: retry it alone, leaving
+                // what came after it pending so that the limit holds
+                if (!writing.isReadable()) {
+                    ByteBuf drained = pending;
+                    pending = writing;
+                    writing = drained;
+                    batchSeq = appendedSeq;
+                    pendingDrained.signalAll();
+                }
+                stopping = !running && !pending.isReadable();
+                target = channel;
+                retired = retiredChannel;
+                retiredChannel = null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                lock.unlock();
+            }
+            closeQuietly(retired);
+
+            try {
+                if (writing.isReadable()) {
+                    int written = 0;
+                    while (writing.isReadable()) {
+                        int n = target.write(writing.nioBuffer());
+                        writing.skipBytes(n);
+                        written += n;
+                    }
+                    writing.clear();
+                    if (writing.capacity() > MAX_RETAINED_BUFFER) {
+                        writing = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+                    }
+                    writtenSeq = batchSeq;
+                    if (target == channel) {
+                        currentSize += written;
+                    }
+                }
+
+                long now = System.nanoTime();
+                boolean fsync = switch (policy) {
+                    case ALWAYS -> writtenSeq > fsyncedSeq;
+                    case EVERYSEC -> writtenSeq > fsyncedSeq && now - lastFsync >= EVERYSEC_INTERVAL_NANOS;
+                    case NO -> false;
+                };
+                if (fsync) {
+                    target.force(false);
+                    lastFsync = now;
+                    fsyncedSeq = writtenSeq;
+                }
+                // Only replies under the always policy wait for durability
+                markDurable(policy == FsyncPolicy.ALWAYS ? fsyncedSeq : writtenSeq);
+                if (shouldAutoRewrite()) {
+                    logger.info("Append-only file grew from {} to {} bytes, starting automatic rewrite",
+                            baseSize, currentSize);
+                    rewriteInBackground();
+                }
+            } catch (IOException e) {
+                // Keep the unwritten data and retry on the next pass
+                logger.error("Error writing append-only file {}", path, e);
+                if (!running) {
+                    break;
+                }
+                sleepQuietly();
+            }
+        }
+    }
+
+    private boolean shouldAutoRewrite() {
+        if (autoRewritePercentage <= 0 || currentSize < autoRewriteMinSize || rewriteInProgress.get()) {
+            return false;
+        }
+        long base = Math.max(baseSize, 1);
+        return (currentSize - base) * 100 / base >= autoRewritePercentage;
+    }
+
+    /**
+     * Starts compacting the log on a background thread. Returns false if a
+     * rewrite is already running.
+     */
+    public boolean rewriteInBackground() {
+        if (!running || !rewriteInProgress.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(this::rewrite, "aof-rewrite");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private void rewrite() {
+        long startNanos = System.nanoTime();
+        FileChannel out = null;
+        boolean swapped = false;
+        try {
+            out = FileChannel.open(rewritePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            lock.lock();
+            try {
+                rewriteBuffer = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+            } finally {
+                lock.unlock();
+            }
+
+            FileChannel file = out;
+            ByteBuf chunk = Unpooled.buffer(INITIAL_BUFFER_SIZE * 2);
+            rewriteSource.forEachCommand(command -> {
+                RespEncoder.writeArrayHeader(chunk, command.size());
+                for (byte[] arg : command) {
+                    RespEncoder.writeBulk(chunk, arg);
+                }
+                if (chunk.readableBytes() >= INITIAL_BUFFER_SIZE) {
+                    writeFully(file, chunk);
+                }
+            }, this::appendToRewrite);
+            writeFully(out, chunk);
+
+            // Drain what was appended meanwhile outside the lock, so that only a
+            // small tail has to be written while appends are held back
+            for (int i = 0; i < 3; i++) {
+                ByteBuf buffered;
+                lock.lock();
+                try {
+                    buffered = rewriteBuffer;
+                    rewriteBuffer = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+                } finally {
+                    lock.unlock();
+                }
+                writeFully(out, buffered);
+            }
+            out.force(false);
+
+            long durable;
+            lock.lock();
+            try {
+                if (!running) {
+                    throw new IOException("append-only file closed during rewrite");
+                }
+                writeFully(out, rewriteBuffer);
+                out.force(false);
+                Files.move(rewritePath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                swapped = true;
+                // Everything still pending was also in the rewrite buffer
+                pending.clear();
+                pendingDrained.signalAll();
+                rewriteBuffer = null;
+                retiredChannel = channel;
+                channel = out;
+                fileEpoch++;
+                currentSize = out.size();
+                baseSize = currentSize;
+                durable = appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+            syncDirectory();
+            markDurable(durable);
+            logger.info("Append-only file rewritten to {} bytes in {} ms", baseSize,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (IOException | RuntimeException e) {
+            logger.error("Append-only file rewrite failed", e);
+            lock.lock();
+            try {
+                rewriteBuffer = null;
+            } finally {
+                lock.unlock();
+            }
+            if (!swapped) {
+                closeQuietly(out);
+                try {
+                    Files.deleteIfExists(rewritePath);
+                } catch (IOException ignored) {
+                    // Removed again on the next open
+                }
+            }
+        } finally {
+            rewriteInProgress.set(false);
+        }
+    }
+
+    /**
+     * Queues a command for the file being rewritten only, after everything
+     * appended so far. The current file is left alone.
+     */
+    private void appendToRewrite(List<byte[]> command) {
+        lock.lock();
+        try {
+            RespEncoder.writeArrayHeader(rewriteBuffer, command.size());
+            for (byte[] arg : command) {
+                RespEncoder.writeBulk(rewriteBuffer, arg);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void writeFully(FileChannel file, ByteBuf data) {
+        try {
+            while (data.isReadable()) {
+                data.skipBytes(file.write(data.nioBuffer()));
+            }
+            data.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Makes the rename durable. Not every platform can open a directory, so
+     * failures are ignored.
+     */
+    private void syncDirectory() {
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException ignored) {
+            // Best effort
+        }
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.warn("Error closing retired append-only file", e);
+        }
+    }
+
+    private void markDurable(long seq) {
+        List<Runnable> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            if (seq <= durableSeq) {
+                return;
+            }
+            durableSeq = seq;
+            waiters.removeIf(waiter -> {
+                if (waiter.seq <= seq) {
+                    ready.add(waiter.action);
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable action : ready) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.warn("Durability callback failed", e);
+            }
+        }
+    }
+
+    private static void sleepQuietly() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes and fsyncs everything appended so far, then closes the file.
+     * Appends are refused from then on. Only the first call does anything.
+     */
+    @Override
+    public void close() {
+        if (!running || !closed.compareAndSet(false, true)) {
+            return;
+        }
+        lock.lock();
+        try {
+            running = false;
+            dataAvailable.signal();
+            pendingDrained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+            closeQuietly(retiredChannel);
+            channel.force(false);
+            markDurable(appendedSeq());
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Error closing append-only file {}", path, e);
+        }
+        logger.info("Append-only file {} closed", path);
+    }
+
+    /**
+     * Reads one RESP array of bulk strings. Returns null at a clean end of file,
+     * throws EOFException if the file ends inside a command and IOException if
+     * the data is not a command at all.
+     */
+    private static List<byte[]> readCommand(CountingInputStream in) throws IOException {
+        long offset = in.position;
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        if (first != '*') {
+            throw corrupt(offset);
+        }
+        int count = (int) readNumber(in, offset);
+        List<byte[]> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (readByte(in) != '$') {
+                throw corrupt(offset);
+            }
+            int length = (int) readNumber(in, offset);
+            byte[] arg = in.readNBytes(length);
+            if (arg.length < length) {
+                throw new EOFException();
+            }
+            if (readByte(in) != '\r' || readByte(in) != '\n') {
+                throw corrupt(offset);
+            }
+            command.add(arg);
+        }
+        return command;
+    }
+
+    private static long readNumber(InputStream in, long offset) throws IOException {
+        long value = 0;
+        int b;
+        while ((b = readByte(in)) != '\r') {
+            if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+                throw corrupt(offset);
+            }
+            value = value * 10 + (b - '0');
+        }
+        if (readByte(in) != '\n') {
+            throw corrupt(offset);
+        }
+        return value;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static IOException corrupt(long offset) {
+        return new IOException("Corrupt append-only file: bad command at offset " + offset);
+    }
+
+    private record Waiter(long seq, Runnable action) {
+    }
+
+    /**
+     * Tracks how many bytes have been consumed so replay knows where the last
+     * complete command ends.
+     */
+    private static final class CountingInputStream extends InputStream {
+        private final InputStream in;
+        private long position;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.kvstore.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * A file mapped into memory as a sequence of 1GB buffers, addressed by long
+ * offsets. Values that straddle two buffers are assembled byte by byte.
+ * Multi-byte values are big-endian, like {@link ByteBuffer}.
+ */
+final class MappedFile {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    private MappedFile(MappedByteBuffer[] segments, long size) {
+        this.segments = segments;
+        this.size = size;
+    }
+
+    /**
+     * Maps the first {@code size} bytes of a file. In read-write mode the file
+     * is extended if it is shorter.
+     */
+    static MappedFile map(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+        int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(mode, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+        return new MappedFile(segments, size);
+    }
+
+    long size() {
+        return size;
+    }
+
+    byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    int getInt(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - Integer.BYTES) {
+            return segments[(int) (position >>> SEGMENT_SHIFT)].getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            value = (value << 8) | (get(position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    long getLong(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - Long.BYTES) {
+            return segments[(int) (position >>> SEGMENT_SHIFT)].getLong(offset);
+        }
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (get(position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    void get(long position, byte[] dst, int offset, int length) {
+        while (length > 0) {
+            int segmentOffset = (int) (position & SEGMENT_MASK);
+            int n = (int) Math.min(length, SEGMENT_SIZE - segmentOffset);
+            segments[(int) (position >>> SEGMENT_SHIFT)].get(segmentOffset, dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Returns whether the bytes at a position equal the given array.
+     */
+    boolean matches(long position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void put(long position, byte value) {
+        segments[(int) (position >>> SEGMENT_SHIFT)].put((int) (position & SEGMENT_MASK), value);
+    }
+
+    void putInt(long position, int value) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - Integer.BYTES) {
+            segments[(int) (position >>> SEGMENT_SHIFT)].putInt(offset, value);
+            return;
+        }
+        for (int i = Integer.BYTES - 1; i >= 0; i--) {
+            put(position++, (byte) (value >>> (i * 8)));
+        }
+    }
+
+    void putLong(long position, long value) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - Long.BYTES) {
+            segments[(int) (position >>> SEGMENT_SHIFT)].putLong(offset, value);
+            return;
+        }
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            put(position++, (byte) (value >>> (i * 8)));
+        }
+    }
+
+    /**
+     * Calls the consumer with read-only views covering [start, end) in order.
+     */
+    void forEachRange(long start, long end, Consumer<ByteBuffer> consumer) {
+        while (start < end) {
+            int offset = (int) (start & SEGMENT_MASK);
+            int n = (int) Math.min(end - start, SEGMENT_SIZE - offset);
+            consumer.accept(segments[(int) (start >>> SEGMENT_SHIFT)].slice(offset, n).asReadOnlyBuffer());
+            start += n;
+        }
+    }
+
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.kvstore.persistence;
+
+import com.kvstore.core.BackingStore;
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.CollectionValue;
+import com.kvstore.core.DataType;
+import com.kvstore.core.StorageEntry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Memory-mapped view of a snapshot written in the indexed layout. Opening it
+ * only reads the header and trailer, so it takes the same time whatever the
+ * size of the dataset; entries are decoded on demand, either by key through
+ * the on-disk hash index or by a sequential walk.
+ *
+ * <pre>
+ * file    := header record* slot[capacity] trailer
+ * slot    := keyHash:i32 recordOffset:i64      (offset 0 marks an empty slot)
+ * trailer := indexOffset:i64 capacity:i64 entryCount:i64 crc32c:i32 0:i32
+ * </pre>
+ *
+ * Records are encoded as in the block layout. The index uses linear probing
+ * over a power-of-two number of slots. When a key occurs more than once the
+ * index points at the last record, and earlier ones have the high bit of
+ * their type byte set so that walks skip them. The checksum covers the header
+ * and the records.
+ */
+public final class MappedSnapshot implements BackingStore {
+    static final int SLOT_SIZE = 12;
+    static final int TRAILER_SIZE = 32;
+    private static final int SUPERSEDED = 0x80;
+    private static final int KEY_OFFSET = 1 + 8 + 4;
+
+    private final Path path;
+    private final MappedFile file;
+    private final long indexOffset;
+    private final long capacity;
+    private final long entries;
+    private final int checksum;
+
+    private MappedSnapshot(Path path, MappedFile file, long indexOffset, long capacity, long entries, int checksum) {
+        this.path = path;
+        this.file = file;
+        this.indexOffset = indexOffset;
+        this.capacity = capacity;
+        this.entries = entries;
+        this.checksum = checksum;
+    }
+
+    public static MappedSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < SnapshotFile.HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, size - TRAILER_SIZE + trailer.position()) < 0) {
+                    throw new IOException("Snapshot " + path + " is truncated");
+                }
+            }
+            long indexOffset = trailer.getLong(0);
+            long capacity = trailer.getLong(8);
+            long entries = trailer.getLong(16);
+            int checksum = trailer.getInt(24);
+            if (indexOffset < SnapshotFile.HEADER_SIZE || Long.bitCount(capacity) != 1
+                    || indexOffset + capacity * SLOT_SIZE != size - TRAILER_SIZE) {
+                throw new IOException("Snapshot " + path + " has a corrupt index trailer");
+            }
+            MappedFile file = MappedFile.map(channel, FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE);
+            return new MappedSnapshot(path, file, indexOffset, capacity, entries, checksum);
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Returns the number of distinct keys in the snapshot, including any that
+     * have expired since it was written.
+     */
+    public long size() {
+        return entries;
+    }
+
+    @Override
+    public StorageEntry lookup(ByteKey key) {
+        // The key's own hash is the one the index was built with
+        long offset = find(file, indexOffset, capacity, key.bytes(), key.hashCode());
+        return offset < 0 ? null : decode(offset, key.length(), System.currentTimeMillis());
+    }
+
+    /**
+     * Streams every live entry in file order, skipping entries that have
+     * expired.
+     *
+     * @return the number of entries passed to the consumer
+     */
+    public long forEach(BiConsumer<ByteKey, StorageEntry> sink) throws IOException {
+        long now = System.currentTimeMillis();
+        long loaded = 0;
+        long offset = SnapshotFile.HEADER_SIZE;
+        while (offset < indexOffset) {
+            int keyLength = file.getInt(offset + 9);
+            long next = valueEnd(file, offset, keyLength);
+            if (keyLength < 0 || next > indexOffset) {
+                throw new IOException("Corrupt record at offset " + offset + " in snapshot " + path);
+            }
+            if ((file.get(offset) & SUPERSEDED) == 0) {
+                StorageEntry entry = decode(offset, keyLength, now);
+                if (entry != null) {
+                    byte[] key = new byte[keyLength];
+                    file.get(offset + KEY_OFFSET, key, 0, keyLength);
+                    sink.accept(new ByteKey(key), entry);
+                    loaded++;
+                }
+            }
+            offset = next;
+        }
+        return loaded;
+    }
+
+    /**
+     * Recomputes the checksum of the records.
+     *
+     * @throws IOException if it does not match the one in the trailer
+     */
+    public void verify() throws IOException {
+        CRC32C crc = new CRC32C();
+        file.forEachRange(0, indexOffset, crc::update);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Snapshot " + path + " failed its integrity check");
+        }
+    }
+
+    private StorageEntry decode(long offset, int keyLength, long now) {
+        long expiresAt = file.getLong(offset + 1);
+        if (expiresAt >= 0 && expiresAt <= now) {
+            return null;
+        }
+        DataType type = DataType.values()[file.get(offset) & ~SUPERSEDED];
+        long valueOffset = offset + KEY_OFFSET + keyLength;
+        Object value = switch (type) {
+            case STRING -> readValue(valueOffset);
+            case LIST, SET, HASH, SORTED_SET -> CollectionValue.deserialize(type, readValue(valueOffset));
+            default -> throw new IllegalStateException("Unsupported type " + type + " in snapshot " + path);
+        };
+        StorageEntry entry = new StorageEntry(value, type);
+        if (expiresAt >= 0) {
+            entry.setExpiresAt(expiresAt);
+        }
+        return entry;
+    }
+
+    private byte[] readValue(long valueOffset) {
+        byte[] bytes = new byte[file.getInt(valueOffset)];
+        file.get(valueOffset + 4, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Returns the offset of the record for a key, or -1 if it is not indexed.
+     */
+    private static long find(MappedFile file, long indexOffset, long capacity, byte[] key, int hash) {
+        long mask = capacity - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long slotOffset = indexOffset + slot * SLOT_SIZE;
+            long recordOffset = file.getLong(slotOffset + 4);
+            if (recordOffset == 0) {
+                return -1;
+            }
+            if (file.getInt(slotOffset) == hash && file.getInt(recordOffset + 9) == key.length
+                    && file.matches(recordOffset + KEY_OFFSET, key)) {
+                return recordOffset;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of index slots for a snapshot with the given number
+     * of records, keeping the load factor at or below 3/4.
+     */
+    static long capacityFor(long records) {
+        long minimum = Math.max(16, records + records / 3 + 1);
+        return Long.highestOneBit(minimum - 1) << 1;
+    }
+
+    /**
+     * Fills the zeroed index region following the records and marks records
+     * replaced by a later one for the same key.
+     *
+     * @return the number of distinct keys
+     */
+    static long buildIndex(MappedFile file, long indexOffset, long capacity) {
+        long mask = capacity - 1;
+        long distinct = 0;
+        long offset = SnapshotFile.HEADER_SIZE;
+        while (offset < indexOffset) {
+            int keyLength = file.getInt(offset + 9);
+            byte[] key = new byte[keyLength];
+            file.get(offset + KEY_OFFSET, key, 0, keyLength);
+            int hash = hash(key);
+            for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long slotOffset = indexOffset + slot * SLOT_SIZE;
+                long existing = file.getLong(slotOffset + 4);
+                if (existing == 0) {
+                    file.putInt(slotOffset, hash);
+                    file.putLong(slotOffset + 4, offset);
+                    distinct++;
+                    break;
+                }
+                if (file.getInt(slotOffset) == hash && file.getInt(existing + 9) == keyLength
+                        && file.matches(existing + KEY_OFFSET, key)) {
+                    file.put(existing, (byte) (file.get(existing) | SUPERSEDED));
+                    file.putLong(slotOffset + 4, offset);
+                    break;
+                }
+            }
+            offset = valueEnd(file, offset, keyLength);
+        }
+        return distinct;
+    }
+
+    private static long valueEnd(MappedFile file, long offset, int keyLength) {
+        long valueOffset = offset + KEY_OFFSET + keyLength;
+        return valueOffset + 4 + file.getInt(valueOffset);
+    }
+
+    /**
+     * Hash of a key as stored in the index; must stay {@link ByteKey#hash}
+     * so that lookups can use the key's cached hash.
+     */
+    static int hash(byte[] key) {
+        return ByteKey.hash(key);
+    }
+}
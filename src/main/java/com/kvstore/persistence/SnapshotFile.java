@@ -0,0 +1,423 @@
+package com.kvstore.persistence;
+
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.CollectionValue;
+import com.kvstore.core.DataType;
+import com.kvstore.core.StorageEntry;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary point-in-time dump of the keyspace, in one of two layouts.
+ *
+ * The block layout packs records into blocks that are optionally compressed
+ * and is read back sequentially:
+ *
+ * <pre>
+ * file    := "KVSNAP" version:u8 flags:u8 block* end
+ * block   := rawLength:i32 storedLength:i32 bytes[storedLength]
+ * end     := 0:i32 entryCount:i64 crc32c:i32
+ * record  := type:u8 expiresAtMillis:i64 keyLength:i32 key valueLength:i32 value
+ * </pre>
+ *
+ * Records are packed into blocks of about {@value #BLOCK_SIZE} bytes and never
+ * span two blocks. With the LZ4 flag set each block is compressed on its own;
+ * a block that does not shrink is stored as is, which the reader recognises by
+ * its stored length being equal to its raw length. The checksum covers the raw
+ * bytes of every block. An expiry of -1 means the entry does not expire. A
+ * string value is stored as is, and a collection as
+ * {@link CollectionValue#serialize} writes it.
+ *
+ * The indexed layout stores the records uncompressed and back to back,
+ * followed by a hash index, so that it can be served through a memory mapping
+ * without loading it first; see {@link MappedSnapshot}.
+ */
+public final class SnapshotFile {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotFile.class);
+    private static final byte[] MAGIC = "KVSNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_LZ4 = 1;
+    private static final int FLAG_INDEXED = 2;
+    static final int HEADER_SIZE = MAGIC.length + 2;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4;
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    /**
+     * How a snapshot is laid out on disk.
+     */
+    public enum Format {
+        /** Uncompressed blocks, loaded in full on startup */
+        PLAIN,
+        /** LZ4-compressed blocks, loaded in full on startup */
+        LZ4,
+        /** Uncompressed records with a hash index, served lazily through a memory mapping */
+        INDEXED
+    }
+
+    private final Path path;
+
+    public SnapshotFile(Path path) {
+        this.path = path;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * Opens a writer on a temporary file next to the snapshot. The snapshot is
+     * only replaced once {@link Writer#commit()} succeeds.
+     */
+    public Writer newWriter(Format format) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return new Writer(path, path.resolveSibling(path.getFileName() + ".tmp"), format);
+    }
+
+    /**
+     * Returns whether the snapshot uses the indexed layout and can be opened
+     * with {@link MappedSnapshot#open}.
+     */
+    public boolean isIndexed() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return (readHeader(channel) & FLAG_INDEXED) != 0;
+        }
+    }
+
+    /**
+     * Reads and checks the file header and returns its flags.
+     */
+    private int readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header);
+        header.flip();
+        for (byte b : MAGIC) {
+            if (header.get() != b) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+        }
+        int version = header.get();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + " in " + path);
+        }
+        return header.get();
+    }
+
+    /**
+     * Streams every entry in the snapshot to a consumer, skipping entries that
+     * have expired since it was written.
+     *
+     * @return the number of entries loaded
+     */
+    public long load(BiConsumer<ByteKey, StorageEntry> sink) throws IOException {
+        if (isIndexed()) {
+            MappedSnapshot mapped = MappedSnapshot.open(path);
+            mapped.verify();
+            return mapped.forEach(sink);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            boolean compressed = (readHeader(channel) & FLAG_LZ4) != 0;
+
+            LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+            CRC32C crc = new CRC32C();
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            byte[] stored = new byte[BLOCK_SIZE];
+            byte[] raw = new byte[BLOCK_SIZE];
+            long now = System.currentTimeMillis();
+            long entries = 0;
+            long loaded = 0;
+            while (true) {
+                blockHeader.clear().limit(4);
+                readFully(channel, blockHeader);
+                int rawLength = blockHeader.getInt(0);
+                if (rawLength == 0) {
+                    break;
+                }
+                blockHeader.limit(BLOCK_HEADER_SIZE);
+                readFully(channel, blockHeader);
+                int storedLength = blockHeader.getInt(4);
+                if (rawLength < 0 || storedLength < 0 || storedLength > rawLength
+                        || (!compressed && storedLength != rawLength)) {
+                    throw new IOException("Corrupt block header in snapshot " + path);
+                }
+                if (stored.length < storedLength) {
+                    stored = new byte[storedLength];
+                }
+                readFully(channel, ByteBuffer.wrap(stored, 0, storedLength));
+                byte[] block = stored;
+                if (storedLength != rawLength) {
+                    if (raw.length < rawLength) {
+                        raw = new byte[rawLength];
+                    }
+                    decompressor.decompress(stored, 0, raw, 0, rawLength);
+                    block = raw;
+                }
+                crc.update(block, 0, rawLength);
+
+                ByteBuffer records = ByteBuffer.wrap(block, 0, rawLength);
+                while (records.hasRemaining()) {
+                    DataType type = DataType.values()[records.get()];
+                    long expiresAt = records.getLong();
+                    ByteKey key = new ByteKey(readBytes(records));
+                    Object value = switch (type) {
+                        case STRING -> readBytes(records);
+                        case LIST, SET, HASH, SORTED_SET -> CollectionValue.deserialize(type, readBytes(records));
+                        default -> throw new IOException("Unsupported type " + type + " in snapshot " + path);
+                    };
+                    entries++;
+                    if (expiresAt >= 0 && expiresAt <= now) {
+                        continue;
+                    }
+                    StorageEntry entry = new StorageEntry(value, type);
+                    if (expiresAt >= 0) {
+                        entry.setExpiresAt(expiresAt);
+                    }
+                    sink.accept(key, entry);
+                    loaded++;
+                }
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(12);
+            readFully(channel, trailer);
+            if (trailer.getLong(0) != entries || trailer.getInt(8) != (int) crc.getValue()) {
+                throw new IOException("Snapshot " + path + " failed its integrity check");
+            }
+            return loaded;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException
+                 | LZ4Exception e) {
+            throw new IOException("Corrupt record in snapshot " + path, e);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer records) {
+        byte[] value = new byte[records.getInt()];
+        records.get(value);
+        return value;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of snapshot file");
+            }
+        }
+    }
+
+    /**
+     * Writes records sequentially through one large direct buffer, so the file
+     * is written in a few big system calls. In the indexed layout the index is
+     * built on commit through a read-write mapping of the file.
+     */
+    public static final class Writer implements Closeable {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final boolean indexed;
+        private final LZ4Compressor compressor;
+        private final CRC32C crc = new CRC32C();
+        private final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private long entries;
+        private boolean committed;
+
+        private Writer(Path target, Path temp, Format format) throws IOException {
+            this.target = target;
+            this.temp = temp;
+            this.indexed = format == Format.INDEXED;
+            this.compressor = format == Format.LZ4 ? LZ4.fastCompressor() : null;
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            int flags = switch (format) {
+                case PLAIN -> 0;
+                case LZ4 -> FLAG_LZ4;
+                case INDEXED -> FLAG_INDEXED;
+            };
+            output.put(MAGIC).put((byte) FORMAT_VERSION).put((byte) flags);
+        }
+
+        /**
+         * Adds an entry unless it has already expired.
+         */
+        public void write(ByteKey key, StorageEntry entry) throws IOException {
+            if (entry.isExpired()) {
+                return;
+            }
+            byte[] keyBytes = key.bytes();
+            byte[] valueBytes = switch (entry.getType()) {
+                case STRING -> (byte[]) entry.getValue();
+                case LIST, SET, HASH, SORTED_SET -> ((CollectionValue) entry.getValue()).serialize();
+                default -> throw new IOException("Snapshots do not support type " + entry.getType());
+            };
+            int size = RECORD_OVERHEAD + keyBytes.length + valueBytes.length;
+            ByteBuffer dest;
+            if (indexed) {
+                dest = ensureOutput(size);
+            } else {
+                if (block.remaining() < size) {
+                    flushBlock();
+                    if (block.capacity() < size) {
+                        // Oversized records get a block of their own
+                        block = ByteBuffer.allocate(size);
+                    }
+                }
+                dest = block;
+            }
+            dest.put((byte) entry.getType().ordinal())
+                    .putLong(entry.hasExpiry() ? entry.getExpiresAt() : -1)
+                    .putInt(keyBytes.length).put(keyBytes)
+                    .putInt(valueBytes.length).put(valueBytes);
+            if (dest != output && dest != block) {
+                dest.flip();
+                writeFully(dest);
+            }
+            entries++;
+        }
+
+        public long entries() {
+            return entries;
+        }
+
+        /**
+         * Writes the trailer, fsyncs the file and atomically replaces the
+         * previous snapshot with it.
+         */
+        public void commit() throws IOException {
+            if (indexed) {
+                writeIndex();
+            } else {
+                flushBlock();
+                ensureOutput(4 + 12);
+                output.putInt(0).putLong(entries).putInt((int) crc.getValue());
+                drainOutput();
+            }
+            channel.force(true);
+            channel.close();
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        }
+
+        private void writeIndex() throws IOException {
+            drainOutput();
+            long indexOffset = channel.position();
+            long capacity = MappedSnapshot.capacityFor(entries);
+            long indexEnd = indexOffset + capacity * MappedSnapshot.SLOT_SIZE;
+            MappedFile file = MappedFile.map(channel, FileChannel.MapMode.READ_WRITE, indexEnd);
+            long distinct = MappedSnapshot.buildIndex(file, indexOffset, capacity);
+            file.force();
+            // Computed after indexing, which marks superseded records
+            CRC32C checksum = new CRC32C();
+            file.forEachRange(0, indexOffset, checksum::update);
+            ByteBuffer trailer = ByteBuffer.allocate(MappedSnapshot.TRAILER_SIZE)
+                    .putLong(indexOffset).putLong(capacity).putLong(distinct)
+                    .putInt((int) checksum.getValue()).putInt(0)
+                    .flip();
+            while (trailer.hasRemaining()) {
+                channel.write(trailer, indexEnd + trailer.position());
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            int rawLength = block.position();
+            if (rawLength == 0) {
+                return;
+            }
+            byte[] raw = block.array();
+            crc.update(raw, 0, rawLength);
+            block.flip();
+            if (compressor != null) {
+                int bound = compressor.maxCompressedLength(rawLength);
+                ByteBuffer dest = ensureOutput(BLOCK_HEADER_SIZE + bound);
+                int headerAt = dest.position();
+                dest.position(headerAt + BLOCK_HEADER_SIZE);
+                int compressedLength = compressor.compress(block, 0, rawLength, dest, dest.position(), bound);
+                if (compressedLength < rawLength) {
+                    dest.putInt(headerAt, rawLength).putInt(headerAt + 4, compressedLength);
+                    dest.position(headerAt + BLOCK_HEADER_SIZE + compressedLength);
+                } else {
+                    dest.position(headerAt);
+                    dest.putInt(rawLength).putInt(rawLength).put(block);
+                }
+                if (dest != output) {
+                    dest.flip();
+                    writeFully(dest);
+                }
+            } else {
+                ByteBuffer dest = ensureOutput(BLOCK_HEADER_SIZE + rawLength);
+                dest.putInt(rawLength).putInt(rawLength).put(block);
+                if (dest != output) {
+                    dest.flip();
+                    writeFully(dest);
+                }
+            }
+            if (block.capacity() > BLOCK_SIZE) {
+                block = ByteBuffer.allocate(BLOCK_SIZE);
+            } else {
+                block.clear();
+            }
+        }
+
+        /**
+         * Returns the output buffer with at least the given space free, or a
+         * temporary buffer if the output buffer could never hold that much.
+         */
+        private ByteBuffer ensureOutput(int size) throws IOException {
+            if (output.remaining() < size) {
+                drainOutput();
+            }
+            return size <= output.capacity() ? output : ByteBuffer.allocate(size);
+        }
+
+        private void drainOutput() throws IOException {
+            output.flip();
+            writeFully(output);
+            output.clear();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Discards the temporary file unless the snapshot was committed.
+         */
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                logger.warn("Could not remove temporary snapshot {}", temp, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.kvstore.persistence;
+
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.StorageEngine;
+import com.kvstore.core.StorageEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Writes snapshots of the keyspace on request (SAVE, BGSAVE) and according to
+ * save rules. A rule of N seconds and M changes takes a snapshot once at least
+ * M changes were made and N seconds have passed since the last one.
+ *
+ * Snapshots are taken with {@link StorageEngine#openSnapshot()}, so the file
+ * reflects the keyspace at the moment of the request while clients keep
+ * writing during the save.
+ */
+public class SnapshotManager implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotManager.class);
+    // Wait before retrying after a failed background save
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    /**
+     * Takes a snapshot after {@code seconds} if at least {@code changes} writes
+     * have been made.
+     */
+    public record SaveRule(long seconds, long changes) {
+    }
+
+    private final SnapshotFile file;
+    private final SnapshotFile.Format format;
+    private final List<SaveRule> rules;
+    private final List<StorageEngine> shards;
+    private final LongSupplier changeCounter;
+
+    private final AtomicBoolean saveInProgress = new AtomicBoolean();
+    private volatile long lastSaveMillis = System.currentTimeMillis();
+    private volatile long lastAttemptMillis;
+    private volatile long changesAtLastSave;
+    private volatile boolean lastSaveOk = true;
+    private ScheduledExecutorService scheduler;
+    private boolean closed;
+
+    /**
+     * @param changeCounter running total of writes to the keyspace
+     */
+    public SnapshotManager(SnapshotFile file, SnapshotFile.Format format, List<SaveRule> rules, List<StorageEngine> shards,
+                           LongSupplier changeCounter) {
+        this.file = file;
+        this.format = format;
+        this.rules = List.copyOf(rules);
+        this.shards = List.copyOf(shards);
+        this.changeCounter = changeCounter;
+    }
+
+    /**
+     * Parses rules in the form "seconds changes [seconds changes ...]", with
+     * spaces or commas as separators. An empty string yields no rules.
+     */
+    public static List<SaveRule> parseRules(String spec) {
+        String trimmed = spec.trim();
+        String[] parts = trimmed.isEmpty() ? new String[0] : trimmed.split("[\\s,]+");
+        if (parts.length % 2 != 0) {
+            throw new IllegalArgumentException("Save rules must be pairs of seconds and changes: " + spec);
+        }
+        List<SaveRule> rules = new ArrayList<>();
+        for (int i = 0; i < parts.length; i += 2) {
+            rules.add(new SaveRule(Long.parseLong(parts[i]), Long.parseLong(parts[i + 1])));
+        }
+        return rules;
+    }
+
+    /**
+     * Loads the snapshot into the keyspace, if there is one. Must be called
+     * before {@link #start()}.
+     *
+     * @return the number of entries loaded
+     */
+    public long load(BiConsumer<ByteKey, StorageEntry> sink) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        long startNanos = System.nanoTime();
+        long loaded = file.load(sink);
+        logger.info("Loaded {} entries from snapshot {} in {} ms", loaded, file.path(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return loaded;
+    }
+
+    /**
+     * Opens the snapshot for serving through a memory mapping instead of
+     * loading it, if there is one in the indexed layout.
+     *
+     * @return the mapped snapshot, or null if it has to be loaded with
+     *         {@link #load}
+     */
+    public MappedSnapshot openMapped() throws IOException {
+        if (!file.exists() || !file.isIndexed()) {
+            return null;
+        }
+        MappedSnapshot snapshot = MappedSnapshot.open(file.path());
+        logger.info("Mapped snapshot {} with {} entries", file.path(), snapshot.size());
+        return snapshot;
+    }
+
+    /**
+     * Starts checking the save rules.
+     */
+    public synchronized void start() {
+        lastSaveMillis = System.currentTimeMillis();
+        changesAtLastSave = changeCounter.getAsLong();
+        if (rules.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snapshot-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkRules, 1, 1, TimeUnit.SECONDS);
+        logger.info("Snapshot rules {} active for {}", rules, file.path());
+    }
+
+    private void checkRules() {
+        try {
+            applyRules();
+        } catch (IllegalStateException e) {
+            // A mapped snapshot is still being loaded; try again on the next tick
+            logger.debug("Skipping save rules: {}", e.getMessage());
+        }
+    }
+
+    private void applyRules() {
+        long now = System.currentTimeMillis();
+        if (!lastSaveOk && now - lastAttemptMillis < RETRY_DELAY_MILLIS) {
+            return;
+        }
+        long changes = changesSinceLastSave();
+        for (SaveRule rule : rules) {
+            if (changes >= rule.changes() && now - lastSaveMillis >= TimeUnit.SECONDS.toMillis(rule.seconds())) {
+                logger.info("{} changes in {} seconds, saving", rule.changes(), rule.seconds());
+                saveInBackground();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot on the calling thread.
+     *
+     * @throws IllegalStateException if a background save is running
+     */
+    public void save() throws IOException {
+        if (!saveInProgress.compareAndSet(false, true)) {
+            throw new IllegalStateException("Background save already in progress");
+        }
+        try {
+            long changes = changeCounter.getAsLong();
+            write(openSnapshots(), changes);
+        } finally {
+            saveInProgress.set(false);
+        }
+    }
+
+    /**
+     * Starts writing a snapshot on a background thread. Returns false if a save
+     * is already running.
+     */
+    public boolean saveInBackground() {
+        if (!saveInProgress.compareAndSet(false, true)) {
+            return false;
+        }
+        // Opened here rather than on the writer thread so that the snapshot
+        // reflects the moment of the request
+        long changes = changeCounter.getAsLong();
+        List<StorageEngine.Snapshot> views;
+        try {
+            views = openSnapshots();
+        } catch (RuntimeException e) {
+            saveInProgress.set(false);
+            throw e;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                write(views, changes);
+            } catch (IOException | RuntimeException e) {
+                // Already logged
+            } finally {
+                saveInProgress.set(false);
+            }
+        }, "snapshot-writer");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private List<StorageEngine.Snapshot> openSnapshots() {
+        List<StorageEngine.Snapshot> views = new ArrayList<>(shards.size());
+        try {
+            for (StorageEngine shard : shards) {
+                views.add(shard.openSnapshot());
+            }
+        } catch (RuntimeException e) {
+            views.forEach(StorageEngine.Snapshot::close);
+            throw e;
+        }
+        return views;
+    }
+
+    /**
+     * @param changes value of the change counter when the views were opened
+     */
+    private void write(List<StorageEngine.Snapshot> views, long changes) throws IOException {
+        long startNanos = System.nanoTime();
+        lastAttemptMillis = System.currentTimeMillis();
+        try (SnapshotFile.Writer writer = file.newWriter(format)) {
+            for (StorageEngine.Snapshot view : views) {
+                view.forEach((key, entry) -> {
+                    try {
+                        writer.write(key, entry);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            writer.commit();
+            lastSaveMillis = System.currentTimeMillis();
+            changesAtLastSave = changes;
+            lastSaveOk = true;
+            logger.info("Saved {} entries to snapshot {} in {} ms", writer.entries(), file.path(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (UncheckedIOException e) {
+            lastSaveOk = false;
+            logger.error("Snapshot {} failed", file.path(), e.getCause());
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            lastSaveOk = false;
+            logger.error("Snapshot {} failed", file.path(), e);
+            throw e;
+        } finally {
+            views.forEach(StorageEngine.Snapshot::close);
+        }
+    }
+
+    public boolean isSaveInProgress() {
+        return saveInProgress.get();
+    }
+
+    public boolean lastSaveOk() {
+        return lastSaveOk;
+    }
+
+    /**
+     * Returns the time of the last successful save in epoch milliseconds, or
+     * the startup time if there has been none.
+     */
+    public long lastSaveMillis() {
+        return lastSaveMillis;
+    }
+
+    public long changesSinceLastSave() {
+        return changeCounter.getAsLong() - changesAtLastSave;
+    }
+
+    /**
+     * Stops the rule checks and, if save rules are configured, writes a final
+     * snapshot of any changes made since the last one. Waits for a mapped
+     * snapshot to finish loading first, since until then the keyspace cannot
+     * be saved, and skips the save if that load failed.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            while (saveInProgress.get() || shards.stream().anyMatch(StorageEngine::isLoading)) {
+                Thread.sleep(10);
+            }
+            if (shards.stream().anyMatch(StorageEngine::loadFailed)) {
+                logger.warn("Not saving on shutdown: loading {} failed, so the file is kept as it is", file.path());
+            } else if (changesSinceLastSave() > 0) {
+                save();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | IllegalStateException e) {
+            logger.error("Final snapshot on shutdown failed", e);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.kvstore.replication;
+
+import com.kvstore.core.CachedClock;
+import com.kvstore.network.Command;
+import com.kvstore.network.Keyspace;
+import com.kvstore.network.RedisCommandDecoder;
+import com.kvstore.network.RespEncoder;
+import com.kvstore.network.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A replica's connection to its primary. It announces itself, asks to
+ * continue from where it stopped or to sync in full, then applies the
+ * commands the primary streams, on one of the worker event loops. Commands
+ * are applied as an append-only file is replayed, so they also reach this
+ * server's own log. The connection is retried every second until the
+ * replica is stopped.
+ *
+ * The primary's status replies are read by the same decoder as the stream,
+ * as inline commands whose first word is the status.
+ */
+final class ReplicaClient {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaClient.class);
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long ACK_INTERVAL_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // The primary pings every ten seconds; this long without a byte means
+    // the link is lost
+    private static final int READ_TIMEOUT_SECONDS = 60;
+    // Keys per DEL when the dataset is dropped for a full sync
+    private static final int CLEAR_BATCH = 64;
+
+    private enum State {
+        /** Waiting for the primary's greeting */
+        CONNECTING,
+        /** Announced the listening port */
+        ANNOUNCED,
+        /** Sent PSYNC */
+        REQUESTED,
+        /** Receiving the dataset */
+        SYNCING,
+        /** Following the stream */
+        STREAMING
+    }
+
+    private final Keyspace keyspace;
+    private final EventLoopGroup workers;
+    private final String host;
+    private final int port;
+    private final int listeningPort;
+    private final Bootstrap bootstrap;
+    private volatile boolean stopped;
+    private volatile Channel channel;
+    private volatile State state = State.CONNECTING;
+    // Id of the primary and offset reached in its stream, kept across
+    // reconnections to continue from; "?" and -1 until a full sync completes
+    private volatile String primaryReplid = "?";
+    private volatile long offset = -1;
+    // The same for a full sync in progress
+    private String syncReplid;
+    private long syncOffset;
+    private volatile long lastIoMillis = CachedClock.millis();
+
+    ReplicaClient(Keyspace keyspace, EventLoopGroup workers, Transport transport, String host, int port,
+            int listeningPort) {
+        this.keyspace = keyspace;
+        this.workers = workers;
+        this.host = host;
+        this.port = port;
+        this.listeningPort = listeningPort;
+        this.bootstrap = new Bootstrap()
+                .group(workers)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline()
+                                .addLast("readTimeout", new ReadTimeoutHandler(READ_TIMEOUT_SECONDS))
+                                .addLast("decoder", new RedisCommandDecoder())
+                                .addLast("handler", new LinkHandler());
+                    }
+                });
+    }
+
+    String host() {
+        return host;
+    }
+
+    int port() {
+        return port;
+    }
+
+    String primaryReplid() {
+        return primaryReplid;
+    }
+
+    long offset() {
+        return Math.max(0, offset);
+    }
+
+    boolean isSyncing() {
+        return state == State.SYNCING;
+    }
+
+    boolean isStreaming() {
+        return state == State.STREAMING;
+    }
+
+    long secondsSinceLastIo() {
+        return (CachedClock.millis() - lastIoMillis) / 1000;
+    }
+
+    void start() {
+        connect();
+    }
+
+    void stop() {
+        stopped = true;
+        Channel current = channel;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void connect() {
+        if (stopped) {
+            return;
+        }
+        // A snapshot still loading would come back over the synced data
+        if (keyspace.isLoading()) {
+            reconnectLater();
+            return;
+        }
+        state = State.CONNECTING;
+        bootstrap.connect(host, port).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                logger.warn("Connecting to primary {}:{} failed: {}", host, port, future.cause().getMessage());
+                reconnectLater();
+            } else if (stopped) {
+                future.channel().close();
+            } else {
+                channel = future.channel();
+            }
+        });
+    }
+
+    private void reconnectLater() {
+        if (!stopped) {
+            workers.next().schedule(this::connect, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops every key, through DEL commands so that this server's own
+     * append-only file records it too.
+     */
+    private void clearDataset() {
+        // Whatever survived a damaged snapshot is about to be replaced
+        keyspace.abandonLoad();
+        for (int i = 0; i < keyspace.shardCount(); i++) {
+            List<byte[]> keys = new ArrayList<>();
+            keyspace.shard(i).forEach((key, entry) -> keys.add(key.bytes()));
+            for (int from = 0; from < keys.size(); from += CLEAR_BATCH) {
+                List<byte[]> command = new ArrayList<>(1 + CLEAR_BATCH);
+                command.add(Command.DEL.nameBytes());
+                command.addAll(keys.subList(from, Math.min(keys.size(), from + CLEAR_BATCH)));
+                keyspace.executor(i).execute(ByteBufAllocator.DEFAULT, Command.DEL, command).release();
+            }
+        }
+    }
+
+    private void apply(List<byte[]> command) {
+        Command cmd = Command.lookup(command.get(0));
+        int shard = command.size() > 1 ? keyspace.shardOf(command.get(1)) : 0;
+        ByteBuf reply = keyspace.executor(shard).execute(ByteBufAllocator.DEFAULT, cmd, command);
+        if (RespEncoder.isError(reply)) {
+            logger.warn("Replicated {} failed: {}", new String(command.get(0), StandardCharsets.US_ASCII),
+                    reply.toString(StandardCharsets.UTF_8).trim());
+        }
+        reply.release();
+    }
+
+    /**
+     * Returns the number of bytes a command takes in the stream, as the
+     * primary encodes it.
+     */
+    static long encodedLength(List<byte[]> command) {
+        long length = 1 + digits(command.size()) + 2;
+        for (byte[] arg : command) {
+            length += 1 + digits(arg.length) + 2 + arg.length + 2;
+        }
+        return length;
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static ByteBuf encode(ByteBufAllocator alloc, byte[]... command) {
+        ByteBuf out = alloc.ioBuffer();
+        RespEncoder.writeArrayHeader(out, command.length);
+        for (byte[] arg : command) {
+            RespEncoder.writeBulk(out, arg);
+        }
+        return out;
+    }
+
+    private static String status(List<byte[]> reply) {
+        return new String(reply.get(0), StandardCharsets.US_ASCII);
+    }
+
+    private final class LinkHandler extends SimpleChannelInboundHandler<List<byte[]>> {
+        private ScheduledFuture<?> acknowledgements;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            logger.info("Connected to primary {}:{}", host, port);
+            acknowledgements = ctx.executor().scheduleAtFixedRate(() -> acknowledge(ctx), ACK_INTERVAL_MILLIS,
+                    ACK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, List<byte[]> command) {
+            lastIoMillis = CachedClock.millis();
+            switch (state) {
+                case CONNECTING -> {
+                    if (expect(ctx, command, "+OK")) {
+                        state = State.ANNOUNCED;
+                        ctx.writeAndFlush(encode(ctx.alloc(), ReplicationManager.REPLCONF,
+                                ReplicationManager.LISTENING_PORT_OPTION, ascii(listeningPort)));
+                    }
+                }
+                case ANNOUNCED -> {
+                    if (expect(ctx, command, "+OK")) {
+                        state = State.REQUESTED;
+                        ctx.writeAndFlush(encode(ctx.alloc(), ReplicationManager.PSYNC,
+                                primaryReplid.getBytes(StandardCharsets.US_ASCII), ascii(offset)));
+                    }
+                }
+                case REQUESTED -> resync(ctx, command);
+                case SYNCING -> {
+                    if (Command.lookup(command.get(0)) == Command.REPLCONF && command.size() >= 2
+                            && Arrays.equals(command.get(1), ReplicationManager.SYNCED)) {
+                        primaryReplid = syncReplid;
+                        // The sync carries what was logged during it, up to
+                        // the offset given
+                        offset = command.size() > 2
+                                ? Long.parseLong(new String(command.get(2), StandardCharsets.US_ASCII))
+                                : syncOffset;
+                        state = State.STREAMING;
+                        logger.info("Full sync from primary {}:{} complete, {} keys", host, port, keyspace.size());
+                    } else {
+                        apply(command);
+                    }
+                }
+                case STREAMING -> {
+                    apply(command);
+                    offset += encodedLength(command);
+                }
+                default -> throw new IllegalStateException("Unexpected state " + state);
+            }
+        }
+
+        private void resync(ChannelHandlerContext ctx, List<byte[]> reply) {
+            String status = status(reply);
+            if (status.equals("+FULLRESYNC") && reply.size() == 3) {
+                syncReplid = new String(reply.get(1), StandardCharsets.US_ASCII);
+                syncOffset = Long.parseLong(new String(reply.get(2), StandardCharsets.US_ASCII));
+                // Until the sync completes there is nothing to continue from
+                primaryReplid = "?";
+                offset = -1;
+                logger.info("Full sync from primary {}:{} started at offset {}", host, port, syncOffset);
+                clearDataset();
+                state = State.SYNCING;
+            } else if (status.equals("+CONTINUE")) {
+                logger.info("Continuing from primary {}:{} at offset {}", host, port, offset);
+                state = State.STREAMING;
+            } else {
+                refused(ctx, reply);
+            }
+        }
+
+        private boolean expect(ChannelHandlerContext ctx, List<byte[]> reply, String expected) {
+            if (reply.size() == 1 && status(reply).equals(expected)) {
+                return true;
+            }
+            refused(ctx, reply);
+            return false;
+        }
+
+        private void refused(ChannelHandlerContext ctx, List<byte[]> reply) {
+            List<String> words = new ArrayList<>();
+            for (byte[] word : reply) {
+                words.add(new String(word, StandardCharsets.UTF_8));
+            }
+            logger.warn("Primary {}:{} refused to replicate: {}", host, port, String.join(" ", words));
+            ctx.close();
+        }
+
+        private void acknowledge(ChannelHandlerContext ctx) {
+            if (state == State.STREAMING) {
+                ctx.writeAndFlush(encode(ctx.alloc(), ReplicationManager.REPLCONF, ReplicationManager.ACK,
+                        ascii(offset)));
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            acknowledgements.cancel(false);
+            state = State.CONNECTING;
+            if (!stopped) {
+                logger.warn("Lost connection to primary {}:{}, reconnecting", host, port);
+            }
+            reconnectLater();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Replication link to {}:{} failed: {}", host, port, cause.toString());
+            ctx.close();
+        }
+    }
+
+    private static byte[] ascii(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,120 @@
+package com.kvstore.replication;
+
+import com.kvstore.core.CachedClock;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The primary's end of the connection of one replica, added to the
+ * connection's pipeline once the replica has asked to sync. After any full
+ * sync it streams the backlog to the replica from the replica's offset on
+ * the connection's event loop, as far as the socket takes it; writers only
+ * wake it, at most one pending wake-up at a time.
+ */
+final class ReplicaLink extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaLink.class);
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ReplicationManager manager;
+    private final Channel channel;
+    // Port the replica serves clients on, as it announced
+    private final int listeningPort;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Set once the full sync, if any, has been sent
+    private volatile boolean online;
+    // Set when streaming starts, then only touched on the channel's loop
+    private ReplicationBacklog backlog;
+    // Offset of the next byte to send
+    private long sentOffset;
+    private volatile long ackedOffset;
+    private volatile long lastAckMillis = CachedClock.millis();
+
+    ReplicaLink(ReplicationManager manager, Channel channel, int listeningPort) {
+        this.manager = manager;
+        this.channel = channel;
+        this.listeningPort = listeningPort;
+    }
+
+    Channel channel() {
+        return channel;
+    }
+
+    /**
+     * Starts streaming the backlog from the given offset.
+     */
+    void start(ReplicationBacklog backlog, long offset) {
+        channel.eventLoop().execute(() -> {
+            this.backlog = backlog;
+            sentOffset = offset;
+            online = true;
+            flush();
+        });
+    }
+
+    /**
+     * Sends what has been appended to the backlog since the last call.
+     */
+    void wake() {
+        if (online && flushScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        boolean wrote = false;
+        while (channel.isWritable() && sentOffset < backlog.endOffset()) {
+            ByteBuf chunk = channel.alloc().ioBuffer((int) Math.min(CHUNK_SIZE, backlog.endOffset() - sentOffset));
+            int read = backlog.read(sentOffset, chunk, CHUNK_SIZE);
+            if (read < 0) {
+                chunk.release();
+                logger.warn("Replica {} fell more than the backlog behind, disconnecting it", channel.remoteAddress());
+                channel.close();
+                return;
+            }
+            sentOffset += read;
+            channel.write(chunk);
+            wrote = true;
+        }
+        if (wrote) {
+            channel.flush();
+        }
+    }
+
+    void acknowledge(long offset) {
+        ackedOffset = offset;
+        lastAckMillis = CachedClock.millis();
+    }
+
+    /**
+     * Returns the replica's line in INFO replication, without its name.
+     */
+    String describe() {
+        SocketAddress address = channel.remoteAddress();
+        String host = address instanceof InetSocketAddress inet ? inet.getAddress().getHostAddress() : "?";
+        return "ip=" + host + ",port=" + listeningPort + ",state=" + (online ? "online" : "wait_bgsave")
+                + ",offset=" + ackedOffset + ",lag=" + (CachedClock.millis() - lastAckMillis) / 1000;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (online && channel.isWritable()) {
+            flush();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        manager.detach(this);
+        logger.info("Replica {} disconnected", channel.remoteAddress());
+        super.channelInactive(ctx);
+    }
+}
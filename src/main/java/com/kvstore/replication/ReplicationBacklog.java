@@ -0,0 +1,105 @@
+package com.kvstore.replication;
+
+import com.kvstore.network.RespEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The latest part of the stream of commands sent to replicas, in RESP form,
+ * kept in a ring of fixed size. Bytes of the stream are addressed by their
+ * replication offset, the number of bytes sent before them since the backlog
+ * was created.
+ *
+ * Connected replicas are fed from the ring, each from its own offset, so a
+ * command is encoded once however many replicas there are. A replica that
+ * reconnects resumes from its offset as long as the ring still holds it; one
+ * that falls further behind than the ring's size has to sync in full.
+ */
+final class ReplicationBacklog {
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[] ring;
+    // Guarded by lock
+    private ByteBuf encoded = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+    // Offset past the last byte appended; written under lock
+    private volatile long endOffset;
+
+    ReplicationBacklog(int size) {
+        this.ring = new byte[size];
+    }
+
+    int size() {
+        return ring.length;
+    }
+
+    /**
+     * Appends a command to the stream and returns the offset past it.
+     */
+    long append(List<byte[]> command) {
+        lock.lock();
+        try {
+            encoded.clear();
+            RespEncoder.writeArrayHeader(encoded, command.size());
+            for (byte[] arg : command) {
+                RespEncoder.writeBulk(encoded, arg);
+            }
+            write(encoded);
+            if (encoded.capacity() > MAX_RETAINED_BUFFER) {
+                encoded = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+            }
+            return endOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(ByteBuf bytes) {
+        long end = endOffset;
+        int length = bytes.readableBytes();
+        // Of a command longer than the ring, only its end is kept
+        int skipped = Math.max(0, length - ring.length);
+        bytes.skipBytes(skipped);
+        int position = (int) ((end + skipped) % ring.length);
+        int first = Math.min(length - skipped, ring.length - position);
+        bytes.readBytes(ring, position, first);
+        bytes.readBytes(ring, 0, length - skipped - first);
+        endOffset = end + length;
+    }
+
+    long endOffset() {
+        return endOffset;
+    }
+
+    /**
+     * Returns the offset of the oldest byte the ring still holds.
+     */
+    long startOffset() {
+        return Math.max(0, endOffset - ring.length);
+    }
+
+    /**
+     * Copies up to {@code max} bytes of the stream from offset {@code from}
+     * into {@code out}, and returns how many were copied, or -1 if the bytes
+     * at {@code from} have been overwritten or are yet to come.
+     */
+    int read(long from, ByteBuf out, int max) {
+        lock.lock();
+        try {
+            if (from < startOffset() || from > endOffset) {
+                return -1;
+            }
+            int length = (int) Math.min(max, endOffset - from);
+            int position = (int) (from % ring.length);
+            int first = Math.min(length, ring.length - position);
+            out.writeBytes(ring, position, first);
+            out.writeBytes(ring, 0, length - first);
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
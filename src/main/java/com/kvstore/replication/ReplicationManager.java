@@ -0,0 +1,504 @@
+package com.kvstore.replication;
+
+import com.kvstore.network.Keyspace;
+import com.kvstore.network.RespEncoder;
+import com.kvstore.network.Transport;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Replication state of a server, which is either a primary, streaming its
+ * writes to any replicas that connect, or a replica of another server.
+ *
+ * A replica connects with PSYNC, giving the id of the primary it last
+ * followed and the offset it reached. If that id is this server's and the
+ * backlog still holds the offset, the replica continues from there. Otherwise
+ * it gets a full sync: the commands that rebuild the dataset, as for an
+ * append-only file rewrite, walked on a background thread without stopping
+ * writers, then everything logged since the walk started. Like the rewrite,
+ * this relies on logged commands being idempotent. Lists, which are not, are
+ * sent among the logged commands at the offset where the walk saw them, and
+ * the sync ends with the offset the stream continues from.
+ *
+ * Writes are only logged for replicas once the first one has connected,
+ * which creates the backlog. Counters are incremented without logging until
+ * then, so the full sync that creates it waits for every event loop to
+ * finish what it is running before it takes its starting offset.
+ */
+public class ReplicationManager {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationManager.class);
+    private static final AttributeKey<Integer> LISTENING_PORT = AttributeKey.valueOf("replicaListeningPort");
+    private static final long HEARTBEAT_SECONDS = 10;
+    private static final long LOADING_POLL_MILLIS = 100;
+    private static final int SYNC_CHUNK_SIZE = 64 * 1024;
+    private static final int REPLID_BYTES = 20;
+    // Commands the primary and replica exchange besides the stream
+    static final byte[] REPLCONF = ascii("REPLCONF");
+    static final byte[] PSYNC = ascii("PSYNC");
+    static final byte[] SYNCED = ascii("SYNCED");
+    static final byte[] ACK = ascii("ACK");
+    static final byte[] LISTENING_PORT_OPTION = ascii("listening-port");
+    private static final List<byte[]> PING = List.of(ascii("PING"));
+
+    private final Keyspace keyspace;
+    private final EventLoopGroup workers;
+    private final Transport transport;
+    // Port this server takes clients on, announced to its primary
+    private final int port;
+    private final int backlogSize;
+    private final ExecutorService syncer;
+    private final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+    private volatile String replid = newReplid();
+    // Created by the first full sync; null while no replica has connected
+    private volatile ReplicationBacklog backlog;
+    // Connection to the primary; null on a primary
+    private volatile ReplicaClient primary;
+    private ScheduledFuture<?> heartbeat;
+    private final LongAdder fullSyncs = new LongAdder();
+    private final LongAdder partialSyncs = new LongAdder();
+    private final LongAdder partialSyncErrors = new LongAdder();
+
+    public ReplicationManager(Keyspace keyspace, EventLoopGroup workers, Transport transport, int port,
+            long backlogSize) {
+        this.keyspace = keyspace;
+        this.workers = workers;
+        this.transport = transport;
+        this.port = port;
+        this.backlogSize = Math.toIntExact(backlogSize);
+        this.syncer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts pinging replicas, so that they can tell an idle primary from a
+     * lost one.
+     */
+    public void start() {
+        heartbeat = workers.next().scheduleAtFixedRate(this::heartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    public synchronized void close() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        if (primary != null) {
+            primary.stop();
+            primary = null;
+        }
+        closeReplicas();
+        syncer.shutdownNow();
+    }
+
+    public boolean isReplica() {
+        return primary != null;
+    }
+
+    /**
+     * Returns whether writes are being logged for replicas.
+     */
+    public boolean isStreaming() {
+        return backlog != null;
+    }
+
+    /**
+     * Appends a mutation to the stream sent to replicas, if there is one.
+     */
+    public void log(List<byte[]> command) {
+        ReplicationBacklog current = backlog;
+        if (current != null) {
+            current.append(command);
+            wakeReplicas();
+        }
+    }
+
+    private void wakeReplicas() {
+        for (ReplicaLink link : replicas) {
+            link.wake();
+        }
+    }
+
+    private void heartbeat() {
+        ReplicationBacklog current = backlog;
+        if (current != null && !replicas.isEmpty()) {
+            current.append(PING);
+            wakeReplicas();
+        }
+    }
+
+    /**
+     * Makes this server a replica of another, dropping its own replicas and,
+     * once connected, its data.
+     */
+    public synchronized void replicaOf(String host, int primaryPort) {
+        ReplicaClient previous = primary;
+        if (previous != null) {
+            if (previous.host().equals(host) && previous.port() == primaryPort) {
+                return;
+            }
+            previous.stop();
+        }
+        // Whatever they were sent is about to be replaced
+        closeReplicas();
+        backlog = null;
+        replid = newReplid();
+        logger.info("Replicating from {}:{}", host, primaryPort);
+        primary = new ReplicaClient(keyspace, workers, transport, host, primaryPort, port);
+        primary.start();
+    }
+
+    /**
+     * Stops following the primary and takes writes again, keeping the data
+     * replicated so far.
+     */
+    public synchronized void promote() {
+        ReplicaClient previous = primary;
+        if (previous == null) {
+            return;
+        }
+        previous.stop();
+        primary = null;
+        replid = newReplid();
+        logger.info("Stopped replicating from {}:{}, now a primary", previous.host(), previous.port());
+    }
+
+    private void closeReplicas() {
+        for (ReplicaLink link : replicas) {
+            link.channel().close();
+        }
+        replicas.clear();
+    }
+
+    void detach(ReplicaLink link) {
+        replicas.remove(link);
+    }
+
+    /**
+     * Handles REPLCONF from a replica, and returns the reply to it, or null
+     * for an acknowledgement, which gets none.
+     */
+    public ByteBuf replconf(Channel channel, List<byte[]> command) {
+        ByteBufAllocator alloc = channel.alloc();
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'replconf' command");
+        }
+        String option = new String(command.get(1), StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+        try {
+            long value = Long.parseLong(new String(command.get(2), StandardCharsets.US_ASCII));
+            switch (option) {
+                case "listening-port" -> {
+                    channel.attr(LISTENING_PORT).set((int) value);
+                    return RespEncoder.ok();
+                }
+                case "ack" -> {
+                    ReplicaLink link = channel.pipeline().get(ReplicaLink.class);
+                    if (link != null) {
+                        link.acknowledge(value);
+                    }
+                    return null;
+                }
+                default -> {
+                    return RespEncoder.error(alloc, "ERR Unrecognized REPLCONF option: " + option);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+        }
+    }
+
+    /**
+     * Handles PSYNC from a replica, which turns its connection into a
+     * replication link. Returns an error reply if it is refused, or null if
+     * the connection has been taken over.
+     */
+    public ByteBuf psync(Channel channel, List<byte[]> command) {
+        ByteBufAllocator alloc = channel.alloc();
+        if (command.size() != 3) {
+            return RespEncoder.error(alloc, "ERR wrong number of arguments for 'psync' command");
+        }
+        if (isReplica()) {
+            return RespEncoder.error(alloc, "ERR PSYNC is not supported by a replica");
+        }
+        String id = new String(command.get(1), StandardCharsets.US_ASCII);
+        long offset;
+        try {
+            offset = Long.parseLong(new String(command.get(2), StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return RespEncoder.error(alloc, "ERR value is not an integer or out of range");
+        }
+        if (keyspace.loadFailed()) {
+            return RespEncoder.error(alloc, "ERR loading the snapshot failed, the dataset cannot be synced");
+        }
+        Integer listeningPort = channel.attr(LISTENING_PORT).get();
+        ReplicaLink link = new ReplicaLink(this, channel, listeningPort != null ? listeningPort : 0);
+        channel.pipeline().addLast("replicaLink", link);
+        replicas.add(link);
+
+        ReplicationBacklog current = backlog;
+        if (current != null && id.equals(replid) && offset >= current.startOffset()
+                && offset <= current.endOffset()) {
+            partialSyncs.increment();
+            logger.info("Replica {} continues from offset {}", channel.remoteAddress(), offset);
+            channel.write(RespEncoder.simple(alloc, "CONTINUE " + replid));
+            link.start(current, offset);
+            return null;
+        }
+        if (!id.equals("?")) {
+            partialSyncErrors.increment();
+        }
+        fullSyncs.increment();
+        syncer.execute(() -> fullSync(link));
+        return null;
+    }
+
+    /**
+     * Sends a replica the commands that rebuild the dataset and everything
+     * logged during the walk, then streams it what is logged after.
+     */
+    private void fullSync(ReplicaLink link) {
+        Channel channel = link.channel();
+        SyncWriter writer = new SyncWriter(channel);
+        try {
+            // A snapshot still loading is not in the shards yet
+            while (keyspace.isLoading()) {
+                Thread.sleep(LOADING_POLL_MILLIS);
+            }
+            if (keyspace.loadFailed()) {
+                throw new IllegalStateException("loading the snapshot failed");
+            }
+            long startNanos = System.nanoTime();
+            ReplicationBacklog current = ensureBacklog();
+            long offset = current.endOffset();
+            writer.status("FULLRESYNC " + replid + " " + offset);
+            // Each list goes where the stream stood when it was taken, read
+            // under the list's lock as its writers log under it
+            List<Positioned> lists = new ArrayList<>();
+            keyspace.rewriteCommands(writer, command -> lists.add(new Positioned(current.endOffset(), command)));
+            long synced = writer.copyStream(current, offset, lists);
+            writer.accept(List.of(REPLCONF, SYNCED, ascii(Long.toString(synced))));
+            writer.finish();
+            link.start(current, synced);
+            logger.info("Sent full sync to replica {} in {} ms", channel.remoteAddress(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (SyncAborted e) {
+            writer.abort();
+            logger.warn("Replica {} disconnected during its full sync", channel.remoteAddress());
+        } catch (InterruptedException e) {
+            writer.abort();
+            channel.close();
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            writer.abort();
+            logger.error("Full sync to replica {} failed", channel.remoteAddress(), e);
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the backlog, creating it first if needed. Only called from the
+     * sync thread, so a backlog is not handed out before the event loops have
+     * been waited for.
+     */
+    private ReplicationBacklog ensureBacklog() {
+        ReplicationBacklog current;
+        synchronized (this) {
+            current = backlog;
+            if (current != null) {
+                return current;
+            }
+            current = new ReplicationBacklog(backlogSize);
+            backlog = current;
+        }
+        // Writes running now may have found nothing logging them; once every
+        // loop has run a task queued after them, they are all in the dataset
+        // the walk will see
+        for (EventExecutor loop : workers) {
+            loop.submit(() -> { }).syncUninterruptibly();
+        }
+        return current;
+    }
+
+    public long fullSyncs() {
+        return fullSyncs.sum();
+    }
+
+    public long partialSyncs() {
+        return partialSyncs.sum();
+    }
+
+    public long partialSyncErrors() {
+        return partialSyncErrors.sum();
+    }
+
+    /**
+     * Appends the fields of INFO replication.
+     */
+    public void describe(StringBuilder info) {
+        ReplicaClient client = primary;
+        ReplicationBacklog current = backlog;
+        if (client != null) {
+            info.append("role:slave\r\n");
+            info.append("master_host:").append(client.host()).append("\r\n");
+            info.append("master_port:").append(client.port()).append("\r\n");
+            info.append("master_link_status:").append(client.isStreaming() ? "up" : "down").append("\r\n");
+            info.append("master_last_io_seconds_ago:").append(client.secondsSinceLastIo()).append("\r\n");
+            info.append("master_sync_in_progress:").append(client.isSyncing() ? 1 : 0).append("\r\n");
+            info.append("slave_repl_offset:").append(client.offset()).append("\r\n");
+            info.append("slave_read_only:1\r\n");
+        } else {
+            info.append("role:master\r\n");
+        }
+        info.append("connected_slaves:").append(replicas.size()).append("\r\n");
+        int index = 0;
+        for (ReplicaLink link : replicas) {
+            info.append("slave").append(index++).append(':').append(link.describe()).append("\r\n");
+        }
+        info.append("master_replid:").append(client != null ? client.primaryReplid() : replid).append("\r\n");
+        info.append("master_repl_offset:")
+                .append(client != null ? client.offset() : current != null ? current.endOffset() : 0).append("\r\n");
+        info.append("repl_backlog_active:").append(current != null ? 1 : 0).append("\r\n");
+        info.append("repl_backlog_size:").append(backlogSize).append("\r\n");
+        info.append("repl_backlog_first_byte_offset:").append(current != null ? current.startOffset() : 0)
+                .append("\r\n");
+        info.append("repl_backlog_histlen:")
+                .append(current != null ? current.endOffset() - current.startOffset() : 0).append("\r\n");
+    }
+
+    private static String newReplid() {
+        byte[] id = new byte[REPLID_BYTES];
+        new SecureRandom().nextBytes(id);
+        return HexFormat.of().formatHex(id);
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the commands of a full sync to a replica in chunks, waiting for
+     * the socket to drain whenever the connection's buffer is full.
+     */
+    private static final class SyncWriter implements Consumer<List<byte[]>> {
+        private final Channel channel;
+        private ByteBuf out;
+
+        SyncWriter(Channel channel) {
+            this.channel = channel;
+        }
+
+        void status(String line) {
+            channel.write(Unpooled.copiedBuffer("+" + line + "\r\n", StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void accept(List<byte[]> command) {
+            if (out == null) {
+                out = channel.alloc().ioBuffer(SYNC_CHUNK_SIZE);
+            }
+            RespEncoder.writeArrayHeader(out, command.size());
+            for (byte[] arg : command) {
+                RespEncoder.writeBulk(out, arg);
+            }
+            if (out.readableBytes() >= SYNC_CHUNK_SIZE) {
+                send();
+            }
+        }
+
+        private void send() {
+            ByteBuf chunk = out;
+            out = null;
+            if (!channel.isActive()) {
+                chunk.release();
+                throw new SyncAborted();
+            }
+            ChannelFuture written = channel.writeAndFlush(chunk);
+            if (!channel.isWritable()) {
+                written.awaitUninterruptibly();
+            }
+        }
+
+        /**
+         * Writes what the backlog holds from an offset on, with the given
+         * commands placed at their offsets, and returns the offset it stopped
+         * at.
+         */
+        long copyStream(ReplicationBacklog backlog, long from, List<Positioned> commands) {
+            long end = backlog.endOffset();
+            long position = from;
+            for (Positioned command : commands) {
+                copy(backlog, position, command.offset());
+                accept(command.command());
+                position = command.offset();
+            }
+            copy(backlog, position, end);
+            return end;
+        }
+
+        private void copy(ReplicationBacklog backlog, long from, long to) {
+            while (from < to) {
+                if (out == null) {
+                    out = channel.alloc().ioBuffer(SYNC_CHUNK_SIZE);
+                }
+                int read = backlog.read(from, out, (int) Math.min(SYNC_CHUNK_SIZE, to - from));
+                if (read < 0) {
+                    throw new IllegalStateException("the backlog was overrun during the sync");
+                }
+                from += read;
+                if (out.readableBytes() >= SYNC_CHUNK_SIZE) {
+                    send();
+                }
+            }
+        }
+
+        void finish() {
+            if (out != null) {
+                send();
+            }
+        }
+
+        void abort() {
+            if (out != null) {
+                out.release();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * A command to send at an offset of the stream.
+     */
+    private record Positioned(long offset, List<byte[]> command) {
+    }
+
+    private static final class SyncAborted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SyncAborted() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.kvstore.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drives the wheel with made-up times, a tick at a time.
+ */
+class ExpiryWheelTest {
+    private static final long TICK = ExpiryWheel.TICK_MILLIS;
+    private static final long TURN = ExpiryWheel.SLOTS * TICK;
+    // On a tick boundary
+    private static final long START = 1_000_000 * TURN;
+    private static final long UNLIMITED = Long.MAX_VALUE;
+
+    @Test
+    void handsEachRegistrationOverInTheTickAfterItsDeadline() {
+        ExpiryWheel wheel = new ExpiryWheel(START);
+        // Over more than two turns, so that most slots hold registrations of
+        // several turns at once
+        Map<ByteKey, Long> deadlines = new HashMap<>();
+        for (long deadline = START; deadline < START + 2 * TURN + TICK; deadline += 37) {
+            ByteKey key = key("key:" + deadline);
+            wheel.add(key, deadline);
+            deadlines.put(key, deadline);
+        }
+        // Already passed when registered
+        ByteKey late = key("late");
+        wheel.add(late, START - 5 * TURN);
+
+        Map<ByteKey, Long> handedAt = new HashMap<>();
+        for (long now = START + TICK; now <= START + 2 * TURN + 2 * TICK; now += TICK) {
+            long at = now;
+            wheel.poll(now, UNLIMITED, registration -> {
+                Long previous = handedAt.put(registration.key(), at);
+                assertEquals(null, previous, registration.key() + " handed over twice");
+            });
+        }
+
+        assertEquals(START + TICK, handedAt.remove(late));
+        assertEquals(deadlines.keySet(), handedAt.keySet());
+        for (Map.Entry<ByteKey, Long> entry : deadlines.entrySet()) {
+            long deadline = entry.getValue();
+            assertEquals((deadline / TICK + 1) * TICK, handedAt.get(entry.getKey()),
+                    "deadline " + deadline);
+        }
+    }
+
+    @Test
+    void keepsARegistrationDueInALaterTurnForThatTurn() {
+        ExpiryWheel wheel = new ExpiryWheel(START);
+        // Same slot as a deadline of START + TICK, three turns on
+        long deadline = START + TICK + 3 * TURN;
+        wheel.add(key("far"), deadline);
+
+        List<Long> handedAt = new ArrayList<>();
+        for (long now = START + TICK; now <= deadline + TICK; now += TICK) {
+            long at = now;
+            wheel.poll(now, UNLIMITED, registration -> handedAt.add(at));
+        }
+        assertEquals(List.of(deadline + TICK), handedAt);
+    }
+
+    @Test
+    void handsOverBothDeadlinesOfARescheduledKey() {
+        ExpiryWheel wheel = new ExpiryWheel(START);
+        ByteKey key = key("key");
+        wheel.add(key, START + 10 * TICK);
+        // Given a later expiry, then an earlier one; the wheel keeps every
+        // registration, and the engine drops those that no longer match
+        wheel.add(key, START + 20 * TICK);
+        wheel.add(key, START + 5 * TICK);
+
+        List<ExpiryWheel.Registration> handed = new ArrayList<>();
+        List<Long> handedAt = new ArrayList<>();
+        for (long now = START + TICK; now <= START + 30 * TICK; now += TICK) {
+            long at = now;
+            wheel.poll(now, UNLIMITED, registration -> {
+                handed.add(registration);
+                handedAt.add(at);
+            });
+        }
+        assertEquals(List.of(new ExpiryWheel.Registration(key, START + 5 * TICK),
+                new ExpiryWheel.Registration(key, START + 10 * TICK),
+                new ExpiryWheel.Registration(key, START + 20 * TICK)), handed);
+        assertEquals(List.of(START + 6 * TICK, START + 11 * TICK, START + 21 * TICK), handedAt);
+    }
+
+    @Test
+    void stopsAtTheTimeBudgetAndResumesOnTheNextPoll() {
+        ExpiryWheel wheel = new ExpiryWheel(START);
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            // Across a few ticks
+            wheel.add(key("key:" + i), START + i % 5 * TICK);
+        }
+
+        long now = START + 10 * TICK;
+        List<ByteKey> handed = new ArrayList<>();
+        // No budget: the clock is checked every 64 registrations
+        int first = wheel.poll(now, 0, registration -> handed.add(registration.key()));
+        assertTrue(first > 0 && first < count && first % 64 == 0, first + " handled in the first poll");
+        assertEquals(first, handed.size());
+
+        int polls = 1;
+        while (handed.size() < count) {
+            int handledNow = wheel.poll(now, 0, registration -> handed.add(registration.key()));
+            assertTrue(handledNow > 0, "a poll with work left handled nothing");
+            polls++;
+        }
+        assertTrue(polls >= count / 64, polls + " polls");
+        assertEquals(count, handed.stream().distinct().count());
+        assertEquals(0, wheel.poll(now, UNLIMITED, registration -> handed.add(registration.key())));
+    }
+
+    private static ByteKey key(String key) {
+        return new ByteKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,110 @@
+package com.kvstore.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class StorageEngineScanTest {
+    private static final int INITIAL_KEYS = 2000;
+
+    @Test
+    void visitsEveryKeyWhileTheTableGrowsBetweenCalls() {
+        StorageEngine engine = new StorageEngine();
+        Set<ByteKey> initial = fill(engine, "initial:", INITIAL_KEYS);
+
+        Set<ByteKey> seen = new HashSet<>();
+        long cursor = 0;
+        int calls = 0;
+        int added = 0;
+        do {
+            cursor = engine.scan(cursor, 10, (key, entry) -> seen.add(key));
+            // Over the first calls, enough keys for every segment to resize
+            // several times
+            for (int i = 0; calls < 100 && i < 500; i++) {
+                engine.set(key("added:" + added++), value("v"), DataType.STRING);
+            }
+            calls++;
+            assertTrue(calls < 100_000, "scan did not terminate");
+        } while (cursor != 0);
+
+        assertTrue(seen.containsAll(initial), missing(initial, seen) + " initial keys not visited");
+        assertTrue(engine.size() > 20 * INITIAL_KEYS);
+    }
+
+    @Test
+    void visitsEveryKeyWhileAnotherThreadAddsAndRemovesKeys() throws InterruptedException {
+        StorageEngine engine = new StorageEngine();
+        Set<ByteKey> initial = fill(engine, "initial:", INITIAL_KEYS);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            // Grows the table to about 100,000 keys, then keeps replacing them
+            for (int n = 0; !stop.get(); n++) {
+                engine.set(key("added:" + n % 200_000), value("v"), DataType.STRING);
+                engine.delete(key("added:" + (n + 100_000) % 200_000));
+            }
+        });
+        writer.start();
+        try {
+            for (int walk = 0; walk < 5; walk++) {
+                Set<ByteKey> seen = new HashSet<>();
+                long cursor = 0;
+                do {
+                    cursor = engine.scan(cursor, 50, (key, entry) -> seen.add(key));
+                } while (cursor != 0);
+                assertTrue(seen.containsAll(initial), missing(initial, seen) + " initial keys not visited");
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    void visitsEachKeyOnceWhenNothingChanges() {
+        StorageEngine engine = new StorageEngine();
+        Set<ByteKey> keys = fill(engine, "key:", INITIAL_KEYS);
+
+        int[] visits = new int[1];
+        Set<ByteKey> seen = new HashSet<>();
+        long cursor = 0;
+        do {
+            cursor = engine.scan(cursor, 100, (key, entry) -> {
+                visits[0]++;
+                seen.add(key);
+            });
+        } while (cursor != 0);
+
+        assertEquals(keys, seen);
+        assertEquals(INITIAL_KEYS, visits[0]);
+    }
+
+    private static Set<ByteKey> fill(StorageEngine engine, String prefix, int count) {
+        Set<ByteKey> keys = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            ByteKey key = key(prefix + i);
+            engine.set(key, value("v" + i), DataType.STRING);
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static int missing(Set<ByteKey> expected, Set<ByteKey> seen) {
+        Set<ByteKey> missing = new HashSet<>(expected);
+        missing.removeAll(seen);
+        return missing.size();
+    }
+
+    private static ByteKey key(String key) {
+        return new ByteKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] value(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+package com.kvstore.core;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class StorageEngineSnapshotTest {
+    private static final int INCREMENTERS = 4;
+    private static final int SNAPSHOTS = 2000;
+
+    @Test
+    void snapshotHoldsACounterAsItWasWhenOpened() throws InterruptedException {
+        StorageEngine engine = new StorageEngine();
+        ByteKey key = new ByteKey("counter".getBytes(StandardCharsets.US_ASCII));
+        engine.incrementBy(key, 0, null);
+        CounterEntry counter = (CounterEntry) engine.get(key).orElseThrow();
+
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> incrementers = new ArrayList<>();
+        for (int i = 0; i < INCREMENTERS; i++) {
+            Thread thread = new Thread(() -> {
+                while (!stop.get()) {
+                    engine.incrementBy(key, 1, null);
+                }
+            });
+            thread.start();
+            incrementers.add(thread);
+        }
+        try {
+            for (int i = 0; i < SNAPSHOTS; i++) {
+                long before = counter.get();
+                try (StorageEngine.Snapshot view = engine.openSnapshot()) {
+                    long after = counter.get();
+                    long[] seen = new long[1];
+                    // The last visit of a key carries its value from the start
+                    view.forEach((k, entry) -> seen[0] = ((CounterEntry) entry).get());
+                    assertTrue(seen[0] >= before && seen[0] <= after,
+                            seen[0] + " outside [" + before + ", " + after + "]");
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread thread : incrementers) {
+                thread.join();
+            }
+        }
+    }
+}
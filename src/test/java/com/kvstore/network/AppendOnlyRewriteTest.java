@@ -0,0 +1,86 @@
+package com.kvstore.network;
+
+import static com.kvstore.network.InProcessServer.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.kvstore.config.ServerConfig;
+import com.kvstore.persistence.AppendOnlyFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+class AppendOnlyRewriteTest {
+    private static final int LISTS = 50;
+    private static final int REWRITES = 5;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void listsWrittenDuringRewritesReplayAsTheyWere() throws Exception {
+        List<Object> live = new ArrayList<>();
+        try (InProcessServer server = InProcessServer.start(config()); RespClient client = server.connect()) {
+            // Enough keys for each walk to take a while
+            String padding = "x".repeat(100);
+            for (int i = 0; i < 20_000; i++) {
+                client.call("SET", "key:" + i, padding);
+            }
+
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> writers = new ArrayList<>();
+            for (int w = 0; w < 2; w++) {
+                Thread writer = new Thread(() -> {
+                    try (RespClient writing = server.connect()) {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (long n = 0; !stop.get(); n++) {
+                            String list = "list:" + random.nextInt(LISTS);
+                            if (random.nextInt(4) == 0) {
+                                writing.call("LPOP", list);
+                            } else {
+                                writing.call("RPUSH", list, Long.toString(n));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+            try {
+                for (int i = 0; i < REWRITES; i++) {
+                    assertEquals("Background append only file rewriting started", client.call("BGREWRITEAOF"));
+                    await(() -> client.info("aof_rewrite_in_progress").equals("0"));
+                }
+            } finally {
+                stop.set(true);
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+            }
+            assertEquals(null, failure.get());
+            for (int i = 0; i < LISTS; i++) {
+                live.add(client.call("LRANGE", "list:" + i, "0", "-1"));
+            }
+        }
+
+        try (InProcessServer restarted = InProcessServer.start(config()); RespClient client = restarted.connect()) {
+            for (int i = 0; i < LISTS; i++) {
+                assertEquals(live.get(i), client.call("LRANGE", "list:" + i, "0", "-1"), "list:" + i);
+            }
+        }
+    }
+
+    private ServerConfig config() throws Exception {
+        ServerConfig config = InProcessServer.config(dir);
+        config.setAppendOnly(true);
+        config.setAppendFsync(AppendOnlyFile.FsyncPolicy.NO);
+        return config;
+    }
+}
@@ -0,0 +1,76 @@
+package com.kvstore.network;
+
+import static com.kvstore.network.InProcessServer.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.kvstore.config.ServerConfig;
+import com.kvstore.persistence.SnapshotFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Starts a server on an indexed snapshot whose records were damaged after it
+ * was written, so that it maps but fails to load.
+ */
+class DamagedSnapshotTest {
+    private static final int KEYS = 3000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void failedLoadStopsBlockingAndKeepsTheFile() throws Exception {
+        ServerConfig config = config();
+        try (InProcessServer server = InProcessServer.start(config); RespClient client = server.connect()) {
+            for (int i = 0; i < KEYS; i++) {
+                client.call("SET", "key:" + i, "value:" + i);
+            }
+            assertEquals("OK", client.call("SAVE"));
+        }
+        Path path = dir.resolve(config.getSnapshotFileName());
+        // Inside the records, which the trailer's checksum covers
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, 1000);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            channel.write(b, 1000);
+        }
+        byte[] damaged = Files.readAllBytes(path);
+
+        InProcessServer server = InProcessServer.start(config());
+        try (RespClient client = server.connect()) {
+            await(() -> client.info("loading").equals("0"));
+            assertError("loading the snapshot failed", client.call("SCAN", "0"));
+            assertError("loading the snapshot failed", client.call("PSYNC", "?", "-1"));
+            // Still served: reads through the snapshot, writes to the shards
+            assertEquals("value:" + (KEYS - 1), client.call("GET", "key:" + (KEYS - 1)));
+            assertEquals("OK", client.call("SET", "after", "failure"));
+            assertEquals("failure", client.call("GET", "after"));
+        }
+        assertTimeoutPreemptively(Duration.ofMillis(InProcessServer.TIMEOUT_MILLIS), server::close);
+        // Not replaced by what little was loaded
+        assertArrayEquals(damaged, Files.readAllBytes(path));
+    }
+
+    private ServerConfig config() throws Exception {
+        ServerConfig config = InProcessServer.config(dir);
+        config.setSnapshotFormat(SnapshotFile.Format.INDEXED);
+        // A rule, so that shutting down takes a final snapshot
+        config.setSave("3600 1");
+        return config;
+    }
+
+    private static void assertError(String expected, Object reply) {
+        assertTrue(reply instanceof RespClient.ErrorReply error && error.message().contains(expected),
+                "expected an error about " + expected + ", got " + reply);
+    }
+}
@@ -0,0 +1,105 @@
+package com.kvstore.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.kvstore.config.ServerConfig;
+import com.kvstore.core.EvictionPolicy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.file.Path;
+
+class EvictionTest {
+    private static final long MAX_MEMORY = 1024 * 1024;
+    private static final String VALUE = "v".repeat(200);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void allKeysLruEvictsColdKeysFirstAndCountsThem() throws Exception {
+        try (InProcessServer server = InProcessServer.start(config(EvictionPolicy.ALLKEYS_LRU));
+                RespClient client = server.connect()) {
+            // Cold keys fill half the limit, hot keys most of the rest
+            int half = fill(client, "cold:", MAX_MEMORY / 2);
+            // Past the resolution of the LRU clock
+            Thread.sleep(50);
+            int hot = fill(client, "hot:", MAX_MEMORY * 9 / 10);
+            Thread.sleep(50);
+            for (int i = 0; i < hot; i++) {
+                assertEquals(VALUE, client.call("GET", "hot:" + i));
+            }
+            Thread.sleep(50);
+
+            // Needs about half the cold keys' memory
+            int added = half / 2;
+            for (int i = 0; i < added; i++) {
+                assertEquals("OK", client.call("SET", "new:" + i, VALUE));
+            }
+
+            int coldLeft = count(client, "cold:", half);
+            int hotLeft = count(client, "hot:", hot);
+            long evicted = Long.parseLong(client.info("evicted_keys"));
+            assertEquals(half + hot + added - (long) client.call("DBSIZE"), evicted);
+            assertTrue(evicted >= added / 2, evicted + " keys evicted");
+            assertTrue(Long.parseLong(client.info("used_memory_dataset")) <= MAX_MEMORY + VALUE.length() * 4L);
+            // Sampling is approximate, so a few hot keys may go too
+            assertTrue(half - coldLeft >= evicted * 9 / 10,
+                    evicted + " keys evicted, of which only " + (half - coldLeft) + " cold");
+            assertTrue(hotLeft >= hot * 9 / 10, "only " + hotLeft + " of " + hot + " hot keys left");
+        }
+    }
+
+    @Test
+    void volatileTtlWithoutVolatileKeysRefusesWrites() throws Exception {
+        try (InProcessServer server = InProcessServer.start(config(EvictionPolicy.VOLATILE_TTL));
+                RespClient client = server.connect()) {
+            Object reply = null;
+            int written = 0;
+            while (written < 100_000) {
+                reply = client.call("SET", "key:" + written, VALUE);
+                if (!"OK".equals(reply)) {
+                    break;
+                }
+                written++;
+            }
+            assertTrue(reply instanceof RespClient.ErrorReply error && error.message().startsWith("OOM"),
+                    "SET past maxmemory replied " + reply);
+            assertEquals((long) written, client.call("DBSIZE"));
+            assertEquals("0", client.info("evicted_keys"));
+            // Reads still work
+            assertEquals(VALUE, client.call("GET", "key:0"));
+        }
+    }
+
+    private ServerConfig config(EvictionPolicy policy) throws Exception {
+        ServerConfig config = InProcessServer.config(dir);
+        config.setMaxMemory(MAX_MEMORY);
+        config.setMaxMemoryPolicy(policy);
+        return config;
+    }
+
+    /**
+     * Writes keys with a prefix until the dataset reaches a size, and returns
+     * how many were written.
+     */
+    private static int fill(RespClient client, String prefix, long size) {
+        int written = 0;
+        while (Long.parseLong(client.info("used_memory_dataset")) < size) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals("OK", client.call("SET", prefix + written++, VALUE));
+            }
+        }
+        return written;
+    }
+
+    private static int count(RespClient client, String prefix, int keys) {
+        int found = 0;
+        for (int i = 0; i < keys; i++) {
+            if (client.call("GET", prefix + i) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
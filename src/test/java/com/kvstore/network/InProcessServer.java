@@ -0,0 +1,92 @@
+package com.kvstore.network;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+import com.kvstore.config.ServerConfig;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * A server run on a thread of its own in the test's JVM.
+ */
+public final class InProcessServer implements AutoCloseable {
+    public static final long TIMEOUT_MILLIS = 15_000;
+
+    private final KVStoreServer server;
+    private final int port;
+
+    private InProcessServer(ServerConfig config) {
+        this.server = new KVStoreServer(config);
+        this.port = config.getPort();
+    }
+
+    /**
+     * Returns a configuration for a server on a free port that keeps its
+     * files in the given directory.
+     */
+    public static ServerConfig config(Path dataDir) throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(freePort());
+        config.setDataDir(dataDir);
+        config.setJmx(false);
+        config.setWorkerThreads(2);
+        return config;
+    }
+
+    /**
+     * Starts a server and waits until it accepts connections.
+     */
+    public static InProcessServer start(ServerConfig config) throws InterruptedException {
+        InProcessServer started = new InProcessServer(config);
+        Thread thread = new Thread(() -> {
+            try {
+                started.server.start();
+            } catch (Exception e) {
+                // Reported by the wait below timing out
+            }
+        }, "server-" + config.getPort());
+        thread.setDaemon(true);
+        thread.start();
+        await(() -> {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), config.getPort())) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        return started;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public RespClient connect() throws IOException {
+        return new RespClient(port);
+    }
+
+    @Override
+    public void close() {
+        server.shutdown();
+    }
+
+    public static void await(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.get()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out waiting");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.kvstore.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.kvstore.config.ServerConfig;
+import com.kvstore.persistence.AppendOnlyFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+class MultiKeyCommandsTest {
+    private static final int GROUPS = 2000;
+    private static final int GROUP = 20;
+    private static final long RUN_MILLIS = 2_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void appendOnlyFileReplaysToTheLiveDatasetWhenSetRacesMset() throws Exception {
+        List<Object> live = new ArrayList<>();
+        try (InProcessServer server = InProcessServer.start(appendOnlyConfig())) {
+            // Each MSET writes a group of keys of its own, while the SETs go
+            // to the group being written, so that a write logged out of order
+            // is never overwritten and shows in the end
+            AtomicLong group = new AtomicLong();
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> setters = new ArrayList<>();
+            for (int c = 0; c < 3; c++) {
+                String value = "set:" + c;
+                setters.add(client(server, stop, failure, (client, n) -> assertEquals("OK",
+                        client.call("SET", key(group.get(), ThreadLocalRandom.current().nextInt(GROUP)), value))));
+            }
+            try (RespClient client = server.connect()) {
+                for (int g = 0; g < GROUPS; g++) {
+                    group.set(g);
+                    String[] mset = new String[1 + 2 * GROUP];
+                    mset[0] = "MSET";
+                    for (int i = 0; i < GROUP; i++) {
+                        mset[1 + 2 * i] = key(g, i);
+                        mset[2 + 2 * i] = "mset";
+                    }
+                    assertEquals("OK", client.call(mset));
+                }
+            } finally {
+                stop.set(true);
+                for (Thread setter : setters) {
+                    setter.join();
+                }
+            }
+            assertEquals(null, failure.get());
+            try (RespClient client = server.connect()) {
+                for (int g = 0; g < GROUPS; g++) {
+                    live.add(client.call(mget(g)));
+                }
+            }
+        }
+
+        try (InProcessServer restarted = InProcessServer.start(appendOnlyConfig());
+                RespClient client = restarted.connect()) {
+            for (int g = 0; g < GROUPS; g++) {
+                assertEquals(live.get(g), client.call(mget(g)), "group " + g);
+            }
+        }
+    }
+
+    @Test
+    void mgetSeesAllOrNoneOfAnMset() throws Exception {
+        try (InProcessServer server = InProcessServer.start(InProcessServer.config(dir))) {
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread writer = client(server, stop, failure, (client, n) -> {
+                String value = Long.toString(n);
+                assertEquals("OK", client.call("MSET", "a", value, "b", value, "c", value));
+            });
+            Thread reader = client(server, stop, failure, (client, n) -> {
+                List<?> values = (List<?>) client.call("MGET", "a", "b", "c");
+                assertEquals(values.get(0), values.get(1), "MGET saw " + values);
+                assertEquals(values.get(0), values.get(2), "MGET saw " + values);
+            });
+            Thread.sleep(RUN_MILLIS);
+            stop.set(true);
+            writer.join();
+            reader.join();
+            assertEquals(null, failure.get());
+        }
+    }
+
+    private ServerConfig appendOnlyConfig() throws Exception {
+        ServerConfig config = InProcessServer.config(dir);
+        config.setAppendOnly(true);
+        config.setAppendFsync(AppendOnlyFile.FsyncPolicy.NO);
+        return config;
+    }
+
+    private static String[] mget(long group) {
+        String[] command = new String[1 + GROUP];
+        command[0] = "MGET";
+        for (int i = 0; i < GROUP; i++) {
+            command[1 + i] = key(group, i);
+        }
+        return command;
+    }
+
+    private static String key(long group, int i) {
+        return "key:" + group + ":" + i;
+    }
+
+    /**
+     * Starts a thread that makes calls on a connection of its own until told
+     * to stop, recording the first failure.
+     */
+    private static Thread client(InProcessServer server, AtomicBoolean stop, AtomicReference<Throwable> failure,
+            Calls calls) {
+        Thread thread = new Thread(() -> {
+            try (RespClient client = server.connect()) {
+                for (long n = 0; !stop.get() && failure.get() == null; n++) {
+                    calls.make(client, n);
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private interface Calls {
+        void make(RespClient client, long n) throws Exception;
+    }
+}
@@ -0,0 +1,78 @@
+package com.kvstore.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class RedisCommandDecoderTest {
+    // Pipelined frames: a SET whose value holds CRLF, a GET, an inline PING,
+    // an empty bulk string and an empty array, which yields nothing
+    private static final byte[] FRAMES = ("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$7\r\nab\r\ncd\n\r\n"
+            + "*2\r\n$3\r\nGET\r\n$1\r\nk\r\n"
+            + "PING\r\n"
+            + "*2\r\n$4\r\nECHO\r\n$0\r\n\r\n"
+            + "*0\r\n"
+            + "*1\r\n$4\r\nQUIT\r\n").getBytes(StandardCharsets.UTF_8);
+
+    private static final List<List<String>> EXPECTED = List.of(
+            List.of("SET", "k", "ab\r\ncd\n"),
+            List.of("GET", "k"),
+            List.of("PING"),
+            List.of("ECHO", ""),
+            List.of("QUIT"));
+
+    @Test
+    void decodesFramesSplitAtEveryOffset() {
+        for (int split = 0; split <= FRAMES.length; split++) {
+            EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+            channel.writeInbound(Unpooled.wrappedBuffer(Arrays.copyOfRange(FRAMES, 0, split)));
+            channel.writeInbound(Unpooled.wrappedBuffer(Arrays.copyOfRange(FRAMES, split, FRAMES.length)));
+            assertEquals(EXPECTED, readAll(channel), "split at " + split);
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void decodesFramesFedOneByteAtATime() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+        for (byte b : FRAMES) {
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[] {b}));
+        }
+        assertEquals(EXPECTED, readAll(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void repliesWithAnErrorAndClosesOnABadLength() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+        channel.writeInbound(Unpooled.wrappedBuffer("*1\r\n$x\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(channel.readInbound());
+        ByteBuf reply = channel.readOutbound();
+        assertTrue(reply.toString(StandardCharsets.US_ASCII).startsWith("-ERR Protocol error"));
+        reply.release();
+        assertFalse(channel.isOpen());
+    }
+
+    private static List<List<String>> readAll(EmbeddedChannel channel) {
+        List<List<String>> commands = new ArrayList<>();
+        List<byte[]> command;
+        while ((command = channel.readInbound()) != null) {
+            List<String> args = new ArrayList<>();
+            for (byte[] arg : command) {
+                args.add(new String(arg, StandardCharsets.UTF_8));
+            }
+            commands.add(args);
+        }
+        return commands;
+    }
+}
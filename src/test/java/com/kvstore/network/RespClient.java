@@ -0,0 +1,121 @@
+package com.kvstore.network;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A blocking RESP client for tests. Replies are returned as Strings, Longs,
+ * Lists, null, or {@link ErrorReply}s.
+ */
+public final class RespClient implements Closeable {
+    private static final int TIMEOUT_MILLIS = 15_000;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+
+    public RespClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        out = socket.getOutputStream();
+        in = new BufferedInputStream(socket.getInputStream());
+        // The server greets every connection with +OK
+        read();
+    }
+
+    public Object call(String... args) {
+        try {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(("*" + args.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                request.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                request.write(bytes);
+                request.write('\r');
+                request.write('\n');
+            }
+            out.write(request.toByteArray());
+            out.flush();
+            return read();
+        } catch (IOException e) {
+            throw new AssertionError("call to " + socket.getPort() + " failed", e);
+        }
+    }
+
+    /**
+     * Returns a field of the INFO reply.
+     */
+    public String info(String field) {
+        String info = (String) call("INFO");
+        for (String line : info.split("\r\n")) {
+            if (line.startsWith(field + ":")) {
+                return line.substring(field.length() + 1);
+            }
+        }
+        throw new AssertionError("no " + field + " in INFO:\n" + info);
+    }
+
+    private Object read() throws IOException {
+        int type = in.read();
+        String line = readLine();
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                return new ErrorReply(line);
+            case ':':
+                return Long.parseLong(line);
+            case '$': {
+                int length = Integer.parseInt(line);
+                if (length < 0) {
+                    return null;
+                }
+                byte[] bytes = in.readNBytes(length + 2);
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            case '*': {
+                int length = Integer.parseInt(line);
+                if (length < 0) {
+                    return null;
+                }
+                List<Object> items = new ArrayList<>();
+                for (int i = 0; i < length; i++) {
+                    items.add(read());
+                }
+                return items;
+            }
+            default:
+                throw new IOException("unexpected reply type " + (char) type);
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                throw new IOException("connection closed");
+            }
+            line.write(b);
+        }
+        in.read();
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public record ErrorReply(String message) {
+    }
+}
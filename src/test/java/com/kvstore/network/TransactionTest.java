@@ -0,0 +1,179 @@
+package com.kvstore.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.kvstore.config.ServerConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+class TransactionTest {
+    private static final long RUN_MILLIS = 1_000;
+    // Increments per transaction in the test of readers
+    private static final int STEPS = 10;
+
+    @TempDir
+    Path dir;
+
+    private InProcessServer server;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        ServerConfig config = InProcessServer.config(dir);
+        // Connections on loops of their own, so that commands run in parallel
+        config.setWorkerThreads(4);
+        server = InProcessServer.start(config);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void execRunsTheQueuedCommands() throws Exception {
+        try (RespClient client = server.connect()) {
+            assertEquals("OK", client.call("MULTI"));
+            assertEquals("QUEUED", client.call("SET", "key", "1"));
+            assertEquals("QUEUED", client.call("INCR", "key"));
+            assertEquals("QUEUED", client.call("GET", "key"));
+            assertEquals(List.of("OK", 2L, "2"), client.call("EXEC"));
+            assertEquals("2", client.call("GET", "key"));
+        }
+    }
+
+    @Test
+    void discardDropsTheQueuedCommands() throws Exception {
+        try (RespClient client = server.connect()) {
+            assertEquals("OK", client.call("MULTI"));
+            assertEquals("QUEUED", client.call("SET", "key", "1"));
+            assertEquals("OK", client.call("DISCARD"));
+            assertEquals(null, client.call("GET", "key"));
+            assertTrue(client.call("EXEC") instanceof RespClient.ErrorReply, "EXEC ran without MULTI");
+        }
+    }
+
+    @Test
+    void watchAbortsExecWhenTheKeyChanges() throws Exception {
+        try (RespClient client = server.connect(); RespClient other = server.connect()) {
+            assertEquals("OK", client.call("WATCH", "key"));
+            assertEquals("OK", other.call("SET", "key", "other"));
+            assertEquals("OK", client.call("MULTI"));
+            assertEquals("QUEUED", client.call("SET", "key", "mine"));
+            assertEquals(null, client.call("EXEC"));
+            assertEquals("other", client.call("GET", "key"));
+
+            // EXEC unwatches, so the next transaction runs
+            assertEquals("OK", client.call("MULTI"));
+            assertEquals("QUEUED", client.call("SET", "key", "mine"));
+            assertEquals(List.of("OK"), client.call("EXEC"));
+            assertEquals("mine", client.call("GET", "key"));
+        }
+    }
+
+    @Test
+    void watchAbortsExecWhenACounterIsIncremented() throws Exception {
+        try (RespClient client = server.connect(); RespClient other = server.connect()) {
+            assertEquals("OK", client.call("SET", "counter", "10"));
+            assertEquals("OK", client.call("WATCH", "counter"));
+            assertEquals(11L, other.call("INCR", "counter"));
+            assertEquals("OK", client.call("MULTI"));
+            assertEquals("QUEUED", client.call("SET", "counter", "0"));
+            assertEquals(null, client.call("EXEC"));
+            assertEquals("11", client.call("GET", "counter"));
+        }
+    }
+
+    @Test
+    void watchedReadModifyWriteLosesNoIncrement() throws Exception {
+        try (RespClient setup = server.connect()) {
+            assertEquals("OK", setup.call("SET", "counter", "0"));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong increments = new AtomicLong();
+        List<Thread> clients = new ArrayList<>();
+        // Increments through an optimistic transaction, retried on abort
+        clients.add(client(stop, failure, client -> {
+            assertEquals("OK", client.call("WATCH", "counter"));
+            long value = Long.parseLong((String) client.call("GET", "counter"));
+            assertEquals("OK", client.call("MULTI"));
+            assertEquals("QUEUED", client.call("SET", "counter", Long.toString(value + 1)));
+            if (client.call("EXEC") != null) {
+                increments.incrementAndGet();
+            }
+        }));
+        // Increments in place, without a lock on the map
+        for (int c = 0; c < 3; c++) {
+            clients.add(client(stop, failure, client -> {
+                client.call("INCR", "counter");
+                increments.incrementAndGet();
+            }));
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread client : clients) {
+            client.join();
+        }
+        assertEquals(null, failure.get());
+        try (RespClient client = server.connect()) {
+            assertEquals(Long.toString(increments.get()), client.call("GET", "counter"));
+        }
+    }
+
+    @Test
+    void readersNeverSeeATransactionHalfway() throws Exception {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> clients = new ArrayList<>();
+        clients.add(client(stop, failure, client -> {
+            assertEquals("OK", client.call("MULTI"));
+            for (int i = 0; i < STEPS; i++) {
+                assertEquals("QUEUED", client.call("INCR", "counter"));
+            }
+            client.call("EXEC");
+        }));
+        for (int c = 0; c < 3; c++) {
+            clients.add(client(stop, failure, client -> {
+                Object value = client.call("GET", "counter");
+                assertTrue(value == null || Long.parseLong((String) value) % STEPS == 0, "GET saw " + value);
+            }));
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread client : clients) {
+            client.join();
+        }
+        assertEquals(null, failure.get());
+    }
+
+    /**
+     * Starts a thread that makes calls on a connection of its own until told
+     * to stop, recording the first failure.
+     */
+    private Thread client(AtomicBoolean stop, AtomicReference<Throwable> failure, Calls calls) {
+        Thread thread = new Thread(() -> {
+            try (RespClient client = server.connect()) {
+                while (!stop.get() && failure.get() == null) {
+                    calls.make(client);
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private interface Calls {
+        void make(RespClient client) throws Exception;
+    }
+}
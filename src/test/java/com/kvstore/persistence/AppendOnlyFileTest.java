@@ -0,0 +1,206 @@
+package com.kvstore.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class AppendOnlyFileTest {
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @EnumSource(AppendOnlyFile.FsyncPolicy.class)
+    void replaysWhatWasAppendedBeforeARestart(AppendOnlyFile.FsyncPolicy policy) throws Exception {
+        Path path = dir.resolve("appendonly.aof");
+        List<List<String>> written = new ArrayList<>();
+        AppendOnlyFile aof = open(path, policy);
+        long seq = 0;
+        for (int i = 0; i < 1000; i++) {
+            List<String> command = List.of("SET", "key:" + i, "value\r\n" + i);
+            written.add(command);
+            seq = aof.append(bytes(command));
+        }
+        // An empty argument
+        written.add(List.of("DEL", ""));
+        seq = aof.append(bytes(written.get(written.size() - 1)));
+
+        CountDownLatch durable = new CountDownLatch(1);
+        aof.whenDurable(seq, durable::countDown);
+        if (policy == AppendOnlyFile.FsyncPolicy.ALWAYS) {
+            assertTrue(durable.await(10, TimeUnit.SECONDS), "append never became durable");
+        }
+        aof.close();
+        assertEquals(0, durable.getCount());
+
+        assertEquals(written, replay(path, policy));
+        // Replaying leaves the file as it was, so a second restart sees the same
+        assertEquals(written, replay(path, policy));
+    }
+
+    @ParameterizedTest
+    @EnumSource(AppendOnlyFile.FsyncPolicy.class)
+    void appendsAfterReplayingAnExistingFile(AppendOnlyFile.FsyncPolicy policy) throws Exception {
+        Path path = dir.resolve("appendonly.aof");
+        AppendOnlyFile first = open(path, policy);
+        first.append(bytes(List.of("SET", "a", "1")));
+        first.close();
+
+        AppendOnlyFile second = new AppendOnlyFile(path, policy, 0, 0);
+        assertEquals(1, second.replay(command -> { }));
+        second.open((sink, inOrder) -> { });
+        second.append(bytes(List.of("SET", "b", "2")));
+        second.close();
+
+        assertEquals(List.of(List.of("SET", "a", "1"), List.of("SET", "b", "2")), replay(path, policy));
+    }
+
+    @Test
+    void dropsACommandCutShortAtTheEnd() throws Exception {
+        Path path = dir.resolve("appendonly.aof");
+        AppendOnlyFile aof = open(path, AppendOnlyFile.FsyncPolicy.ALWAYS);
+        aof.append(bytes(List.of("SET", "a", "1")));
+        aof.close();
+        long complete = Files.size(path);
+        Files.write(path, "*3\r\n$3\r\nSET\r\n$1\r\nb".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+        assertEquals(List.of(List.of("SET", "a", "1")), replay(path, AppendOnlyFile.FsyncPolicy.ALWAYS));
+        assertEquals(complete, Files.size(path));
+    }
+
+    @Test
+    void closesOnceAndRefusesAppendsAfterwards() throws Exception {
+        Path path = dir.resolve("appendonly.aof");
+        AppendOnlyFile aof = open(path, AppendOnlyFile.FsyncPolicy.EVERYSEC);
+        aof.append(bytes(List.of("SET", "a", "1")));
+        // As from a shutdown hook and the main thread at once
+        Thread other = new Thread(aof::close);
+        other.start();
+        aof.close();
+        other.join();
+        aof.close();
+
+        assertThrows(IllegalStateException.class, () -> aof.append(bytes(List.of("SET", "b", "2"))));
+        assertEquals(List.of(List.of("SET", "a", "1")), replay(path, AppendOnlyFile.FsyncPolicy.EVERYSEC));
+    }
+
+    @Test
+    void rewriteWhileWritingKeepsEveryWrite() throws Exception {
+        Path path = dir.resolve("appendonly.aof");
+        // The dataset the log records, changed and logged under a lock per
+        // key as the engine does
+        Map<String, String> dataset = new ConcurrentHashMap<>();
+        Object[] locks = new Object[64];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        AppendOnlyFile aof = new AppendOnlyFile(path, AppendOnlyFile.FsyncPolicy.EVERYSEC, 0, 0);
+        aof.open((sink, inOrder) -> dataset.forEach((key, value) -> sink.accept(bytes(List.of("SET", key, value)))));
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong writes = new AtomicLong();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            Thread writer = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    String key = "key:" + random.nextInt(500);
+                    synchronized (locks[Math.floorMod(key.hashCode(), locks.length)]) {
+                        if (random.nextInt(10) == 0) {
+                            if (dataset.remove(key) != null) {
+                                aof.append(bytes(List.of("DEL", key)));
+                            }
+                        } else {
+                            String value = Long.toString(writes.incrementAndGet());
+                            dataset.put(key, value);
+                            aof.append(bytes(List.of("SET", key, value)));
+                        }
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long before = writes.get();
+            while (writes.get() < before + 20_000) {
+                Thread.sleep(1);
+            }
+            assertTrue(aof.rewriteInBackground());
+            while (aof.isRewriteInProgress()) {
+                Thread.sleep(1);
+            }
+            assertTrue(aof.baseSize() > 0);
+        }
+        long before = writes.get();
+        while (writes.get() < before + 20_000) {
+            Thread.sleep(1);
+        }
+        stop.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        aof.close();
+
+        Map<String, String> replayed = new HashMap<>();
+        long commands = new AppendOnlyFile(path, AppendOnlyFile.FsyncPolicy.EVERYSEC, 0, 0).replay(command -> {
+            List<String> args = strings(command);
+            if (args.get(0).equals("SET")) {
+                replayed.put(args.get(1), args.get(2));
+            } else {
+                replayed.remove(args.get(1));
+            }
+        });
+        assertEquals(dataset, replayed);
+        // Compacted: the writes before the last rewrite are gone
+        assertTrue(commands < writes.get(), commands + " commands for " + writes.get() + " writes");
+    }
+
+    private static AppendOnlyFile open(Path path, AppendOnlyFile.FsyncPolicy policy) throws IOException {
+        AppendOnlyFile aof = new AppendOnlyFile(path, policy, 0, 0);
+        aof.open((sink, inOrder) -> { });
+        return aof;
+    }
+
+    private static List<List<String>> replay(Path path, AppendOnlyFile.FsyncPolicy policy) throws IOException {
+        List<List<String>> replayed = new ArrayList<>();
+        new AppendOnlyFile(path, policy, 0, 0).replay(command -> replayed.add(strings(command)));
+        return replayed;
+    }
+
+    private static List<byte[]> bytes(List<String> command) {
+        List<byte[]> args = new ArrayList<>();
+        for (String arg : command) {
+            args.add(arg.getBytes(StandardCharsets.UTF_8));
+        }
+        return args;
+    }
+
+    private static List<String> strings(List<byte[]> command) {
+        List<String> args = new ArrayList<>();
+        for (byte[] arg : command) {
+            args.add(new String(arg, StandardCharsets.UTF_8));
+        }
+        return args;
+    }
+}
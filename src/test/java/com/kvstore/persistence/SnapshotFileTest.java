@@ -0,0 +1,182 @@
+package com.kvstore.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.kvstore.core.ByteKey;
+import com.kvstore.core.CollectionValue;
+import com.kvstore.core.DataType;
+import com.kvstore.core.HashValue;
+import com.kvstore.core.ListValue;
+import com.kvstore.core.StorageEngine;
+import com.kvstore.core.StorageEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+class SnapshotFileTest {
+    // Enough random, incompressible values to fill several blocks
+    private static final int STRINGS = 3000;
+    private static final int VALUE_LENGTH = 200;
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @EnumSource(SnapshotFile.Format.class)
+    void loadsBackWhatWasWritten(SnapshotFile.Format format) throws IOException {
+        SnapshotFile file = new SnapshotFile(dir.resolve("dump.snap"));
+        Map<ByteKey, StorageEntry> written = dataset();
+        try (SnapshotFile.Writer writer = file.newWriter(format)) {
+            for (Map.Entry<ByteKey, StorageEntry> entry : written.entrySet()) {
+                writer.write(entry.getKey(), entry.getValue());
+            }
+            writer.commit();
+        }
+
+        Map<ByteKey, String> loaded = new HashMap<>();
+        assertEquals(written.size(), file.load((key, entry) -> loaded.put(key, describe(entry))));
+        assertEquals(describeAll(written), loaded);
+
+        if (format == SnapshotFile.Format.INDEXED) {
+            assertTrue(file.isIndexed());
+            MappedSnapshot mapped = MappedSnapshot.open(file.path());
+            mapped.verify();
+            for (Map.Entry<ByteKey, StorageEntry> entry : written.entrySet()) {
+                assertEquals(describe(entry.getValue()), describe(mapped.lookup(entry.getKey())));
+            }
+            assertEquals(null, mapped.lookup(key("missing")));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(SnapshotFile.Format.class)
+    void refusesAFileWhoseRecordsChanged(SnapshotFile.Format format) throws IOException {
+        SnapshotFile file = write(format);
+        // Inside a value of the first block, which is stored as is since
+        // random bytes do not compress
+        try (FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, 1000);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            channel.write(b, 1000);
+        }
+
+        IOException e = assertThrows(IOException.class, () -> file.load((key, entry) -> { }));
+        assertTrue(e.getMessage().contains("integrity check"), e.getMessage());
+    }
+
+    @ParameterizedTest
+    @EnumSource(SnapshotFile.Format.class)
+    void refusesATruncatedFile(SnapshotFile.Format format) throws IOException {
+        SnapshotFile file = write(format);
+        try (FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+
+        assertThrows(IOException.class, () -> file.load((key, entry) -> { }));
+        if (format == SnapshotFile.Format.INDEXED) {
+            assertThrows(IOException.class, () -> MappedSnapshot.open(file.path()));
+        }
+    }
+
+    @Test
+    void counterChangedWhileASnapshotRunsIsSavedAsItWas() throws IOException {
+        StorageEngine engine = new StorageEngine();
+        ByteKey counter = key("counter");
+        engine.incrementBy(counter, 10, null);
+        SnapshotFile file = new SnapshotFile(dir.resolve("dump.snap"));
+        try (StorageEngine.Snapshot view = engine.openSnapshot();
+                SnapshotFile.Writer writer = file.newWriter(SnapshotFile.Format.PLAIN)) {
+            engine.incrementBy(counter, 5, null);
+            view.forEach((key, entry) -> {
+                try {
+                    writer.write(key, entry);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            writer.commit();
+        }
+
+        Map<ByteKey, String> loaded = new HashMap<>();
+        file.load((key, entry) -> loaded.put(key, describe(entry)));
+        assertEquals(Map.of(counter, "STRING 10 -1"), loaded);
+        assertEquals("15", new String((byte[]) engine.get(counter).orElseThrow().getValue(), StandardCharsets.US_ASCII));
+    }
+
+    private SnapshotFile write(SnapshotFile.Format format) throws IOException {
+        SnapshotFile file = new SnapshotFile(dir.resolve("dump.snap"));
+        try (SnapshotFile.Writer writer = file.newWriter(format)) {
+            for (Map.Entry<ByteKey, StorageEntry> entry : dataset().entrySet()) {
+                writer.write(entry.getKey(), entry.getValue());
+            }
+            writer.commit();
+        }
+        return file;
+    }
+
+    private static Map<ByteKey, StorageEntry> dataset() {
+        Random random = new Random(42);
+        Map<ByteKey, StorageEntry> entries = new HashMap<>();
+        for (int i = 0; i < STRINGS; i++) {
+            byte[] value = new byte[VALUE_LENGTH];
+            random.nextBytes(value);
+            entries.put(key("string:" + i), new StorageEntry(value, DataType.STRING));
+        }
+        entries.put(key("empty"), new StorageEntry(new byte[0], DataType.STRING));
+        entries.put(key("counter"), new StorageEntry(bytes("-42"), DataType.STRING));
+        StorageEntry expiring = new StorageEntry(bytes("later"), DataType.STRING);
+        expiring.setExpiresAt(System.currentTimeMillis() + 3_600_000);
+        entries.put(key("expiring"), expiring);
+        ListValue list = new ListValue();
+        for (int i = 0; i < 100; i++) {
+            list.push(bytes("item:" + i), false);
+        }
+        entries.put(key("list"), new StorageEntry(list, DataType.LIST));
+        HashValue hash = new HashValue();
+        hash.put(bytes("field"), bytes("value"));
+        hash.put(bytes("other"), bytes("\r\n"));
+        entries.put(key("hash"), new StorageEntry(hash, DataType.HASH));
+        return entries;
+    }
+
+    private static Map<ByteKey, String> describeAll(Map<ByteKey, StorageEntry> entries) {
+        Map<ByteKey, String> described = new HashMap<>();
+        entries.forEach((key, entry) -> described.put(key, describe(entry)));
+        return described;
+    }
+
+    /**
+     * Returns the type, value and expiry of an entry in a form that compares
+     * by content.
+     */
+    private static String describe(StorageEntry entry) {
+        Object value = entry.getValue();
+        byte[] content = value instanceof CollectionValue collection ? collection.serialize() : (byte[]) value;
+        String text = entry.getType() == DataType.STRING && content.length < VALUE_LENGTH
+                ? new String(content, StandardCharsets.UTF_8)
+                : Arrays.toString(content);
+        return entry.getType() + " " + text + " " + (entry.hasExpiry() ? entry.getExpiresAt() : -1);
+    }
+
+    private static ByteKey key(String key) {
+        return new ByteKey(bytes(key));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
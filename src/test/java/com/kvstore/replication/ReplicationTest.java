@@ -0,0 +1,306 @@
+package com.kvstore.replication;
+
+import static com.kvstore.network.InProcessServer.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.kvstore.config.ServerConfig;
+import com.kvstore.persistence.AppendOnlyFile;
+import com.kvstore.network.InProcessServer;
+import com.kvstore.network.RespClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a primary and a replica in this JVM, the replica connected through a
+ * proxy that can cut the link.
+ */
+class ReplicationTest {
+    private static final int LISTS = 50;
+    private static final long LIST_LENGTH = 2000;
+
+    @TempDir
+    Path dir;
+
+    private final List<InProcessServer> servers = new ArrayList<>();
+    private int primaryPort;
+    private Proxy proxy;
+
+    @BeforeEach
+    void startPrimary() throws Exception {
+        // Logs to an append-only file, and replies once a write is in it
+        ServerConfig config = config("primary");
+        config.setAppendOnly(true);
+        config.setAppendFsync(AppendOnlyFile.FsyncPolicy.ALWAYS);
+        primaryPort = start(config);
+        proxy = new Proxy(primaryPort);
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        // Replicas first, so that none reconnects to a primary going down
+        for (int i = servers.size() - 1; i >= 0; i--) {
+            servers.get(i).close();
+        }
+        proxy.close();
+    }
+
+    @Test
+    void fullSyncThenStreamsLaterWrites() throws Exception {
+        try (RespClient primary = new RespClient(primaryPort)) {
+            for (int i = 0; i < 1000; i++) {
+                primary.call("SET", "key:" + i, "value:" + i);
+            }
+            primary.call("HSET", "hash", "field", "value");
+            primary.call("RPUSH", "list", "a", "b", "c");
+            primary.call("SET", "counter", "10");
+
+            try (RespClient replica = new RespClient(startReplica())) {
+                awaitLinkUp(replica);
+                // Lists follow the dataset through the stream
+                await(() -> Long.valueOf(1003).equals(replica.call("DBSIZE")));
+                assertEquals("value:999", replica.call("GET", "key:999"));
+                assertEquals("value", replica.call("HGET", "hash", "field"));
+                assertEquals(List.of("a", "b", "c"), replica.call("LRANGE", "list", "0", "-1"));
+
+                primary.call("SET", "key:0", "changed");
+                primary.call("INCR", "counter");
+                primary.call("DEL", "key:1", "key:2");
+                primary.call("LPOP", "list");
+                primary.call("SET", "late", "write");
+                await(() -> "write".equals(replica.call("GET", "late")));
+                assertEquals("changed", replica.call("GET", "key:0"));
+                assertEquals("11", replica.call("GET", "counter"));
+                assertEquals(1002L, replica.call("DBSIZE"));
+                assertEquals(List.of("b", "c"), replica.call("LRANGE", "list", "0", "-1"));
+            }
+            assertEquals("1", primary.info("sync_full"));
+        }
+    }
+
+    @Test
+    void resumesWithPartialResyncAfterDisconnect() throws Exception {
+        try (RespClient primary = new RespClient(primaryPort)) {
+            primary.call("SET", "before", "1");
+            try (RespClient replica = new RespClient(startReplica())) {
+                awaitLinkUp(replica);
+                assertEquals("1", replica.call("GET", "before"));
+
+                proxy.dropConnections();
+                await(() -> primary.info("connected_slaves").equals("0"));
+                for (int i = 0; i < 100; i++) {
+                    primary.call("SET", "during:" + i, Integer.toString(i));
+                }
+                primary.call("DEL", "before");
+
+                await(() -> "99".equals(replica.call("GET", "during:99")));
+                assertEquals(null, replica.call("GET", "before"));
+                assertEquals(100L, replica.call("DBSIZE"));
+                await(() -> primary.info("master_repl_offset").equals(replica.info("slave_repl_offset")));
+            }
+            assertEquals("1", primary.info("sync_full"));
+            assertEquals("1", primary.info("sync_partial_ok"));
+        }
+    }
+
+    @Test
+    void replicaRefusesWrites() throws Exception {
+        try (RespClient primary = new RespClient(primaryPort)) {
+            primary.call("SET", "key", "value");
+            try (RespClient replica = new RespClient(startReplica())) {
+                awaitLinkUp(replica);
+                Object reply = replica.call("SET", "key", "other");
+                assertTrue(reply instanceof RespClient.ErrorReply error && error.message().startsWith("READONLY"),
+                        "SET on a replica replied " + reply);
+                assertEquals("value", replica.call("GET", "key"));
+            }
+        }
+    }
+
+    @Test
+    void fullSyncKeepsListsWrittenDuringTheSync() throws Exception {
+        try (RespClient primary = new RespClient(primaryPort)) {
+            // Enough keys for the walk to take a while
+            String padding = "x".repeat(100);
+            for (int i = 0; i < 20_000; i++) {
+                primary.call("SET", "key:" + i, padding);
+            }
+            for (int i = 0; i < LISTS; i++) {
+                primary.call("RPUSH", "list:" + i, "a", "b", "c");
+            }
+
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread writer = new Thread(() -> {
+                try (RespClient client = new RespClient(primaryPort)) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (long n = 0; !stop.get(); n++) {
+                        String list = "list:" + random.nextInt(LISTS);
+                        if (random.nextInt(4) == 0) {
+                            client.call("LPOP", list);
+                        } else {
+                            client.call("RPUSH", list, Long.toString(n));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writer.start();
+            try (RespClient replica = new RespClient(startReplica())) {
+                awaitLinkUp(replica);
+                Thread.sleep(200);
+                stop.set(true);
+                writer.join();
+                assertEquals(null, failure.get());
+                await(() -> primary.info("master_repl_offset").equals(replica.info("slave_repl_offset")));
+                for (int i = 0; i < LISTS; i++) {
+                    String list = "list:" + i;
+                    assertEquals(primary.call("LRANGE", list, "0", "-1"), replica.call("LRANGE", list, "0", "-1"),
+                            list);
+                }
+            } finally {
+                stop.set(true);
+                writer.join();
+            }
+        }
+    }
+
+    @Test
+    void fullSyncAppendsNothingToThePrimarysLog() throws Exception {
+        try (RespClient primary = new RespClient(primaryPort)) {
+            fillList(primary);
+            String size = primary.info("aof_current_size");
+            try (RespClient replica = new RespClient(startReplica())) {
+                awaitLinkUp(replica);
+                assertEquals(LIST_LENGTH, replica.call("LLEN", "list"));
+            }
+            assertEquals(size, primary.info("aof_current_size"));
+        }
+    }
+
+    @Test
+    void rewritingTheLogSendsReplicasNothing() throws Exception {
+        try (RespClient primary = new RespClient(primaryPort)) {
+            fillList(primary);
+            try (RespClient replica = new RespClient(startReplica())) {
+                awaitLinkUp(replica);
+                long before = Long.parseLong(primary.info("master_repl_offset"));
+                assertEquals("Background append only file rewriting started", primary.call("BGREWRITEAOF"));
+                await(() -> primary.info("aof_rewrite_in_progress").equals("0"));
+                // At most a heartbeat
+                long streamed = Long.parseLong(primary.info("master_repl_offset")) - before;
+                assertTrue(streamed < 100, streamed + " bytes streamed");
+                assertEquals(LIST_LENGTH, replica.call("LLEN", "list"));
+            }
+        }
+    }
+
+    private static void fillList(RespClient primary) {
+        for (int i = 0; i < LIST_LENGTH; i++) {
+            primary.call("RPUSH", "list", "element:" + i);
+        }
+    }
+
+    private ServerConfig config(String name) throws IOException {
+        return InProcessServer.config(dir.resolve(name));
+    }
+
+    private int startReplica() throws Exception {
+        ServerConfig config = config("replica");
+        config.setReplicaOf("127.0.0.1:" + proxy.port());
+        return start(config);
+    }
+
+    private int start(ServerConfig config) throws Exception {
+        InProcessServer server = InProcessServer.start(config);
+        servers.add(server);
+        return server.port();
+    }
+
+    private static void awaitLinkUp(RespClient replica) throws Exception {
+        await(() -> replica.info("master_link_status").equals("up"));
+    }
+
+    /**
+     * Forwards connections to a port, and can drop them all to cut a link.
+     */
+    private static final class Proxy implements Closeable {
+        private final ServerSocket server;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        Proxy(int target) throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket client = server.accept();
+                        Socket upstream = new Socket(InetAddress.getLoopbackAddress(), target);
+                        sockets.add(client);
+                        sockets.add(upstream);
+                        pipe(client, upstream);
+                        pipe(upstream, client);
+                    } catch (IOException e) {
+                        // Closed, or the target is down; the replica retries
+                    }
+                }
+            }, "proxy-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        private void pipe(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                try {
+                    from.getInputStream().transferTo(to.getOutputStream());
+                } catch (IOException e) {
+                    // Dropped
+                } finally {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            }, "proxy-pipe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void dropConnections() {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            sockets.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            dropConnections();
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}